@@ -0,0 +1,341 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/**
+ * The class gives the benchmarks access to the classes of the application.
+ * JMH does not allow benchmarks in the default package and other packages cannot name classes
+ * in it, so every workload is set up here and handed out as a plain {@link Runnable} or
+ * {@link Supplier}. The benchmarks find this class by name.
+ */
+public class BenchTargets {
+	private static final PixelFormat FORMAT = PixelFormat.negotiate(null);
+
+	/**
+	 * This method is used to create a workload that draws a shape on an image.
+	 * Each run moves the end point, so the outline is traced again as it is while dragging.
+	 * @param name the name of the shape, as understood by {@link Shape#create(String)}
+	 * @param size the size of the shape and the image
+	 * @return the workload
+	 */
+	public static Runnable shapeDraw(String name, int size) {
+		Shape shape = Shape.create(name);
+		if (shape == null) {
+			throw new IllegalArgumentException("Unknown shape " + name);
+		}
+		BufferedImage image = FORMAT.createImage(size, size);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(Color.black);
+		g.setStroke(new BasicStroke(3));
+		shape.setPosition(new Point(size / 8, size / 8));
+		int[] step = new int[1];
+		return () -> {
+			int end = size - size / 8 - (step[0]++ & 15);
+			shape.resize(end, end);
+			shape.draw(g);
+		};
+	}
+
+	/**
+	 * This method is used to create a workload that copies a whole surface into another one,
+	 * as the render worker does to publish a frame.
+	 * @param width the width of the surfaces
+	 * @param height the height of the surfaces
+	 * @return the workload
+	 */
+	public static Runnable copySurface(int width, int height) {
+		TiledSurface back = scribbled(width, height);
+		TiledSurface front = new TiledSurface(width, height, FORMAT);
+		return () -> front.copyFrom(back, back.getBounds());
+	}
+
+	/**
+	 * This method is used to create a workload that puts a whole surface into one image,
+	 * as saving does.
+	 * @param width the width of the surface
+	 * @param height the height of the surface
+	 * @return the workload, returning the image
+	 */
+	public static Supplier<Object> flattenSurface(int width, int height) {
+		TiledSurface surface = scribbled(width, height);
+		return surface::toImage;
+	}
+
+	/**
+	 * This method is used to create a workload that encodes a whole canvas as a PNG in memory.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param threads the number of cores the encoder uses
+	 * @return the workload, returning the size of the PNG
+	 */
+	public static Supplier<Object> pngEncode(int width, int height, int threads) {
+		BufferedImage image = scribbled(width, height).toImage();
+		PngEncoder encoder = new PngEncoder(Deflater.DEFAULT_COMPRESSION, PngEncoder.Filter.ADAPTIVE, threads);
+		return () -> {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				encoder.write(image, out, null);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return out.size();
+		};
+	}
+
+	/**
+	 * This method is used to create a workload that undoes and redoes the last operation
+	 * of a document.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param strokes the number of strokes in the document
+	 * @return the workload
+	 */
+	public static Runnable undoRedo(int width, int height, int strokes) {
+		TiledSurface surface = new TiledSurface(width, height, FORMAT);
+		Document document = new Document(new HistoryStore());
+		Random random = new Random(42);
+		for (int i = 0; i < strokes; i++) {
+			document.draw(stroke(random, width, height, 8), surface);
+		}
+		return () -> {
+			document.undo(surface);
+			document.redo(surface);
+		};
+	}
+
+	/**
+	 * This method is used to create a workload that rasterizes a pencil stroke the way the canvas
+	 * does while dragging, one flush per segment.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param segments the number of segments of the stroke
+	 * @return the workload
+	 */
+	public static Runnable pencil(int width, int height, int segments) {
+		TiledSurface surface = new TiledSurface(width, height, FORMAT);
+		Random random = new Random(42);
+		int[] points = new int[2 * (segments + 1)];
+		for (int i = 0; i < points.length; i += 2) {
+			points[i] = random.nextInt(width);
+			points[i + 1] = random.nextInt(height);
+		}
+		return () -> {
+			StrokeOp stroke = new StrokeOp(Color.black, new BasicStroke(4, BasicStroke.CAP_ROUND,
+					BasicStroke.JOIN_ROUND));
+			stroke.add(points[0], points[1]);
+			for (int i = 2; i < points.length; i += 2) {
+				stroke.add(points[i], points[i + 1]);
+				stroke.flush(surface);
+			}
+			stroke.endBatch();
+		};
+	}
+
+	/**
+	 * This method is used to create a workload that shows one frame of a drawing canvas at a zoom,
+	 * the way the canvas does: a short line is drawn, the mip pyramid is told about it, and the
+	 * middle of the canvas is painted into a view of 1280x720 from the level matching the zoom.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param zoom the number of screen pixels per canvas pixel
+	 * @return the workload
+	 */
+	public static Runnable zoomedFrame(int width, int height, double zoom) {
+		TiledSurface surface = scribbled(width, height);
+		MipPyramid pyramid = new MipPyramid(surface);
+		Viewport viewport = new Viewport();
+		viewport.setZoom(zoom);
+		int level = viewport.getLevel();
+		double scale = viewport.getZoom() * (1 << level);
+		BufferedImage view = FORMAT.createImage(1280, 720);
+		Graphics2D g = view.createGraphics();
+		g.setClip(0, 0, 1280, 720);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, zoom < 1
+				? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g.translate(640 - width / 2 * viewport.getZoom(), 360 - height / 2 * viewport.getZoom());
+		g.scale(scale, scale);
+		pyramid.getLevel(level);
+		Random random = new Random(42);
+		return () -> {
+			int x = random.nextInt(width - 64), y = random.nextInt(height - 64);
+			surface.draw(new java.awt.Rectangle(x, y, 64, 64), d -> {
+				d.setColor(Color.black);
+				d.drawLine(x, y, x + 63, y + 63);
+			});
+			pyramid.invalidate(new java.awt.Rectangle(x, y, 64, 64));
+			pyramid.getLevel(level).paint(g);
+		};
+	}
+
+	/**
+	 * This method is used to create a workload that sends a point of a pencil stroke to a
+	 * {@link CollabServer} on this computer and waits until every client, the sender included, received it.
+	 * The clients take turns sending, so the server always fans out to all of them.
+	 * @param clients the number of clients connected
+	 * @return the workload
+	 */
+	public static Runnable collabRoundTrip(int clients) {
+		try {
+			CollabServer server = new CollabServer(0, 1024, 1024);
+			Phaser received = new Phaser(1);
+			CollabClient.Listener listener = new CollabClient.Listener() {
+				public void received(List<RemoteOp> messages) {
+					for (int i = 0; i < messages.size(); i++) {
+						received.arrive();
+					}
+				}
+
+				public void lost(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			};
+			List<CollabClient> connected = new ArrayList<>();
+			for (int i = 0; i < clients; i++) {
+				connected.add(CollabClient.connect("localhost", server.getPort(), 1024, 1024, listener));
+			}
+			received.bulkRegister(clients);
+			int[] step = new int[1];
+			return () -> {
+				int turn = step[0]++;
+				connected.get(turn % clients).point(1, turn & 1023, turn >> 10 & 1023);
+				received.arriveAndAwaitAdvance();
+			};
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * This method is used to create a workload that bucket fills the region around a circle and
+	 * the inside of it, with a new color each time so every run fills the same pixels again.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @return the workload
+	 */
+	public static Runnable fill(int width, int height) {
+		TiledSurface surface = new TiledSurface(width, height, FORMAT);
+		Shape circle = Shape.create("circle");
+		circle.setPosition(new Point(width / 8, height / 8));
+		circle.resize(width - width / 8, height - height / 8);
+		new ShapeOp(circle, Color.black, new BasicStroke(4)).render(surface);
+		int[] step = new int[1];
+		return () -> {
+			Color color = new Color(0x808080 + (step[0]++ & 0x3f));
+			new FillOp(1, 1, color, 32).render(surface);
+			new FillOp(width / 2, height / 2, color, 32).render(surface);
+		};
+	}
+
+	/**
+	 * This method is used to create a workload that saves a canvas with {@link ImageSaver} and
+	 * loads it back with {@link ImageLoader}, waiting for each to finish.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param file the file to save to
+	 * @return the workload, returning the loaded image
+	 */
+	public static Supplier<Object> saveLoad(int width, int height, File file) {
+		BufferedImage image = scribbled(width, height).toImage();
+		BufferedImage preview = FORMAT.createImage(width, height);
+		ImageSaver saver = new ImageSaver();
+		ImageLoader loader = new ImageLoader();
+		return () -> {
+			Waiter saved = new Waiter();
+			saver.save(image, file, saved);
+			saved.await();
+			Waiter loaded = new Waiter();
+			loader.load(file, preview, loaded);
+			loaded.await();
+			return loaded.image.get();
+		};
+	}
+
+	/**
+	 * This method is used to create a surface with random strokes all over it.
+	 * @param width the width of the surface
+	 * @param height the height of the surface
+	 * @return the surface
+	 */
+	private static TiledSurface scribbled(int width, int height) {
+		TiledSurface surface = new TiledSurface(width, height, FORMAT);
+		Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			stroke(random, width, height, 16).render(surface);
+		}
+		return surface;
+	}
+
+	/**
+	 * This method is used to create a random pencil stroke.
+	 * @param random the source of the points
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param points the number of points
+	 * @return the stroke
+	 */
+	private static StrokeOp stroke(Random random, int width, int height, int points) {
+		StrokeOp stroke = new StrokeOp(new Color(random.nextInt(0xffffff)), new BasicStroke(
+				1 + random.nextInt(12), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+		for (int i = 0; i < points; i++) {
+			stroke.add(random.nextInt(width), random.nextInt(height));
+		}
+		stroke.endBatch();
+		return stroke;
+	}
+
+	/**
+	 * The class waits for a background save or load to finish.
+	 */
+	private static class Waiter implements ImageLoader.Callback {
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private final AtomicReference<BufferedImage> image = new AtomicReference<>();
+		private volatile IOException error;
+
+		public void progress(File file, int percent) {
+		}
+
+		public void done(File file) {
+			finished.countDown();
+		}
+
+		public void failed(File file, IOException e) {
+			error = e;
+			finished.countDown();
+		}
+
+		public void updated(java.awt.Rectangle region) {
+		}
+
+		public void loaded(File file, BufferedImage image) {
+			this.image.set(image);
+		}
+
+		private void await() {
+			try {
+				finished.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			if (error != null) {
+				throw new UncheckedIOException(error);
+			}
+		}
+	}
+}
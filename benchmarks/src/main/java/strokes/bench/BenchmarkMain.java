@@ -0,0 +1,26 @@
+package strokes.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The main class of the benchmark jar. It takes the usual JMH options and always adds the
+ * GC profiler, so every result comes with its allocation rate.
+ */
+public class BenchmarkMain {
+
+	/**
+	 * The main method of the benchmarks.
+	 * @param args the JMH command line options, for example a benchmark name pattern
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.jvmArgsAppend("-Djava.awt.headless=true")
+				.build()).run();
+	}
+}
@@ -0,0 +1,42 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time from a client sending a pencil point until every client of a
+ * drawing server on this computer received it, including the server's tick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollabBenchmark {
+	@Param({ "2", "32" })
+	public int clients;
+
+	private Runnable roundTrip;
+
+	@Setup
+	public void setup() {
+		roundTrip = Targets.create(Runnable.class, "collabRoundTrip", clients);
+	}
+
+	@Benchmark
+	public void roundTrip() {
+		roundTrip.run();
+	}
+}
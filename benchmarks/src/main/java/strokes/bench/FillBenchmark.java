@@ -0,0 +1,41 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures bucket filling the whole canvas, outside and inside of a large circle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FillBenchmark {
+	@Param({ "1920x1080", "8192x8192" })
+	public String canvas;
+
+	private Runnable fill;
+
+	@Setup
+	public void setup() {
+		fill = Targets.create(Runnable.class, "fill", Sizes.width(canvas), Sizes.height(canvas));
+	}
+
+	@Benchmark
+	public void fill() {
+		fill.run();
+	}
+}
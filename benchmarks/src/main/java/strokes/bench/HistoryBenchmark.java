@@ -0,0 +1,46 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures undoing and redoing the last operation of a document, which restores a checkpoint
+ * and replays the operations after it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+	@Param({ "800x600", "1920x1080" })
+	public String canvas;
+
+	@Param({ "10", "100" })
+	public int strokes;
+
+	private Runnable undoRedo;
+
+	@Setup
+	public void setup() {
+		undoRedo = Targets.create(Runnable.class, "undoRedo", Sizes.width(canvas), Sizes.height(canvas),
+				strokes);
+	}
+
+	@Benchmark
+	public void undoRedo() {
+		undoRedo.run();
+	}
+}
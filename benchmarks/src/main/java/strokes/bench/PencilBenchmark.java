@@ -0,0 +1,41 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures rasterizing a pencil stroke segment by segment on the canvas surface.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PencilBenchmark {
+	@Param({ "16", "256" })
+	public int segments;
+
+	private Runnable pencil;
+
+	@Setup
+	public void setup() {
+		pencil = Targets.create(Runnable.class, "pencil", 1920, 1080, segments);
+	}
+
+	@Benchmark
+	public void stroke() {
+		pencil.run();
+	}
+}
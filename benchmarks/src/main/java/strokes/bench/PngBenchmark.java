@@ -0,0 +1,46 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding the whole canvas as a PNG with different numbers of cores, to show how
+ * saving scales.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PngBenchmark {
+	@Param({ "1920x1080", "4096x4096" })
+	public String canvas;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	private Supplier<?> encode;
+
+	@Setup
+	public void setup() {
+		encode = Targets.create(Supplier.class, "pngEncode", Sizes.width(canvas), Sizes.height(canvas), threads);
+	}
+
+	@Benchmark
+	public Object encode() {
+		return encode.get();
+	}
+}
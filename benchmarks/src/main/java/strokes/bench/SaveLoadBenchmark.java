@@ -0,0 +1,53 @@
+package strokes.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures saving a canvas as PNG and loading it back, through the background saver and loader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SaveLoadBenchmark {
+	@Param({ "800x600", "1920x1080", "4096x4096" })
+	public String canvas;
+
+	private File file;
+	private Supplier<?> roundTrip;
+
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("strokes-bench", ".png");
+		roundTrip = Targets.create(Supplier.class, "saveLoad", Sizes.width(canvas), Sizes.height(canvas),
+				file);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public Object roundTrip() {
+		return roundTrip.get();
+	}
+}
@@ -0,0 +1,44 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures drawing every kind of shape while its end point moves, as in a drag.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeBenchmark {
+	@Param({ "rect", "circle", "rightTriangle", "triangle", "line", "diamond", "pentagon", "arrow" })
+	public String shape;
+
+	@Param({ "64", "512" })
+	public int size;
+
+	private Runnable draw;
+
+	@Setup
+	public void setup() {
+		draw = Targets.create(Runnable.class, "shapeDraw", shape, size);
+	}
+
+	@Benchmark
+	public void draw() {
+		draw.run();
+	}
+}
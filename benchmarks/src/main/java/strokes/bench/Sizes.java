@@ -0,0 +1,28 @@
+package strokes.bench;
+
+/**
+ * The class parses canvas sizes given as benchmark parameters in the form {@code WIDTHxHEIGHT}.
+ */
+final class Sizes {
+
+	private Sizes() {
+	}
+
+	/**
+	 * This method is used to get the width of a size.
+	 * @param size the size, such as 800x600
+	 * @return the width
+	 */
+	static int width(String size) {
+		return Integer.parseInt(size.substring(0, size.indexOf('x')));
+	}
+
+	/**
+	 * This method is used to get the height of a size.
+	 * @param size the size, such as 800x600
+	 * @return the height
+	 */
+	static int height(String size) {
+		return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+	}
+}
@@ -0,0 +1,51 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures copying the whole canvas, between two tiled surfaces as the render worker publishes
+ * frames and into a single image as saving does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SurfaceBenchmark {
+	@Param({ "800x600", "1920x1080", "4096x4096" })
+	public String canvas;
+
+	private Runnable copy;
+	private Supplier<?> flatten;
+
+	@Setup
+	public void setup() {
+		int width = Sizes.width(canvas), height = Sizes.height(canvas);
+		copy = Targets.create(Runnable.class, "copySurface", width, height);
+		flatten = Targets.create(Supplier.class, "flattenSurface", width, height);
+	}
+
+	@Benchmark
+	public void copy() {
+		copy.run();
+	}
+
+	@Benchmark
+	public Object toImage() {
+		return flatten.get();
+	}
+}
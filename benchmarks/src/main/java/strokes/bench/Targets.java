@@ -0,0 +1,36 @@
+package strokes.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * The class looks up the workloads of the application in the default package class
+ * {@code BenchTargets}, which the benchmarks cannot name directly.
+ */
+final class Targets {
+
+	private Targets() {
+	}
+
+	/**
+	 * This method is used to create a workload by calling one of the factories of {@code BenchTargets}.
+	 * @param type the type of the workload
+	 * @param name the name of the factory
+	 * @param args the arguments of the factory
+	 * @return the workload
+	 */
+	static <T> T create(Class<T> type, String name, Object... args) {
+		try {
+			for (Method method : Class.forName("BenchTargets").getMethods()) {
+				if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+					return type.cast(method.invoke(null, args));
+				}
+			}
+			throw new IllegalArgumentException("No workload " + name);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Error creating workload " + name, e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Error creating workload " + name, e);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package strokes.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures drawing a short line and showing a frame of a 1280x720 view at different zooms,
+ * which should take about as long at every zoom.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZoomBenchmark {
+	@Param({ "8192x8192" })
+	public String canvas;
+
+	@Param({ "4", "1", "0.5", "0.125", "0.0625" })
+	public double zoom;
+
+	private Runnable frame;
+
+	@Setup
+	public void setup() {
+		frame = Targets.create(Runnable.class, "zoomedFrame", Sizes.width(canvas), Sizes.height(canvas), zoom);
+	}
+
+	@Benchmark
+	public void frame() {
+		frame.run();
+	}
+}
@@ -0,0 +1,99 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The class represents the command line entry point that renders {@link OpScript}s to PNG files
+ * without a display. Scripts are rendered in parallel, by default one per core.
+ */
+public class BatchRender {
+
+	/**
+	 * The main method of the batch renderer.
+	 * Usage: {@code BatchRender [-o DIR] [-j THREADS] SCRIPT...}. Each script is saved as a PNG
+	 * with the same base name, next to the script or in the output directory.
+	 * The exit status is 1 if any script failed and 2 for invalid arguments.
+	 *
+	 * @param args the options and the script files
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		System.setProperty("java.awt.headless", "true");
+		File outDir = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> scripts = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-o")) {
+					outDir = new File(args[++i]);
+				} else if (args[i].equals("-j")) {
+					threads = Integer.parseInt(args[++i]);
+				} else {
+					scripts.add(new File(args[i]));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			scripts.clear();
+		}
+		if (scripts.isEmpty() || threads < 1) {
+			System.err.println("Usage: BatchRender [-o DIR] [-j THREADS] SCRIPT...");
+			System.exit(2);
+		}
+		if (outDir != null) {
+			outDir.mkdirs();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, scripts.size()));
+		List<Future<File>> results = new ArrayList<>();
+		for (File script : scripts) {
+			File target = outputFile(script, outDir);
+			results.add(executor.submit(() -> render(script, target)));
+		}
+		executor.shutdown();
+		int failed = 0;
+		for (int i = 0; i < scripts.size(); i++) {
+			try {
+				System.out.println(results.get(i).get().getPath());
+			} catch (ExecutionException e) {
+				failed++;
+				System.err.println("Error rendering script: " + scripts.get(i).getPath());
+				System.err.println("Exception message: " + e.getCause().getMessage());
+			}
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * This method is used to render one script to a PNG file.
+	 * @param script the script to render
+	 * @param target the file to write the image to
+	 * @return the written file
+	 * @throws IOException if the script could not be read or the image not written
+	 */
+	public static File render(File script, File target) throws IOException {
+		OpScript ops = OpScript.read(script);
+		if (!ImageIO.write(ops.render().toImage(), "png", target)) {
+			throw new IOException("No PNG writer available");
+		}
+		return target;
+	}
+
+	/**
+	 * This method is used to pick the name of the image for a script.
+	 * @param script the script
+	 * @param outDir the output directory, or null to write next to the script
+	 * @return the image file
+	 */
+	private static File outputFile(File script, File outDir) {
+		String name = script.getName();
+		int dot = name.lastIndexOf('.');
+		name = (dot > 0 ? name.substring(0, dot) : name) + ".png";
+		return new File(outDir != null ? outDir : script.getAbsoluteFile().getParentFile(), name);
+	}
+}
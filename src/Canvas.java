@@ -1,41 +1,182 @@
+import java.awt.AWTEvent;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
-import java.awt.image.RenderedImage;
+import java.awt.image.VolatileImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-import javax.imageio.ImageIO;
+import javax.swing.AbstractAction;
 import javax.swing.JComponent;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.MouseInputAdapter;
 
 /**
  * The class represents the canvas to draw on.
+ * Drawing goes to the active layer of a {@link LayerStack}, and the changed region of every
+ * layer put together is what is shown and saved.
+ * The canvas can be zoomed through a {@link Viewport} and panned by the scroll pane it sits in;
+ * mouse events are mapped to canvas coordinates before any tool sees them.
+ * Several canvases can draw together through a {@link CollabServer}.
  */
 public class Canvas extends JComponent {
-	private int X1, Y1, X2, Y2;
-	private Graphics2D g;
-	private Image img;
-	private final SizedStack<Image> undoStack = new SizedStack<>(30);
-	private final SizedStack<Image> redoStack = new SizedStack<>(30);
+	private static final int FRAME_INTERVAL = Integer.getInteger("strokes.frameInterval", 16);
+	private static final boolean RENDER_WORKER = Boolean.getBoolean("strokes.renderWorker");
+	private static final int OVERLAY_INTERVAL = 250;
+
+	private Color color = Color.black;
+	private BasicStroke thickness = new BasicStroke();
+	private int fillTolerance = 32;
+	private final Dimension size;
+	private TiledSurface surface;
+	private PixelFormat format;
+	private VolatileImage screen;
+	private Point screenOrigin;
+	private double screenZoom = 1;
+	private final Viewport viewport = new Viewport();
+	private MipPyramid pyramid;
+	private Runnable zoomListener;
+	private Point panStart, panFrom;
+	private volatile CollabClient collab;
+	private CollabClient sharing;
+	private int sharedStroke;
+	private int joins;
+	private Runnable shareListener;
+	private volatile Queue<RemoteOp> remote;
+	private final AtomicBoolean remotePending = new AtomicBoolean();
+	private final Map<Long, Layer> remoteLayers = new HashMap<>();
+	private final Map<Long, StrokeOp> liveStrokes = new HashMap<>();
+	private final Map<Long, Layer> liveLayers = new HashMap<>();
+	private final Set<Long> endedStrokes = new HashSet<>();
+	private final Map<Long, ShapeOp> sharedShapes = new HashMap<>();
+	private final Map<ShapeOp, Long> sharedKeys = new ConcurrentHashMap<>();
+	private final Map<Layer, SharedHistory> sharedHistory = new HashMap<>();
+	private java.awt.Rectangle stale;
+	private final Object staleLock = new Object();
+	private LayerStack layers;
+	private Runnable layerListener;
+	private final ImageSaver saver = new ImageSaver();
+	private final ImageLoader loader = new ImageLoader();
+	private ProjectFile project;
+	private volatile Journal journal;
+	private boolean journaling;
+	private File journalSession;
+	private Recording recording, startedRecording;
+	private LayerStack restored;
+	private BufferedImage loadPreview;
+	private java.awt.Rectangle loadShown;
+	private final boolean useRenderWorker;
+	private RenderWorker worker;
+	private StrokeOp stroke;
+	private Layer strokeLayer;
+	private final Timer frameTimer = new Timer(FRAME_INTERVAL, e -> flushStroke());
 	private Shape shape;
+	private final java.awt.Rectangle preview = new java.awt.Rectangle();
+	private final java.awt.Rectangle previewNext = new java.awt.Rectangle();
+	private boolean previewing;
+	private ShapeOp selected;
+	private int moveX, moveY;
+	private final java.awt.Rectangle selectionShown = new java.awt.Rectangle();
 	private MouseMotionListener motion;
 	private MouseListener listener;
+	private long inputTime;
+	private final AtomicLong shownInput = new AtomicLong();
+	private final java.awt.Rectangle overlay = new java.awt.Rectangle();
 
 	public Canvas() {
+		this(RENDER_WORKER);
+	}
+
+	/**
+	 * This constructor is used to create a canvas that may draw on a dedicated render thread.
+	 * The canvas takes the size the component has when it is first painted.
+	 * @param useRenderWorker true to draw on a render thread and leave the event dispatch thread only the blit
+	 */
+	public Canvas(boolean useRenderWorker) {
+		this(null, useRenderWorker);
+	}
+
+	/**
+	 * This constructor is used to create a canvas of a fixed size, which may be much larger than
+	 * the screen. Only the tiles that are drawn on take memory.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 */
+	public Canvas(int width, int height) {
+		this(new Dimension(width, height), RENDER_WORKER);
+	}
+
+	private Canvas(Dimension size, boolean useRenderWorker) {
+		this.size = size;
+		this.useRenderWorker = useRenderWorker;
 		setBackground(Color.WHITE);
+		if (size != null) {
+			setPreferredSize(size);
+		}
 		defaultListener();
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_DELETE, 0), "deleteSelection");
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_BACK_SPACE, 0), "deleteSelection");
+		getActionMap().put("deleteSelection", new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				deleteSelection();
+			}
+		});
+		int ctrl = java.awt.event.InputEvent.CTRL_DOWN_MASK;
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, ctrl), "zoomIn");
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_ADD, ctrl), "zoomIn");
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, ctrl), "zoomOut");
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_SUBTRACT, ctrl), "zoomOut");
+		getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_0, ctrl), "actualSize");
+		getActionMap().put("zoomIn", new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				zoomIn();
+			}
+		});
+		getActionMap().put("zoomOut", new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				zoomOut();
+			}
+		});
+		getActionMap().put("actualSize", new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				setZoom(1);
+			}
+		});
+		enableEvents(AWTEvent.MOUSE_WHEEL_EVENT_MASK);
+		if (Metrics.OVERLAY) {
+			new Timer(OVERLAY_INTERVAL, e -> repaint(overlay)).start();
+		}
 	}
 
 	/**
@@ -43,46 +184,394 @@ public class Canvas extends JComponent {
 	 * @param g1 the graphics context
 	 */
 	protected void paintComponent(Graphics g1) {
-		if (img == null) {
-			img = createImage(getSize().width, getSize().height);
-			g = (Graphics2D) img.getGraphics();
-			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-					RenderingHints.VALUE_ANTIALIAS_ON);
-
-			clear();
+		long start = System.nanoTime();
+		if (surface == null) {
+			format = PixelFormat.negotiate(getGraphicsConfiguration());
+			Dimension d = size != null ? size : getSize();
+			surface = new TiledSurface(d.width, d.height, format);
+			boolean restoring = restored != null;
+			layers = new LayerStack(d.width, d.height, format, restoring ? restored.getHistory() : new HistoryStore());
+			if (restoring) {
+				layers.replace(restored.getAll(), restored.getActiveIndex());
+				restored = null;
+			}
+			Metrics.watch(layers);
+			if (layerListener != null) {
+				SwingUtilities.invokeLater(layerListener);
+			}
+			if (useRenderWorker) {
+				worker = new RenderWorker(surface, this::damage);
+			}
+			pyramid = new MipPyramid(worker == null ? surface : worker.getFrame());
+			if (journaling) {
+				openJournal();
+			}
+			if (restoring) {
+				render(null, this::fullBounds);
+			}
+			Queue<RemoteOp> inbox = remote;
+			if (inbox != null && !inbox.isEmpty()) {
+				SwingUtilities.invokeLater(this::drawRemote);
+			}
+		}
+		TiledSurface master = worker == null ? surface : worker.getFrame();
+		if (!paintScreen(g1, master)) {
+			paintCanvas((Graphics2D) g1, master);
+		}
+		Graphics2D zoomed = (Graphics2D) g1.create();
+		zoomed.scale(viewport.getZoom(), viewport.getZoom());
+		if (loadShown != null) {
+			Graphics clipped = zoomed.create();
+			clipped.clipRect(loadShown.x, loadShown.y, loadShown.width, loadShown.height);
+			synchronized (loadPreview) {
+				blit(clipped, loadPreview);
+			}
+			clipped.dispose();
 		}
-		g1.drawImage(img, 0, 0, null);
 		if (shape != null) {
-			Graphics2D g2 = (Graphics2D) g1;
-			g2.setStroke(g.getStroke());
-			g2.setColor(g.getColor());
-			shape.draw(g2);
+			zoomed.setStroke(thickness);
+			zoomed.setColor(color);
+			shape.draw(zoomed);
+		}
+		if (selected != null) {
+			paintSelection((Graphics2D) zoomed.create());
+		}
+		zoomed.dispose();
+		java.awt.Rectangle clip = g1.getClipBounds();
+		Metrics.paint(start, clip == null ? getWidth() : clip.width, clip == null ? getHeight() : clip.height);
+		long since = shownInput.getAndSet(0);
+		if (since != 0) {
+			Metrics.input(since);
+		}
+		if (Metrics.OVERLAY) {
+			paintOverlay(g1);
+		}
+	}
+
+	/**
+	 * This method is used to paint the selected shape at the place it is being dragged to,
+	 * with a dashed box around it.
+	 * @param g2 a graphics context that may be changed and is disposed of
+	 */
+	private void paintSelection(Graphics2D g2) {
+		g2.translate(moveX, moveY);
+		if (moveX != 0 || moveY != 0) {
+			selected.render(g2);
+		}
+		java.awt.Rectangle box = selected.getBounds();
+		g2.setColor(Color.gray);
+		g2.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[] { 4, 4 }, 0));
+		g2.drawRect(box.x, box.y, box.width - 1, box.height - 1);
+		g2.dispose();
+	}
+
+	/**
+	 * This method is used to repaint the selection where it was shown and where it is now.
+	 */
+	private void repaintSelection() {
+		repaintCanvas(selectionShown);
+		if (selected == null) {
+			selectionShown.setBounds(0, 0, 0, 0);
+		} else {
+			selectionShown.setBounds(selected.getBounds());
+			selectionShown.translate(moveX, moveY);
+			repaintCanvas(selectionShown);
+		}
+	}
+
+	/**
+	 * This method is used to paint the live measurements in the top left corner of the view.
+	 * When the view scrolled, the place the overlay was painted before is repainted as well.
+	 * @param g1 the graphics context
+	 */
+	private void paintOverlay(Graphics g1) {
+		String[] lines = Metrics.overlay();
+		java.awt.FontMetrics fm = g1.getFontMetrics();
+		int width = 0;
+		for (String line : lines) {
+			width = Math.max(width, fm.stringWidth(line));
+		}
+		java.awt.Rectangle view = getVisibleRect();
+		if (overlay.x != view.x + 8 || overlay.y != view.y + 8) {
+			repaint(overlay);
+		}
+		overlay.setBounds(view.x + 8, view.y + 8, width + 12, lines.length * fm.getHeight() + 8);
+		g1.setColor(new Color(0, 0, 0, 160));
+		g1.fillRect(overlay.x, overlay.y, overlay.width, overlay.height);
+		g1.setColor(Color.white);
+		for (int i = 0; i < lines.length; i++) {
+			g1.drawString(lines[i], overlay.x + 6, overlay.y + 4 + i * fm.getHeight() + fm.getAscent());
+		}
+	}
+
+	/**
+	 * This method is used to remember the time of an input, unless an older one was not painted yet.
+	 */
+	private void input() {
+		if (inputTime == 0) {
+			inputTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * This method is used to hand the pending input over to the next paint, which will show it.
+	 * It may be called from any thread.
+	 * @param since the time of the input, or 0 if there was none
+	 */
+	private void inputShown(long since) {
+		if (since != 0) {
+			shownInput.compareAndSet(0, since);
+		}
+	}
+
+	/**
+	 * This method is used to paint the visible part of the master surface through an accelerated
+	 * copy in video memory. Only the regions of the master that changed since the last paint are
+	 * uploaded, and the whole copy is uploaded again when its contents were lost, the view moved
+	 * or the zoom changed.
+	 * @param g1 the graphics context
+	 * @param master the surface holding the current state of the canvas
+	 * @return false if no accelerated image is available
+	 */
+	private boolean paintScreen(Graphics g1, TiledSurface master) {
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		java.awt.Rectangle view = getVisibleRect().intersection(viewport.toView(master.getBounds()));
+		if (gc == null) {
+			return false;
 		}
+		if (view.isEmpty()) {
+			return true;
+		}
+		do {
+			int status = screen == null || screen.getWidth() != view.width || screen.getHeight() != view.height
+					? VolatileImage.IMAGE_INCOMPATIBLE : screen.validate(gc);
+			if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+				screen = createVolatileImage(view.width, view.height);
+				if (screen == null) {
+					return false;
+				}
+			}
+			if (status != VolatileImage.IMAGE_OK || !view.getLocation().equals(screenOrigin)
+					|| screenZoom != viewport.getZoom()) {
+				screenOrigin = view.getLocation();
+				screenZoom = viewport.getZoom();
+				markStale(view);
+			}
+			java.awt.Rectangle upload;
+			synchronized (staleLock) {
+				upload = stale == null ? null : stale.intersection(view);
+				stale = null;
+			}
+			if (upload != null && !upload.isEmpty()) {
+				Graphics2D vg = screen.createGraphics();
+				vg.translate(-view.x, -view.y);
+				vg.clipRect(upload.x, upload.y, upload.width, upload.height);
+				paintCanvas(vg, master);
+				vg.dispose();
+			}
+			g1.drawImage(screen, view.x, view.y, null);
+		} while (screen.contentsLost());
+		return true;
+	}
+
+	/**
+	 * This method is used to paint the part of the master surface inside the clip at the zoom of
+	 * the viewport. Zoomed in, each pixel is shown as a square. Zoomed out, the level of the mip
+	 * pyramid nearest the zoom is shown and scaled down by less than half, so the work done
+	 * follows the size of the view rather than the size of the canvas.
+	 * @param g2 the graphics context, in the coordinates of the component
+	 * @param master the surface holding the current state of the canvas
+	 */
+	private void paintCanvas(Graphics2D g2, TiledSurface master) {
+		double zoom = viewport.getZoom();
+		synchronized (master) {
+			if (zoom == 1) {
+				master.paint(g2);
+				return;
+			}
+			int level = viewport.getLevel();
+			TiledSurface shown = pyramid.getLevel(level);
+			java.awt.geom.AffineTransform transform = g2.getTransform();
+			Object interpolation = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+			g2.scale(zoom * (1 << level), zoom * (1 << level));
+			g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, zoom < 1
+					? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+			shown.paint(g2);
+			g2.setTransform(transform);
+			if (interpolation != null) {
+				g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to mark a region of the master surface as changed and repaint it.
+	 * It may be called from any thread.
+	 * @param dirty the region that changed
+	 */
+	private void damage(java.awt.Rectangle dirty) {
+		MipPyramid levels = pyramid;
+		if (levels != null) {
+			levels.invalidate(dirty);
+		}
+		java.awt.Rectangle shown = viewport.toView(dirty);
+		markStale(shown);
+		repaint(shown);
+	}
+
+	/**
+	 * This method is used to repaint the part of the component showing a region of the canvas.
+	 * @param region the region, in canvas coordinates
+	 */
+	private void repaintCanvas(java.awt.Rectangle region) {
+		repaint(viewport.toView(region));
+	}
+
+	/**
+	 * This method is used to remember that a region of the accelerated copy must be uploaded again.
+	 * @param dirty the region that changed, in the coordinates of the component
+	 */
+	private void markStale(java.awt.Rectangle dirty) {
+		synchronized (staleLock) {
+			stale = stale == null ? new java.awt.Rectangle(dirty) : stale.union(dirty);
+		}
+	}
+
+	/**
+	 * This method is used to draw the part of an image that lies inside the clip.
+	 * @param g1 the graphics context
+	 * @param image the image to draw
+	 */
+	private static void blit(Graphics g1, BufferedImage image) {
+		java.awt.Rectangle clip = g1.getClipBounds();
+		if (clip == null) {
+			g1.drawImage(image, 0, 0, null);
+		} else {
+			int x1 = Math.max(clip.x, 0), y1 = Math.max(clip.y, 0);
+			int x2 = Math.min(clip.x + clip.width, image.getWidth());
+			int y2 = Math.min(clip.y + clip.height, image.getHeight());
+			if (x1 < x2 && y1 < y2) {
+				g1.drawImage(image, x1, y1, x2, y2, x1, y1, x2, y2, null);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to run a drawing task against a layer, either right away or on the render thread.
+	 * The region the task changed is then put together from every layer onto the image.
+	 * @param layer the layer the task draws on, or null if it draws on none
+	 * @param task the task to run, returning the region it changed or null
+	 */
+	private void render(Layer layer, Supplier<java.awt.Rectangle> task) {
+		long since = inputTime;
+		inputTime = 0;
+		if (worker != null) {
+			worker.submit(() -> {
+				java.awt.Rectangle dirty = composite(layer, task.get());
+				inputShown(dirty == null ? 0 : since);
+				return dirty;
+			});
+		} else {
+			java.awt.Rectangle dirty = composite(layer, task.get());
+			if (dirty != null) {
+				inputShown(since);
+				damage(dirty);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to put a changed region of the layers together onto the image.
+	 * @param layer the layer that was drawn on, or null
+	 * @param dirty the region that changed, or null
+	 * @return the region that changed
+	 */
+	private java.awt.Rectangle composite(Layer layer, java.awt.Rectangle dirty) {
+		if (dirty != null) {
+			layers.composite(layer, dirty, surface);
+		}
+		return dirty;
+	}
+
+	/**
+	 * This method is used to get the region covered by the whole image.
+	 * @return the bounds of the image
+	 */
+	private java.awt.Rectangle fullBounds() {
+		return surface.getBounds();
 	}
 
 	/**
 	 * This method is used to set the default listener for the canvas to draw with a pencil.
+	 * Dragged points are buffered and drawn once per frame as a single path.
 	 */
 	public void defaultListener() {
 		setDoubleBuffered(false);
 		listener = new MouseAdapter() {
 			public void mousePressed(MouseEvent e) {
-				saveToStack(copyImage(img));
-				X2 = e.getX();
-				Y2 = e.getY();
+				input();
+				if (surface != null) {
+					strokeLayer = layers.getActive();
+					stroke = new StrokeOp(color, new BasicStroke(thickness.getLineWidth(),
+							BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+					stroke.add(e.getX(), e.getY());
+					sharing = collab;
+					if (sharing != null) {
+						sharedStroke = sharing.begin(layers.indexOf(strokeLayer), color, thickness.getLineWidth());
+						sharing.point(sharedStroke, e.getX(), e.getY());
+						long key = sharing.key(sharedStroke);
+						StrokeOp op = stroke;
+						Layer layer = strokeLayer;
+						render(layer, () -> {
+							liveStrokes.put(key, op);
+							liveLayers.put(key, layer);
+							return null;
+						});
+					}
+					frameTimer.start();
+				}
+			}
+
+			public void mouseReleased(MouseEvent e) {
+				input();
+				frameTimer.stop();
+				StrokeOp op = stroke;
+				Layer layer = strokeLayer;
+				stroke = null;
+				strokeLayer = null;
+				boolean shared = sharing != null && sharing == collab;
+				long key = sharing == null ? 0 : sharing.key(sharedStroke);
+				if (sharing != null) {
+					sharing.end(sharedStroke);
+					sharing = null;
+				}
+				if (op != null) {
+					render(layer, () -> {
+						java.awt.Rectangle dirty = flush(layer, op);
+						if (shared) {
+							endedStrokes.add(key);
+						} else {
+							liveStrokes.remove(key);
+							liveLayers.remove(key);
+							if (op.size() > 1) {
+								layer.getDocument().add(op, layer.getSurface());
+								journal(j -> j.drawn(layer, op));
+							}
+						}
+						return dirty;
+					});
+				}
 			}
 		};
 
 		motion = new MouseMotionAdapter() {
 			public void mouseDragged(MouseEvent e) {
-				X1 = e.getX();
-				Y1 = e.getY();
-
-				if (g != null) {
-					g.drawLine(X2, Y2, X1, Y1);
-					repaint();
-					X2 = X1;
-					Y2 = Y1;
+				input();
+				if (stroke != null) {
+					stroke.add(e.getX(), e.getY());
+					if (sharing != null) {
+						sharing.point(sharedStroke, e.getX(), e.getY());
+					}
 				}
 			}
 		};
@@ -91,41 +580,102 @@ public class Canvas extends JComponent {
 	}
 
 	/**
-	 * This method is used to clear the canvas.
+	 * This method is used to draw the points of the current pencil stroke that arrived since the last frame.
+	 */
+	private void flushStroke() {
+		StrokeOp op = stroke;
+		Layer layer = strokeLayer;
+		if (op != null) {
+			render(layer, () -> flush(layer, op));
+		}
+	}
+
+	/**
+	 * This method is used to draw the buffered points of a pencil stroke on its layer.
+	 * @param layer the layer the stroke is drawn on
+	 * @param op the pencil stroke
+	 * @return the region that was changed, or null
+	 */
+	private java.awt.Rectangle flush(Layer layer, StrokeOp op) {
+		return op.flush(layer.getSurface());
+	}
+
+	/**
+	 * This method is used to set how often buffered pencil points are drawn.
+	 * @param millis the time between two frames in milliseconds
+	 */
+	public void setFrameInterval(int millis) {
+		frameTimer.setDelay(millis);
+	}
+
+	/**
+	 * This method is used to clear the active layer.
 	 */
 	public void clear() {
-		g.setPaint(Color.white);
-		g.fillRect(0, 0, getSize().width, getSize().height);
-		g.setPaint(Color.black);
-		repaint();
+		deselect();
+		Layer layer = layers.getActive();
+		ClearOp op = new ClearOp(surface.getWidth(), surface.getHeight());
+		if (!share(layer, op)) {
+			render(layer, () -> {
+				layer.getDocument().draw(op, layer.getSurface());
+				journal(j -> j.drawn(layer, op));
+				return fullBounds();
+			});
+		}
+		color = Color.black;
 	}
 
 	/**
-	 * This method is used to undo the last action by displaying the previous image.
+	 * This method is used to undo the last action on the active layer by rebuilding the layer without it.
+	 * While the canvas draws with others, the last action of anyone on that layer is undone for everyone.
 	 */
 	public void undo() {
-		if (!undoStack.isEmpty()) {
-			Image undoTemp = undoStack.pop();
-			redoStack.push(copyImage(img));
-			setImage(undoTemp);
+		deselect();
+		long start = System.nanoTime();
+		Layer layer = layers.getActive();
+		CollabClient current = collab;
+		if (current != null) {
+			current.undone(layers.indexOf(layer));
+			return;
 		}
+		render(layer, () -> {
+			boolean changed = layer.getDocument().undo(layer.getSurface());
+			Metrics.history(false, start, changed);
+			if (changed) {
+				journal(j -> j.undone(layer));
+			}
+			return changed ? fullBounds() : null;
+		});
 	}
 
 	/**
-	 * This method is used to redo the last action by displaying the next image.
+	 * This method is used to redo the last undone action on the active layer by drawing it again.
+	 * While the canvas draws with others, it is redone for everyone.
 	 */
 	public void redo() {
-		if (!redoStack.isEmpty()) {
-			Image redoTemp = redoStack.pop();
-			undoStack.push(copyImage(img));
-			setImage(redoTemp);
+		deselect();
+		long start = System.nanoTime();
+		Layer layer = layers.getActive();
+		CollabClient current = collab;
+		if (current != null) {
+			current.redone(layers.indexOf(layer));
+			return;
 		}
+		render(layer, () -> {
+			boolean changed = layer.getDocument().redo(layer.getSurface());
+			Metrics.history(true, start, changed);
+			if (changed) {
+				journal(j -> j.redone(layer));
+			}
+			return changed ? fullBounds() : null;
+		});
 	}
 
 	/**
 	 * This method is used to draw with a pencil.
 	 */
 	public void pencil() {
+		deselect();
 		removeMouseListener(listener);
 		removeMouseMotionListener(motion);
 		defaultListener();
@@ -195,13 +745,47 @@ public class Canvas extends JComponent {
 		shape = new Arrow();
 	}
 
+	/**
+	 * This method is used to fill the region around a clicked pixel whose color is close to the
+	 * clicked one, such as the inside of a shape.
+	 */
+	public void fill() {
+		setListener(new FillListener());
+		shape = null;
+	}
+
+	/**
+	 * This method is used to set how different a pixel may be from the clicked one to be filled.
+	 * @param tolerance the largest difference of each color channel, from 0 to 255
+	 */
+	public void setFillTolerance(int tolerance) {
+		this.fillTolerance = tolerance;
+	}
+
 	/**
 	 * This method is used to set the shape listener when drawing shapes.
 	 */
 	private void setShapeListener() {
+		setListener(new ShapeListener());
+	}
+
+	/**
+	 * This method is used to select shapes that were drawn before, to move them by dragging
+	 * or to delete them with the Delete key.
+	 */
+	public void select() {
+		setListener(new SelectListener());
+		shape = null;
+	}
+
+	/**
+	 * This method is used to replace the mouse listeners of the current tool.
+	 * @param ml the listener of the new tool
+	 */
+	private void setListener(MouseInputAdapter ml) {
+		deselect();
 		removeMouseListener(listener);
 		removeMouseMotionListener(motion);
-		ShapeListener ml = new ShapeListener();
 		addMouseListener(ml);
 		addMouseMotionListener(ml);
 		listener = ml;
@@ -209,118 +793,1184 @@ public class Canvas extends JComponent {
 	}
 
 	/**
-	 * This method is used to set the current image to draw on.
-	 * @param img the image to set
+	 * This method is used to forget the selected shape.
+	 */
+	private void deselect() {
+		if (selected != null) {
+			selected = null;
+			moveX = moveY = 0;
+			repaintSelection();
+		}
+	}
+
+	/**
+	 * This method is used to delete the selected shape, as if it had never been drawn.
+	 */
+	public void deleteSelection() {
+		if (selected != null && surface != null) {
+			replace(new ReplaceOp(selected, null));
+			deselect();
+		}
+	}
+
+	/**
+	 * This method is used to move or delete a shape. The selection is dropped if the shape
+	 * turns out to be too old to change. While the canvas draws with others, only the shapes
+	 * drawn with them can be changed, and the change is made for everyone.
+	 * @param op the operation replacing the shape
+	 */
+	private void replace(ReplaceOp op) {
+		Layer layer = layers.getActive();
+		CollabClient current = collab;
+		if (current != null) {
+			Long target = sharedKeys.get(op.getTarget());
+			if (target == null) {
+				deselect();
+				return;
+			}
+			long key = current.replaced(layers.indexOf(layer), target, op.getPlaced());
+			if (op.getPlaced() != null) {
+				sharedKeys.put(op.getPlaced(), key);
+			}
+			return;
+		}
+		render(layer, () -> {
+			if (layer.getDocument().replace(op, layer.getSurface())) {
+				journal(j -> j.replaced(layer, op));
+				return op.getBounds();
+			}
+			SwingUtilities.invokeLater(this::deselect);
+			return null;
+		});
+	}
+
+	/**
+	 * This method is used to get the layers of the canvas.
+	 * @return the layers, or null until the canvas was first painted
+	 */
+	public LayerStack getLayers() {
+		return layers;
+	}
+
+	/**
+	 * This method is used to set the code told when layers were added, removed or changed.
+	 * @param listener the listener, run on the event dispatch thread
+	 */
+	public void setLayerListener(Runnable listener) {
+		this.layerListener = listener;
+	}
+
+	/**
+	 * This method is used to set the listener told when the zoom changed.
+	 * @param listener the listener, called on the event dispatch thread
+	 */
+	public void setZoomListener(Runnable listener) {
+		this.zoomListener = listener;
+	}
+
+	/**
+	 * This method is used to get the zoom.
+	 * @return the number of screen pixels per canvas pixel
+	 */
+	public double getZoom() {
+		return viewport.getZoom();
+	}
+
+	/**
+	 * This method is used to zoom around the center of the visible part of the canvas.
+	 * @param zoom the number of screen pixels per canvas pixel
+	 */
+	public void setZoom(double zoom) {
+		java.awt.Rectangle visible = getVisibleRect();
+		zoom(zoom, new Point(visible.x + visible.width / 2, visible.y + visible.height / 2));
+	}
+
+	/**
+	 * This method is used to zoom in by one step.
+	 */
+	public void zoomIn() {
+		setZoom(viewport.step(true));
+	}
+
+	/**
+	 * This method is used to zoom out by one step.
+	 */
+	public void zoomOut() {
+		setZoom(viewport.step(false));
+	}
+
+	/**
+	 * This method is used to zoom while keeping the canvas pixel under a point of the view in place.
+	 * The component is resized to the zoomed canvas and the scroll pane scrolled to match.
+	 * @param zoom the number of screen pixels per canvas pixel
+	 * @param anchor the point that stays in place, in the coordinates of the component
 	 */
-	private void setImage(Image img) {
-		this.img = img;
-		g = (Graphics2D) img.getGraphics();
-		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-				RenderingHints.VALUE_ANTIALIAS_ON);
-		g.setStroke(new BasicStroke());
-		g.setColor(Color.BLACK);
+	private void zoom(double zoom, Point anchor) {
+		Dimension canvasSize = surface != null ? new Dimension(surface.getWidth(), surface.getHeight()) : size;
+		double before = viewport.getZoom();
+		if (canvasSize == null || viewport.setZoom(zoom) == before) {
+			return;
+		}
+		double after = viewport.getZoom();
+		java.awt.Rectangle visible = getVisibleRect();
+		setPreferredSize(viewport.toView(canvasSize));
+		setSize(getPreferredSize());
+		if (getParent() instanceof JViewport) {
+			scrollTo((int) Math.round(anchor.x / before * after) - (anchor.x - visible.x),
+					(int) Math.round(anchor.y / before * after) - (anchor.y - visible.y));
+		}
+		revalidate();
 		repaint();
+		if (zoomListener != null) {
+			zoomListener.run();
+		}
 	}
 
 	/**
-	 * This method is used to copy the image tp prevent the original image from being modified.
-	 * @param img the image to copy
-	 * @return the copied image
+	 * This method is used to scroll the view of the enclosing scroll pane, kept inside the canvas.
+	 * @param x the x coordinate of the top left corner of the view
+	 * @param y the y coordinate of the top left corner of the view
 	 */
-	private BufferedImage copyImage(Image img) {
-		BufferedImage copyOfImage = new BufferedImage(getSize().width,
-				getSize().height, BufferedImage.TYPE_INT_RGB);
-		Graphics g = copyOfImage.createGraphics();
-		g.drawImage(img, 0, 0, getWidth(), getHeight(), null);
-		return copyOfImage;
+	private void scrollTo(int x, int y) {
+		JViewport port = (JViewport) getParent();
+		Dimension extent = port.getExtentSize();
+		port.setViewPosition(new Point(Math.max(0, Math.min(x, getWidth() - extent.width)),
+				Math.max(0, Math.min(y, getHeight() - extent.height))));
 	}
 
 	/**
-	 * This method is used to save the image to the stack.
-	 * @param img the image to save
+	 * This method is used to hand mouse events to the listeners in canvas coordinates.
+	 * Dragging with the middle button pans the view instead.
+	 * @param e the event in the coordinates of the component
 	 */
-	private void saveToStack(Image img) {
-		undoStack.push(copyImage(img));
+	protected void processMouseEvent(MouseEvent e) {
+		if (!pan(e)) {
+			super.processMouseEvent(toCanvas(e));
+		}
 	}
 
 	/**
-	 * This method is used to set the thickness of the shape.
-	 * @param thickness the thickness of the shape
+	 * This method is used to hand mouse motion events to the listeners in canvas coordinates.
+	 * @param e the event in the coordinates of the component
 	 */
-	public void setThickness(int thickness) {
-		g.setStroke(new BasicStroke(thickness));
+	protected void processMouseMotionEvent(MouseEvent e) {
+		if (!pan(e)) {
+			super.processMouseMotionEvent(toCanvas(e));
+		}
 	}
 
 	/**
-	 * This method is used to save the image to the file.
-	 * @param file the file to save the image to
+	 * This method is used to zoom around the pointer when the wheel turns with Ctrl held down.
+	 * Other turns of the wheel scroll the enclosing scroll pane as usual.
+	 * @param e the event in the coordinates of the component
 	 */
-	public void save(File file) {
-		try {
-			ImageIO.write((RenderedImage) img, "PNG", file);
-		} catch (IOException e) {
-			System.err.println("Error saving image to file: " + file.getPath());
-			System.err.println("Exception message: " + e.getMessage());
-			e.printStackTrace();
+	protected void processMouseWheelEvent(MouseWheelEvent e) {
+		if (e.isControlDown()) {
+			if (e.getPreciseWheelRotation() != 0) {
+				zoom(viewport.step(e.getPreciseWheelRotation() < 0), e.getPoint());
+			}
+			e.consume();
+			return;
+		}
+		super.processMouseWheelEvent(e);
+		java.awt.Container pane = SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+		if (pane != null && !e.isConsumed()) {
+			pane.dispatchEvent(SwingUtilities.convertMouseEvent(this, e, pane));
 		}
 	}
 
 	/**
-	 * This method is used to load the image from the file.
-	 * @param file the file to load the image from
+	 * This method is used to pan the view while the middle button is dragged.
+	 * @param e the event in the coordinates of the component
+	 * @return true if the event was used to pan
 	 */
-	public void load(File file) {
-		try {
-			img = ImageIO.read(file);
-			g = (Graphics2D) img.getGraphics();
-			repaint();
-		} catch (IOException e) {
-			System.err.println("Error loading image from file: " + file.getPath());
-			System.err.println("Exception message: " + e.getMessage());
-			e.printStackTrace();
+	private boolean pan(MouseEvent e) {
+		if (!SwingUtilities.isMiddleMouseButton(e) || !(getParent() instanceof JViewport)) {
+			return false;
+		}
+		if (e.getID() == MouseEvent.MOUSE_PRESSED) {
+			panStart = e.getLocationOnScreen();
+			panFrom = ((JViewport) getParent()).getViewPosition();
+		} else if (e.getID() == MouseEvent.MOUSE_DRAGGED && panStart != null) {
+			Point at = e.getLocationOnScreen();
+			scrollTo(panFrom.x - (at.x - panStart.x), panFrom.y - (at.y - panStart.y));
+		} else if (e.getID() == MouseEvent.MOUSE_RELEASED) {
+			panStart = null;
 		}
+		return true;
 	}
 
 	/**
-	 * This method is used to pick the color of the shape.
-	 * @param color the color of the shape
+	 * This method is used to map a mouse event to the canvas pixel under the pointer.
+	 * @param e the event in the coordinates of the component
+	 * @return the event in canvas coordinates, or the same event at a zoom of 1
 	 */
-	public void setColor(Color color) {
-		g.setPaint(color);
+	private MouseEvent toCanvas(MouseEvent e) {
+		if (viewport.getZoom() == 1) {
+			return e;
+		}
+		Point p = viewport.toCanvas(e.getX(), e.getY());
+		return new MouseEvent(this, e.getID(), e.getWhen(), e.getModifiersEx(), p.x, p.y,
+				e.getXOnScreen(), e.getYOnScreen(), e.getClickCount(), e.isPopupTrigger(), e.getButton());
 	}
 
 	/**
-	 * The class handles the drawing of shapes on the canvas.	 */
-	class ShapeListener extends MouseInputAdapter {
-		/**
-		 * Invoked when a mouse button has been pressed on a component.
-		 * @param e the event to be processed
-		 */
-		public void mousePressed(MouseEvent e) {
-			Point startPoint = e.getPoint();
-			shape.setPosition(startPoint);
-			shape.resize(startPoint);
-			saveToStack(img);
+	 * This method is used to add a transparent layer above the active one and draw on it.
+	 */
+	public void addLayer() {
+		if (layers != null) {
+			deselect();
+			layers.add();
+			layersChanged();
 		}
+	}
 
-		/**
-		 * Invoked when a mouse button is pressed on a component and then dragged.
-		 * @param e the event to be processed
-		 */
-		public void mouseDragged(MouseEvent e) {
-			shape.resize(e.getPoint());
-			repaint();
+	/**
+	 * This method is used to remove the active layer, unless it is the only one.
+	 */
+	public void removeLayer() {
+		if (layers != null) {
+			deselect();
+			Layer removed = layers.getActive();
+			if (layers.remove(layers.getActiveIndex())) {
+				render(null, () -> {
+					removed.getDocument().close();
+					return null;
+				});
+				layersChanged();
+			}
 		}
+	}
 
-		/**
-		 * Invoked when a mouse button has been released on a component.
-		 * @param e the event to be processed
-		 */
-		public void mouseReleased(MouseEvent e) {
-			shape.resize(e.getPoint());
-			shape.draw(g);
-			shape.start = shape.end;
-			repaint();
+	/**
+	 * This method is used to move the active layer up or down the stack.
+	 * @param offset the number of positions to move the layer up, or down if negative
+	 */
+	public void moveLayer(int offset) {
+		if (layers != null) {
+			int from = layers.getActiveIndex();
+			int to = Math.max(0, Math.min(layers.size() - 1, from + offset));
+			if (from != to) {
+				layers.move(from, to);
+				layersChanged();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to choose the layer to draw on.
+	 * @param index the position of the layer, 0 being the bottom
+	 */
+	public void setActiveLayer(int index) {
+		if (layers != null && index != layers.getActiveIndex()) {
+			deselect();
+			layers.setActive(index);
+			layersChanged();
+		}
+	}
+
+	/**
+	 * This method is used to show or hide a layer.
+	 * @param index the position of the layer
+	 * @param visible true to show the layer
+	 */
+	public void setLayerVisible(int index, boolean visible) {
+		if (layers != null) {
+			layers.setVisible(index, visible);
+			layersChanged();
+		}
+	}
+
+	/**
+	 * This method is used to set how opaque a layer is shown.
+	 * @param index the position of the layer
+	 * @param opacity the opacity, from 0 to 1
+	 */
+	public void setLayerOpacity(int index, float opacity) {
+		if (layers != null) {
+			layers.setOpacity(index, opacity);
+			layersChanged();
+		}
+	}
+
+	/**
+	 * This method is used to show the layers again after they were changed and tell the listener.
+	 */
+	private void layersChanged() {
+		render(null, this::fullBounds);
+		if (layerListener != null) {
+			layerListener.run();
+		}
+	}
+
+	/**
+	 * This method is used to set the thickness of the shape.
+	 * @param thickness the thickness of the shape
+	 */
+	public void setThickness(int thickness) {
+		this.thickness = new BasicStroke(thickness);
+	}
+
+	/**
+	 * This method is used to save the image to the file.
+	 * @param file the file to save the image to
+	 */
+	public void save(File file) {
+		save(file, errorPrinter("Error saving image to file: "));
+	}
+
+	/**
+	 * This method is used to save the image to the file in the background.
+	 * A snapshot of the image is taken first, so drawing can go on while the snapshot is encoded.
+	 * @param file the file to save the image to
+	 * @param listener the listener to report progress and completion to
+	 */
+	public void save(File file, ProgressListener listener) {
+		ProgressListener timed = timed(false, listener);
+		render(null, () -> {
+			saver.save(surface.toImage(), file, timed);
+			return null;
+		});
+	}
+
+	/**
+	 * This method is used to load the image from the file.
+	 * @param file the file to load the image from
+	 */
+	public void load(File file) {
+		load(file, errorPrinter("Error loading image from file: "));
+	}
+
+	/**
+	 * This method is used to load the image from the file in the background.
+	 * A preview of the image is shown while it is decoded, and only the part that fits on
+	 * the canvas is decoded at all.
+	 * @param file the file to load the image from
+	 * @param listener the listener to report progress and completion to
+	 */
+	public void load(File file, ProgressListener listener) {
+		ProgressListener timed = timed(true, listener);
+		Layer layer = layers.getActive();
+		BufferedImage preview = format.createImage(surface.getWidth(), surface.getHeight());
+		loadPreview = preview;
+		loadShown = null;
+		loader.load(file, preview, new ImageLoader.Callback() {
+			public void updated(java.awt.Rectangle region) {
+				if (loadPreview == preview) {
+					loadShown = loadShown == null ? region : loadShown.union(region);
+					repaintCanvas(region);
+				}
+			}
+
+			public void loaded(File file, BufferedImage image) {
+				endPreview(preview);
+				LoadOp op = new LoadOp(image, surface.getWidth(), surface.getHeight());
+				if (!share(layer, op)) {
+					render(layer, () -> {
+						layer.getDocument().draw(op, layer.getSurface());
+						journal(j -> j.drawn(layer, op));
+						return fullBounds();
+					});
+				}
+			}
+
+			public void progress(File file, int percent) {
+				timed.progress(file, percent);
+			}
+
+			public void done(File file) {
+				timed.done(file);
+			}
+
+			public void failed(File file, IOException e) {
+				endPreview(preview);
+				timed.failed(file, e);
+			}
+		});
+	}
+
+	/**
+	 * This method is used to save every layer with its history as a project in the background.
+	 * Saving to the file the canvas was last saved to or opened from only writes the tiles that
+	 * changed since; drawing can go on as soon as they are copied.
+	 * @param file the file to save the project to
+	 * @param listener the listener to report progress and completion to
+	 */
+	public void saveProject(File file, ProgressListener listener) {
+		ProgressListener timed = timed(false, listener);
+		render(null, () -> {
+			project = ProjectFile.save(project, file, layers, timed);
+			return null;
+		});
+	}
+
+	/**
+	 * This method is used to open a project in the background, replacing every layer.
+	 * The tiles of the project are only read from the file when they are first shown or drawn on.
+	 * @param file the file to open, of a project of the size of the canvas
+	 * @param listener the listener to report completion to
+	 */
+	public void openProject(File file, ProgressListener listener) {
+		ProgressListener timed = timed(true, listener);
+		ProjectFile.open(file, surface.getWidth(), surface.getHeight(), layers.getHistory(), timed, opened -> {
+			deselect();
+			render(null, () -> {
+				project = opened;
+				layers.replace(opened.getLayers(), opened.getActiveIndex());
+				journal(j -> j.opened(file));
+				return null;
+			});
+			layersChanged();
+		});
+	}
+
+	/**
+	 * This method is used to write every change to a crash-recovery journal from when the canvas is
+	 * first painted. It must be called before that.
+	 * @param session the directory of a recovered session to carry on, or null for a new one
+	 */
+	public void startJournal(File session) {
+		journaling = true;
+		journalSession = session;
+	}
+
+	/**
+	 * This method is used to draw on recovered layers instead of a blank one. The canvas takes
+	 * over the layers and their history store, so it must be called before it is first painted.
+	 * @param restored the layers of the size of the canvas
+	 */
+	public void restore(LayerStack restored) {
+		if (layers != null) {
+			throw new IllegalStateException("The canvas was already painted");
+		}
+		this.restored = restored;
+	}
+
+	/**
+	 * This method is used to stop the crash-recovery journal and delete its session, when the user
+	 * closes the program.
+	 */
+	public void discardJournal() {
+		journaling = false;
+		Journal current = journal;
+		journal = null;
+		if (current != null) {
+			current.discard();
+		}
+	}
+
+	/**
+	 * This method is used to open the journal and write a first base of the layers as they are.
+	 */
+	private void openJournal() {
+		try {
+			journal = Journal.start(journalSession, layers);
+			render(null, () -> {
+				journal.snapshot();
+				return null;
+			});
+		} catch (IOException e) {
+			System.err.println("Error starting recovery journal");
+			System.err.println("Exception message: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method is used to write a change to the journal and the recording, if there are any.
+	 * The journal is compacted into a new base once it grew large.
+	 * It must be called by the thread that draws, right after the change.
+	 * @param record the code that writes the change
+	 */
+	private void journal(Consumer<ChangeLog> record) {
+		Journal current = journal;
+		if (current != null) {
+			record.accept(current);
+			if (current.needsSnapshot()) {
+				current.snapshot();
+			}
+		}
+		if (recording != null) {
+			record.accept(recording);
+		}
+	}
+
+	/**
+	 * This method is used to record everything drawn from now on, with the time it was drawn,
+	 * to replay it later as a {@link TimeLapse}. The canvas as it is now is written next to the
+	 * recording, unless it is blank.
+	 * @param file the file to record to
+	 * @throws IOException if the file could not be created
+	 */
+	public void startRecording(File file) throws IOException {
+		if (layers == null) {
+			throw new IOException("The canvas has no size yet");
+		}
+		stopRecording();
+		Recording started = Recording.create(file, layers);
+		startedRecording = started;
+		render(null, () -> {
+			started.start();
+			recording = started;
+			return null;
+		});
+	}
+
+	/**
+	 * This method is used to stop recording. The rest of the recording is written by the thread
+	 * that draws, before it draws anything else.
+	 * @return the file that was recorded to, or null if the canvas was not recording
+	 */
+	public File stopRecording() {
+		Recording current = startedRecording;
+		startedRecording = null;
+		if (current == null) {
+			return null;
+		}
+		render(null, () -> {
+			recording = null;
+			current.close();
+			return null;
+		});
+		return current.getFile();
+	}
+
+	/**
+	 * This method is used to check whether the canvas records what is drawn.
+	 * @return true if it is recording
+	 */
+	public boolean isRecording() {
+		return startedRecording != null;
+	}
+
+	/**
+	 * This method is used to draw together with others through a {@link CollabServer}.
+	 * Pencil strokes, shapes, fills, clears, loaded images, undos, redos and moved or deleted
+	 * shapes from now on are sent to the server, starting with what was drawn in the session
+	 * before. Every change, this canvas' own included, is made when the server sends it, so
+	 * every canvas makes the changes in the same order, on the layer at the same position.
+	 * Adding, removing and moving layers is not shared, so the canvases must keep the same
+	 * layers; a change on a layer this canvas does not have ends the session.
+	 * Only pencil strokes are shown while they are drawn. Undo and redo only reach back to the
+	 * changes made in the session. The messages are read on a thread of their own and drawn
+	 * like any other change, so the event dispatch thread only hands them over.
+	 * The server is joined on a thread of its own; the share listener is told once it was joined.
+	 * Joining again or leaving before then gives up on the server.
+	 * @param host the name or address of the server
+	 * @param port the port of the server
+	 * @param failed the code told on the event dispatch thread why the server could not be joined
+	 */
+	public void join(String host, int port, Consumer<IOException> failed) {
+		Dimension d = surface != null ? new Dimension(surface.getWidth(), surface.getHeight()) : size;
+		leave();
+		int attempt = ++joins;
+		if (d == null) {
+			failed.accept(new IOException("The canvas has no size yet"));
+			return;
+		}
+		Queue<RemoteOp> inbox = new ConcurrentLinkedQueue<>();
+		remote = inbox;
+		CollabClient.Listener listener = new CollabClient.Listener() {
+			public void received(List<RemoteOp> messages) {
+				inbox.addAll(messages);
+				if (remotePending.compareAndSet(false, true)) {
+					SwingUtilities.invokeLater(Canvas.this::drawRemote);
+				}
+			}
+
+			public void lost(IOException e) {
+				System.err.println("Error in drawing session with " + host + ":" + port);
+				System.err.println("Exception message: " + e.getMessage());
+				SwingUtilities.invokeLater(() -> {
+					if (attempt == joins) {
+						leave();
+					}
+				});
+			}
+		};
+		Thread thread = new Thread(() -> {
+			try {
+				CollabClient client = CollabClient.connect(host, port, d.width, d.height, listener);
+				SwingUtilities.invokeLater(() -> joined(client, attempt));
+			} catch (IOException e) {
+				SwingUtilities.invokeLater(() -> {
+					if (attempt == joins) {
+						failed.accept(e);
+					}
+				});
+			}
+		}, "collab-connect");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * This method is used to start drawing with others once a server was joined.
+	 * @param client the connection to the server
+	 * @param attempt the number of the join it was made for
+	 */
+	private void joined(CollabClient client, int attempt) {
+		if (attempt != joins) {
+			client.close();
+			return;
+		}
+		collab = client;
+		if (shareListener != null) {
+			shareListener.run();
+		}
+	}
+
+	/**
+	 * This method is used to stop drawing with others, or to give up on a server being joined.
+	 * Messages that were not drawn yet are dropped.
+	 */
+	public void leave() {
+		joins++;
+		remote = null;
+		remoteLayers.clear();
+		CollabClient current = collab;
+		collab = null;
+		if (current != null) {
+			current.close();
+			int own = current.getId();
+			render(null, () -> {
+				endSession(own);
+				return null;
+			});
+			if (shareListener != null) {
+				shareListener.run();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to forget what was kept about a session that ended.
+	 * Strokes the server had not sent back yet, and strokes of the others that did not end, are
+	 * added to the history of their layers as far as they were drawn. It must be called by the
+	 * thread that draws.
+	 * @param own the number the server gave this canvas
+	 */
+	private void endSession(int own) {
+		for (Map.Entry<Long, StrokeOp> entry : liveStrokes.entrySet()) {
+			long key = entry.getKey();
+			if ((int) (key >>> 32) != own || endedStrokes.contains(key)) {
+				add(liveLayers.get(key), entry.getValue());
+			}
+		}
+		liveStrokes.clear();
+		liveLayers.clear();
+		endedStrokes.clear();
+		sharedShapes.clear();
+		sharedKeys.clear();
+		sharedHistory.clear();
+	}
+
+	/**
+	 * This method is used to check whether the canvas draws with others.
+	 * @return true if it is connected to a server
+	 */
+	public boolean isSharing() {
+		return collab != null;
+	}
+
+	/**
+	 * This method is used to set the listener told when the canvas joins or leaves a server.
+	 * @param listener the listener, called on the event dispatch thread
+	 */
+	public void setShareListener(Runnable listener) {
+		this.shareListener = listener;
+	}
+
+	/**
+	 * This method is used to send an operation to the server instead of drawing it, while the
+	 * canvas draws with others. It is drawn when the server sends it back.
+	 * @param layer the layer to draw the operation on
+	 * @param op the operation, which must not change any more
+	 * @return false if the canvas draws alone, so the operation must be drawn now
+	 */
+	private boolean share(Layer layer, DrawOp op) {
+		CollabClient current = collab;
+		if (current == null) {
+			return false;
+		}
+		current.drawn(layers.indexOf(layer), op);
+		return true;
+	}
+
+	/**
+	 * This method is used to draw every message that arrived since the last time.
+	 * Each run of messages for the same layer is drawn as one change to that layer.
+	 */
+	private void drawRemote() {
+		remotePending.set(false);
+		Queue<RemoteOp> inbox = remote;
+		if (inbox == null || layers == null) {
+			return;
+		}
+		CollabClient current = collab;
+		int own = current == null ? -1 : current.getId();
+		List<RemoteOp> run = new ArrayList<>();
+		Layer runLayer = null;
+		for (RemoteOp message = inbox.poll(); message != null; message = inbox.poll()) {
+			Layer layer;
+			if (message.getKind() == RemoteOp.POINTS) {
+				layer = remoteLayers.get(message.getKey());
+			} else if (message.getKind() == RemoteOp.END) {
+				layer = remoteLayers.remove(message.getKey());
+			} else if (message.getLayer() < 0 || message.getLayer() >= layers.size()) {
+				System.err.println("Error in drawing session: there is no layer " + message.getLayer());
+				System.err.println("Exception message: the canvases of the session do not have the same layers");
+				if (!run.isEmpty()) {
+					drawRemote(runLayer, run, own);
+				}
+				leave();
+				return;
+			} else {
+				layer = layers.get(message.getLayer());
+				if (message.getKind() == RemoteOp.BEGIN) {
+					remoteLayers.put(message.getKey(), layer);
+				}
+			}
+			if (layer == null) {
+				continue;
+			}
+			if (layer != runLayer && !run.isEmpty()) {
+				drawRemote(runLayer, run, own);
+				run = new ArrayList<>();
+			}
+			runLayer = layer;
+			run.add(message);
+		}
+		if (!run.isEmpty()) {
+			drawRemote(runLayer, run, own);
+		}
+	}
+
+	/**
+	 * This method is used to hand a run of messages for one layer to the thread that draws.
+	 * @param layer the layer to draw on
+	 * @param batch the messages in the order the server put them in
+	 * @param own the number the server gave this canvas, or -1
+	 */
+	private void drawRemote(Layer layer, List<RemoteOp> batch, int own) {
+		render(layer, () -> drawRemote(layer, batch, own, new ArrayList<>()));
+	}
+
+	/**
+	 * This method is used to draw messages on a layer. Pencil strokes of the others are drawn as
+	 * they grow, and every stroke is added to the history of the layer when its end comes back,
+	 * the way the pencil does. It must be called by the thread that draws.
+	 * @param layer the layer to draw on
+	 * @param batch the messages in the order the server put them in
+	 * @param own the number the server gave this canvas, whose strokes were drawn already
+	 * @param growing an empty list to keep the strokes that grew in
+	 * @return the region that changed, or null
+	 */
+	private java.awt.Rectangle drawRemote(Layer layer, List<RemoteOp> batch, int own, List<StrokeOp> growing) {
+		java.awt.Rectangle dirty = null;
+		Document document = layer.getDocument();
+		for (RemoteOp message : batch) {
+			long key = message.getKey();
+			StrokeOp op = liveStrokes.get(key);
+			boolean mine = message.getSender() == own;
+			switch (message.getKind()) {
+				case RemoteOp.BEGIN:
+					if (!mine) {
+						liveStrokes.put(key, message.createStroke());
+						liveLayers.put(key, layer);
+					}
+					break;
+				case RemoteOp.POINTS:
+					if (!mine && op != null) {
+						message.addTo(op);
+						if (!growing.contains(op)) {
+							growing.add(op);
+						}
+					}
+					break;
+				case RemoteOp.END:
+					if (op != null && (!mine || endedStrokes.remove(key))) {
+						liveStrokes.remove(key);
+						liveLayers.remove(key);
+						growing.remove(op);
+						dirty = union(dirty, flush(layer, op));
+						add(layer, op);
+					}
+					break;
+				case RemoteOp.DRAW: {
+					dirty = flushAll(layer, growing, dirty);
+					DrawOp drawn = message.getOp();
+					document.draw(drawn, layer.getSurface());
+					journal(j -> j.drawn(layer, drawn));
+					if (drawn instanceof ShapeOp) {
+						shared(key, (ShapeOp) drawn);
+					}
+					history(layer).done();
+					dirty = union(dirty, drawn.getBounds());
+					break;
+				}
+				case RemoteOp.REPLACE: {
+					dirty = flushAll(layer, growing, dirty);
+					ShapeOp target = sharedShapes.get(message.getTarget());
+					ShapeOp placed = (ShapeOp) message.getOp();
+					ReplaceOp replace = target == null ? null : new ReplaceOp(target, placed);
+					if (replace != null && document.replace(replace, layer.getSurface())) {
+						journal(j -> j.replaced(layer, replace));
+						if (placed != null) {
+							shared(key, placed);
+						}
+						history(layer).done();
+						dirty = union(dirty, replace.getBounds());
+						dirty = union(dirty, redrawLive(layer));
+					}
+					break;
+				}
+				default: {
+					dirty = flushAll(layer, growing, dirty);
+					boolean redo = message.getKind() == RemoteOp.REDO;
+					SharedHistory history = history(layer);
+					if (redo ? history.undone > 0 && document.redo(layer.getSurface())
+							: history.done > 0 && document.undo(layer.getSurface())) {
+						history.moved(redo);
+						if (redo) {
+							journal(j -> j.redone(layer));
+						} else {
+							journal(j -> j.undone(layer));
+						}
+						redrawLive(layer);
+						dirty = fullBounds();
+					}
+				}
+			}
+		}
+		return flushAll(layer, growing, dirty);
+	}
+
+	/**
+	 * This method is used to draw the points that arrived for strokes of the others.
+	 * @param layer the layer the strokes are drawn on
+	 * @param growing the strokes that grew, which is emptied
+	 * @param dirty the region that changed so far, or null
+	 * @return the region that changed, or null
+	 */
+	private java.awt.Rectangle flushAll(Layer layer, List<StrokeOp> growing, java.awt.Rectangle dirty) {
+		for (StrokeOp op : growing) {
+			dirty = union(dirty, flush(layer, op));
+		}
+		growing.clear();
+		return dirty;
+	}
+
+	/**
+	 * This method is used to draw the strokes still being drawn on a layer again, after the
+	 * layer was rebuilt under them. It must be called by the thread that draws.
+	 * @param layer the layer
+	 * @return the region that changed, or null
+	 */
+	private java.awt.Rectangle redrawLive(Layer layer) {
+		java.awt.Rectangle dirty = null;
+		for (Map.Entry<Long, StrokeOp> entry : liveStrokes.entrySet()) {
+			if (liveLayers.get(entry.getKey()) == layer) {
+				StrokeOp op = entry.getValue();
+				op.render(layer.getSurface());
+				dirty = union(dirty, op.getBounds());
+			}
+		}
+		return dirty;
+	}
+
+	/**
+	 * This method is used to add a pencil stroke that was drawn to the history of its layer.
+	 * It must be called by the thread that draws.
+	 * @param layer the layer the stroke was drawn on
+	 * @param op the stroke
+	 */
+	private void add(Layer layer, StrokeOp op) {
+		if (op.size() > 1) {
+			layer.getDocument().add(op, layer.getSurface());
+			journal(j -> j.drawn(layer, op));
+			if (collab != null) {
+				history(layer).done();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to remember the shape drawn by a message, so later messages can move it.
+	 * @param key the key of the message
+	 * @param shape the shape as it is in the history of its layer
+	 */
+	private void shared(long key, ShapeOp shape) {
+		sharedShapes.put(key, shape);
+		sharedKeys.put(shape, key);
+	}
+
+	/**
+	 * This method is used to get what was done on a layer in the session.
+	 * @param layer the layer
+	 * @return the changes that can be undone and redone
+	 */
+	private SharedHistory history(Layer layer) {
+		return sharedHistory.computeIfAbsent(layer, l -> new SharedHistory());
+	}
+
+	/**
+	 * This method is used to add a region to another one.
+	 * @param a the region so far, or null
+	 * @param b the region to add, or null
+	 * @return both regions together, or null if both are empty
+	 */
+	private static java.awt.Rectangle union(java.awt.Rectangle a, java.awt.Rectangle b) {
+		if (b == null || b.isEmpty()) {
+			return a;
+		}
+		return a == null ? b : a.union(b);
+	}
+
+	/**
+	 * This method is used to stop showing the preview of an image that finished loading.
+	 * @param preview the preview image of the load
+	 */
+	private void endPreview(BufferedImage preview) {
+		if (loadPreview == preview) {
+			if (loadShown != null) {
+				repaintCanvas(loadShown);
+			}
+			loadPreview = null;
+			loadShown = null;
+		}
+	}
+
+	/**
+	 * This method is used to wrap a listener so that the time until the file is done is measured.
+	 * @param load true for a load, false for a save
+	 * @param listener the listener to report to
+	 * @return the listener that measures and forwards
+	 */
+	private static ProgressListener timed(boolean load, ProgressListener listener) {
+		long start = System.nanoTime();
+		return new ProgressListener() {
+			public void progress(File file, int percent) {
+				listener.progress(file, percent);
+			}
+
+			public void done(File file) {
+				Metrics.file(load, file, start, true);
+				listener.done(file);
+			}
+
+			public void failed(File file, IOException e) {
+				Metrics.file(load, file, start, false);
+				listener.failed(file, e);
+			}
+		};
+	}
+
+	/**
+	 * This method is used to create a listener that only reports errors on the console.
+	 * @param message the message to print before the file name
+	 * @return the listener
+	 */
+	private static ProgressListener errorPrinter(String message) {
+		return new ProgressListener() {
+			public void progress(File file, int percent) {
+			}
+
+			public void done(File file) {
+			}
+
+			public void failed(File file, IOException e) {
+				System.err.println(message + file.getPath());
+				System.err.println("Exception message: " + e.getMessage());
+				e.printStackTrace();
+			}
+		};
+	}
+
+	/**
+	 * This method is used to pick the color of the shape.
+	 * @param color the color of the shape
+	 */
+	public void setColor(Color color) {
+		this.color = color;
+	}
+
+	/**
+	 * The class handles selecting and moving shapes that were drawn before.
+	 */
+	class SelectListener extends MouseInputAdapter {
+		private int pressX, pressY;
+
+		/**
+		 * Invoked when a mouse button has been pressed on a component.
+		 * Selects the topmost shape under the mouse, or nothing.
+		 * @param e the event to be processed
+		 */
+		public void mousePressed(MouseEvent e) {
+			input();
+			ShapeOp hit = layers == null ? null : layers.getActive().getDocument().hit(e.getX(), e.getY());
+			if (hit != selected) {
+				deselect();
+				selected = hit;
+				repaintSelection();
+			}
+			pressX = e.getX();
+			pressY = e.getY();
+		}
+
+		/**
+		 * Invoked when a mouse button is pressed on a component and then dragged.
+		 * @param e the event to be processed
+		 */
+		public void mouseDragged(MouseEvent e) {
+			if (selected != null) {
+				input();
+				moveX = e.getX() - pressX;
+				moveY = e.getY() - pressY;
+				repaintSelection();
+				inputShown(inputTime);
+				inputTime = 0;
+			}
+		}
+
+		/**
+		 * Invoked when a mouse button has been released on a component.
+		 * Moves the selected shape to where it was dragged.
+		 * @param e the event to be processed
+		 */
+		public void mouseReleased(MouseEvent e) {
+			if (selected == null) {
+				return;
+			}
+			moveX = e.getX() - pressX;
+			moveY = e.getY() - pressY;
+			if (moveX != 0 || moveY != 0) {
+				input();
+				ShapeOp moved = selected.translate(moveX, moveY);
+				replace(new ReplaceOp(selected, moved));
+				selected = moved;
+				moveX = moveY = 0;
+				repaintSelection();
+			}
+		}
+	}
+
+	/**
+	 * The class handles the bucket fill tool.
+	 */
+	class FillListener extends MouseInputAdapter {
+		/**
+		 * Invoked when a mouse button has been pressed on a component.
+		 * Fills the region around the pressed pixel on the active layer.
+		 * @param e the event to be processed
+		 */
+		public void mousePressed(MouseEvent e) {
+			input();
+			if (surface == null) {
+				return;
+			}
+			FillOp op = new FillOp(e.getX(), e.getY(), color, fillTolerance);
+			Layer layer = layers.getActive();
+			if (share(layer, op)) {
+				return;
+			}
+			render(layer, () -> {
+				layer.getDocument().draw(op, layer.getSurface());
+				journal(j -> j.drawn(layer, op));
+				java.awt.Rectangle bounds = op.getBounds();
+				return bounds.isEmpty() ? null : bounds;
+			});
+		}
+	}
+
+	/**
+	 * The class handles the drawing of shapes on the canvas.	 */
+	class ShapeListener extends MouseInputAdapter {
+		/**
+		 * Invoked when a mouse button has been pressed on a component.
+		 * @param e the event to be processed
+		 */
+		public void mousePressed(MouseEvent e) {
+			input();
+			Point startPoint = e.getPoint();
+			shape.setPosition(startPoint);
+			shape.resize(startPoint);
+			shape.getBounds(thickness, preview);
+			previewing = true;
+		}
+
+		/**
+		 * Invoked when a mouse button is pressed on a component and then dragged.
+		 * Nothing is allocated here, since it runs for every mouse movement.
+		 * @param e the event to be processed
+		 */
+		public void mouseDragged(MouseEvent e) {
+			input();
+			shape.resize(e.getX(), e.getY());
+			repaintPreview();
+		}
+
+		/**
+		 * Invoked when a mouse button has been released on a component.
+		 * @param e the event to be processed
+		 */
+		public void mouseReleased(MouseEvent e) {
+			input();
+			shape.resize(e.getPoint());
+			ShapeOp op = new ShapeOp(shape, color, thickness);
+			java.awt.Rectangle bounds = op.getBounds();
+			Layer layer = layers.getActive();
+			if (!share(layer, op)) {
+				render(layer, () -> {
+					layer.getDocument().draw(op, layer.getSurface());
+					journal(j -> j.drawn(layer, op));
+					return bounds;
+				});
+			}
+			repaintPreview();
+			shape.setPosition(shape.end);
+			previewing = false;
+		}
+
+		/**
+		 * Repaints the region covered by the previous and the current preview of the shape.
+		 */
+		private void repaintPreview() {
+			shape.getBounds(thickness, previewNext);
+			if (previewing) {
+				preview.add(previewNext);
+			} else {
+				preview.setBounds(previewNext);
+			}
+			repaintCanvas(preview);
+			inputShown(inputTime);
+			inputTime = 0;
+			preview.setBounds(previewNext);
+			previewing = true;
+		}
+	}
+
+	/**
+	 * This class counts the changes made to a layer in a shared session that can be undone and
+	 * redone, so an undo never reaches back to what a canvas drew before it joined.
+	 */
+	private static class SharedHistory {
+		private int done, undone;
+
+		/**
+		 * This method is used to count a new change, after which nothing can be redone.
+		 */
+		void done() {
+			done++;
+			undone = 0;
+		}
+
+		/**
+		 * This method is used to count an undo or a redo.
+		 * @param redo true for a redo
+		 */
+		void moved(boolean redo) {
+			done += redo ? 1 : -1;
+			undone -= redo ? 1 : -1;
 		}
 	}
 }
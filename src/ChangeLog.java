@@ -0,0 +1,284 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This class represents a log of the changes made to the layers of a canvas and their documents.
+ * Each change is turned into a small record that {@link #apply(DataInputStream, LayerStack)}
+ * makes again on other layers. Layers are named by their position, and shapes by how many
+ * operations before the change they were drawn, so the records still apply to layers rebuilt
+ * from a project. Operations are kept as they are and only written by {@link Record#write},
+ * which subclasses call on a thread of their own.
+ * {@link Journal} writes the records for crash recovery and {@link Recording} with the time of
+ * each for replaying a session.
+ */
+public abstract class ChangeLog {
+	static final int DRAW = 1, REPLACE = 2, UNDO = 3, REDO = 4, ADD = 5, REMOVE = 6, MOVE = 7, ACTIVE = 8,
+			VISIBLE = 9, OPACITY = 10, OPEN = 11;
+
+	/**
+	 * This interface represents a record waiting to be written.
+	 */
+	interface Record {
+		/**
+		 * This method is used to write the body of the record, starting with its type.
+		 * @param out the output to write to
+		 * @throws IOException if the record could not be written
+		 */
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * This interface represents a record of a change to one layer.
+	 */
+	private interface LayerRecord {
+		/**
+		 * This method is used to write the body of the record.
+		 * @param out the output to write to
+		 * @param index the position of the layer when the change was made
+		 * @throws IOException if the record could not be written
+		 */
+		void write(DataOutputStream out, int index) throws IOException;
+	}
+
+	final LayerStack layers;
+
+	/**
+	 * This constructor is used to create a log of the changes to some layers.
+	 * @param layers the layers of the canvas
+	 */
+	ChangeLog(LayerStack layers) {
+		this.layers = layers;
+	}
+
+	/**
+	 * This method is used to record an operation drawn on a layer.
+	 * @param layer the layer
+	 * @param op the operation, which must not change any more
+	 */
+	public void drawn(Layer layer, DrawOp op) {
+		record(layer, (out, index) -> {
+			out.writeByte(DRAW);
+			out.writeInt(index);
+			op.write(out);
+		});
+	}
+
+	/**
+	 * This method is used to record that a shape was moved or deleted. The shape is recorded by
+	 * how many operations before the replacing one it was drawn, which stays the same when the
+	 * document is rebuilt from a base.
+	 * It must be called by the thread that draws, right after the shape was replaced.
+	 * @param layer the layer
+	 * @param op the operation that replaced the shape
+	 */
+	public void replaced(Layer layer, ReplaceOp op) {
+		int distance = layer.getDocument().getPosition() - 1 - op.getSource();
+		ShapeOp placed = op.getPlaced();
+		record(layer, (out, index) -> {
+			out.writeByte(REPLACE);
+			out.writeInt(index);
+			out.writeInt(distance);
+			out.writeBoolean(placed != null);
+			if (placed != null) {
+				placed.write(out);
+			}
+		});
+	}
+
+	/**
+	 * This method is used to record that the last operation on a layer was undone.
+	 * @param layer the layer
+	 */
+	public void undone(Layer layer) {
+		record(layer, (out, index) -> {
+			out.writeByte(UNDO);
+			out.writeInt(index);
+		});
+	}
+
+	/**
+	 * This method is used to record that the last undone operation on a layer was redone.
+	 * @param layer the layer
+	 */
+	public void redone(Layer layer) {
+		record(layer, (out, index) -> {
+			out.writeByte(REDO);
+			out.writeInt(index);
+		});
+	}
+
+	/**
+	 * This method is used to record that the layers were replaced by the ones of a project.
+	 * @param project the file of the project
+	 */
+	public void opened(File project) {
+		append(out -> {
+			out.writeByte(OPEN);
+			out.writeUTF(project.getAbsolutePath());
+		});
+	}
+
+	/**
+	 * This method is used to record that a layer was added above the active one.
+	 */
+	void added() {
+		append(out -> out.writeByte(ADD));
+	}
+
+	/**
+	 * This method is used to record that a layer was removed.
+	 * @param index the position of the layer
+	 */
+	void removed(int index) {
+		append(out -> {
+			out.writeByte(REMOVE);
+			out.writeInt(index);
+		});
+	}
+
+	/**
+	 * This method is used to record that a layer was moved.
+	 * @param from the position of the layer
+	 * @param to the position it was moved to
+	 */
+	void moved(int from, int to) {
+		append(out -> {
+			out.writeByte(MOVE);
+			out.writeInt(from);
+			out.writeInt(to);
+		});
+	}
+
+	/**
+	 * This method is used to record that another layer is drawn on.
+	 * @param index the position of the layer
+	 */
+	void activated(int index) {
+		append(out -> {
+			out.writeByte(ACTIVE);
+			out.writeInt(index);
+		});
+	}
+
+	/**
+	 * This method is used to record that a layer was shown or hidden.
+	 * @param index the position of the layer
+	 * @param visible true if the layer is shown
+	 */
+	void shown(int index, boolean visible) {
+		append(out -> {
+			out.writeByte(VISIBLE);
+			out.writeInt(index);
+			out.writeBoolean(visible);
+		});
+	}
+
+	/**
+	 * This method is used to record that the opacity of a layer changed.
+	 * @param index the position of the layer
+	 * @param opacity the opacity
+	 */
+	void faded(int index, float opacity) {
+		append(out -> {
+			out.writeByte(OPACITY);
+			out.writeInt(index);
+			out.writeFloat(opacity);
+		});
+	}
+
+	/**
+	 * This method is used to queue a record of a change to a layer, with the position the layer
+	 * has among the other records. Changes to layers that were removed are not recorded.
+	 * @param layer the layer
+	 * @param record the record
+	 */
+	private void record(Layer layer, LayerRecord record) {
+		synchronized (layers) {
+			int index = layers.indexOf(layer);
+			if (index >= 0) {
+				append(out -> record.write(out, index));
+			}
+		}
+	}
+
+	/**
+	 * This method is used to keep a record, in the order the changes were made.
+	 * It is called by the thread that made the change and must not wait for the disk.
+	 * @param record the record
+	 */
+	abstract void append(Record record);
+
+	/**
+	 * This method is used to apply one record to layers.
+	 * @param in the body of the record
+	 * @param stack the layers
+	 * @return the layer whose pixels changed, or null if the record changed the stack
+	 * @throws IOException if the record is not valid
+	 */
+	static Layer apply(DataInputStream in, LayerStack stack) throws IOException {
+		int type = in.readUnsignedByte();
+		if (type == OPEN) {
+			ProjectFile project = ProjectFile.read(new File(in.readUTF()), stack.getHistory());
+			Layer first = stack.get(0);
+			if (project.getWidth() != first.getSurface().getWidth() || project.getHeight() != first.getSurface().getHeight()) {
+				throw new IOException("The opened project has another size");
+			}
+			stack.replace(project.getLayers(), project.getActiveIndex());
+			return null;
+		}
+		if (type == ADD) {
+			stack.add();
+			return null;
+		}
+		int index = in.readInt();
+		Layer layer = stack.get(index);
+		Document document = layer.getDocument();
+		switch (type) {
+			case DRAW:
+				document.draw(DrawOp.read(in), layer.getSurface());
+				break;
+			case REPLACE:
+				ShapeOp target = document.getShape(document.getPosition() - in.readInt());
+				ShapeOp placed = null;
+				if (in.readBoolean()) {
+					DrawOp op = DrawOp.read(in);
+					if (!(op instanceof ShapeOp)) {
+						throw new IOException("Replacement is not a shape");
+					}
+					placed = (ShapeOp) op;
+				}
+				if (target == null || !document.replace(new ReplaceOp(target, placed), layer.getSurface())) {
+					throw new IOException("Replaced shape not found");
+				}
+				break;
+			case UNDO:
+				document.undo(layer.getSurface());
+				break;
+			case REDO:
+				document.redo(layer.getSurface());
+				break;
+			case REMOVE:
+				if (stack.remove(index)) {
+					document.close();
+				}
+				break;
+			case MOVE:
+				stack.move(index, in.readInt());
+				break;
+			case ACTIVE:
+				stack.setActive(index);
+				break;
+			case VISIBLE:
+				stack.setVisible(index, in.readBoolean());
+				break;
+			case OPACITY:
+				stack.setOpacity(index, in.readFloat());
+				break;
+			default:
+				throw new IOException("Unknown record " + type);
+		}
+		return type == DRAW || type == REPLACE || type == UNDO || type == REDO ? layer : null;
+	}
+}
@@ -0,0 +1,71 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Concrete implementation of {@link DrawOp} for clearing the canvas.
+ */
+class ClearOp extends DrawOp {
+	private final int width, height;
+
+	/**
+	 * Creates a clear operation for a canvas of the given size.
+	 *
+	 * @param width  The width of the canvas.
+	 * @param height The height of the canvas.
+	 */
+	public ClearOp(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Fills the whole canvas with the background color.
+	 *
+	 * @param g The graphics context to use for drawing.
+	 */
+	@Override
+	public void render(Graphics2D g) {
+		g.setPaint(TiledSurface.BACKGROUND);
+		g.fillRect(0, 0, width, height);
+	}
+
+	/**
+	 * Gets the whole canvas.
+	 *
+	 * @return The region in canvas coordinates.
+	 */
+	@Override
+	public Rectangle getBounds() {
+		return new Rectangle(0, 0, width, height);
+	}
+
+	/**
+	 * Drops every tile of the surface instead of filling it.
+	 *
+	 * @param surface The surface to clear.
+	 */
+	@Override
+	public void render(TiledSurface surface) {
+		surface.clear();
+	}
+
+	/**
+	 * Resets a region of the surface to its background.
+	 *
+	 * @param surface The surface to clear.
+	 * @param clip    The region to clear.
+	 */
+	@Override
+	public void render(TiledSurface surface, Rectangle clip) {
+		surface.clear(clip);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(CLEAR);
+		out.writeInt(width);
+		out.writeInt(height);
+	}
+}
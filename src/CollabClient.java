@@ -0,0 +1,288 @@
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents the connection of a canvas to a {@link CollabServer}.
+ * What is drawn is queued as {@link RemoteOp}s and sent by a writer thread, which takes every
+ * message waiting at once and joins the points of a stroke into one message, so the pencil is
+ * sent about once per mouse event while the network keeps up and in fewer, larger batches when it
+ * does not. Nothing that queues a message ever waits for the network.
+ * A reader thread hands each batch the server sends to a listener. The server sends every
+ * message back to its sender too, in the one order every client gets them in, so a change is
+ * only made once it comes back.
+ */
+public class CollabClient implements Closeable {
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int GREETING_TIMEOUT = 5000;
+
+	/**
+	 * This interface represents the code told about what the others draw.
+	 */
+	public interface Listener {
+		/**
+		 * This method is used to hand over a batch of messages, on the reader thread.
+		 * @param messages the messages of every client, this one's included, in the order the server put them in
+		 */
+		void received(List<RemoteOp> messages);
+
+		/**
+		 * This method is used to tell that the connection was lost, on the reader thread.
+		 * It is not called when the client is closed.
+		 * @param e the reason
+		 */
+		void lost(IOException e);
+	}
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final int id;
+	private final Listener listener;
+	private final BlockingQueue<RemoteOp> outbox = new LinkedBlockingQueue<>();
+	private final AtomicInteger numbers = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * This constructor is used to wrap a socket whose greeting was read.
+	 * @param socket the socket
+	 * @param in the input of the socket
+	 * @param id the number the server gave the client
+	 * @param listener the listener to hand what the others draw to
+	 * @throws IOException if the socket could not be used
+	 */
+	private CollabClient(Socket socket, DataInputStream in, int id, Listener listener) throws IOException {
+		this.socket = socket;
+		this.in = in;
+		this.id = id;
+		this.listener = listener;
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+	}
+
+	/**
+	 * This method is used to join a server. It waits for the network, so it must not be called on
+	 * the event dispatch thread. A server that does not greet the client in time is given up on.
+	 * @param host the name or address of the server
+	 * @param port the port of the server
+	 * @param width the width of the canvas, which must be the one of the server
+	 * @param height the height of the canvas, which must be the one of the server
+	 * @param listener the listener to hand what the others draw to, starting with what they drew before
+	 * @return the client
+	 * @throws IOException if the server could not be reached or has a canvas of another size
+	 */
+	public static CollabClient connect(String host, int port, int width, int height, Listener listener)
+			throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(GREETING_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			if (in.readInt() != CollabServer.MAGIC || in.readInt() != CollabServer.VERSION) {
+				throw new IOException("Not a drawing server");
+			}
+			int id = in.readInt(), serverWidth = in.readInt(), serverHeight = in.readInt();
+			if (id == CollabServer.REFUSED) {
+				throw new IOException("The server takes no more clients, its session is too long to send");
+			}
+			if (serverWidth != width || serverHeight != height) {
+				throw new IOException("The server draws on a canvas of " + serverWidth + "x" + serverHeight);
+			}
+			socket.setSoTimeout(0);
+			CollabClient client = new CollabClient(socket, in, id, listener);
+			start(client::read, "collab-client-read");
+			start(client::write, "collab-client-write");
+			return client;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * This method is used to get the number the server gave the client.
+	 * @return the number
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * This method is used to get the key the messages of a stroke or an operation of this client
+	 * come back with.
+	 * @param number the number of the stroke or operation
+	 * @return the key, as returned by {@link RemoteOp#getKey()}
+	 */
+	public long key(int number) {
+		return RemoteOp.key(id, number);
+	}
+
+	/**
+	 * This method is used to send that a pencil stroke starts.
+	 * @param layer the position of the layer the stroke is drawn on
+	 * @param color the color of the stroke
+	 * @param width the line width of the stroke
+	 * @return the number of the stroke, to send its points with
+	 */
+	public int begin(int layer, Color color, float width) {
+		int stroke = numbers.incrementAndGet();
+		send(RemoteOp.begin(stroke, layer, color, width));
+		return stroke;
+	}
+
+	/**
+	 * This method is used to send a point added to a pencil stroke.
+	 * @param stroke the number of the stroke
+	 * @param x the x coordinate of the point
+	 * @param y the y coordinate of the point
+	 */
+	public void point(int stroke, int x, int y) {
+		send(RemoteOp.point(stroke, x, y));
+	}
+
+	/**
+	 * This method is used to send that a pencil stroke ended.
+	 * @param stroke the number of the stroke
+	 */
+	public void end(int stroke) {
+		send(RemoteOp.end(stroke));
+	}
+
+	/**
+	 * This method is used to send an operation to be drawn.
+	 * @param layer the position of the layer to draw it on
+	 * @param op a shape, fill, clear or load operation, which must not change any more
+	 */
+	public void drawn(int layer, DrawOp op) {
+		send(RemoteOp.draw(numbers.incrementAndGet(), layer, op));
+	}
+
+	/**
+	 * This method is used to send that the last change of a layer is to be undone.
+	 * @param layer the position of the layer
+	 */
+	public void undone(int layer) {
+		send(RemoteOp.history(false, layer));
+	}
+
+	/**
+	 * This method is used to send that the last undone change of a layer is to be redone.
+	 * @param layer the position of the layer
+	 */
+	public void redone(int layer) {
+		send(RemoteOp.history(true, layer));
+	}
+
+	/**
+	 * This method is used to send that a shape is to be moved or deleted.
+	 * @param layer the position of the layer of the shape
+	 * @param target the key of the message that drew the shape
+	 * @param placed the shape in its new place, or null to delete it
+	 * @return the key the placed shape comes back with
+	 */
+	public long replaced(int layer, long target, ShapeOp placed) {
+		int number = numbers.incrementAndGet();
+		send(RemoteOp.replace(number, layer, target, placed));
+		return key(number);
+	}
+
+	/**
+	 * This method is used to leave the server.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing more can be done
+		}
+		outbox.add(RemoteOp.end(0));
+	}
+
+	/**
+	 * This method is used to queue a message for the writer.
+	 * @param message the message
+	 */
+	private void send(RemoteOp message) {
+		if (!closed) {
+			outbox.add(message);
+		}
+	}
+
+	/**
+	 * This method is used to run the thread that reads what the others draw until the connection ends.
+	 */
+	private void read() {
+		try {
+			while (!closed) {
+				listener.received(RemoteOp.readBatch(in, -1));
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				close();
+				listener.lost(e);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to run the thread that sends every message waiting at once, in batches
+	 * the server accepts. A message too large for any batch, such as a huge loaded image, is left out.
+	 */
+	private void write() {
+		List<RemoteOp> waiting = new ArrayList<>();
+		List<byte[]> messages = new ArrayList<>();
+		try {
+			while (!closed) {
+				waiting.clear();
+				waiting.add(outbox.take());
+				outbox.drainTo(waiting);
+				messages.clear();
+				int size = 0;
+				for (RemoteOp message : RemoteOp.coalesce(waiting)) {
+					byte[] written = message.toBytes();
+					if (written.length > RemoteOp.MAX_BATCH / 2) {
+						System.err.println("Error sending to drawing server");
+						System.err.println("Exception message: a message of " + written.length + " bytes is too large");
+						continue;
+					}
+					if (size + written.length > RemoteOp.MAX_BATCH / 2) {
+						RemoteOp.writeBatch(out, messages);
+						messages.clear();
+						size = 0;
+					}
+					messages.add(written);
+					size += written.length;
+				}
+				if (!messages.isEmpty()) {
+					RemoteOp.writeBatch(out, messages);
+				}
+				out.flush();
+			}
+		} catch (InterruptedException | IOException e) {
+			// the reader tells the listener when the connection is lost
+		}
+	}
+
+	/**
+	 * This method is used to start a daemon thread.
+	 * @param task the code the thread runs
+	 * @param name the name of the thread
+	 */
+	private static void start(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,336 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class represents a small server that lets several people draw on the same canvas.
+ * Each client sends what it draws as {@link RemoteOp}s. The server gathers the messages of every
+ * client for one tick, joins the points of a stroke that arrived in separate messages, and sends
+ * the tick's messages to every client, the senders included, as one batch, each message written
+ * only once whatever the number of clients. Clients make their changes when they come back, so
+ * every client makes them in the order the server put them in. A client that joins late is first
+ * sent everything drawn in the session, since an undo may bring back what a clear removed. That
+ * backlog is only kept up to a limit; once a session outgrows it, the backlog is dropped and new
+ * clients are turned away, while the clients already there carry on.
+ * Every connection has a thread that reads from it and one that writes to it, so a slow client
+ * only holds up itself; one that falls too far behind is dropped.
+ * <p>
+ * {@code -Dstrokes.collab.port} sets the default port, {@code -Dstrokes.collab.tick} the
+ * length of a tick in milliseconds and {@code -Dstrokes.collab.backlog} the limit of the backlog
+ * in bytes, 64 MB by default.
+ */
+public class CollabServer implements Closeable {
+	public static final int DEFAULT_PORT = Integer.getInteger("strokes.collab.port", 5151);
+	static final int MAGIC = 0x53545243;
+	static final int VERSION = 3;
+	static final int REFUSED = 0;
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(Long.getLong("strokes.collab.tick", 2));
+	private static final int MAX_BEHIND = 1024;
+	private static final int FRAME_BYTES = 1 << 20;
+	private static final long MAX_BACKLOG = Long.getLong("strokes.collab.backlog", 64L << 20);
+
+	private final ServerSocket socket;
+	private final int width, height;
+	private final BlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+	private final List<Connection> connections = new CopyOnWriteArrayList<>();
+	private final List<byte[]> history = new ArrayList<>();
+	private long backlog;
+	private int nextId = 1;
+	private volatile boolean full, closed;
+
+	/**
+	 * This constructor is used to start a server for a canvas that only clients on this computer can join.
+	 * @param port the port to listen on, or 0 for any free one
+	 * @param width the width of the canvas, which every client must have
+	 * @param height the height of the canvas, which every client must have
+	 * @throws IOException if the port could not be opened
+	 */
+	public CollabServer(int port, int width, int height) throws IOException {
+		this(port, width, height, false);
+	}
+
+	/**
+	 * This constructor is used to start a server for a canvas.
+	 * @param port the port to listen on, or 0 for any free one
+	 * @param width the width of the canvas, which every client must have
+	 * @param height the height of the canvas, which every client must have
+	 * @param network true to let other computers join, false to only listen on this one
+	 * @throws IOException if the port could not be opened
+	 */
+	public CollabServer(int port, int width, int height, boolean network) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.socket = new ServerSocket();
+		socket.setReuseAddress(true);
+		socket.bind(new InetSocketAddress(network ? null : InetAddress.getLoopbackAddress(), port));
+		start(this::accept, "collab-accept");
+		start(this::tick, "collab-tick");
+	}
+
+	/**
+	 * This method is used to get the port the server listens on.
+	 * @return the port
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * This method is used to get the number of clients connected.
+	 * @return the number of clients
+	 */
+	public int getClientCount() {
+		return connections.size();
+	}
+
+	/**
+	 * This method is used to stop the server and drop every client.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing more can be done
+		}
+		for (Connection connection : connections) {
+			connection.close();
+		}
+		inbox.add(this);
+	}
+
+	/**
+	 * This method is used to run the thread that takes new clients. Each one is greeted with its
+	 * number and the size of the canvas, and handed to the tick thread to be sent what was drawn.
+	 * Once the backlog was dropped, clients are greeted with {@link #REFUSED} instead and let go.
+	 */
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket client = socket.accept();
+				client.setTcpNoDelay(true);
+				Connection connection = new Connection(client, full ? REFUSED : nextId++);
+				DataOutputStream out = connection.out;
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(connection.id);
+				out.writeInt(width);
+				out.writeInt(height);
+				out.flush();
+				if (connection.id == REFUSED) {
+					client.close();
+					continue;
+				}
+				inbox.add(connection);
+			} catch (IOException e) {
+				if (!closed) {
+					System.err.println("Error accepting collaboration client on port " + getPort());
+					System.err.println("Exception message: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is used to run the thread that sends what was drawn. It sleeps until a message
+	 * arrives, waits for the rest of the tick so that messages arriving together go out together,
+	 * and then sends them.
+	 */
+	private void tick() {
+		List<Object> items = new ArrayList<>();
+		try {
+			while (!closed) {
+				items.clear();
+				items.add(inbox.take());
+				LockSupport.parkNanos(TICK);
+				inbox.drainTo(items);
+				List<RemoteOp> batch = new ArrayList<>();
+				List<Connection> joined = new ArrayList<>();
+				for (Object item : items) {
+					if (item instanceof RemoteOp) {
+						batch.add((RemoteOp) item);
+					} else if (item instanceof Connection) {
+						joined.add((Connection) item);
+					}
+				}
+				for (Connection connection : joined) {
+					if (full) {
+						connection.close();
+						continue;
+					}
+					connections.add(connection);
+					connection.send(new ArrayList<>(history));
+					connection.start();
+				}
+				send(RemoteOp.coalesce(batch));
+			}
+		} catch (InterruptedException e) {
+			// the server is closed
+		}
+	}
+
+	/**
+	 * This method is used to send the messages of a tick to every client, and to keep them for
+	 * clients that join later until the backlog outgrows its limit.
+	 * @param batch the messages
+	 */
+	private void send(List<RemoteOp> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		List<byte[]> bytes = new ArrayList<>(batch.size());
+		for (RemoteOp message : batch) {
+			bytes.add(message.toBytes());
+		}
+		if (!full) {
+			history.addAll(bytes);
+			for (byte[] message : bytes) {
+				backlog += message.length;
+			}
+			if (backlog > MAX_BACKLOG) {
+				full = true;
+				history.clear();
+				backlog = 0;
+			}
+		}
+		for (Connection connection : connections) {
+			connection.send(bytes);
+		}
+	}
+
+	/**
+	 * This method is used to start a daemon thread.
+	 * @param task the code the thread runs
+	 * @param name the name of the thread
+	 */
+	private static void start(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * This class represents a connected client, with a thread reading its messages into the
+	 * inbox and a thread writing the batches queued for it.
+	 */
+	private class Connection {
+		private final Socket socket;
+		private final int id;
+		private final DataOutputStream out;
+		private final BlockingQueue<List<byte[]>> outbox = new LinkedBlockingQueue<>();
+
+		/**
+		 * This constructor is used to wrap a connected socket.
+		 * @param socket the socket
+		 * @param id the number of the client
+		 * @throws IOException if the socket could not be used
+		 */
+		Connection(Socket socket, int id) throws IOException {
+			this.socket = socket;
+			this.id = id;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		}
+
+		/**
+		 * This method is used to start reading and writing.
+		 */
+		void start() {
+			CollabServer.start(this::read, "collab-read-" + id);
+			CollabServer.start(this::write, "collab-write-" + id);
+		}
+
+		/**
+		 * This method is used to queue a batch of messages for the client. A client that has too
+		 * many batches waiting is dropped.
+		 * @param messages the bytes of each message
+		 */
+		void send(List<byte[]> messages) {
+			if (outbox.size() >= MAX_BEHIND) {
+				System.err.println("Error sending to collaboration client " + id);
+				System.err.println("Exception message: the client fell too far behind");
+				close();
+				return;
+			}
+			outbox.add(messages);
+		}
+
+		/**
+		 * This method is used to run the thread that reads the client's messages until it leaves.
+		 */
+		private void read() {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16))) {
+				while (!closed) {
+					inbox.addAll(RemoteOp.readBatch(in, id));
+				}
+			} catch (IOException e) {
+				// the client left or sent something that cannot be read
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * This method is used to run the thread that writes every batch waiting at once, split
+		 * into batches of at most a megabyte.
+		 */
+		private void write() {
+			List<List<byte[]>> waiting = new ArrayList<>();
+			List<byte[]> messages = new ArrayList<>();
+			try {
+				while (!socket.isClosed()) {
+					waiting.clear();
+					waiting.add(outbox.take());
+					outbox.drainTo(waiting);
+					messages.clear();
+					int size = 0;
+					for (List<byte[]> batch : waiting) {
+						for (byte[] message : batch) {
+							if (size + message.length > FRAME_BYTES && !messages.isEmpty()) {
+								RemoteOp.writeBatch(out, messages);
+								messages.clear();
+								size = 0;
+							}
+							messages.add(message);
+							size += message.length;
+						}
+					}
+					if (!messages.isEmpty()) {
+						RemoteOp.writeBatch(out, messages);
+					}
+					out.flush();
+				}
+			} catch (InterruptedException | IOException e) {
+				// the client left
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * This method is used to drop the client.
+		 */
+		void close() {
+			connections.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more can be done
+			}
+			outbox.add(new ArrayList<>());
+		}
+	}
+}
@@ -0,0 +1,770 @@
+import java.awt.AlphaComposite;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class represents the drawing as an append-only log of {@link DrawOp}s.
+ * Every few operations a raster checkpoint of the canvas is taken, so undoing restores the
+ * nearest checkpoint and replays the operations after it instead of keeping a copy of the
+ * canvas for every step. A checkpoint only copies the tiles that changed since the checkpoint
+ * the surface was last at, and is restored together with the checkpoints it follows; when the
+ * oldest one is evicted, the ones following it take in its tiles.
+ * The shapes that can still be reached in the log are kept in a {@link QuadTree}, so they can
+ * be picked at a point and moved or deleted with a {@link ReplaceOp}. The places every
+ * operation drew on and the old places of the replaced shapes are kept in two more, so drawing
+ * the pixels under a shape again only replays what touched them.
+ * The log goes back to the last time the canvas was cleared or loaded, but only for so many
+ * operations: past that, the ones before the oldest checkpoint are forgotten and the log starts
+ * from a copy of that checkpoint instead, so the shapes they drew can no longer be moved.
+ */
+public class Document {
+	private static final int CHECKPOINT_INTERVAL = 20;
+	private static final int HISTORY_DEPTH = 500;
+	private static final long HISTORY_RAW_LIMIT = Long.getLong("strokes.history.rawLimit", 4L << 30);
+	private static final int MAX_OPS = Integer.getInteger("strokes.document.maxOps", 10000);
+
+	/**
+	 * This class represents the state of the canvas after a number of operations.
+	 * A checkpoint without pixels stands for a blank canvas.
+	 */
+	private static class Checkpoint {
+		private final int index;
+		private final TileDelta pixels;
+		private Checkpoint previous;
+
+		/**
+		 * This constructor is used to create a checkpoint.
+		 * @param index the number of operations the canvas shows
+		 * @param pixels the tiles that changed since the previous checkpoint, or null for a blank canvas
+		 * @param previous the checkpoint the tiles changed since, or null if the pixels hold every tile
+		 */
+		private Checkpoint(int index, TileDelta pixels, Checkpoint previous) {
+			this.index = index;
+			this.pixels = pixels;
+			this.previous = previous;
+		}
+
+		/**
+		 * This method is used to keep the pixels of the checkpoint and of the ones it follows
+		 * while they are restored.
+		 * @return true if the checkpoint can be restored until {@link #unpin()} is called
+		 */
+		private boolean pin() {
+			for (Checkpoint checkpoint = this; checkpoint != null; checkpoint = checkpoint.previous) {
+				if (checkpoint.pixels != null && !checkpoint.pixels.pin()) {
+					for (Checkpoint pinned = this; pinned != checkpoint; pinned = pinned.previous) {
+						if (pinned.pixels != null) {
+							pinned.pixels.unpin();
+						}
+					}
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * This method is used to let the history store drop the pixels again.
+		 */
+		private void unpin() {
+			for (Checkpoint checkpoint = this; checkpoint != null; checkpoint = checkpoint.previous) {
+				if (checkpoint.pixels != null) {
+					checkpoint.pixels.unpin();
+				}
+			}
+		}
+
+		/**
+		 * This method is used to get the pixels the checkpoint is restored from.
+		 * @return the pixels of the checkpoint and of the ones it follows, newest first
+		 */
+		private List<TileDelta> chain() {
+			List<TileDelta> chain = new ArrayList<>();
+			for (Checkpoint checkpoint = this; checkpoint != null; checkpoint = checkpoint.previous) {
+				if (checkpoint.pixels != null) {
+					chain.add(checkpoint.pixels);
+				}
+			}
+			return chain;
+		}
+	}
+
+	private final HistoryStore history;
+	private final RingStack<Checkpoint> checkpoints = new RingStack<>(
+			HISTORY_DEPTH / CHECKPOINT_INTERVAL + 1, HISTORY_RAW_LIMIT,
+			checkpoint -> checkpoint.pixels == null ? 0 : checkpoint.pixels.getRawSize(),
+			this::evicted);
+	private final List<DrawOp> ops = new ArrayList<>();
+	private final BitSet changed = new BitSet();
+	private Checkpoint basis;
+	private Checkpoint floor;
+	private TiledSurface blank;
+	private int base, first, size;
+	private volatile QuadTree<ShapeOp> shapes;
+	private QuadTree<DrawOp> drawn;
+	private QuadTree<ReplaceOp> moves;
+
+	/**
+	 * This constructor is used to create an empty document for a blank canvas.
+	 * @param history the store keeping the checkpoints, shared by the layers of the canvas
+	 */
+	public Document(HistoryStore history) {
+		this.history = history;
+		checkpoints.push(new Checkpoint(0, null, null));
+	}
+
+	/**
+	 * This constructor is used to create a document from operations that were saved, the last
+	 * of which were undone, for a surface that shows the rest of them. Moved or deleted shapes
+	 * among the operations have their pixels worked out only when they are replayed.
+	 * @param history the store keeping the checkpoints, shared by the layers of the canvas
+	 * @param ops the operations, starting on a blank canvas
+	 * @param undoable how many of the operations shown can be undone
+	 * @param redoable how many of the last operations were undone and can be redone
+	 * @param surface the surface of the canvas
+	 */
+	public Document(HistoryStore history, List<DrawOp> ops, int undoable, int redoable, TiledSurface surface) {
+		this(history);
+		this.ops.addAll(ops);
+		size = ops.size() - Math.max(0, Math.min(redoable, ops.size()));
+		first = size - Math.max(0, Math.min(undoable, size));
+		reindex(surface);
+	}
+
+	/**
+	 * This method is used to draw an operation on the surface and record it.
+	 * @param op the operation to draw
+	 * @param surface the surface of the canvas
+	 */
+	public void draw(DrawOp op, TiledSurface surface) {
+		op.render(surface);
+		add(op, surface);
+	}
+
+	/**
+	 * This method is used to record an operation that was already drawn on the surface.
+	 * Operations that were undone before it are discarded.
+	 * @param op the operation to record
+	 * @param surface the surface of the canvas, after the operation
+	 */
+	public void add(DrawOp op, TiledSurface surface) {
+		ops.subList(size - base, ops.size()).clear();
+		while (checkpoints.peek().index > size) {
+			release(checkpoints.pop());
+		}
+		ops.add(op);
+		size++;
+		index(op, size - 1, surface);
+		if (op instanceof ClearOp) {
+			basis = new Checkpoint(size, null, null);
+			surface.takeChanged(changed);
+			changed.clear();
+			checkpoints.push(basis);
+		} else if (size - checkpoints.peek().index >= CHECKPOINT_INTERVAL) {
+			long start = System.nanoTime();
+			if (basis != null && basis.pin()) {
+				basis.unpin();
+			} else {
+				basis = null;
+			}
+			TileDelta pixels = new TileDelta(surface.getWidth(), surface.getHeight());
+			surface.takeChanged(changed);
+			pixels.capture(surface, basis == null ? null : changed);
+			changed.clear();
+			Metrics.snapshot(start, pixels.getHeapSize());
+			basis = new Checkpoint(size, pixels, basis);
+			checkpoints.push(basis);
+			history.add(pixels);
+		}
+		if (ops.size() > MAX_OPS) {
+			flatten(surface);
+		}
+	}
+
+	/**
+	 * This method is used to undo the last operation by rebuilding the surface without it.
+	 * @param surface the surface of the canvas
+	 * @return true if an operation was undone
+	 */
+	public boolean undo(TiledSurface surface) {
+		if (size == first || !rebuild(surface, size - 1)) {
+			return false;
+		}
+		size--;
+		DrawOp op = ops.get(size - base);
+		if (op instanceof ClearOp || op instanceof LoadOp) {
+			reindex(surface);
+		} else {
+			unindex(op);
+		}
+		return true;
+	}
+
+	/**
+	 * This method is used to redo the last undone operation by drawing it again.
+	 * @param surface the surface of the canvas
+	 * @return true if an operation was redone
+	 */
+	public boolean redo(TiledSurface surface) {
+		if (size - base == ops.size()) {
+			return false;
+		}
+		DrawOp op = ops.get(size - base);
+		replay(op, size, surface);
+		index(op, size, surface);
+		size++;
+		return true;
+	}
+
+	/**
+	 * This method is used to get the operations the surface shows, for example to save them.
+	 * Only the ones since the canvas was last cleared or loaded are kept, so they are counted
+	 * from there: a moved or deleted shape refers to the position of its shape in the returned list.
+	 * If older operations were forgotten, the list starts by loading the canvas they left.
+	 * @return a copy of the operations, starting on a blank canvas
+	 */
+	public List<DrawOp> getOps() {
+		return getOps(false);
+	}
+
+	/**
+	 * This method is used to get the operations the surface shows, optionally followed by the
+	 * ones that were undone and can still be redone, counted the same way as {@link #getOps()}.
+	 * @param redoable true to add the operations that can be redone
+	 * @return a copy of the operations, starting on a blank canvas
+	 */
+	public List<DrawOp> getOps(boolean redoable) {
+		int end = redoable ? ops.size() : size - base;
+		List<DrawOp> kept = new ArrayList<>(end + 1);
+		if (floor != null) {
+			kept.add(load(floor));
+		}
+		int index = kept.size();
+		for (DrawOp op : ops.subList(0, end)) {
+			kept.add(op instanceof ReplaceOp ? ((ReplaceOp) op).rebase(base, index) : op);
+		}
+		return kept;
+	}
+
+	/**
+	 * This method is used to get how many operations the surface shows, counting from the
+	 * first one ever drawn, including the ones that were forgotten since.
+	 * @return the position after the last operation shown
+	 */
+	public int getPosition() {
+		return size;
+	}
+
+	/**
+	 * This method is used to get the shape drawn by the operation at a position, as it is now,
+	 * for example to move it again after the document was rebuilt elsewhere.
+	 * @param position the position, as counted by {@link #getPosition()}
+	 * @return the shape, or null if the operation there drew no shape or was forgotten
+	 */
+	public ShapeOp getShape(int position) {
+		if (position < base || position >= size) {
+			return null;
+		}
+		DrawOp op = ops.get(position - base);
+		if (op instanceof ReplaceOp) {
+			op = ((ReplaceOp) op).getPlaced();
+		}
+		return op instanceof ShapeOp ? (ShapeOp) op : null;
+	}
+
+	/**
+	 * This method is used to get the number of operations that can be undone.
+	 * @return the number of operations
+	 */
+	public int size() {
+		return size - first;
+	}
+
+	/**
+	 * This method is used to get the number of operations that were undone and can be redone.
+	 * @return the number of operations
+	 */
+	public int getRedoable() {
+		return ops.size() - (size - base);
+	}
+
+	/**
+	 * This method is used to tell whether nothing was ever drawn, so there is nothing to show,
+	 * undo or redo.
+	 * @return true if the document is blank
+	 */
+	public boolean isBlank() {
+		return size == 0 && ops.isEmpty();
+	}
+
+	/**
+	 * This method is used to give the pixels of every checkpoint back to the history store, once
+	 * the document is no longer used, for example because its layer was removed.
+	 */
+	public void close() {
+		for (Checkpoint checkpoint : checkpoints) {
+			release(checkpoint);
+		}
+		if (floor != null) {
+			release(floor);
+		}
+	}
+
+	/**
+	 * This method is used to find the topmost shape at a point.
+	 * Every shape drawn since the canvas was last cleared or loaded can be found, unless the
+	 * document forgot the operation that drew it.
+	 * @param x the x coordinate of the point
+	 * @param y the y coordinate of the point
+	 * @return the operation of the shape, or null if there is no shape at the point
+	 */
+	public ShapeOp hit(int x, int y) {
+		QuadTree<ShapeOp> index = shapes;
+		return index == null ? null : index.top(x, y, shape -> shape.hit(x, y));
+	}
+
+	/**
+	 * This method is used to move or delete a shape, draw the change on the surface and record it.
+	 * The pixels under the old place of the shape are drawn again from the newest checkpoint
+	 * taken before the shape, or from the start of the document, replaying only the operations
+	 * that drew inside that region and leaving out every shape that was replaced.
+	 * @param op the operation replacing the shape
+	 * @param surface the surface of the canvas
+	 * @return false if the shape is not in the document
+	 */
+	public boolean replace(ReplaceOp op, TiledSurface surface) {
+		if (!op.isPrepared()) {
+			int source = shapes == null ? -1 : shapes.orderOf(op.getTarget());
+			if (source < 0 || !prepare(op, source, size, surface)) {
+				return false;
+			}
+		}
+		draw(op, surface);
+		return true;
+	}
+
+	/**
+	 * This method is used to work out the pixels under the old place of a shape for an operation
+	 * that moves or deletes it.
+	 * @param op the operation replacing the shape
+	 * @param source the position of the operation that drew the shape
+	 * @param position the position of the replacing operation in the document
+	 * @param surface the surface of the canvas, whose size, format and background are used
+	 * @return false if the shape lies outside the surface
+	 */
+	private boolean prepare(ReplaceOp op, int source, int position, TiledSurface surface) {
+		Rectangle region = op.getTarget().getBounds().intersection(surface.getBounds());
+		if (region.isEmpty() || source < base) {
+			return false;
+		}
+		op.prepare(source, region, erase(region, op.getTarget(), source, position,
+				moves.find(region, base, position), surface));
+		return true;
+	}
+
+	/**
+	 * This method is used to draw a region as it was before an operation, without a shape and
+	 * without the shapes that were replaced, starting from the newest checkpoint that shows none
+	 * of them there.
+	 * @param region the region to draw
+	 * @param target the shape to leave out, or null
+	 * @param source the position the checkpoint to start from must not be after
+	 * @param position the position of the first operation that is not drawn
+	 * @param earlier the operations replacing shapes inside the region whose shapes are left out
+	 * @param surface the surface of the canvas, whose size, format and background are used
+	 * @return the pixels of the region
+	 */
+	private BufferedImage erase(Rectangle region, ShapeOp target, int source, int position,
+			List<ReplaceOp> earlier, TiledSurface surface) {
+		Set<ShapeOp> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+		if (target != null) {
+			replaced.add(target);
+		}
+		for (ReplaceOp move : earlier) {
+			if (move.getTarget() != null) {
+				replaced.add(move.getTarget());
+			}
+		}
+		Checkpoint from = floor != null ? floor : new Checkpoint(base, null, null);
+		from.pin();
+		for (Checkpoint checkpoint : checkpoints) {
+			if (checkpoint.index <= source && isClean(checkpoint.index, earlier) && checkpoint.pin()) {
+				from.unpin();
+				from = checkpoint;
+			}
+		}
+		try {
+			return redraw(from, region, replaced, earlier, surface, position);
+		} finally {
+			from.unpin();
+		}
+	}
+
+	/**
+	 * This method is used to check that the pixels of a checkpoint show none of the shapes that
+	 * were replaced after it inside a region.
+	 * @param index the index of the checkpoint
+	 * @param earlier the operations replacing shapes inside the region
+	 * @return true if drawing the region again can start from the checkpoint
+	 */
+	private boolean isClean(int index, List<ReplaceOp> earlier) {
+		for (ReplaceOp move : earlier) {
+			if (move.getSource() < index && moves.orderOf(move) >= index) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This method is used to draw a region as it would be had the replaced shapes never been
+	 * drawn. Shapes that were moved are drawn where they were moved to. Only the operations
+	 * that drew inside the region are replayed.
+	 * @param from the checkpoint to start from, showing none of the replaced shapes in the region
+	 * @param region the region to draw
+	 * @param replaced the shapes to leave out
+	 * @param earlier the operations replacing shapes inside the region, whose pixels at the start
+	 *        of the document are used for the shapes it forgot
+	 * @param surface the surface of the canvas, whose size, format and background are used
+	 * @param position the position of the first operation that is not drawn
+	 * @return the pixels of the region
+	 */
+	private BufferedImage redraw(Checkpoint from, Rectangle region, Set<ShapeOp> replaced,
+			List<ReplaceOp> earlier, TiledSurface surface, int position) {
+		TiledSurface scratch = new TiledSurface(surface.getWidth(), surface.getHeight(), surface.getFormat(),
+				surface.getBackground());
+		List<TileDelta> chain = from.chain();
+		TileDelta.paste(chain, scratch, region);
+		for (TileDelta pixels : chain) {
+			history.add(pixels);
+		}
+		int start = floor != null ? floor.index : base + 1;
+		boolean pending = from.index <= start;
+		for (DrawOp op : drawn.find(region, from.index, position)) {
+			if (pending && drawn.orderOf(op) >= start) {
+				uncover(scratch, region, earlier);
+				pending = false;
+			}
+			if (op instanceof ReplaceOp) {
+				op = ((ReplaceOp) op).getPlaced();
+			}
+			if (op != null && !replaced.contains(op)) {
+				op.render(scratch, region);
+			}
+		}
+		if (pending && position >= start) {
+			uncover(scratch, region, earlier);
+		}
+		return scratch.toImage(region);
+	}
+
+	/**
+	 * This method is used to take the shapes the document forgot out of a region at the start
+	 * of the document, for the ones that were replaced.
+	 * @param scratch the surface the region is drawn on
+	 * @param region the region
+	 * @param earlier the operations replacing shapes inside the region
+	 */
+	private void uncover(TiledSurface scratch, Rectangle region, List<ReplaceOp> earlier) {
+		for (ReplaceOp move : earlier) {
+			BufferedImage under = move.getUnder();
+			if (under != null) {
+				Rectangle place = move.getRegion();
+				scratch.draw(place.intersection(region), g -> {
+					g.setComposite(AlphaComposite.Src);
+					g.drawImage(under, place.x, place.y, null);
+				});
+			}
+		}
+	}
+
+	/**
+	 * This method is used to keep the shapes of the document, and the places every operation
+	 * drew on, up to date after an operation.
+	 * @param op the operation that was drawn
+	 * @param position the position of the operation in the document
+	 * @param surface the surface of the canvas
+	 */
+	private void index(DrawOp op, int position, TiledSurface surface) {
+		if (shapes == null) {
+			shapes = new QuadTree<>(surface.getBounds());
+			drawn = new QuadTree<>(surface.getBounds());
+			moves = new QuadTree<>(surface.getBounds());
+		}
+		Rectangle bounds = op.getBounds();
+		if (op instanceof ShapeOp) {
+			shapes.insert((ShapeOp) op, bounds, position);
+		} else if (op instanceof ReplaceOp) {
+			ReplaceOp replace = (ReplaceOp) op;
+			if (replace.getTarget() != null) {
+				shapes.remove(replace.getTarget());
+			}
+			if (replace.getPlaced() != null) {
+				shapes.insert(replace.getPlaced(), replace.getPlaced().getBounds(), position);
+			}
+			moves.insert(replace, replace.getRegion() != null ? replace.getRegion()
+					: replace.getTarget().getBounds(), position);
+			bounds = replace.getPlaced() != null ? replace.getPlaced().getBounds() : null;
+		} else if (op instanceof ClearOp || op instanceof LoadOp) {
+			shapes.clear();
+		} else if (op instanceof FillOp && !((FillOp) op).hasRegion()) {
+			bounds = surface.getBounds();
+		}
+		if (bounds != null) {
+			drawn.insert(op, bounds, position);
+		}
+	}
+
+	/**
+	 * This method is used to take back what {@link #index(DrawOp, int, TiledSurface)} did for an
+	 * operation that was undone. A shape drawn before the document starts stays forgotten.
+	 * @param op the operation that was undone
+	 */
+	private void unindex(DrawOp op) {
+		drawn.remove(op);
+		if (op instanceof ShapeOp) {
+			shapes.remove((ShapeOp) op);
+		} else if (op instanceof ReplaceOp) {
+			ReplaceOp replace = (ReplaceOp) op;
+			moves.remove(replace);
+			if (replace.getPlaced() != null) {
+				shapes.remove(replace.getPlaced());
+			}
+			if (replace.getTarget() != null && replace.getSource() >= base) {
+				shapes.insert(replace.getTarget(), replace.getTarget().getBounds(), replace.getSource());
+			}
+		}
+	}
+
+	/**
+	 * This method is used to find the shapes again after the document went back in time.
+	 * @param surface the surface of the canvas
+	 */
+	private void reindex(TiledSurface surface) {
+		if (shapes != null) {
+			shapes.clear();
+			drawn.clear();
+			moves.clear();
+		}
+		for (int i = base; i < size; i++) {
+			index(ops.get(i - base), i, surface);
+		}
+	}
+
+	/**
+	 * This method is used to restore the newest usable checkpoint before an operation
+	 * and replay the operations up to it. The checkpoint is pinned while it is restored, so the
+	 * history store cannot drop its pixels in the meantime.
+	 * @param surface the surface of the canvas
+	 * @param target the number of operations the surface should show
+	 * @return true if the surface could be rebuilt
+	 */
+	private boolean rebuild(TiledSurface surface, int target) {
+		Checkpoint from = null;
+		for (Checkpoint checkpoint : checkpoints) {
+			if (checkpoint.index <= target && checkpoint.pin()) {
+				if (from != null) {
+					from.unpin();
+				}
+				from = checkpoint;
+			}
+		}
+		if (from == null && floor != null && floor.index <= target && floor.pin()) {
+			from = floor;
+		}
+		if (from == null) {
+			return false;
+		}
+		try {
+			List<TileDelta> chain = from.chain();
+			TileDelta.restore(chain, surface);
+			for (TileDelta pixels : chain) {
+				history.add(pixels);
+			}
+		} finally {
+			from.unpin();
+		}
+		basis = from == floor ? null : from;
+		surface.takeChanged(changed);
+		changed.clear();
+		for (int i = from.index; i < target; i++) {
+			replay(ops.get(i - base), i, surface);
+		}
+		return true;
+	}
+
+	/**
+	 * This method is used to draw a recorded operation again. A moved or deleted shape that was
+	 * read from a project has its pixels worked out the first time.
+	 * @param op the operation
+	 * @param position the position of the operation in the document
+	 * @param surface the surface of the canvas
+	 */
+	private void replay(DrawOp op, int position, TiledSurface surface) {
+		if (op instanceof ReplaceOp && !((ReplaceOp) op).isPrepared()) {
+			prepare((ReplaceOp) op, ((ReplaceOp) op).getSource(), position, surface);
+		}
+		op.render(surface);
+	}
+
+	/**
+	 * This method is used to stop undoing past the oldest checkpoint once the one before it
+	 * was evicted. The checkpoints that follow it take in its tiles first, or are dropped if its
+	 * pixels were dropped already. The operations since the last time the canvas was cleared or
+	 * loaded are kept, since the shapes among them can still be moved; older ones are forgotten.
+	 * @param checkpoint the evicted checkpoint
+	 */
+	private void evicted(Checkpoint checkpoint) {
+		boolean folded = false;
+		for (Checkpoint next : checkpoints) {
+			if (next.previous != checkpoint) {
+				continue;
+			}
+			next.previous = null;
+			folded = true;
+			if (checkpoint.pixels == null) {
+				continue;
+			}
+			if (checkpoint.pixels.pin()) {
+				if (next.pixels.pin()) {
+					next.pixels.inherit(checkpoint.pixels);
+					next.pixels.unpin();
+					history.add(next.pixels);
+				}
+				checkpoint.pixels.unpin();
+			} else {
+				history.remove(next.pixels);
+			}
+		}
+		if (folded) {
+			checkpoints.reweigh();
+		}
+		if (basis == checkpoint) {
+			basis = null;
+		}
+		release(checkpoint);
+		first = checkpoints.isEmpty() ? size : checkpoints.peekBottom().index;
+		for (int i = first - 1; i > base; i--) {
+			DrawOp op = ops.get(i - base);
+			if (op instanceof ClearOp || op instanceof LoadOp) {
+				forget(i);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * This method is used to forget the operations before a position.
+	 * @param position the position the document starts from, whose state is known
+	 */
+	private void forget(int position) {
+		List<DrawOp> forgotten = ops.subList(0, position - base);
+		for (DrawOp op : forgotten) {
+			drawn.remove(op);
+			if (op instanceof ReplaceOp) {
+				moves.remove((ReplaceOp) op);
+			}
+		}
+		forgotten.clear();
+		base = position;
+		if (floor != null) {
+			floor.unpin();
+			release(floor);
+			floor = null;
+		}
+	}
+
+	/**
+	 * This method is used to keep the log from growing without end, by forgetting the operations
+	 * before the oldest checkpoint once there are too many, when at least half of them would go.
+	 * The document then starts from a copy of the pixels of that checkpoint. A shape it forgot
+	 * that was moved or deleted later keeps the pixels under its old place at the start, since
+	 * drawing them again needs the canvas without the shape.
+	 * @param surface the surface of the canvas
+	 */
+	private void flatten(TiledSurface surface) {
+		Checkpoint bottom = checkpoints.peekBottom();
+		int position = bottom.index;
+		if (position - base < MAX_OPS / 2 || position > size || !bottom.pin()) {
+			return;
+		}
+		try {
+			for (int i = position; i < size; i++) {
+				DrawOp op = ops.get(i - base);
+				if (op instanceof ReplaceOp && !((ReplaceOp) op).isPrepared()) {
+					prepare((ReplaceOp) op, ((ReplaceOp) op).getSource(), i, surface);
+				}
+			}
+			List<ReplaceOp> kept = new ArrayList<>();
+			List<BufferedImage> unders = new ArrayList<>();
+			for (ReplaceOp move : moves.find(surface.getBounds(), position, size)) {
+				if (move.getSource() < position && move.isPrepared()) {
+					kept.add(move);
+					unders.add(erase(move.getRegion(), null, position, position,
+							moves.find(move.getRegion(), base, size), surface));
+				}
+			}
+			blank = new TiledSurface(surface.getWidth(), surface.getHeight(), surface.getFormat(),
+					surface.getBackground());
+			TiledSurface scratch = copy(bottom);
+			TileDelta pixels = new TileDelta(surface.getWidth(), surface.getHeight());
+			pixels.capture(scratch, null);
+			pixels.pin();
+			history.add(pixels);
+			forget(position);
+			floor = new Checkpoint(position, pixels, null);
+			for (int i = 0; i < kept.size(); i++) {
+				kept.get(i).setUnder(unders.get(i));
+			}
+			reindex(surface);
+		} finally {
+			bottom.unpin();
+		}
+	}
+
+	/**
+	 * This method is used to draw the pixels of a pinned checkpoint on a surface of their own.
+	 * @param checkpoint the checkpoint
+	 * @return the surface
+	 */
+	private TiledSurface copy(Checkpoint checkpoint) {
+		TiledSurface scratch = new TiledSurface(blank.getWidth(), blank.getHeight(), blank.getFormat(),
+				blank.getBackground());
+		List<TileDelta> chain = checkpoint.chain();
+		TileDelta.restore(chain, scratch);
+		for (TileDelta pixels : chain) {
+			history.add(pixels);
+		}
+		return scratch;
+	}
+
+	/**
+	 * This method is used to turn the pixels the document starts from into an operation.
+	 * @param checkpoint the checkpoint the document starts from
+	 * @return the operation loading the pixels on a blank canvas
+	 */
+	private DrawOp load(Checkpoint checkpoint) {
+		checkpoint.pin();
+		try {
+			return new LoadOp(copy(checkpoint).toImage(), blank.getWidth(), blank.getHeight());
+		} finally {
+			checkpoint.unpin();
+		}
+	}
+
+	/**
+	 * This method is used to give the pixels of a checkpoint back to the history store.
+	 * @param checkpoint the checkpoint that left the history
+	 */
+	private void release(Checkpoint checkpoint) {
+		if (checkpoint.pixels != null) {
+			history.remove(checkpoint.pixels);
+		}
+	}
+}
@@ -7,25 +7,38 @@ import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.IOException;
 import java.util.Objects;
 
+import javax.swing.AbstractButton;
 import javax.swing.Box;
+import javax.swing.DefaultListModel;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JColorChooser;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JSlider;
+import javax.swing.ListSelectionModel;
 import javax.swing.UIManager;
 import javax.swing.UIManager.LookAndFeelInfo;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
  * The Draw class represents the main class of the Paint application.
@@ -40,6 +53,8 @@ public class Draw {
 	private JLabel filenameBar, thicknessStat;
 	private JSlider thicknessSlider;
 	private int width, height;
+	private LayerStack recovered;
+	private File session;
 	private JButton clearButton;
     private JButton colorPicker;
     private JButton saveButton;
@@ -48,6 +63,20 @@ public class Draw {
     private JButton pencilButton;
     private JButton undoButton;
     private JButton redoButton;
+    private JButton selectButton;
+    private JButton fillButton;
+    private JSlider toleranceSlider;
+	private JButton zoomInButton, zoomOutButton;
+	private JLabel zoomStat;
+	private JButton shareButton;
+	private JButton recordButton;
+	private CollabServer server;
+	private JButton addLayerButton, removeLayerButton, layerUpButton, layerDownButton;
+	private JCheckBox layerVisible;
+	private JSlider layerOpacity;
+	private final DefaultListModel<String> layerNames = new DefaultListModel<>();
+	private final JList<String> layerList = new JList<>(layerNames);
+	private boolean updatingLayers;
 	private File file;
 	private int saveCounter = 0;
 	private final Map<String, Icon> icons = new HashMap<>();
@@ -150,33 +179,55 @@ public class Draw {
 				canvas.pentagon();
 			} else if (event.getSource() == pencilButton) {
 				canvas.pencil();
+			} else if (event.getSource() == selectButton) {
+				canvas.select();
+			} else if (event.getSource() == fillButton) {
+				canvas.fill();
+			} else if (event.getSource() == zoomInButton) {
+				canvas.zoomIn();
+			} else if (event.getSource() == zoomOutButton) {
+				canvas.zoomOut();
+			} else if (event.getSource() == shareButton) {
+				share();
+			} else if (event.getSource() == recordButton) {
+				record();
+			} else if (event.getSource() == addLayerButton) {
+				canvas.addLayer();
+			} else if (event.getSource() == removeLayerButton) {
+				canvas.removeLayer();
+			} else if (event.getSource() == layerUpButton) {
+				canvas.moveLayer(1);
+			} else if (event.getSource() == layerDownButton) {
+				canvas.moveLayer(-1);
+			} else if (event.getSource() == layerVisible && canvas.getLayers() != null) {
+				canvas.setLayerVisible(canvas.getLayers().getActiveIndex(), layerVisible.isSelected());
 			} else if (event.getSource() == saveButton) {
 				if (saveCounter == 0) {
-					fileChooser = new JFileChooser();
+					fileChooser = createFileChooser();
 					if (fileChooser.showSaveDialog(saveButton) == JFileChooser.APPROVE_OPTION) {
-						file = fileChooser.getSelectedFile();
+						file = selectedFile(fileChooser);
 						saveCounter = 1;
-						filenameBar.setText(file.toString());
-						canvas.save(file);
+						save(file);
 					}
 				} else {
-					filenameBar.setText(file.toString());
-					canvas.save(file);
+					save(file);
 				}
 			} else if (event.getSource() == saveAsButton) {
 				saveCounter = 1;
-				fileChooser = new JFileChooser();
+				fileChooser = createFileChooser();
 				if (fileChooser.showSaveDialog(saveAsButton) == JFileChooser.APPROVE_OPTION) {
-					file = fileChooser.getSelectedFile();
-					filenameBar.setText(file.toString());
-					canvas.save(file);
+					file = selectedFile(fileChooser);
+					save(file);
 				}
 			} else if (event.getSource() == loadButton) {
-				fileChooser = new JFileChooser();
+				fileChooser = createFileChooser();
 				if (fileChooser.showOpenDialog(loadButton) == JFileChooser.APPROVE_OPTION) {
 					file = fileChooser.getSelectedFile();
-					filenameBar.setText(file.toString());
-					canvas.load(file);
+					if (ProjectFile.isProject(file)) {
+						canvas.openProject(file, loadListener);
+					} else {
+						canvas.load(file, loadListener);
+					}
 				}
 			} else if (event.getSource() == colorPicker) {
 				color = JColorChooser.showDialog(null, "Pick your color!",
@@ -188,6 +239,260 @@ public class Draw {
 		}
 	};
 
+	/**
+	 * The listener that shows the layer picked in the layer list, which is listed top first.
+	 */
+	private final ListSelectionListener layerSelectionListener = e -> {
+		if (!updatingLayers && !e.getValueIsAdjusting() && layerList.getSelectedIndex() >= 0) {
+			canvas.setActiveLayer(layerNames.size() - 1 - layerList.getSelectedIndex());
+		}
+	};
+
+	/**
+	 * The listener that sets the opacity of the active layer.
+	 */
+	private final ChangeListener layerOpacityListener = e -> {
+		if (!updatingLayers && canvas.getLayers() != null) {
+			canvas.setLayerOpacity(canvas.getLayers().getActiveIndex(), layerOpacity.getValue() / 100f);
+		}
+	};
+
+	/**
+	 * Shows the layers of the canvas in the layer list, and the state of the active one
+	 * in the layer controls.
+	 */
+	private void updateLayers() {
+		LayerStack layers = canvas.getLayers();
+		if (layers == null) {
+			return;
+		}
+		updatingLayers = true;
+		layerNames.clear();
+		for (int i = layers.size() - 1; i >= 0; i--) {
+			Layer layer = layers.get(i);
+			layerNames.addElement(layer.isVisible() ? layer.getName() : layer.getName() + " (hidden)");
+		}
+		Layer active = layers.getActive();
+		layerList.setSelectedIndex(layers.size() - 1 - layers.getActiveIndex());
+		layerVisible.setSelected(active.isVisible());
+		layerOpacity.setValue(Math.round(active.getOpacity() * 100));
+		updatingLayers = false;
+	}
+
+	/**
+	 * Creates the panel with the layer list and the buttons and controls for layers.
+	 *
+	 * @return the created panel
+	 */
+	private Box createLayerPanel() {
+		addLayerButton = new JButton("Add Layer");
+		removeLayerButton = new JButton("Remove");
+		layerUpButton = new JButton("Up");
+		layerDownButton = new JButton("Down");
+		layerVisible = new JCheckBox("Visible", true);
+		layerOpacity = new JSlider(JSlider.HORIZONTAL, 0, 100, 100);
+		layerOpacity.setToolTipText("Opacity of the layer");
+		for (AbstractButton button : new AbstractButton[] { addLayerButton,
+				removeLayerButton, layerUpButton, layerDownButton, layerVisible }) {
+			button.addActionListener(listener);
+		}
+		layerOpacity.addChangeListener(layerOpacityListener);
+		layerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		layerList.addListSelectionListener(layerSelectionListener);
+
+		Box box = Box.createVerticalBox();
+		box.add(new JLabel("Layers"));
+		box.add(new JScrollPane(layerList));
+		Box buttons = Box.createHorizontalBox();
+		buttons.add(layerUpButton);
+		buttons.add(layerDownButton);
+		box.add(buttons);
+		box.add(addLayerButton);
+		box.add(removeLayerButton);
+		box.add(layerVisible);
+		box.add(layerOpacity);
+		canvas.setLayerListener(this::updateLayers);
+		return box;
+	}
+
+	/**
+	 * Creates a file chooser offering PNG images and projects, which keep every layer and the
+	 * history of the drawing.
+	 *
+	 * @return the file chooser, showing PNG images first
+	 */
+	private JFileChooser createFileChooser() {
+		JFileChooser fileChooser = new JFileChooser(file);
+		FileNameExtensionFilter png = new FileNameExtensionFilter("PNG image (*.png)", "png");
+		fileChooser.addChoosableFileFilter(png);
+		fileChooser.addChoosableFileFilter(new FileNameExtensionFilter(
+				"Strokes project (*." + ProjectFile.EXTENSION + ")", ProjectFile.EXTENSION));
+		fileChooser.setFileFilter(png);
+		return fileChooser;
+	}
+
+	/**
+	 * Gets the file chosen to save to, adding the project extension when projects were
+	 * chosen and the name has none.
+	 *
+	 * @param fileChooser the file chooser that was approved
+	 * @return the file to save to
+	 */
+	private File selectedFile(JFileChooser fileChooser) {
+		File selected = fileChooser.getSelectedFile();
+		if (fileChooser.getFileFilter() instanceof FileNameExtensionFilter
+				&& ((FileNameExtensionFilter) fileChooser.getFileFilter()).getExtensions()[0].equals(ProjectFile.EXTENSION)
+				&& !selected.getName().contains(".")) {
+			selected = new File(selected.getPath() + "." + ProjectFile.EXTENSION);
+		}
+		return selected;
+	}
+
+	/**
+	 * Saves the drawing as a project or as a PNG image, depending on the extension of the file.
+	 *
+	 * @param file the file to save to
+	 */
+	private void save(File file) {
+		if (ProjectFile.isProject(file)) {
+			canvas.saveProject(file, saveListener);
+		} else {
+			canvas.save(file, saveListener);
+		}
+	}
+
+	/**
+	 * The listeners that report the progress of a background save or load in the file name bar.
+	 */
+	private final ProgressListener saveListener = createStatusListener("Saving", "save");
+	private final ProgressListener loadListener = createStatusListener("Loading", "load");
+	private final ProgressListener exportListener = createStatusListener("Exporting", "export");
+
+	/**
+	 * Creates a listener that shows the progress of a background save or load in the file name bar.
+	 *
+	 * @param progressVerb the verb shown while the file is processed
+	 * @param failureVerb the verb shown when the file could not be processed
+	 * @return the created listener
+	 */
+	private ProgressListener createStatusListener(String progressVerb, String failureVerb) {
+		return new ProgressListener() {
+			public void progress(File file, int percent) {
+				filenameBar.setText(String.format("%s %s... %d%%", progressVerb, file, percent));
+			}
+
+			public void done(File file) {
+				filenameBar.setText(file.toString());
+			}
+
+			public void failed(File file, IOException e) {
+				filenameBar.setText(String.format("Could not %s %s: %s", failureVerb, file, e.getMessage()));
+			}
+		};
+	}
+
+	/**
+	 * Starts drawing together with others, either by hosting a server on this computer or by
+	 * joining one, or stops when the canvas already draws with others. A hosted server only
+	 * lets other computers join when the user agrees, and is closed once the canvas leaves it.
+	 */
+	private void share() {
+		if (canvas.isSharing()) {
+			canvas.leave();
+			return;
+		}
+		String[] options = { "Host", "Join", "Cancel" };
+		int choice = JOptionPane.showOptionDialog(shareButton, "Host a drawing session or join one?", "Draw together",
+				JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+		try {
+			if (choice == 0) {
+				if (server == null) {
+					int network = JOptionPane.showConfirmDialog(shareButton,
+							"Let other computers on the network join? Otherwise only this computer can.", "Draw together",
+							JOptionPane.YES_NO_CANCEL_OPTION);
+					if (network == JOptionPane.CANCEL_OPTION || network == JOptionPane.CLOSED_OPTION) {
+						return;
+					}
+					server = new CollabServer(CollabServer.DEFAULT_PORT, width, height, network == JOptionPane.YES_OPTION);
+				}
+				canvas.join("localhost", server.getPort(), this::shareFailed);
+				filenameBar.setText("Hosting on port " + server.getPort());
+			} else if (choice == 1) {
+				String address = JOptionPane.showInputDialog(shareButton, "Server (host:port)",
+						"localhost:" + CollabServer.DEFAULT_PORT);
+				if (address != null && !address.isBlank()) {
+					int colon = address.lastIndexOf(':');
+					String host = colon < 0 ? address.trim() : address.substring(0, colon).trim();
+					int port = colon < 0 ? CollabServer.DEFAULT_PORT : Integer.parseInt(address.substring(colon + 1).trim());
+					canvas.join(host, port, this::shareFailed);
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			shareFailed(e);
+		}
+	}
+
+	/**
+	 * Tells that drawing together could not be started.
+	 * @param e the reason
+	 */
+	private void shareFailed(Exception e) {
+		stopHosting();
+		JOptionPane.showMessageDialog(shareButton, "Could not draw together: " + e.getMessage(),
+				"Draw together", JOptionPane.ERROR_MESSAGE);
+	}
+
+	/**
+	 * Closes the server hosted on this computer, if there is one.
+	 */
+	private void stopHosting() {
+		if (server != null) {
+			server.close();
+			server = null;
+		}
+	}
+
+	/**
+	 * Starts recording what is drawn to a file, or stops recording and offers to export the
+	 * recording as a time-lapse: an animated GIF, or numbered PNG files in a directory.
+	 */
+	private void record() {
+		if (canvas.isRecording()) {
+			File recording = canvas.stopRecording();
+			recordButton.setText("Record");
+			JFileChooser fileChooser = new JFileChooser(recording.getParentFile());
+			fileChooser.setDialogTitle("Export time-lapse (a .gif file, or a directory for PNG frames)");
+			fileChooser.setFileFilter(new FileNameExtensionFilter("Animated GIF (*.gif)", "gif"));
+			if (fileChooser.showSaveDialog(recordButton) == JFileChooser.APPROVE_OPTION) {
+				File target = fileChooser.getSelectedFile();
+				if (fileChooser.getFileFilter() instanceof FileNameExtensionFilter && !target.isDirectory()
+						&& !target.getName().contains(".")) {
+					target = new File(target.getPath() + ".gif");
+				}
+				new TimeLapse(TimeLapse.DEFAULT_FPS, TimeLapse.DEFAULT_SPEED).exportLater(recording, target,
+						exportListener);
+			}
+			return;
+		}
+		JFileChooser fileChooser = new JFileChooser(file);
+		fileChooser.setDialogTitle("Record to");
+		fileChooser.setFileFilter(new FileNameExtensionFilter("Strokes recording (*." + Recording.EXTENSION + ")",
+				Recording.EXTENSION));
+		if (fileChooser.showSaveDialog(recordButton) == JFileChooser.APPROVE_OPTION) {
+			File target = fileChooser.getSelectedFile();
+			if (!target.getName().contains(".")) {
+				target = new File(target.getPath() + "." + Recording.EXTENSION);
+			}
+			try {
+				canvas.startRecording(target);
+				recordButton.setText("Stop Recording");
+				filenameBar.setText("Recording to " + target);
+			} catch (IOException e) {
+				filenameBar.setText(String.format("Could not record to %s: %s", target, e.getMessage()));
+			}
+		}
+	}
+
 	/**
 	 * Sets the dimensions of the window.
 	 *
@@ -199,6 +504,20 @@ public class Draw {
 		this.height = height;
 	}
 
+	/**
+	 * Sets the layers of a session that crashed, to draw on instead of a blank canvas.
+	 * The window takes the size of the layers.
+	 *
+	 * @param layers  the recovered layers
+	 * @param session the directory of the session, whose journal is carried on
+	 */
+	public void setRecovered(LayerStack layers, File session) {
+		TiledSurface surface = layers.get(0).getSurface();
+		setWindowDimensions(surface.getWidth(), surface.getHeight());
+		this.recovered = layers;
+		this.session = session;
+	}
+
 	/**
 	 * Creates a JButton with the specified action command and icon.
 	 *
@@ -260,9 +579,15 @@ public class Draw {
 		JFrame frame = new JFrame("Paint (" + width + "X" + height + ")");
 		Container container = frame.getContentPane();
 		container.setLayout(new BorderLayout());
-		canvas = new Canvas();
+		canvas = new Canvas(width, height);
+		if (recovered != null) {
+			canvas.restore(recovered);
+		}
+		if (Journal.ENABLED) {
+			canvas.startJournal(session);
+		}
 
-		container.add(canvas, BorderLayout.CENTER);
+		container.add(new JScrollPane(canvas), BorderLayout.CENTER);
 
 		JPanel panel = new JPanel();
 
@@ -308,6 +633,37 @@ public class Draw {
 		colorPicker.addActionListener(listener);
 		clearButton = new JButton("Clear");
 		clearButton.addActionListener(listener);
+		selectButton = new JButton("Select");
+		selectButton.setToolTipText("Drag a shape to move it, Delete removes it");
+		selectButton.addActionListener(listener);
+		fillButton = new JButton("Fill");
+		fillButton.setToolTipText("Fill the region around the clicked point");
+		fillButton.addActionListener(listener);
+		toleranceSlider = new JSlider(JSlider.HORIZONTAL, 0, 255, 32);
+		toleranceSlider.setToolTipText("How different a color may be to be filled");
+		toleranceSlider.setPreferredSize(new Dimension(80, 30));
+		toleranceSlider.addChangeListener(e -> canvas.setFillTolerance(toleranceSlider.getValue()));
+		zoomOutButton = new JButton("-");
+		zoomOutButton.setToolTipText("Zoom out (Ctrl+Minus, or Ctrl+wheel)");
+		zoomOutButton.addActionListener(listener);
+		zoomInButton = new JButton("+");
+		zoomInButton.setToolTipText("Zoom in (Ctrl+Plus, or Ctrl+wheel)");
+		zoomInButton.addActionListener(listener);
+		zoomStat = new JLabel("100%");
+		shareButton = new JButton("Share");
+		shareButton.setToolTipText("Draw together with others on the same canvas");
+		shareButton.addActionListener(listener);
+		canvas.setShareListener(() -> {
+			shareButton.setText(canvas.isSharing() ? "Leave" : "Share");
+			if (!canvas.isSharing()) {
+				stopHosting();
+			}
+		});
+		recordButton = new JButton("Record");
+		recordButton.setToolTipText("Record what is drawn, to export it as a time-lapse");
+		recordButton.addActionListener(listener);
+		canvas.setZoomListener(() -> zoomStat.setText(
+				String.format(canvas.getZoom() < 0.1 ? "%.1f%%" : "%.0f%%", canvas.getZoom() * 100)));
 
 		filenameBar = new JLabel("No file");
 		thicknessStat = new JLabel("1");
@@ -336,13 +692,33 @@ public class Draw {
 		panel.add(loadButton);
 		panel.add(colorPicker);
 		panel.add(clearButton);
+		panel.add(selectButton);
+		panel.add(fillButton);
+		panel.add(toleranceSlider);
+		panel.add(zoomOutButton);
+		panel.add(zoomStat);
+		panel.add(zoomInButton);
+		panel.add(shareButton);
+		panel.add(recordButton);
 
 		container.add(panel, BorderLayout.NORTH);
 		container.add(panel1, BorderLayout.SOUTH);
 		container.add(box, BorderLayout.WEST);
+		Box layerPanel = createLayerPanel();
+		container.add(layerPanel, BorderLayout.EAST);
 
+		java.awt.Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
 		frame.setVisible(true);
-		frame.setSize(width + 79, height + 11);
+		frame.setSize(Math.min(width + 79 + layerPanel.getPreferredSize().width, screen.width),
+				Math.min(height + 11, screen.height));
+		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				canvas.leave();
+				stopHosting();
+				canvas.discardJournal();
+			}
+		});
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 	}
 }
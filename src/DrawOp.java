@@ -0,0 +1,118 @@
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Abstract base class for all operations recorded in a {@link Document}.
+ * An operation keeps everything needed to draw it again, so the canvas can be rebuilt
+ * from a checkpoint by replaying the operations that followed it.
+ */
+abstract class DrawOp {
+	static final int STROKE = 1, SHAPE = 2, CLEAR = 3, LOAD = 4, REPLACE = 5, FILL = 6;
+
+	/**
+	 * Draws the operation on a given graphics context.
+	 * The operation sets its own color and stroke.
+	 *
+	 * @param g The graphics context on which the operation will be drawn.
+	 */
+	public abstract void render(Graphics2D g);
+
+	/**
+	 * Gets the region the operation may change when it is drawn.
+	 *
+	 * @return The region in canvas coordinates.
+	 */
+	public abstract Rectangle getBounds();
+
+	/**
+	 * Draws the operation on a tiled surface, touching only the tiles inside its bounds.
+	 *
+	 * @param surface The surface on which the operation will be drawn.
+	 */
+	public void render(TiledSurface surface) {
+		surface.draw(getBounds(), this::render);
+	}
+
+	/**
+	 * Draws the operation only on the tiles of a tiled surface that intersect a region.
+	 * Each tile is drawn exactly as {@link #render(TiledSurface)} would draw it; a finer clip
+	 * would change the antialiasing of curves that cross its edge.
+	 *
+	 * @param surface The surface on which the operation will be drawn.
+	 * @param clip    The region to draw in.
+	 */
+	public void render(TiledSurface surface, Rectangle clip) {
+		surface.draw(getBounds().intersection(clip), this::render);
+	}
+
+	/**
+	 * Writes the operation in binary form, starting with its type.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException If the operation could not be written.
+	 */
+	public abstract void write(DataOutput out) throws IOException;
+
+	/**
+	 * Reads an operation that was written with {@link #write(DataOutput)}.
+	 *
+	 * @param in The input to read from.
+	 * @return The operation.
+	 * @throws IOException If the input does not hold a valid operation.
+	 */
+	public static DrawOp read(DataInput in) throws IOException {
+		int type = in.readUnsignedByte();
+		switch (type) {
+			case STROKE:
+				return StrokeOp.readStroke(in);
+			case SHAPE:
+				return ShapeOp.readShape(in);
+			case CLEAR:
+				return new ClearOp(in.readInt(), in.readInt());
+			case LOAD:
+				return LoadOp.readLoad(in);
+			case REPLACE:
+				return ReplaceOp.readReplace(in);
+			case FILL:
+				return FillOp.readFill(in);
+			default:
+				throw new IOException("Unknown operation type " + type);
+		}
+	}
+
+	/**
+	 * Helper method to write a stroke.
+	 *
+	 * @param out    The output to write to.
+	 * @param stroke The stroke to write.
+	 * @throws IOException If the stroke could not be written.
+	 */
+	static void writeBasicStroke(DataOutput out, BasicStroke stroke) throws IOException {
+		out.writeFloat(stroke.getLineWidth());
+		out.writeByte(stroke.getEndCap());
+		out.writeByte(stroke.getLineJoin());
+		out.writeFloat(stroke.getMiterLimit());
+	}
+
+	/**
+	 * Helper method to read a stroke written by {@link #writeBasicStroke(DataOutput, BasicStroke)}.
+	 *
+	 * @param in The input to read from.
+	 * @return The stroke.
+	 * @throws IOException If the stroke could not be read.
+	 */
+	static BasicStroke readBasicStroke(DataInput in) throws IOException {
+		float width = in.readFloat();
+		int cap = in.readUnsignedByte(), join = in.readUnsignedByte();
+		float miterLimit = in.readFloat();
+		try {
+			return new BasicStroke(width, cap, join, miterLimit);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid stroke", e);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The event for a file that was saved or loaded.
+ */
+@Name("strokes.File")
+@Label("Save or Load")
+@Category("Strokes")
+@StackTrace(false)
+class FileEvent extends Event {
+	@Label("Duration")
+	@Timespan
+	long elapsed;
+
+	@Label("Action")
+	String action;
+
+	@Label("Path")
+	String path;
+
+	@Label("File Size")
+	@DataAmount
+	long size;
+
+	@Label("Success")
+	boolean success;
+}
@@ -0,0 +1,152 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Concrete implementation of {@link DrawOp} for bucket fills.
+ * The region is worked out by a {@link FloodFill} the first time the fill is drawn and kept as
+ * spans, so drawing it again, in part or after a shape under it was moved, sets exactly the
+ * same pixels.
+ */
+class FillOp extends DrawOp {
+	private final int x, y, tolerance;
+	private final Color color;
+	private int[] spans;
+	private int count;
+	private Rectangle bounds;
+
+	/**
+	 * Creates a fill that has not been drawn yet.
+	 *
+	 * @param x         The x coordinate of the pixel the fill starts from.
+	 * @param y         The y coordinate of the pixel the fill starts from.
+	 * @param color     The color to fill with.
+	 * @param tolerance How far each channel of a pixel may be from the starting pixel's to be filled, from 0 to 255.
+	 */
+	public FillOp(int x, int y, Color color, int tolerance) {
+		this.x = x;
+		this.y = y;
+		this.color = color;
+		this.tolerance = Math.max(0, Math.min(255, tolerance));
+	}
+
+	/**
+	 * Draws the region of the fill, once it is known, one row at a time.
+	 *
+	 * @param g The graphics context to use for drawing.
+	 */
+	@Override
+	public synchronized void render(Graphics2D g) {
+		if (spans == null) {
+			return;
+		}
+		g.setColor(color);
+		for (int i = 0; i < count * 3; i += 3) {
+			g.fillRect(spans[i + 1], spans[i], spans[i + 2] - spans[i + 1], 1);
+		}
+	}
+
+	/**
+	 * Gets the region of the fill, or the starting pixel until it was first drawn.
+	 *
+	 * @return The region in canvas coordinates.
+	 */
+	@Override
+	public synchronized Rectangle getBounds() {
+		return bounds != null ? new Rectangle(bounds) : new Rectangle(x, y, 1, 1);
+	}
+
+	/**
+	 * Checks whether the region of the fill was worked out, so its bounds are known.
+	 *
+	 * @return True if the fill was drawn or read with its region.
+	 */
+	synchronized boolean hasRegion() {
+		return bounds != null;
+	}
+
+	/**
+	 * Fills the region, working it out from the pixels of the surface the first time.
+	 *
+	 * @param surface The surface to fill.
+	 */
+	@Override
+	public void render(TiledSurface surface) {
+		render(surface, surface.getBounds());
+	}
+
+	/**
+	 * Fills the part of the region inside a clip.
+	 *
+	 * @param surface The surface to fill.
+	 * @param clip    The region to fill in.
+	 */
+	@Override
+	public synchronized void render(TiledSurface surface, Rectangle clip) {
+		if (spans == null) {
+			FloodFill fill = new FloodFill(surface, x, y, tolerance);
+			spans = fill.getSpans();
+			count = fill.getCount();
+			bounds = fill.getBounds();
+		}
+		surface.fill(spans, count, surface.getFormat().encode(color), clip);
+	}
+
+	@Override
+	public synchronized void write(DataOutput out) throws IOException {
+		out.writeByte(FILL);
+		out.writeInt(x);
+		out.writeInt(y);
+		out.writeInt(color.getRGB());
+		out.writeByte(tolerance);
+		out.writeInt(spans == null ? -1 : count);
+		for (int i = 0; spans != null && i < count * 3; i++) {
+			out.writeInt(spans[i]);
+		}
+	}
+
+	/**
+	 * Reads the rest of a fill after its type. A fill that was written before it was drawn
+	 * works out its region again when it is drawn.
+	 *
+	 * @param in The input to read from.
+	 * @return The fill.
+	 * @throws IOException If the input does not hold a valid operation.
+	 */
+	static FillOp readFill(DataInput in) throws IOException {
+		FillOp op = new FillOp(in.readInt(), in.readInt(), new Color(in.readInt(), true), in.readUnsignedByte());
+		int count = in.readInt();
+		if (count < -1) {
+			throw new IOException("Invalid fill");
+		}
+		if (count >= 0) {
+			int[] spans = new int[Math.min(count, 1 << 16) * 3];
+			Rectangle bounds = null;
+			for (int i = 0; i < count; i++) {
+				if (i * 3 == spans.length) {
+					spans = Arrays.copyOf(spans, spans.length * 2);
+				}
+				int row = in.readInt(), from = in.readInt(), to = in.readInt();
+				if (row < 0 || from < 0 || to <= from) {
+					throw new IOException("Invalid fill span");
+				}
+				spans[i * 3] = row;
+				spans[i * 3 + 1] = from;
+				spans[i * 3 + 2] = to;
+				if (bounds == null) {
+					bounds = new Rectangle(from, row, to - from, 1);
+				} else {
+					bounds.add(new Rectangle(from, row, to - from, 1));
+				}
+			}
+			op.spans = spans;
+			op.count = count;
+			op.bounds = bounds != null ? bounds : new Rectangle();
+		}
+		return op;
+	}
+}
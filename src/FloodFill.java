@@ -0,0 +1,274 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * This class works out the region a bucket fill covers: every pixel connected to a seed pixel
+ * through its four neighbours whose color is within a tolerance of the seed's color.
+ * It is a scanline fill. A whole run of matching pixels is taken along a row at once, and each
+ * run of matching pixels in the rows above and below it is pushed on an explicit stack to be
+ * taken later, so it never recurses however large the region is. A pushed run is only widened
+ * past its ends when it is taken, so each pixel is read about once.
+ * Rows are read from the pixel arrays of the tiles directly, and a part of a row that lies on a
+ * tile that was never drawn on is taken or skipped in one step, which is what makes filling a
+ * large, mostly blank canvas fast. The region is kept as spans, one run of pixels of a row each.
+ */
+final class FloodFill {
+	private static final int TILE_SIZE = TiledSurface.TILE_SIZE;
+
+	private final TiledSurface surface;
+	private final int width, height, columns;
+	private final int target, tolerance, mask;
+	private final boolean backgroundMatches;
+	private final BitSet[] visited;
+	private int[] stack = new int[96];
+	private int top;
+	private int[] spans = new int[48];
+	private final int[] row = new int[TILE_SIZE];
+	private int count;
+	private int minX, minY, maxX = -1, maxY = -1;
+
+	/**
+	 * This constructor is used to work out the region of a fill.
+	 * @param surface the surface to fill, which is only read
+	 * @param x the x coordinate of the seed pixel
+	 * @param y the y coordinate of the seed pixel
+	 * @param tolerance how far each channel of a pixel may be from the seed's, from 0 to 255
+	 */
+	FloodFill(TiledSurface surface, int x, int y, int tolerance) {
+		this.surface = surface;
+		this.width = surface.getWidth();
+		this.height = surface.getHeight();
+		this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		this.tolerance = tolerance;
+		this.mask = surface.getFormat().isOpaque() ? 0xffffff : 0xffffffff;
+		this.visited = new BitSet[height];
+		minX = width;
+		minY = height;
+		int background = surface.getFormat().encode(surface.getBackground()) & mask;
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			this.target = background;
+			this.backgroundMatches = false;
+			return;
+		}
+		BufferedImage tile = surface.getTile(x, y);
+		this.target = tile == null ? background
+				: ((int[]) tile.getRaster().getDataElements(x % TILE_SIZE, y % TILE_SIZE, null))[0] & mask;
+		this.backgroundMatches = matches(background);
+		fill(x, y);
+	}
+
+	/**
+	 * This method is used to get the spans of the region.
+	 * @return three ints per span: the row, the first column and the column after the last
+	 */
+	int[] getSpans() {
+		return Arrays.copyOf(spans, count * 3);
+	}
+
+	/**
+	 * This method is used to get the number of spans of the region.
+	 * @return the number of spans
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * This method is used to get the smallest rectangle holding the region.
+	 * @return the bounds, empty if the seed was outside the surface
+	 */
+	Rectangle getBounds() {
+		return maxX < 0 ? new Rectangle() : new Rectangle(minX, minY, maxX - minX, maxY - minY + 1);
+	}
+
+	/**
+	 * This method is used to take every run connected to the seed.
+	 * @param seedX the x coordinate of the seed pixel
+	 * @param seedY the y coordinate of the seed pixel
+	 */
+	private void fill(int seedX, int seedY) {
+		if (find(seedY, seedX, seedX + 1, true) == seedX) {
+			push(seedX, seedX + 1, seedY);
+		}
+		while (top > 0) {
+			int y = stack[--top], end = stack[--top], x = stack[--top];
+			BitSet row = row(y);
+			if (row.get(x)) {
+				continue;
+			}
+			int left = Math.max(findLeft(y, x) + 1, row.previousSetBit(x) + 1);
+			int right = find(y, end, width, false);
+			int next = row.nextSetBit(x);
+			if (next >= 0) {
+				right = Math.min(right, next);
+			}
+			row.set(left, right);
+			addSpan(y, left, right);
+			if (y > 0) {
+				pushRuns(y - 1, left, right);
+			}
+			if (y + 1 < height) {
+				pushRuns(y + 1, left, right);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to push every run of matching pixels of a row that was not taken yet.
+	 * @param y the row
+	 * @param from the first column to look at
+	 * @param to the column after the last one to look at
+	 */
+	private void pushRuns(int y, int from, int to) {
+		BitSet row = row(y);
+		int x = from;
+		while (x < to) {
+			x = row.nextClearBit(x);
+			if (x >= to) {
+				return;
+			}
+			int start = find(y, x, to, true);
+			if (start >= to) {
+				return;
+			}
+			if (row.get(start)) {
+				x = start + 1;
+				continue;
+			}
+			x = find(y, start, to, false);
+			push(start, x, y);
+		}
+	}
+
+	/**
+	 * This method is used to find the first pixel of a row, from a column on, that matches or not.
+	 * @param y the row
+	 * @param x the first column to look at
+	 * @param to the column after the last one to look at
+	 * @param match true to find a matching pixel, false to find one that does not match
+	 * @return the column of the pixel, or {@code to} if there is none
+	 */
+	private int find(int y, int x, int to, boolean match) {
+		int base = (y / TILE_SIZE) * columns, line = y % TILE_SIZE;
+		while (x < to) {
+			int tx = x / TILE_SIZE, end = Math.min(to, (tx + 1) * TILE_SIZE);
+			BufferedImage tile = surface.getTile(base + tx);
+			if (tile == null) {
+				if (backgroundMatches == match) {
+					return x;
+				}
+				x = end;
+				continue;
+			}
+			int start = x;
+			tile.getRaster().getDataElements(start - tx * TILE_SIZE, line, end - start, 1, row);
+			for (; x < end; x++) {
+				if (matches(row[x - start]) == match) {
+					return x;
+				}
+			}
+		}
+		return to;
+	}
+
+	/**
+	 * This method is used to find the nearest pixel left of a column that does not match.
+	 * @param y the row
+	 * @param x the column right of the first one to look at
+	 * @return the column of the pixel, or -1 if every pixel up to the left edge matches
+	 */
+	private int findLeft(int y, int x) {
+		int base = (y / TILE_SIZE) * columns, line = y % TILE_SIZE;
+		x--;
+		while (x >= 0) {
+			int tx = x / TILE_SIZE, end = tx * TILE_SIZE;
+			BufferedImage tile = surface.getTile(base + tx);
+			if (tile == null) {
+				if (!backgroundMatches) {
+					return x;
+				}
+				x = end - 1;
+				continue;
+			}
+			tile.getRaster().getDataElements(0, line, x - end + 1, 1, row);
+			for (; x >= end; x--) {
+				if (!matches(row[x - end])) {
+					return x;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * This method is used to check whether a pixel is close enough to the seed's color.
+	 * Each of the four channels of the packed pixels is compared on its own. The unused top byte of
+	 * an opaque format is left out, since it is not the same for drawn pixels and blank ones.
+	 * @param pixel the pixel, in the format of the surface
+	 * @return true if the pixel belongs to the region
+	 */
+	private boolean matches(int pixel) {
+		pixel &= mask;
+		if (pixel == target) {
+			return true;
+		}
+		if (tolerance == 0) {
+			return false;
+		}
+		for (int shift = 0; shift < 32; shift += 8) {
+			if (Math.abs((pixel >>> shift & 0xff) - (target >>> shift & 0xff)) > tolerance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This method is used to get the pixels of a row that were taken.
+	 * @param y the row
+	 * @return the taken columns
+	 */
+	private BitSet row(int y) {
+		if (visited[y] == null) {
+			visited[y] = new BitSet(width);
+		}
+		return visited[y];
+	}
+
+	/**
+	 * This method is used to push a run of matching pixels to take later.
+	 * @param from the first column of the run
+	 * @param to the column after the last one of the run
+	 * @param y the row
+	 */
+	private void push(int from, int to, int y) {
+		if (top == stack.length) {
+			stack = Arrays.copyOf(stack, top * 2);
+		}
+		stack[top++] = from;
+		stack[top++] = to;
+		stack[top++] = y;
+	}
+
+	/**
+	 * This method is used to add a run of pixels to the region.
+	 * @param y the row
+	 * @param from the first column
+	 * @param to the column after the last
+	 */
+	private void addSpan(int y, int from, int to) {
+		if (count * 3 == spans.length) {
+			spans = Arrays.copyOf(spans, spans.length * 2);
+		}
+		spans[count * 3] = y;
+		spans[count * 3 + 1] = from;
+		spans[count * 3 + 2] = to;
+		count++;
+		minX = Math.min(minX, from);
+		maxX = Math.max(maxX, to);
+		minY = Math.min(minY, y);
+		maxY = Math.max(maxY, y);
+	}
+}
@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The event for an undo or a redo.
+ */
+@Name("strokes.UndoRedo")
+@Label("Undo or Redo")
+@Category("Strokes")
+@StackTrace(false)
+class HistoryEvent extends Event {
+	@Label("Latency")
+	@Description("The time from the request until the canvas was rebuilt")
+	@Timespan
+	long elapsed;
+
+	@Label("Action")
+	String action;
+
+	@Label("Changed")
+	boolean changed;
+}
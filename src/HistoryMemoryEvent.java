@@ -0,0 +1,28 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * The periodic event with the memory taken by the undo history.
+ */
+@Name("strokes.HistoryMemory")
+@Label("History Memory")
+@Category("Strokes")
+@Period("1 s")
+@StackTrace(false)
+class HistoryMemoryEvent extends Event {
+	@Label("Operations")
+	int operations;
+
+	@Label("Heap")
+	@DataAmount
+	long heap;
+
+	@Label("Spilled")
+	@DataAmount
+	long spilled;
+}
@@ -0,0 +1,183 @@
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+/**
+ * This class keeps the undo history within a fixed byte budget.
+ * The most recently used deltas stay as raw tiles, older ones are compressed on a background
+ * thread, and the oldest are spilled to a memory-mapped {@link SpillFile}. When even the spill
+ * file is full the oldest deltas are dropped, unless they are pinned while being restored.
+ * When the raw tiles outgrow their budget faster than the background thread compresses them,
+ * the thread adding a delta compresses the older ones itself, so the heap cannot run out.
+ * One store is shared by every layer of a canvas, so the budget holds however many layers
+ * there are.
+ */
+public class HistoryStore {
+	public static final long BUDGET = Long.getLong("strokes.history.budget", 256L << 20);
+
+	private final long hotBudget, warmBudget;
+	private final SpillFile spill;
+	private final LinkedHashSet<TileDelta> deltas = new LinkedHashSet<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "history-compressor");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+	private final Object balancing = new Object();
+	private final byte[] scratch = new byte[TileDelta.TILE_SIZE * TileDelta.TILE_SIZE * 4];
+
+	/**
+	 * This constructor is used to create a history store with the budget set by the
+	 * strokes.history.budget property, 256 MB by default.
+	 */
+	public HistoryStore() {
+		this(BUDGET);
+	}
+
+	/**
+	 * This constructor is used to create a history store with the given budget.
+	 * A quarter of the budget is used for raw tiles, a quarter for compressed tiles on the heap
+	 * and the rest for the spill file.
+	 * @param budget the maximum number of bytes the history may use
+	 */
+	public HistoryStore(long budget) {
+		this.hotBudget = budget / 4;
+		this.warmBudget = budget / 4;
+		this.spill = new SpillFile(budget - hotBudget - warmBudget);
+	}
+
+	/**
+	 * This method is used to add a delta to the store, or to mark it as the most recently used.
+	 * If the raw tiles are over their budget they are compressed before this method returns.
+	 * @param delta the delta that was created or restored
+	 */
+	public void add(TileDelta delta) {
+		TileDelta[] stored;
+		synchronized (this) {
+			deltas.remove(delta);
+			deltas.add(delta);
+			stored = deltas.toArray(new TileDelta[0]);
+		}
+		long hot = 0;
+		for (TileDelta each : stored) {
+			if (each.isHot()) {
+				hot += each.getHeapSize();
+			}
+		}
+		if (hot > hotBudget) {
+			rebalance();
+		} else if (scheduled.compareAndSet(false, true)) {
+			worker.execute(this::rebalance);
+		}
+	}
+
+	/**
+	 * This method is used to remove a delta from the store when it leaves the history.
+	 * @param delta the delta to remove
+	 */
+	public void remove(TileDelta delta) {
+		synchronized (this) {
+			deltas.remove(delta);
+		}
+		delta.drop();
+	}
+
+	/**
+	 * This method is used to drop every delta, stop the background thread and delete the spill
+	 * file, once no document uses the store any more.
+	 */
+	public void close() {
+		worker.shutdownNow();
+		TileDelta[] stored;
+		synchronized (this) {
+			stored = deltas.toArray(new TileDelta[0]);
+			deltas.clear();
+		}
+		for (TileDelta delta : stored) {
+			delta.drop();
+		}
+		spill.close();
+	}
+
+	/**
+	 * This method is used to get the memory taken by the stored deltas on the heap.
+	 * @return the size in bytes, raw and compressed together
+	 */
+	public long getHeapSize() {
+		TileDelta[] stored;
+		synchronized (this) {
+			stored = deltas.toArray(new TileDelta[0]);
+		}
+		long size = 0;
+		for (TileDelta delta : stored) {
+			size += delta.getHeapSize();
+		}
+		return size;
+	}
+
+	/**
+	 * This method is used to get the number of bytes spilled to the scratch file.
+	 * @return the spilled size in bytes
+	 */
+	public long getSpilledSize() {
+		return spill.getUsedSize();
+	}
+
+	/**
+	 * This method is used to move deltas down the tiers until every tier fits its budget.
+	 * It runs on the background thread, or on the thread adding a delta when the raw tiles are
+	 * over budget, newest deltas first.
+	 */
+	private void rebalance() {
+		synchronized (balancing) {
+			scheduled.set(false);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+			try {
+				rebalance(deflater);
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to move deltas down the tiers with a deflater that is ended afterwards.
+	 * @param deflater the deflater to compress with
+	 */
+	private void rebalance(Deflater deflater) {
+		TileDelta[] order;
+		synchronized (this) {
+			order = deltas.toArray(new TileDelta[0]);
+		}
+		long hot = 0, warm = 0;
+		boolean full = false;
+		for (int i = order.length - 1; i >= 0; i--) {
+			TileDelta delta = order[i];
+			if (!full && delta.isHot()) {
+				hot += delta.getHeapSize();
+				if (hot <= hotBudget) {
+					continue;
+				}
+				hot -= delta.getHeapSize();
+				delta.compress(deflater, scratch);
+			}
+			if (!full && delta.isPacked()) {
+				warm += delta.getHeapSize();
+				if (warm <= warmBudget) {
+					continue;
+				}
+				warm -= delta.getHeapSize();
+				full = !delta.spill(spill);
+			}
+			if (full && delta.tryDrop()) {
+				synchronized (this) {
+					deltas.remove(delta);
+				}
+			}
+		}
+	}
+}
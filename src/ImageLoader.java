@@ -0,0 +1,223 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+
+/**
+ * This class loads images in the background.
+ * Only the part of the image that fits on the canvas is decoded. Large images are first
+ * decoded subsampled to show a quick preview, which is then refined band by band as the
+ * full resolution rows arrive. The result is always converted to the pixel format of the canvas.
+ */
+public class ImageLoader {
+	private static final int PREVIEW_SIZE = 512;
+	private static final int BAND_HEIGHT = 64;
+
+	/**
+	 * The callback interface for receiving a loaded image. All methods are called on the event dispatch thread.
+	 */
+	public interface Callback extends ProgressListener {
+		/**
+		 * Invoked when a region of the preview image has been updated.
+		 * @param region the region that changed
+		 */
+		void updated(Rectangle region);
+
+		/**
+		 * Invoked with the fully decoded image.
+		 * @param file the file that was loaded
+		 * @param image the image, in the pixel format of the preview image
+		 */
+		void loaded(File file, BufferedImage image);
+	}
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "image-loader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * This method is used to queue an image to be loaded.
+	 * While the image is decoded its preview is drawn on the given preview image, whose size
+	 * also limits the region that is decoded. Readers must synchronize on the preview image.
+	 * @param file the file to load the image from
+	 * @param preview the image to draw the preview on
+	 * @param callback the callback to report progress and the result to
+	 */
+	public void load(File file, BufferedImage preview, Callback callback) {
+		executor.execute(() -> {
+			try {
+				BufferedImage image = read(file, preview, callback);
+				SwingUtilities.invokeLater(() -> {
+					callback.loaded(file, image);
+					callback.done(file);
+				});
+			} catch (IOException | RuntimeException e) {
+				IOException error = e instanceof IOException ? (IOException) e : new IOException(e);
+				SwingUtilities.invokeLater(() -> callback.failed(file, error));
+			}
+		});
+	}
+
+	/**
+	 * This method is used to decode the visible region of the image, preview first.
+	 * @param file the file to load the image from
+	 * @param preview the image to draw the preview on
+	 * @param callback the callback to report progress to
+	 * @return the decoded region, in the pixel format of the preview image
+	 * @throws IOException if the image could not be read
+	 */
+	private BufferedImage read(File file, BufferedImage preview, Callback callback) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+			if (readers == null || !readers.hasNext()) {
+				throw new IOException("Unsupported image format");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, false, true);
+				Rectangle region = new Rectangle(0, 0, Math.min(reader.getWidth(0), preview.getWidth()),
+						Math.min(reader.getHeight(0), preview.getHeight()));
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(region);
+
+				int step = (Math.max(region.width, region.height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE;
+				if (step > 1) {
+					param.setSourceSubsampling(step, step, 0, 0);
+					BufferedImage small = reader.read(0, param);
+					synchronized (preview) {
+						Graphics2D g = preview.createGraphics();
+						g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+								RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+						g.drawImage(small, 0, 0, region.width, region.height, null);
+						g.dispose();
+					}
+					SwingUtilities.invokeLater(() -> callback.updated(region));
+					param.setSourceSubsampling(1, 1, 0, 0);
+				}
+
+				BufferedImage result = PixelFormat.of(preview).createImage(region.width, region.height);
+				Refiner refiner = new Refiner(file, result, preview, callback);
+				reader.addIIOReadUpdateListener(refiner);
+				reader.addIIOReadProgressListener(refiner);
+				BufferedImage decoded = reader.read(0, param);
+				refiner.copy(decoded, region.height);
+				return result;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * The class copies decoded rows into the result and the preview a band at a time,
+	 * and forwards the progress of the reader.
+	 */
+	private static class Refiner implements IIOReadUpdateListener, IIOReadProgressListener {
+		private final File file;
+		private final BufferedImage result, preview;
+		private final Callback callback;
+		private int copied, reported = -1;
+
+		private Refiner(File file, BufferedImage result, BufferedImage preview, Callback callback) {
+			this.file = file;
+			this.result = result;
+			this.preview = preview;
+			this.callback = callback;
+		}
+
+		/**
+		 * Copies the decoded rows between the last copied row and the given row.
+		 * @param source the image being decoded
+		 * @param rows the number of rows decoded so far
+		 */
+		private void copy(BufferedImage source, int rows) {
+			if (rows <= copied) {
+				return;
+			}
+			Rectangle band = new Rectangle(0, copied, result.getWidth(), rows - copied);
+			Graphics2D g = result.createGraphics();
+			g.drawImage(source, 0, band.y, band.width, rows, 0, band.y, band.width, rows, null);
+			g.dispose();
+			synchronized (preview) {
+				g = preview.createGraphics();
+				g.drawImage(result, 0, band.y, band.width, rows, 0, band.y, band.width, rows, null);
+				g.dispose();
+			}
+			copied = rows;
+			SwingUtilities.invokeLater(() -> callback.updated(band));
+		}
+
+		public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+				int width, int height, int periodX, int periodY, int[] bands) {
+			int rows = minY + height;
+			if (periodY == 1 && rows - copied >= BAND_HEIGHT) {
+				copy(theImage, rows);
+			}
+		}
+
+		public void imageProgress(ImageReader source, float percentageDone) {
+			int percent = (int) percentageDone;
+			if (percent != reported) {
+				reported = percent;
+				SwingUtilities.invokeLater(() -> callback.progress(file, percent));
+			}
+		}
+
+		public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass,
+				int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+		}
+
+		public void passComplete(ImageReader source, BufferedImage theImage) {
+		}
+
+		public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass,
+				int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+		}
+
+		public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY,
+				int width, int height, int periodX, int periodY, int[] bands) {
+		}
+
+		public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+		}
+
+		public void imageStarted(ImageReader source, int imageIndex) {
+		}
+
+		public void imageComplete(ImageReader source) {
+		}
+
+		public void sequenceStarted(ImageReader source, int minIndex) {
+		}
+
+		public void sequenceComplete(ImageReader source) {
+		}
+
+		public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+		}
+
+		public void thumbnailProgress(ImageReader source, float percentageDone) {
+		}
+
+		public void thumbnailComplete(ImageReader source) {
+		}
+
+		public void readAborted(ImageReader source) {
+		}
+	}
+}
@@ -0,0 +1,150 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * This class saves images in the background.
+ * Each image is encoded to a temporary file next to the target and then renamed over it,
+ * so a crash or an error in the middle of a save never leaves a half-written file behind.
+ * Images are encoded by a {@link PngEncoder} on every core. The deflate level, the filter and
+ * the number of cores can be set with {@code -Dstrokes.png.level=0..9},
+ * {@code -Dstrokes.png.filter=none|sub|up|average|paeth|adaptive} and {@code -Dstrokes.png.threads=N}.
+ */
+public class ImageSaver {
+	private static final int LEVEL = intProperty("strokes.png.level", Deflater.DEFAULT_COMPRESSION, -1, 9);
+	private static final PngEncoder.Filter FILTER = filterProperty("strokes.png.filter", PngEncoder.Filter.ADAPTIVE);
+	private static final int THREADS = intProperty("strokes.png.threads", Runtime.getRuntime().availableProcessors(),
+			1, Integer.MAX_VALUE);
+
+	private final PngEncoder encoder;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "image-saver");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * This constructor is used to create a saver with the encoder settings of the system properties.
+	 */
+	public ImageSaver() {
+		this(new PngEncoder(LEVEL, FILTER, THREADS));
+	}
+
+	/**
+	 * This method is used to read a whole number setting from a system property.
+	 * A value that is not a number or is out of range is reported and the default is used instead.
+	 * @param key the name of the property
+	 * @param def the default value
+	 * @param min the lowest allowed value
+	 * @param max the highest allowed value
+	 * @return the value of the property, or the default
+	 */
+	private static int intProperty(String key, int def, int min, int max) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			return def;
+		}
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if (parsed >= min && parsed <= max) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		System.err.println("Error reading setting " + key + ": " + value);
+		System.err.println("Using the default value " + def);
+		return def;
+	}
+
+	/**
+	 * This method is used to read the scanline filter setting from a system property.
+	 * An unknown filter is reported and the default is used instead.
+	 * @param key the name of the property
+	 * @param def the default filter
+	 * @return the filter of the property, or the default
+	 */
+	private static PngEncoder.Filter filterProperty(String key, PngEncoder.Filter def) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			return def;
+		}
+		try {
+			return PngEncoder.Filter.valueOf(value.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error reading setting " + key + ": " + value);
+			System.err.println("Using the default value " + def.name().toLowerCase(Locale.ROOT));
+			return def;
+		}
+	}
+
+	/**
+	 * This constructor is used to create a saver that encodes with the given encoder.
+	 * @param encoder the encoder
+	 */
+	public ImageSaver(PngEncoder encoder) {
+		this.encoder = encoder;
+	}
+
+	/**
+	 * This method is used to queue an image to be saved as a PNG file.
+	 * The image must not be changed after it is handed over.
+	 * @param image the image to save
+	 * @param file the file to save the image to
+	 * @param listener the listener to report progress to
+	 */
+	public void save(BufferedImage image, File file, ProgressListener listener) {
+		executor.execute(() -> {
+			try {
+				write(image, file, listener);
+				SwingUtilities.invokeLater(() -> listener.done(file));
+			} catch (IOException e) {
+				SwingUtilities.invokeLater(() -> listener.failed(file, e));
+			}
+		});
+	}
+
+	/**
+	 * This method is used to encode the image to a temporary file and move it over the target.
+	 * @param image the image to save
+	 * @param file the file to save the image to
+	 * @param listener the listener to report progress to
+	 * @throws IOException if the image could not be written
+	 */
+	private void write(BufferedImage image, File file, ProgressListener listener) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			int[] reported = { -1 };
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+				encoder.write(image, out, percent -> {
+					if (percent != reported[0]) {
+						reported[0] = percent;
+						SwingUtilities.invokeLater(() -> listener.progress(file, percent));
+					}
+				});
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+}
@@ -0,0 +1,19 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The event for the time between an input and the paint that shows it.
+ */
+@Name("strokes.InputLatency")
+@Label("Input to Paint Latency")
+@Category("Strokes")
+@StackTrace(false)
+class InputLatencyEvent extends Event {
+	@Label("Latency")
+	@Timespan
+	long elapsed;
+}
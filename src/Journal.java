@@ -0,0 +1,521 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents a crash-recovery journal of a canvas.
+ * Every change to the layers and their documents is appended to a journal file as a small
+ * record, by a background writer that takes all the records waiting at once and only syncs
+ * the file to the disk once a second or once a megabyte was written, so drawing never waits
+ * for the disk. Records reach the operating system as soon as the writer wakes up, so only
+ * a power loss can cost the last second.
+ * Once a journal file grew large, a full copy of the layers is written as a base
+ * {@link ProjectFile} and a new journal file is started; the older files are deleted once the
+ * base is complete. A session lives in its own directory, which is deleted only when the user
+ * closes the program, so a directory left behind by a session whose lock is free is one that
+ * crashed or was ended some other way, such as by a logout or a kill signal, and can be
+ * recovered by replaying its journal files on the newest complete base.
+ * <p>
+ * {@code -Dstrokes.journal=false} turns the journal off, {@code -Dstrokes.journal.dir} sets
+ * where sessions are kept, {@code -Dstrokes.journal.syncInterval} and
+ * {@code -Dstrokes.journal.syncBytes} the sync policy, and {@code -Dstrokes.journal.compactBytes}
+ * the size of a journal file that triggers a new base.
+ */
+public class Journal extends ChangeLog {
+	public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("strokes.journal", "true"));
+	private static final File ROOT = new File(System.getProperty("strokes.journal.dir",
+			System.getProperty("user.home") + File.separator + ".strokes" + File.separator + "recovery"));
+	private static final long SYNC_INTERVAL = Long.getLong("strokes.journal.syncInterval", 1000);
+	private static final long SYNC_BYTES = Long.getLong("strokes.journal.syncBytes", 1L << 20);
+	private static final long COMPACT_BYTES = Long.getLong("strokes.journal.compactBytes", 16L << 20);
+	private static final int MAGIC = 0x53544a4c;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final String BASE = "base-", LOG = "journal-", LOCK = "lock";
+
+	private final File dir;
+	private final int width, height;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private int generation;
+	private volatile boolean compact, closed;
+
+	/**
+	 * This constructor is used to create a journal and start its writer.
+	 * @param dir the directory of the session
+	 * @param layers the layers of the canvas
+	 * @param lockChannel the file the session is locked with
+	 * @param lock the lock of the session
+	 * @param first the number of the first journal file
+	 */
+	private Journal(File dir, LayerStack layers, FileChannel lockChannel, FileLock lock, int first) {
+		super(layers);
+		this.dir = dir;
+		this.lockChannel = lockChannel;
+		this.lock = lock;
+		this.generation = first;
+		TiledSurface surface = layers.get(0).getSurface();
+		this.width = surface.getWidth();
+		this.height = surface.getHeight();
+		writer = new Thread(() -> write(first), "journal-writer");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * This method is used to start journaling the layers of a canvas. A base with the layers as
+	 * they are should be written with {@link #snapshot()} right after, by the thread that draws.
+	 * @param session the directory of a session to carry on, such as a recovered one, or null for a new one
+	 * @param layers the layers of the canvas
+	 * @return the journal, which the layers now write their changes to
+	 * @throws IOException if the session could not be created or is in use
+	 */
+	public static Journal start(File session, LayerStack layers) throws IOException {
+		File dir = session != null ? session
+				: new File(ROOT, "session-" + System.currentTimeMillis() + "-" + ProcessHandle.current().pid());
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		FileChannel lockChannel = FileChannel.open(new File(dir, LOCK).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		FileLock lock = tryLock(lockChannel);
+		if (lock == null) {
+			lockChannel.close();
+			throw new IOException("The session " + dir + " is in use");
+		}
+		Journal journal = new Journal(dir, layers, lockChannel, lock, latest(dir) + 1);
+		journal.compact = true;
+		journal.writer.start();
+		layers.addLog(journal);
+		return journal;
+	}
+
+	/**
+	 * This method is used to find a session that ended without the program exiting normally.
+	 * Sessions that hold nothing to recover are deleted on the way.
+	 * @return the directory of the newest such session, or null if there is none
+	 */
+	public static File findOrphan() {
+		File[] sessions = ROOT.listFiles(file -> file.isDirectory() && file.getName().startsWith("session-"));
+		File newest = null;
+		for (File session : sessions == null ? new File[0] : sessions) {
+			try (FileChannel channel = FileChannel.open(new File(session, LOCK).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				if (tryLock(channel) == null) {
+					continue;
+				}
+			} catch (IOException e) {
+				continue;
+			}
+			if (!hasContent(session)) {
+				discard(session);
+			} else if (newest == null || session.lastModified() > newest.lastModified()) {
+				newest = session;
+			}
+		}
+		return newest;
+	}
+
+	/**
+	 * This method is used to rebuild the layers of a session that crashed, from its newest complete
+	 * base and the journal files written after it. Replaying stops at the first record that was
+	 * not completely written.
+	 * @param session the directory of the session
+	 * @return the recovered layers
+	 * @throws IOException if there is nothing that can be recovered
+	 */
+	public static LayerStack recover(File session) throws IOException {
+		int latest = latest(session), from = 0;
+		HistoryStore history = new HistoryStore();
+		ProjectFile base = null;
+		for (int g = latest; g > 0 && base == null; g--) {
+			if (file(session, BASE, g).isFile()) {
+				try {
+					base = ProjectFile.read(file(session, BASE, g), history);
+					from = g;
+				} catch (IOException e) {
+					// the base was not completely written, an older one is used instead
+				}
+			}
+		}
+		LayerStack stack = null;
+		if (base != null) {
+			stack = new LayerStack(base.getWidth(), base.getHeight(), PixelFormat.negotiate(null), history);
+			stack.replace(base.getLayers(), base.getActiveIndex());
+		}
+		for (int g = from; g <= latest; g++) {
+			File log = file(session, LOG, g);
+			if (log.isFile()) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+					if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != g) {
+						throw new IOException("Invalid journal file " + log);
+					}
+					int width = in.readInt(), height = in.readInt();
+					if (stack == null) {
+						stack = new LayerStack(width, height, PixelFormat.negotiate(null), history);
+					}
+					if (!replay(in, stack)) {
+						break;
+					}
+				} catch (EOFException e) {
+					break;
+				} catch (IOException e) {
+					history.close();
+					throw e;
+				}
+			}
+		}
+		if (stack == null) {
+			history.close();
+			throw new IOException("Nothing to recover in " + session);
+		}
+		return stack;
+	}
+
+	/**
+	 * This method is used to delete a session and everything in it.
+	 * @param session the directory of the session
+	 */
+	public static void discard(File session) {
+		File[] files = session.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			file.delete();
+		}
+		session.delete();
+	}
+
+	/**
+	 * This method is used to check whether the journal should be compacted into a new base.
+	 * @return true if {@link #snapshot()} should be called
+	 */
+	public boolean needsSnapshot() {
+		return compact && !closed;
+	}
+
+	/**
+	 * This method is used to write a base with the layers as they are and start a new journal file.
+	 * It must be called by the thread that draws.
+	 */
+	public void snapshot() {
+		if (closed) {
+			return;
+		}
+		compact = false;
+		synchronized (layers) {
+			int next = ++generation;
+			queue.add(next);
+			ProjectFile.snapshot(file(dir, BASE, next), layers, new ProgressListener() {
+				public void progress(File file, int percent) {
+				}
+
+				public void done(File file) {
+					deleteBefore(next);
+				}
+
+				public void failed(File file, IOException e) {
+					System.err.println("Error writing recovery snapshot: " + file.getPath());
+					System.err.println("Exception message: " + e.getMessage());
+				}
+			});
+		}
+	}
+
+	/**
+	 * This method is used to record that the layers were replaced by the ones of a project.
+	 * The journal asks for a snapshot right after, since the project may change later.
+	 * @param project the file of the project
+	 */
+	@Override
+	public void opened(File project) {
+		super.opened(project);
+		compact = true;
+	}
+
+	/**
+	 * This method is used to queue a record for the writer.
+	 * @param record the record
+	 */
+	@Override
+	void append(Record record) {
+		if (!closed) {
+			queue.add(record);
+		}
+	}
+
+	/**
+	 * This method is used to run the writer: it writes every waiting record at once, and syncs
+	 * the file when enough time passed or enough bytes were written since the last sync.
+	 * @param first the number of the first journal file
+	 */
+	private void write(int first) {
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(1 << 16);
+		DataOutputStream framed = new DataOutputStream(batch);
+		ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+		DataOutputStream data = new DataOutputStream(body);
+		CRC32 crc = new CRC32();
+		List<Object> items = new ArrayList<>();
+		FileChannel channel = null;
+		try {
+			channel = create(first);
+			long size = HEADER_SIZE, unsynced = 0, lastSync = System.nanoTime();
+			long interval = TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL);
+			while (!closed) {
+				Object item = unsynced == 0 ? queue.take()
+						: queue.poll(Math.max(0, lastSync + interval - System.nanoTime()), TimeUnit.NANOSECONDS);
+				items.clear();
+				if (item != null) {
+					items.add(item);
+					queue.drainTo(items);
+				}
+				for (Object o : items) {
+					if (o instanceof Integer) {
+						unsynced += flush(channel, batch);
+						channel.force(false);
+						channel.close();
+						channel = create((Integer) o);
+						size = HEADER_SIZE;
+						unsynced = 0;
+						lastSync = System.nanoTime();
+						continue;
+					}
+					body.reset();
+					((Record) o).write(data);
+					data.flush();
+					crc.reset();
+					crc.update(body.toByteArray());
+					framed.writeInt(body.size());
+					framed.writeInt((int) crc.getValue());
+					body.writeTo(framed);
+				}
+				framed.flush();
+				int written = flush(channel, batch);
+				unsynced += written;
+				size += written;
+				if (size >= COMPACT_BYTES) {
+					compact = true;
+				}
+				if (unsynced > 0 && (unsynced >= SYNC_BYTES || System.nanoTime() - lastSync >= interval)) {
+					channel.force(false);
+					unsynced = 0;
+					lastSync = System.nanoTime();
+				}
+			}
+		} catch (InterruptedException e) {
+			// the journal is discarded
+		} catch (IOException e) {
+			if (!closed) {
+				closed = true;
+				System.err.println("Error writing recovery journal in: " + dir.getPath());
+				System.err.println("Exception message: " + e.getMessage());
+			}
+		} finally {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				// nothing more can be done
+			}
+		}
+	}
+
+	/**
+	 * This method is used to create a journal file and write its header.
+	 * @param generation the number of the file
+	 * @return the file, open for appending
+	 * @throws IOException if the file could not be created
+	 */
+	private FileChannel create(int generation) throws IOException {
+		FileChannel channel = FileChannel.open(file(dir, LOG, generation).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(generation).putInt(width).putInt(height).flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		return channel;
+	}
+
+	/**
+	 * This method is used to write the waiting bytes to the end of a journal file.
+	 * @param channel the file
+	 * @param batch the bytes, which are cleared
+	 * @return the number of bytes written
+	 * @throws IOException if the bytes could not be written
+	 */
+	private static int flush(FileChannel channel, ByteArrayOutputStream batch) throws IOException {
+		int length = batch.size();
+		ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		batch.reset();
+		return length;
+	}
+
+	/**
+	 * This method is used to delete the bases and journal files that a new base made useless.
+	 * @param generation the number of the new base
+	 */
+	private void deleteBefore(int generation) {
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			int g = generationOf(file);
+			if (g >= 0 && g < generation) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to stop the journal and delete its session, when the user closes the program.
+	 * Any other way the program ends leaves the session behind to be recovered.
+	 */
+	public void discard() {
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(1000);
+		} catch (InterruptedException e) {
+			// the session is deleted anyway
+		}
+		try {
+			lock.release();
+			lockChannel.close();
+		} catch (IOException e) {
+			// the lock goes away with the program
+		}
+		discard(dir);
+	}
+
+	/**
+	 * This method is used to apply the records of a journal file to layers.
+	 * @param in the file, after its header
+	 * @param stack the layers
+	 * @return false if the file ended with a record that was not completely written or is damaged
+	 * @throws IOException if a record cannot be applied
+	 */
+	private static boolean replay(DataInputStream in, LayerStack stack) throws IOException {
+		CRC32 crc = new CRC32();
+		while (true) {
+			int first = in.read();
+			if (first < 0) {
+				return true;
+			}
+			int length, check;
+			byte[] body;
+			try {
+				length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+				check = in.readInt();
+				if (length <= 0 || length > 1 << 30) {
+					return false;
+				}
+				body = new byte[length];
+				in.readFully(body);
+			} catch (EOFException e) {
+				return false;
+			}
+			crc.reset();
+			crc.update(body);
+			if ((int) crc.getValue() != check) {
+				return false;
+			}
+			try {
+				apply(new DataInputStream(new ByteArrayInputStream(body)), stack);
+			} catch (RuntimeException e) {
+				throw new IOException("Invalid journal record: " + e, e);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to check whether a session holds anything that can be recovered.
+	 * @param session the directory of the session
+	 * @return true if it has a base or a journal file with records
+	 */
+	private static boolean hasContent(File session) {
+		File[] files = session.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			if (file.getName().startsWith(BASE) && generationOf(file) > 0
+					|| file.getName().startsWith(LOG) && file.length() > HEADER_SIZE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * This method is used to find the number of the newest base or journal file of a session.
+	 * @param session the directory of the session
+	 * @return the number, or -1 if there are none
+	 */
+	private static int latest(File session) {
+		int latest = -1;
+		File[] files = session.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			latest = Math.max(latest, generationOf(file));
+		}
+		return latest;
+	}
+
+	/**
+	 * This method is used to get the number of a base or journal file from its name.
+	 * @param file the file
+	 * @return the number, or -1 if the file is neither
+	 */
+	private static int generationOf(File file) {
+		String name = file.getName();
+		String digits = name.startsWith(BASE) && name.endsWith("." + ProjectFile.EXTENSION)
+				? name.substring(BASE.length(), name.length() - ProjectFile.EXTENSION.length() - 1)
+				: name.startsWith(LOG) && name.endsWith(".log") ? name.substring(LOG.length(), name.length() - 4)
+				: null;
+		try {
+			return digits == null ? -1 : Integer.parseInt(digits);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * This method is used to get the name of a base or journal file.
+	 * @param session the directory of the session
+	 * @param kind {@link #BASE} or {@link #LOG}
+	 * @param generation the number of the file
+	 * @return the file
+	 */
+	private static File file(File session, String kind, int generation) {
+		return new File(session, kind + generation + (kind.equals(BASE) ? "." + ProjectFile.EXTENSION : ".log"));
+	}
+
+	/**
+	 * This method is used to lock a session without failing when this program already holds the lock.
+	 * @param channel the lock file of the session
+	 * @return the lock, or null if the session is in use
+	 * @throws IOException if the lock file cannot be used
+	 */
+	private static FileLock tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * This class represents one layer of a canvas: its pixels, the history of what was drawn on it,
+ * and how it is shown. Layers are created and changed through a {@link LayerStack}.
+ */
+public class Layer {
+	private final String name;
+	private final TiledSurface surface;
+	private final Document document;
+	private volatile boolean visible = true;
+	private volatile float opacity = 1f;
+
+	/**
+	 * This constructor is used to create an empty layer.
+	 * @param name the name of the layer
+	 * @param surface the surface holding the pixels of the layer
+	 * @param history the store keeping the undo history of every layer of the canvas
+	 */
+	Layer(String name, TiledSurface surface, HistoryStore history) {
+		this(name, surface, new Document(history));
+	}
+
+	/**
+	 * This constructor is used to create a layer that was already drawn on, such as one read from a project.
+	 * @param name the name of the layer
+	 * @param surface the surface holding the pixels of the layer
+	 * @param document the history of the layer, matching the surface
+	 */
+	Layer(String name, TiledSurface surface, Document document) {
+		this.name = name;
+		this.surface = surface;
+		this.document = document;
+	}
+
+	/**
+	 * This method is used to get the name of the layer.
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * This method is used to get the pixels of the layer.
+	 * Only the thread that draws on the canvas may use the surface.
+	 * @return the surface of the layer
+	 */
+	public TiledSurface getSurface() {
+		return surface;
+	}
+
+	/**
+	 * This method is used to get the history of the layer.
+	 * @return the document of the layer
+	 */
+	public Document getDocument() {
+		return document;
+	}
+
+	/**
+	 * This method is used to check whether the layer is shown.
+	 * @return true if the layer is shown
+	 */
+	public boolean isVisible() {
+		return visible;
+	}
+
+	/**
+	 * This method is used to get how opaque the layer is shown.
+	 * @return the opacity, from 0 to 1
+	 */
+	public float getOpacity() {
+		return opacity;
+	}
+
+	/**
+	 * This method is used to check whether the layer hides everything below it where it is shown.
+	 * @return true if the layer is shown fully opaque and has no transparent pixels
+	 */
+	boolean isOpaque() {
+		return visible && opacity >= 1f && surface.getFormat().isOpaque();
+	}
+
+	/**
+	 * This method is used to show or hide the layer.
+	 * @param visible true to show the layer
+	 */
+	void setVisible(boolean visible) {
+		this.visible = visible;
+	}
+
+	/**
+	 * This method is used to set how opaque the layer is shown.
+	 * @param opacity the opacity, clamped to 0 to 1
+	 */
+	void setOpacity(float opacity) {
+		this.opacity = Math.max(0f, Math.min(1f, opacity));
+	}
+}
@@ -0,0 +1,342 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents the layers of a canvas, from the bottom one up, and one of them that
+ * is drawn on. The visible layers below the active one are flattened into one cached surface
+ * and the ones above it into another, so showing a change only blends those two caches with
+ * the active layer, however many layers there are. A cache is flattened again only after a
+ * layer it holds was changed, hidden, faded or moved.
+ * The bottom layer is opaque; layers added over it start out transparent.
+ * Changes to the stack are written to every {@link ChangeLog} added to it.
+ * Every layer keeps its undo history in the one {@link HistoryStore} of the stack.
+ * The stack is thread safe, but its surfaces may only be used by the thread that draws.
+ */
+public class LayerStack {
+	private static final Color TRANSPARENT = new Color(0, true);
+
+	private final int width, height;
+	private final PixelFormat format;
+	private final HistoryStore history;
+	private final List<Layer> layers = new ArrayList<>();
+	private final TiledSurface below, above;
+	private Layer active;
+	private boolean belowValid, aboveValid, aboveEmpty;
+	private int created;
+	private final List<ChangeLog> logs = new ArrayList<>();
+
+	/**
+	 * This constructor is used to create a stack holding one blank opaque layer.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param format the pixel format of the screen
+	 */
+	public LayerStack(int width, int height, PixelFormat format) {
+		this(width, height, format, new HistoryStore());
+	}
+
+	/**
+	 * This constructor is used to create a stack holding one blank opaque layer, whose layers
+	 * keep their undo history in a given store, such as the one of layers it will take over.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param format the pixel format of the screen
+	 * @param history the store keeping the undo history of every layer
+	 */
+	public LayerStack(int width, int height, PixelFormat format, HistoryStore history) {
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.history = history;
+		this.below = new TiledSurface(width, height, format);
+		this.above = new TiledSurface(width, height, PixelFormat.translucent(), TRANSPARENT);
+		active = new Layer("Background", new TiledSurface(width, height, format), history);
+		layers.add(active);
+	}
+
+	/**
+	 * This method is used to get the number of layers.
+	 * @return the number of layers
+	 */
+	public synchronized int size() {
+		return layers.size();
+	}
+
+	/**
+	 * This method is used to get a layer.
+	 * @param index the position of the layer, 0 being the bottom
+	 * @return the layer
+	 */
+	public synchronized Layer get(int index) {
+		return layers.get(index);
+	}
+
+	/**
+	 * This method is used to get every layer at once.
+	 * @return a copy of the list of layers, from the bottom one up
+	 */
+	public synchronized List<Layer> getAll() {
+		return new ArrayList<>(layers);
+	}
+
+	/**
+	 * This method is used to get the store keeping the undo history of every layer, which the
+	 * layers given to {@link #replace(List, int)} must use too.
+	 * @return the history store
+	 */
+	public HistoryStore getHistory() {
+		return history;
+	}
+
+	/**
+	 * This method is used to replace every layer, for example with the ones of an opened project.
+	 * The history of the layers that are not kept is given back to the store.
+	 * @param replacement the new layers of the same size as the canvas, from the bottom one up
+	 * @param activeIndex the position of the layer to draw on
+	 */
+	public synchronized void replace(List<Layer> replacement, int activeIndex) {
+		if (replacement.isEmpty()) {
+			throw new IllegalArgumentException("A canvas needs at least one layer");
+		}
+		for (Layer layer : layers) {
+			if (!replacement.contains(layer)) {
+				layer.getDocument().close();
+			}
+		}
+		layers.clear();
+		layers.addAll(replacement);
+		active = layers.get(Math.max(0, Math.min(activeIndex, layers.size() - 1)));
+		created = Math.max(created, layers.size() - 1);
+		belowValid = aboveValid = false;
+	}
+
+	/**
+	 * This method is used to get the position of a layer.
+	 * @param layer the layer
+	 * @return the position of the layer, 0 being the bottom, or -1 if it was removed
+	 */
+	public synchronized int indexOf(Layer layer) {
+		return layers.indexOf(layer);
+	}
+
+	/**
+	 * This method is used to add a log the changes to the stack are written to.
+	 * @param log the log
+	 */
+	public synchronized void addLog(ChangeLog log) {
+		logs.add(log);
+	}
+
+	/**
+	 * This method is used to stop writing the changes to the stack to a log.
+	 * @param log the log
+	 */
+	public synchronized void removeLog(ChangeLog log) {
+		logs.remove(log);
+	}
+
+	/**
+	 * This method is used to get the layer that is drawn on.
+	 * @return the active layer
+	 */
+	public synchronized Layer getActive() {
+		return active;
+	}
+
+	/**
+	 * This method is used to get the position of the layer that is drawn on.
+	 * @return the position of the active layer, 0 being the bottom
+	 */
+	public synchronized int getActiveIndex() {
+		return layers.indexOf(active);
+	}
+
+	/**
+	 * This method is used to choose the layer that is drawn on.
+	 * @param index the position of the layer
+	 */
+	public synchronized void setActive(int index) {
+		if (layers.get(index) != active) {
+			active = layers.get(index);
+			belowValid = aboveValid = false;
+			for (ChangeLog log : logs) {
+				log.activated(index);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to add a transparent layer right above the active one and make it active.
+	 * @return the new layer
+	 */
+	public synchronized Layer add() {
+		Layer layer = new Layer("Layer " + ++created,
+				new TiledSurface(width, height, PixelFormat.translucent(), TRANSPARENT), history);
+		layers.add(layers.indexOf(active) + 1, layer);
+		active = layer;
+		belowValid = false;
+		for (ChangeLog log : logs) {
+			log.added();
+		}
+		return layer;
+	}
+
+	/**
+	 * This method is used to remove a layer. The layer above it, or else below it, becomes
+	 * active if the removed layer was. The thread that draws gives the history of the removed
+	 * layer back with {@link Document#close()} once nothing draws on it any more.
+	 * @param index the position of the layer
+	 * @return false if it is the only layer, which cannot be removed
+	 */
+	public synchronized boolean remove(int index) {
+		if (layers.size() == 1) {
+			return false;
+		}
+		int activeIndex = layers.indexOf(active);
+		Layer layer = layers.remove(index);
+		if (layer == active) {
+			active = layers.get(Math.min(index, layers.size() - 1));
+			belowValid = aboveValid = false;
+		} else if (index < activeIndex) {
+			belowValid = false;
+		} else {
+			aboveValid = false;
+		}
+		for (ChangeLog log : logs) {
+			log.removed(index);
+		}
+		return true;
+	}
+
+	/**
+	 * This method is used to give the history of every layer back and close the history store,
+	 * once the layers are no longer used.
+	 */
+	public synchronized void close() {
+		for (Layer layer : layers) {
+			layer.getDocument().close();
+		}
+		history.close();
+	}
+
+	/**
+	 * This method is used to move a layer to another position in the stack.
+	 * @param from the position of the layer
+	 * @param to the position to move it to
+	 */
+	public synchronized void move(int from, int to) {
+		if (from != to) {
+			layers.add(to, layers.remove(from));
+			belowValid = aboveValid = false;
+			for (ChangeLog log : logs) {
+				log.moved(from, to);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to show or hide a layer.
+	 * @param index the position of the layer
+	 * @param visible true to show the layer
+	 */
+	public synchronized void setVisible(int index, boolean visible) {
+		Layer layer = layers.get(index);
+		if (layer.isVisible() != visible) {
+			layer.setVisible(visible);
+			invalidate(index);
+			for (ChangeLog log : logs) {
+				log.shown(index, visible);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to set how opaque a layer is shown.
+	 * @param index the position of the layer
+	 * @param opacity the opacity, from 0 to 1
+	 */
+	public synchronized void setOpacity(int index, float opacity) {
+		Layer layer = layers.get(index);
+		if (layer.getOpacity() != opacity) {
+			layer.setOpacity(opacity);
+			invalidate(index);
+			for (ChangeLog log : logs) {
+				log.faded(index, opacity);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to put a region of every visible layer together onto a surface after
+	 * a layer was drawn on. Only the cached layers below and above the active one and the active
+	 * layer itself are blended; the caches are flattened first if they are out of date.
+	 * It must be called by the thread that draws.
+	 * @param drawn the layer that was drawn on, which may no longer be the active one, or null
+	 * @param region the region to put together
+	 * @param target the surface to put the region on, in the pixel format of the screen
+	 */
+	public synchronized void composite(Layer drawn, Rectangle region, TiledSurface target) {
+		if (drawn != null && drawn != active && layers.contains(drawn)) {
+			invalidate(layers.indexOf(drawn));
+		}
+		Rectangle r = region.intersection(target.getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		int index = layers.indexOf(active);
+		if (!belowValid) {
+			flatten(below, 0, index);
+			belowValid = true;
+		}
+		if (!aboveValid) {
+			aboveEmpty = !flatten(above, index + 1, layers.size());
+			aboveValid = true;
+		}
+		if (active.isOpaque() && active.getSurface().getFormat().equals(format)) {
+			target.copyFrom(active.getSurface(), r);
+		} else {
+			target.copyFrom(below, r);
+			if (active.isVisible()) {
+				target.blend(active.getSurface(), r, active.getOpacity());
+			}
+		}
+		if (!aboveEmpty) {
+			target.blend(above, r, 1f);
+		}
+	}
+
+	/**
+	 * This method is used to mark the cache holding a layer as out of date.
+	 * @param index the position of the layer
+	 */
+	private void invalidate(int index) {
+		int activeIndex = layers.indexOf(active);
+		if (index < activeIndex) {
+			belowValid = false;
+		} else if (index > activeIndex) {
+			aboveValid = false;
+		}
+	}
+
+	/**
+	 * This method is used to blend a range of layers into a cache, from the bottom one up.
+	 * @param cache the surface to blend into, which is cleared first
+	 * @param from the position of the first layer
+	 * @param to the position after the last layer
+	 * @return true if any layer was visible
+	 */
+	private boolean flatten(TiledSurface cache, int from, int to) {
+		cache.clear();
+		boolean any = false;
+		for (int i = from; i < to; i++) {
+			Layer layer = layers.get(i);
+			if (layer.isVisible() && layer.getOpacity() > 0) {
+				cache.blend(layer.getSurface(), cache.getBounds(), layer.getOpacity());
+				any = true;
+			}
+		}
+		return any;
+	}
+}
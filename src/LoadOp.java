@@ -0,0 +1,169 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Concrete implementation of {@link DrawOp} for loading an image into the canvas.
+ */
+class LoadOp extends DrawOp {
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	private BufferedImage image;
+	private byte[] png;
+	private final int width, height;
+
+	/**
+	 * Creates a load operation.
+	 *
+	 * @param image  The loaded image.
+	 * @param width  The width of the canvas.
+	 * @param height The height of the canvas.
+	 */
+	public LoadOp(BufferedImage image, int width, int height) {
+		this.image = image;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Creates a load operation from an encoded image, which is decoded when it is first drawn.
+	 *
+	 * @param png    The image encoded as a PNG.
+	 * @param width  The width of the canvas.
+	 * @param height The height of the canvas.
+	 */
+	private LoadOp(byte[] png, int width, int height) {
+		this.png = png;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Gets the loaded image, decoding it the first time. An image that cannot be decoded is
+	 * reported and drawn as nothing.
+	 *
+	 * @return The image.
+	 */
+	private synchronized BufferedImage getImage() {
+		if (image == null) {
+			try {
+				image = ImageIO.read(new ByteArrayInputStream(png));
+				if (image == null) {
+					throw new IOException("Unknown image format");
+				}
+			} catch (IOException e) {
+				System.err.println("Error decoding a loaded image");
+				System.err.println("Exception message: " + e.getMessage());
+				image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Gets the loaded image encoded as a PNG, encoding it the first time.
+	 *
+	 * @return The encoded image.
+	 * @throws IOException If the image could not be encoded.
+	 */
+	private synchronized byte[] getPng() throws IOException {
+		if (png == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", out);
+			png = out.toByteArray();
+		}
+		return png;
+	}
+
+	/**
+	 * Clears the canvas and draws the loaded image in its top left corner.
+	 *
+	 * @param g The graphics context to use for drawing.
+	 */
+	@Override
+	public void render(Graphics2D g) {
+		g.setPaint(TiledSurface.BACKGROUND);
+		g.fillRect(0, 0, width, height);
+		g.drawImage(getImage(), 0, 0, null);
+	}
+
+	/**
+	 * Gets the whole canvas.
+	 *
+	 * @return The region in canvas coordinates.
+	 */
+	@Override
+	public Rectangle getBounds() {
+		return new Rectangle(0, 0, width, height);
+	}
+
+	/**
+	 * Clears the surface and draws the loaded image on the tiles it covers.
+	 *
+	 * @param surface The surface to draw on.
+	 */
+	@Override
+	public void render(TiledSurface surface) {
+		render(surface, surface.getBounds());
+	}
+
+	/**
+	 * Resets a region of the surface to its background and draws the loaded image in it.
+	 *
+	 * @param surface The surface to draw on.
+	 * @param clip    The region to draw in.
+	 */
+	@Override
+	public void render(TiledSurface surface, Rectangle clip) {
+		BufferedImage image = getImage();
+		surface.clear(clip);
+		surface.draw(new Rectangle(0, 0, image.getWidth(), image.getHeight()).intersection(clip),
+				g -> g.drawImage(image, 0, 0, null));
+	}
+
+	/**
+	 * Writes the canvas size followed by the image encoded as a PNG.
+	 * The encoded image is kept, so writing the operation again does not encode it again.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException If the image could not be encoded.
+	 */
+	@Override
+	public void write(DataOutput out) throws IOException {
+		byte[] png = getPng();
+		out.writeByte(LOAD);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(png.length);
+		out.write(png);
+	}
+
+	/**
+	 * Reads the rest of a load operation after its type.
+	 * The image is only decoded when the operation is first drawn, which a saved project may never do.
+	 *
+	 * @param in The input to read from.
+	 * @return The load operation.
+	 * @throws IOException If the input does not hold a PNG image.
+	 */
+	static LoadOp readLoad(DataInput in) throws IOException {
+		int width = in.readInt(), height = in.readInt(), length = in.readInt();
+		if (length < PNG_SIGNATURE.length) {
+			throw new IOException("Invalid image length " + length);
+		}
+		byte[] png = new byte[length];
+		in.readFully(png);
+		if (!Arrays.equals(png, 0, PNG_SIGNATURE.length, PNG_SIGNATURE, 0, PNG_SIGNATURE.length)) {
+			throw new IOException("Invalid image");
+		}
+		return new LoadOp(png, width, height);
+	}
+}
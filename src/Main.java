@@ -1,6 +1,8 @@
 import java.awt.BorderLayout;
 import java.awt.FlowLayout;
 import java.awt.GridLayout;
+import java.io.File;
+import java.io.IOException;
 
 import javax.swing.JComponent;
 import javax.swing.JLabel;
@@ -40,6 +42,10 @@ public class Main {
 	 */
 	private void showInput() {
 		setNimbusFeel();
+		if (Journal.ENABLED && offerRecovery()) {
+			draw.openPaint();
+			return;
+		}
 		JPanel p = new JPanel(new BorderLayout(5, 5));
 		JPanel labels = new JPanel(new GridLayout(0, 1, 2, 2));
 		JPanel labels1 = new JPanel(new FlowLayout());
@@ -73,6 +79,33 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Offers to recover the drawing of a session that crashed, if there is one.
+	 * A session that is not recovered is deleted.
+	 *
+	 * @return true if the drawing was recovered and the paint window should open with it
+	 */
+	private boolean offerRecovery() {
+		File session = Journal.findOrphan();
+		if (session == null) {
+			return false;
+		}
+		int answer = JOptionPane.showConfirmDialog(null,
+				"The last drawing was not closed properly. Recover it?", "Recover Drawing",
+				JOptionPane.YES_NO_OPTION);
+		if (answer == JOptionPane.YES_OPTION) {
+			try {
+				draw.setRecovered(Journal.recover(session), session);
+				return true;
+			} catch (IOException e) {
+				JOptionPane.showMessageDialog(null, "Could not recover the drawing: " + e.getMessage(),
+						"Recover Drawing", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+		Journal.discard(session);
+		return false;
+	}
+
 	/**
 	 * Sets the application's look and feel to Nimbus if available.
 	 */
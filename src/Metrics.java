@@ -0,0 +1,221 @@
+import java.io.File;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * This class collects performance measurements of the canvas.
+ * Every measurement is emitted as a JDK Flight Recorder event, which costs nothing but a
+ * check while no recording is running. With {@code -Dstrokes.metrics=true} the measurements are
+ * also summed up in the process and printed on exit, and with {@code -Dstrokes.overlay=true}
+ * the canvas shows them live. Both are off by default.
+ */
+public final class Metrics {
+	public static final boolean OVERLAY = Boolean.getBoolean("strokes.overlay");
+	public static final boolean ENABLED = OVERLAY || Boolean.getBoolean("strokes.metrics");
+
+	private static final Stat PAINT = new Stat("paint");
+	private static final Stat INPUT = new Stat("input to paint");
+	private static final Stat SNAPSHOT = new Stat("snapshot");
+	private static final Stat UNDO = new Stat("undo");
+	private static final Stat REDO = new Stat("redo");
+	private static final Stat SAVE = new Stat("save");
+	private static final Stat LOAD = new Stat("load");
+	private static volatile LayerStack layers;
+
+	static {
+		if (ENABLED) {
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(summary()),
+					"metrics-summary"));
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * This class represents the running statistics of one kind of measurement.
+	 */
+	private static class Stat {
+		private final String name;
+		private long count, total, max, last;
+
+		private Stat(String name) {
+			this.name = name;
+		}
+
+		private synchronized void add(long nanos) {
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+			last = nanos;
+		}
+
+		private synchronized String format() {
+			if (count == 0) {
+				return name + ": -";
+			}
+			return String.format("%s: %.1f ms, mean %.1f ms, max %.1f ms, %d times", name, last / 1e6,
+					total / 1e6 / count, max / 1e6, count);
+		}
+	}
+
+	/**
+	 * This method is used to choose the layers whose history memory is reported, all together.
+	 * @param watched the layers of the canvas
+	 */
+	public static synchronized void watch(LayerStack watched) {
+		if (layers == null) {
+			FlightRecorder.addPeriodicEvent(HistoryMemoryEvent.class, Metrics::emitHistoryMemory);
+		}
+		layers = watched;
+	}
+
+	/**
+	 * This method is used to record how long the canvas took to paint.
+	 * @param start the time painting started, from {@link System#nanoTime()}
+	 * @param width the width of the painted region
+	 * @param height the height of the painted region
+	 */
+	public static void paint(long start, int width, int height) {
+		long nanos = System.nanoTime() - start;
+		if (ENABLED) {
+			PAINT.add(nanos);
+		}
+		PaintEvent event = new PaintEvent();
+		if (event.isEnabled()) {
+			event.elapsed = nanos;
+			event.width = width;
+			event.height = height;
+			event.commit();
+		}
+	}
+
+	/**
+	 * This method is used to record how long it took until an input was painted.
+	 * @param since the time of the oldest input shown by the paint, from {@link System#nanoTime()}
+	 */
+	public static void input(long since) {
+		long nanos = System.nanoTime() - since;
+		if (ENABLED) {
+			INPUT.add(nanos);
+		}
+		InputLatencyEvent event = new InputLatencyEvent();
+		if (event.isEnabled()) {
+			event.elapsed = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * This method is used to record how long it took to take a checkpoint of the canvas.
+	 * @param start the time the checkpoint was started, from {@link System#nanoTime()}
+	 * @param size the size of the checkpoint in bytes
+	 */
+	public static void snapshot(long start, long size) {
+		long nanos = System.nanoTime() - start;
+		if (ENABLED) {
+			SNAPSHOT.add(nanos);
+		}
+		SnapshotEvent event = new SnapshotEvent();
+		if (event.isEnabled()) {
+			event.elapsed = nanos;
+			event.size = size;
+			event.commit();
+		}
+	}
+
+	/**
+	 * This method is used to record how long an undo or a redo took, from the request until
+	 * the canvas was rebuilt.
+	 * @param redo true for a redo, false for an undo
+	 * @param start the time of the request, from {@link System#nanoTime()}
+	 * @param changed true if there was anything to undo or redo
+	 */
+	public static void history(boolean redo, long start, boolean changed) {
+		long nanos = System.nanoTime() - start;
+		if (ENABLED && changed) {
+			(redo ? REDO : UNDO).add(nanos);
+		}
+		HistoryEvent event = new HistoryEvent();
+		if (event.isEnabled()) {
+			event.elapsed = nanos;
+			event.action = redo ? "redo" : "undo";
+			event.changed = changed;
+			event.commit();
+		}
+	}
+
+	/**
+	 * This method is used to record how long saving or loading a file took.
+	 * @param load true for a load, false for a save
+	 * @param file the file
+	 * @param start the time of the request, from {@link System#nanoTime()}
+	 * @param success true if the file was saved or loaded
+	 */
+	public static void file(boolean load, File file, long start, boolean success) {
+		long nanos = System.nanoTime() - start;
+		if (ENABLED && success) {
+			(load ? LOAD : SAVE).add(nanos);
+		}
+		FileEvent event = new FileEvent();
+		if (event.isEnabled()) {
+			event.elapsed = nanos;
+			event.action = load ? "load" : "save";
+			event.path = file.getPath();
+			event.size = file.length();
+			event.success = success;
+			event.commit();
+		}
+	}
+
+	/**
+	 * This method is used to get the lines shown by the overlay.
+	 * @return the last frame time and the size of the history
+	 */
+	public static String[] overlay() {
+		LayerStack watched = layers;
+		String history = watched == null ? "history: -" : String.format(
+				"history: %d ops, %.1f MB heap, %.1f MB spilled", operations(watched),
+				watched.getHistory().getHeapSize() / 1048576.0, watched.getHistory().getSpilledSize() / 1048576.0);
+		return new String[] { PAINT.format(), INPUT.format(), history };
+	}
+
+	/**
+	 * This method is used to get every collected measurement.
+	 * @return one line per kind of measurement
+	 */
+	public static String summary() {
+		StringBuilder text = new StringBuilder();
+		for (Stat stat : new Stat[] { PAINT, INPUT, SNAPSHOT, UNDO, REDO, SAVE, LOAD }) {
+			text.append(stat.format()).append(System.lineSeparator());
+		}
+		return text.toString();
+	}
+
+	/**
+	 * This method is used to emit the periodic event with the memory taken by the history.
+	 */
+	private static void emitHistoryMemory() {
+		LayerStack watched = layers;
+		if (watched != null) {
+			HistoryMemoryEvent event = new HistoryMemoryEvent();
+			event.operations = operations(watched);
+			event.heap = watched.getHistory().getHeapSize();
+			event.spilled = watched.getHistory().getSpilledSize();
+			event.commit();
+		}
+	}
+
+	/**
+	 * This method is used to count the operations that can be undone on every layer.
+	 * @param watched the layers
+	 * @return the number of operations
+	 */
+	private static int operations(LayerStack watched) {
+		int count = 0;
+		for (Layer layer : watched.getAll()) {
+			count += layer.getDocument().size();
+		}
+		return count;
+	}
+}
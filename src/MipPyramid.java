@@ -0,0 +1,94 @@
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents the mip pyramid of a surface: copies of it at half, a quarter, an eighth
+ * of its size and so on, each level made from the one above it by averaging two by two pixels.
+ * A zoomed out view is drawn from the level closest to the zoom, so it never reads more than
+ * four times the pixels it shows, however large the surface is.
+ * Levels are only made the first time they are asked for. After that, a change to the surface
+ * only marks the matching region of each tile of each level as out of date, and a level is brought
+ * up to date when it is next asked for by redoing those regions alone, level after level. Regions
+ * are kept per tile, so changes far apart never add up to the whole area between them. Levels
+ * that are not shown are never redone.
+ * The pyramid is thread safe. Its levels may only be used by the thread that asks for them,
+ * while holding the lock of the surface.
+ */
+public class MipPyramid {
+	private final TiledSurface source;
+	private final List<TiledSurface> levels = new ArrayList<>();
+	private final List<Map<Integer, Rectangle>> dirty = new ArrayList<>();
+
+	/**
+	 * This constructor is used to create the pyramid of a surface without making any level yet.
+	 * @param source the surface, at level 0
+	 */
+	public MipPyramid(TiledSurface source) {
+		this.source = source;
+	}
+
+	/**
+	 * This method is used to mark a region of the surface as changed.
+	 * @param region the region, in the coordinates of the surface
+	 */
+	public synchronized void invalidate(Rectangle region) {
+		if (region.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < levels.size(); i++) {
+			int scale = 2 << i;
+			int x1 = Math.floorDiv(region.x, scale), y1 = Math.floorDiv(region.y, scale);
+			int x2 = Math.floorDiv(region.x + region.width + scale - 1, scale);
+			int y2 = Math.floorDiv(region.y + region.height + scale - 1, scale);
+			Rectangle r = new Rectangle(x1, y1, x2 - x1, y2 - y1).intersection(levels.get(i).getBounds());
+			if (!r.isEmpty()) {
+				mark(dirty.get(i), r, levels.get(i).getWidth());
+			}
+		}
+	}
+
+	/**
+	 * This method is used to add a region to the out of date regions of the tiles of a level.
+	 * @param tiles the out of date region of each tile that has one, by the index of the tile
+	 * @param r the region, within the level
+	 * @param width the width of the level
+	 */
+	private static void mark(Map<Integer, Rectangle> tiles, Rectangle r, int width) {
+		int size = TiledSurface.TILE_SIZE, columns = (width + size - 1) / size;
+		for (int ty = r.y / size; ty <= (r.y + r.height - 1) / size; ty++) {
+			for (int tx = r.x / size; tx <= (r.x + r.width - 1) / size; tx++) {
+				Rectangle part = r.intersection(new Rectangle(tx * size, ty * size, size, size));
+				tiles.merge(ty * columns + tx, part, Rectangle::union);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to get a level of the pyramid, bringing it and the levels above it up to
+	 * date first. It must be called while holding the lock of the surface.
+	 * @param level the level, 0 being the surface itself
+	 * @return the level, whose pixels each cover two to the power of the level pixels of the surface along each axis
+	 */
+	public synchronized TiledSurface getLevel(int level) {
+		TiledSurface above = source;
+		for (int i = 0; i < level; i++) {
+			if (i == levels.size()) {
+				TiledSurface made = new TiledSurface((above.getWidth() + 1) / 2, (above.getHeight() + 1) / 2,
+						above.getFormat(), above.getBackground());
+				made.downsample(above, made.getBounds());
+				levels.add(made);
+				dirty.add(new HashMap<>());
+			}
+			TiledSurface current = levels.get(i);
+			for (Rectangle r : dirty.get(i).values()) {
+				current.downsample(above, r);
+			}
+			dirty.get(i).clear();
+			above = current;
+		}
+		return above;
+	}
+}
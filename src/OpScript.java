@@ -0,0 +1,311 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * This class represents a drawing as a list of {@link DrawOp}s that can be rendered without a
+ * display. Scripts are read either as text, one command per line, or in the binary form written
+ * by {@link #write(OutputStream)}, which starts with {@link #MAGIC}.
+ * <p>
+ * The text form knows these commands, and lines starting with # are ignored:
+ * <pre>
+ * size WIDTH HEIGHT          must come first
+ * color #RRGGBB | R G B      the color of the following operations, black at first
+ * thickness WIDTH            the stroke width of the following operations, 1 at first
+ * pencil X Y X Y ...         a pencil stroke through at least two points
+ * SHAPE X1 Y1 X2 Y2          rect, circle, rightTriangle, triangle, line, diamond, pentagon or arrow
+ * fill X Y [TOLERANCE]       a bucket fill from a pixel, tolerance 0 to 255, 0 if left out
+ * load FILE                  an image, relative to the script, drawn on a cleared canvas
+ * clear
+ * </pre>
+ */
+public class OpScript {
+	public static final int MAGIC = 0x5354524b;
+	private static final int VERSION = 1;
+
+	private final int width, height;
+	private final List<DrawOp> ops;
+
+	/**
+	 * This constructor is used to create a script from a list of operations.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param ops the operations in drawing order
+	 */
+	public OpScript(int width, int height, List<DrawOp> ops) {
+		this.width = width;
+		this.height = height;
+		this.ops = ops;
+	}
+
+	/**
+	 * This method is used to get the width of the canvas.
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * This method is used to get the height of the canvas.
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * This method is used to get the operations of the script.
+	 * @return the operations in drawing order
+	 */
+	public List<DrawOp> getOps() {
+		return Collections.unmodifiableList(ops);
+	}
+
+	/**
+	 * This method is used to draw the script on a blank surface.
+	 * Scripts that move or delete shapes are drawn through a {@link Document}, which works out
+	 * the pixels under the old places of the shapes; its history is thrown away afterwards.
+	 * @return the surface with every operation drawn on it
+	 */
+	public TiledSurface render() {
+		TiledSurface surface = new TiledSurface(width, height, PixelFormat.negotiate(null));
+		HistoryStore history = null;
+		Document document = null;
+		for (DrawOp op : ops) {
+			if (op instanceof ReplaceOp) {
+				history = new HistoryStore();
+				document = new Document(history);
+				break;
+			}
+		}
+		try {
+			for (DrawOp op : ops) {
+				if (document == null) {
+					op.render(surface);
+				} else if (!(op instanceof ReplaceOp) || !document.replace((ReplaceOp) op, surface)) {
+					document.draw(op, surface);
+				}
+			}
+		} finally {
+			if (history != null) {
+				history.close();
+			}
+		}
+		return surface;
+	}
+
+	/**
+	 * This method is used to read a script file in either form.
+	 * @param file the file to read
+	 * @return the script
+	 * @throws IOException if the file could not be read or is not a valid script
+	 */
+	public static OpScript read(File file) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			in.mark(4);
+			DataInputStream data = new DataInputStream(in);
+			boolean binary;
+			try {
+				binary = data.readInt() == MAGIC;
+			} catch (EOFException e) {
+				binary = false;
+			}
+			in.reset();
+			return binary ? readBinary(data) : readText(in, file.getAbsoluteFile().getParentFile());
+		}
+	}
+
+	/**
+	 * This method is used to write the script in binary form.
+	 * @param out the stream to write to
+	 * @throws IOException if the script could not be written
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(width);
+		data.writeInt(height);
+		data.writeInt(ops.size());
+		for (DrawOp op : ops) {
+			op.write(data);
+		}
+		data.flush();
+	}
+
+	/**
+	 * This method is used to write the script in binary form to a file.
+	 * @param file the file to write to
+	 * @throws IOException if the script could not be written
+	 */
+	public void write(File file) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			write(out);
+		}
+	}
+
+	/**
+	 * This method is used to read a binary script.
+	 * @param in the stream positioned at the magic number
+	 * @return the script
+	 * @throws IOException if the stream does not hold a valid script
+	 */
+	static OpScript readBinary(DataInputStream in) throws IOException {
+		in.readInt();
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported script version " + version);
+		}
+		int width = in.readInt(), height = in.readInt(), count = in.readInt();
+		checkSize(width, height);
+		List<DrawOp> ops = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			DrawOp op = DrawOp.read(in);
+			if (op instanceof ReplaceOp) {
+				((ReplaceOp) op).resolve(ops);
+			}
+			ops.add(op);
+		}
+		return new OpScript(width, height, ops);
+	}
+
+	/**
+	 * This method is used to read a text script.
+	 * @param in the stream to read
+	 * @param dir the directory images are loaded from
+	 * @return the script
+	 * @throws IOException if the stream does not hold a valid script
+	 */
+	private static OpScript readText(InputStream in, File dir) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		List<DrawOp> ops = new ArrayList<>();
+		int width = 0, height = 0;
+		Color color = Color.black;
+		float thickness = 1;
+		String line;
+		for (int number = 1; (line = reader.readLine()) != null; number++) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] words = line.split("\\s+");
+			try {
+				if (width == 0 && !words[0].equals("size")) {
+					throw new IOException("the script must start with size");
+				}
+				switch (words[0]) {
+					case "size":
+						expect(words, 3);
+						width = Integer.parseInt(words[1]);
+						height = Integer.parseInt(words[2]);
+						checkSize(width, height);
+						break;
+					case "color":
+						if (words.length == 2 && words[1].startsWith("#")) {
+							color = new Color(Integer.parseInt(words[1].substring(1), 16));
+						} else {
+							expect(words, 4);
+							color = new Color(Integer.parseInt(words[1]), Integer.parseInt(words[2]),
+									Integer.parseInt(words[3]));
+						}
+						break;
+					case "thickness":
+						expect(words, 2);
+						thickness = Float.parseFloat(words[1]);
+						break;
+					case "pencil":
+						if (words.length < 5 || words.length % 2 == 0) {
+							throw new IOException("pencil needs at least two points");
+						}
+						StrokeOp stroke = new StrokeOp(color, new BasicStroke(thickness,
+								BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+						for (int i = 1; i < words.length; i += 2) {
+							stroke.add(Integer.parseInt(words[i]), Integer.parseInt(words[i + 1]));
+						}
+						stroke.endBatch();
+						ops.add(stroke);
+						break;
+					case "fill":
+						if (words.length != 3 && words.length != 4) {
+							throw new IOException("fill takes 2 or 3 arguments");
+						}
+						ops.add(new FillOp(Integer.parseInt(words[1]), Integer.parseInt(words[2]), color,
+								words.length == 4 ? Integer.parseInt(words[3]) : 0));
+						break;
+					case "load":
+						expect(words, 2);
+						File file = new File(words[1]).isAbsolute() ? new File(words[1]) : new File(dir, words[1]);
+						BufferedImage image = ImageIO.read(file);
+						if (image == null) {
+							throw new IOException("cannot read image " + file.getPath());
+						}
+						ops.add(new LoadOp(image, width, height));
+						break;
+					case "clear":
+						ops.add(new ClearOp(width, height));
+						break;
+					default:
+						Shape shape = Shape.create(words[0]);
+						if (shape == null) {
+							throw new IOException("unknown command " + words[0]);
+						}
+						expect(words, 5);
+						shape.setPosition(new Point(Integer.parseInt(words[1]), Integer.parseInt(words[2])));
+						shape.resize(new Point(Integer.parseInt(words[3]), Integer.parseInt(words[4])));
+						ops.add(new ShapeOp(shape, color, new BasicStroke(thickness)));
+				}
+			} catch (IllegalArgumentException | IOException e) {
+				throw new IOException("Line " + number + ": " + e.getMessage(), e);
+			}
+		}
+		if (width == 0) {
+			throw new IOException("Empty script");
+		}
+		return new OpScript(width, height, ops);
+	}
+
+	/**
+	 * This method is used to check the number of words of a command.
+	 * @param words the command and its arguments
+	 * @param count the expected number of words
+	 * @throws IOException if the number of words is wrong
+	 */
+	private static void expect(String[] words, int count) throws IOException {
+		if (words.length != count) {
+			throw new IOException(words[0] + " takes " + (count - 1) + " arguments");
+		}
+	}
+
+	/**
+	 * This method is used to check the size of a canvas.
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @throws IOException if the size is not positive
+	 */
+	private static void checkSize(int width, int height) throws IOException {
+		if (width <= 0 || height <= 0) {
+			throw new IOException("Invalid canvas size " + width + "x" + height);
+		}
+	}
+}
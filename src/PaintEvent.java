@@ -0,0 +1,25 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The event for a paint of the canvas.
+ */
+@Name("strokes.Paint")
+@Label("Canvas Paint")
+@Category("Strokes")
+@StackTrace(false)
+class PaintEvent extends Event {
+	@Label("Duration")
+	@Timespan
+	long elapsed;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+}
@@ -0,0 +1,148 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * This class represents the pixel format shared by every image of a canvas.
+ * The format is negotiated with the screen once, so that the backing image, its copies and
+ * loaded images can all be drawn with the fast blit loops instead of a conversion loop.
+ * Only formats that pack a pixel into a single int are accepted, since the canvas works on
+ * the pixel arrays directly.
+ */
+public final class PixelFormat {
+	private final ColorModel colorModel;
+
+	private PixelFormat(ColorModel colorModel) {
+		this.colorModel = colorModel;
+	}
+
+	/**
+	 * This method is used to pick the opaque format of the screen, or plain RGB if the screen's
+	 * format does not pack pixels into ints or there is no screen.
+	 * @param gc the graphics configuration of the screen, may be null
+	 * @return the negotiated format
+	 */
+	public static PixelFormat negotiate(GraphicsConfiguration gc) {
+		if (gc != null) {
+			BufferedImage probe = gc.createCompatibleImage(1, 1, Transparency.OPAQUE);
+			if (isIntPacked(probe)) {
+				return of(probe);
+			}
+		}
+		return of(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+	}
+
+	/**
+	 * This method is used to get the format of layers that are drawn over others. The alpha is
+	 * premultiplied into the colors, which is what Java2D blends fastest.
+	 * @return the translucent format
+	 */
+	public static PixelFormat translucent() {
+		return of(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB_PRE));
+	}
+
+	/**
+	 * This method is used to check whether images in this format have no alpha channel.
+	 * @return true if every pixel is opaque
+	 */
+	public boolean isOpaque() {
+		return colorModel.getTransparency() == Transparency.OPAQUE;
+	}
+
+	/**
+	 * This method is used to get the format of an existing image.
+	 * @param image the image
+	 * @return the format of the image
+	 */
+	public static PixelFormat of(BufferedImage image) {
+		return new PixelFormat(image.getColorModel());
+	}
+
+	/**
+	 * This method is used to create an image in this format.
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return the created image
+	 */
+	public BufferedImage createImage(int width, int height) {
+		return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height),
+				colorModel.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * This method is used to convert an image to this format.
+	 * @param image the image to convert
+	 * @return the image itself if it already has this format, otherwise a converted copy
+	 */
+	public BufferedImage convert(BufferedImage image) {
+		if (colorModel.equals(image.getColorModel())
+				&& colorModel.isCompatibleSampleModel(image.getSampleModel())) {
+			return image;
+		}
+		BufferedImage converted = createImage(image.getWidth(), image.getHeight());
+		Graphics2D g = converted.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return converted;
+	}
+
+	/**
+	 * This method is used to get the value a color is stored as in this format.
+	 * @param color the color
+	 * @return the packed pixel
+	 */
+	public int encode(Color color) {
+		return ((int[]) colorModel.getDataElements(color.getRGB(), null))[0];
+	}
+
+	/**
+	 * This method is used to get the color a packed pixel stands for.
+	 * @param pixel the packed pixel
+	 * @return the color as a non-premultiplied 0xAARRGGBB value
+	 */
+	public int decode(int pixel) {
+		return colorModel.getRGB(pixel);
+	}
+
+	/**
+	 * This method is used to check whether another format packs pixels the same way.
+	 * @param o the other format
+	 * @return true if images of both formats can be copied into each other as they are
+	 */
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof PixelFormat && colorModel.equals(((PixelFormat) o).colorModel);
+	}
+
+	@Override
+	public int hashCode() {
+		return colorModel.hashCode();
+	}
+
+	/**
+	 * This method is used to get the array an image created by {@link #createImage(int, int)} keeps
+	 * its pixels in, one int per pixel, row after row. Java2D stops caching an image on the graphics
+	 * card once its array was taken, which is why only images that are copied by hand use this.
+	 * @param image an image created by a negotiated format
+	 * @return the pixels of the image
+	 */
+	static int[] pixels(BufferedImage image) {
+		return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * This method is used to check whether an image stores one pixel per int.
+	 * @param image the image to check
+	 * @return true if the image is backed by a single packed int array
+	 */
+	private static boolean isIntPacked(BufferedImage image) {
+		return image.getRaster().getDataBuffer() instanceof DataBufferInt
+				&& image.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& image.getRaster().getNumDataElements() == 1;
+	}
+}
@@ -0,0 +1,395 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class writes images as PNG files using several cores.
+ * The scanlines are split into bands of about 128 KB that are filtered and deflated in
+ * parallel, the way pigz does it: every band is primed with the last 32 KB of the band before
+ * it as its dictionary and ends with a sync flush, so the compressed bands simply follow each
+ * other in one zlib stream. The checksums of the bands are combined into the one of the whole
+ * stream. The result is an ordinary PNG, about as small as one deflated in a single piece.
+ * An encoder that uses several cores keeps its threads until it is closed.
+ */
+public class PngEncoder implements Closeable {
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final int BAND_SIZE = 128 << 10;
+	private static final int WINDOW_SIZE = 32 << 10;
+	private static final int ADLER_BASE = 65521;
+
+	/**
+	 * The ways scanlines can be filtered before they are deflated.
+	 * {@link #ADAPTIVE} picks for each line the filter whose output has the smallest sum of
+	 * absolute values, which is what most encoders do for true color images.
+	 */
+	public enum Filter {
+		NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+	}
+
+	private final int level;
+	private final Filter filter;
+	private final ExecutorService executor;
+
+	/**
+	 * This constructor is used to create an encoder.
+	 * @param level the deflate level, from 0 to 9, or -1 for the default
+	 * @param filter the filter strategy
+	 * @param threads the number of cores to use
+	 */
+	public PngEncoder(int level, Filter filter, int threads) {
+		if (level < -1 || level > 9 || threads < 1) {
+			throw new IllegalArgumentException("Invalid level " + level + " or threads " + threads);
+		}
+		this.level = level;
+		this.filter = filter;
+		this.executor = threads == 1 ? null : Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "png-encoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * This method is used to stop the threads of the encoder once no more images are written.
+	 */
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * This method is used to write an image as a PNG.
+	 * Images without alpha are written as 8-bit RGB, others as 8-bit RGBA.
+	 * @param image the image, which must not change while it is written
+	 * @param out the stream to write to, which is not closed
+	 * @param progress the code told the percentage written, or null
+	 * @throws IOException if the image is empty or the stream could not be written
+	 */
+	public void write(BufferedImage image, OutputStream out, IntConsumer progress) throws IOException {
+		int width = image.getWidth(), height = image.getHeight();
+		if (width == 0 || height == 0) {
+			throw new IOException("Cannot write an empty image");
+		}
+		int channels = image.getColorModel().hasAlpha() ? 4 : 3;
+		int stride = width * channels + 1;
+		int rowsPerBand = Math.max(1, BAND_SIZE / stride);
+		int bands = (height + rowsPerBand - 1) / rowsPerBand;
+
+		List<Future<Band>> pending = new ArrayList<>(bands);
+		for (int i = 0; i < bands; i++) {
+			int from = i * rowsPerBand, to = Math.min(height, from + rowsPerBand);
+			boolean last = i == bands - 1;
+			if (executor == null) {
+				pending.add(CompletableFuture.completedFuture(
+						encode(image, channels, from, to, last)));
+			} else {
+				pending.add(executor.submit(() -> encode(image, channels, from, to, last)));
+			}
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;
+		header[9] = (byte) (channels == 4 ? 6 : 2);
+		writeChunk(data, "IHDR", header, 0, header.length);
+		writeChunk(data, "IDAT", zlibHeader(), 0, 2);
+		long adler = 1;
+		try {
+			for (int i = 0; i < bands; i++) {
+				Band band = pending.get(i).get();
+				writeChunk(data, "IDAT", band.compressed, 0, band.length);
+				adler = combine(adler, band.adler, band.rawLength);
+				if (progress != null) {
+					progress.accept((i + 1) * 100 / bands);
+				}
+			}
+		} catch (InterruptedException e) {
+			pending.forEach(future -> future.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while encoding", e);
+		} catch (ExecutionException e) {
+			pending.forEach(future -> future.cancel(true));
+			throw new IOException("Could not encode image", e.getCause());
+		}
+		byte[] trailer = new byte[4];
+		putInt(trailer, 0, (int) adler);
+		writeChunk(data, "IDAT", trailer, 0, trailer.length);
+		writeChunk(data, "IEND", new byte[0], 0, 0);
+		data.flush();
+	}
+
+	/**
+	 * This class represents one band of scanlines after it was filtered and deflated.
+	 */
+	private static class Band {
+		private final byte[] compressed;
+		private final int length;
+		private final long adler;
+		private final int rawLength;
+
+		private Band(byte[] compressed, int length, long adler, int rawLength) {
+			this.compressed = compressed;
+			this.length = length;
+			this.adler = adler;
+			this.rawLength = rawLength;
+		}
+	}
+
+	/**
+	 * This method is used to filter and deflate a band of scanlines.
+	 * The lines just before the band are filtered again to prime the dictionary, which is
+	 * cheaper than waiting for the band before it.
+	 * @param image the image
+	 * @param channels 3 for RGB or 4 for RGBA
+	 * @param from the first line of the band
+	 * @param to the line after the band
+	 * @param last true if the band ends the stream
+	 * @return the deflated band
+	 */
+	private Band encode(BufferedImage image, int channels, int from, int to, boolean last) {
+		int stride = image.getWidth() * channels + 1;
+		int primed = Math.min(from, (WINDOW_SIZE + stride - 1) / stride);
+		byte[] raw = filter(image, channels, from - primed, to);
+		int offset = primed * stride, length = raw.length - offset;
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (primed > 0) {
+				int window = Math.min(WINDOW_SIZE, offset);
+				deflater.setDictionary(raw, offset - window, window);
+			}
+			deflater.setInput(raw, offset, length);
+			byte[] out = new byte[Math.max(64, length / 2)];
+			int size = 0;
+			if (last) {
+				deflater.finish();
+			}
+			while (true) {
+				if (size == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				int n = deflater.deflate(out, size, out.length - size,
+						last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				size += n;
+				if (last ? deflater.finished() : size < out.length) {
+					break;
+				}
+			}
+			Adler32 adler = new Adler32();
+			adler.update(raw, offset, length);
+			return new Band(out, size, adler.getValue(), length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * This method is used to filter a range of scanlines, each preceded by its filter type.
+	 * @param image the image
+	 * @param channels 3 for RGB or 4 for RGBA
+	 * @param from the first line
+	 * @param to the line after the last one
+	 * @return the filtered lines
+	 */
+	private byte[] filter(BufferedImage image, int channels, int from, int to) {
+		int width = image.getWidth(), stride = width * channels + 1;
+		byte[] filtered = new byte[(to - from) * stride];
+		byte[] previous = new byte[stride - 1], current = new byte[stride - 1];
+		byte[][] candidates = filter == Filter.ADAPTIVE ? new byte[5][stride - 1] : null;
+		int[] argb = new int[width];
+		if (from > 0) {
+			unpack(image, from - 1, channels, argb, previous);
+		}
+		for (int y = from; y < to; y++) {
+			unpack(image, y, channels, argb, current);
+			int at = (y - from) * stride;
+			if (candidates == null) {
+				filtered[at] = (byte) filter.ordinal();
+				apply(filter.ordinal(), current, previous, channels, filtered, at + 1);
+			} else {
+				int best = 0;
+				long bestSum = Long.MAX_VALUE;
+				for (int type = 0; type < 5; type++) {
+					apply(type, current, previous, channels, candidates[type], 0);
+					long sum = 0;
+					for (byte b : candidates[type]) {
+						sum += Math.abs(b);
+					}
+					if (sum < bestSum) {
+						bestSum = sum;
+						best = type;
+					}
+				}
+				filtered[at] = (byte) best;
+				System.arraycopy(candidates[best], 0, filtered, at + 1, stride - 1);
+			}
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return filtered;
+	}
+
+	/**
+	 * This method is used to get the samples of one line of the image.
+	 * @param image the image
+	 * @param y the line
+	 * @param channels 3 for RGB or 4 for RGBA
+	 * @param argb an array of the width of the image to read the pixels into
+	 * @param line the array to put the samples in
+	 */
+	private static void unpack(BufferedImage image, int y, int channels, int[] argb, byte[] line) {
+		int width = image.getWidth();
+		if (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB) {
+			System.arraycopy(PixelFormat.pixels(image), y * width, argb, 0, width);
+		} else {
+			image.getRGB(0, y, width, 1, argb, 0, width);
+		}
+		for (int x = 0, i = 0; x < width; x++) {
+			int pixel = argb[x];
+			line[i++] = (byte) (pixel >> 16);
+			line[i++] = (byte) (pixel >> 8);
+			line[i++] = (byte) pixel;
+			if (channels == 4) {
+				line[i++] = (byte) (pixel >>> 24);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to filter one line with one filter type.
+	 * @param type the filter type, from 0 for none to 4 for Paeth
+	 * @param line the samples of the line
+	 * @param above the samples of the line above, all zero for the first line
+	 * @param bpp the number of bytes per pixel
+	 * @param out the array to put the filtered samples in
+	 * @param at the position in the array
+	 */
+	private static void apply(int type, byte[] line, byte[] above, int bpp, byte[] out, int at) {
+		int n = line.length;
+		switch (type) {
+		case 0:
+			System.arraycopy(line, 0, out, at, n);
+			break;
+		case 1:
+			for (int i = 0; i < n; i++) {
+				out[at + i] = (byte) (line[i] - (i < bpp ? 0 : line[i - bpp]));
+			}
+			break;
+		case 2:
+			for (int i = 0; i < n; i++) {
+				out[at + i] = (byte) (line[i] - above[i]);
+			}
+			break;
+		case 3:
+			for (int i = 0; i < n; i++) {
+				int left = i < bpp ? 0 : line[i - bpp] & 0xff;
+				out[at + i] = (byte) (line[i] - ((left + (above[i] & 0xff)) >>> 1));
+			}
+			break;
+		default:
+			for (int i = 0; i < n; i++) {
+				int a = i < bpp ? 0 : line[i - bpp] & 0xff;
+				int b = above[i] & 0xff;
+				int c = i < bpp ? 0 : above[i - bpp] & 0xff;
+				int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+				int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+				out[at + i] = (byte) (line[i] - predictor);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * This method is used to get the two bytes that start the zlib stream for the level.
+	 * @return the header, without a preset dictionary
+	 */
+	private byte[] zlibHeader() {
+		int hint = level == 0 || level == 1 ? 0 : level >= 2 && level <= 5 ? 1 : level == 6 || level == -1 ? 2 : 3;
+		int header = 0x7800 | hint << 6;
+		header += (31 - header % 31) % 31;
+		return new byte[] { (byte) (header >> 8), (byte) header };
+	}
+
+	/**
+	 * This method is used to get the Adler-32 checksum of two pieces of data put together
+	 * from the checksums of the pieces, as zlib's adler32_combine does.
+	 * @param first the checksum of the first piece
+	 * @param second the checksum of the second piece
+	 * @param length the length of the second piece
+	 * @return the checksum of both pieces
+	 */
+	static long combine(long first, long second, long length) {
+		long rem = length % ADLER_BASE;
+		long sum1 = first & 0xffff;
+		long sum2 = rem * sum1 % ADLER_BASE;
+		sum1 += (second & 0xffff) + ADLER_BASE - 1;
+		sum2 += (first >>> 16 & 0xffff) + (second >>> 16 & 0xffff) + ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum2 >= ADLER_BASE << 1) {
+			sum2 -= ADLER_BASE << 1;
+		}
+		if (sum2 >= ADLER_BASE) {
+			sum2 -= ADLER_BASE;
+		}
+		return sum1 | sum2 << 16;
+	}
+
+	/**
+	 * This method is used to write one chunk of the PNG with its length and checksum.
+	 * @param out the stream to write to
+	 * @param type the type of the chunk
+	 * @param data the array holding the data of the chunk
+	 * @param offset the position of the data in the array
+	 * @param length the length of the data
+	 * @throws IOException if the stream could not be written
+	 */
+	private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length)
+			throws IOException {
+		byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(data, offset, length);
+		out.writeInt(length);
+		out.write(name);
+		out.write(data, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * This method is used to put an int into an array, most significant byte first.
+	 * @param array the array
+	 * @param at the position in the array
+	 * @param value the value
+	 */
+	private static void putInt(byte[] array, int at, int value) {
+		array[at] = (byte) (value >> 24);
+		array[at + 1] = (byte) (value >> 16);
+		array[at + 2] = (byte) (value >> 8);
+		array[at + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,28 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The listener interface for following a file being saved or loaded in the background.
+ * All methods are called on the event dispatch thread.
+ */
+public interface ProgressListener {
+	/**
+	 * Invoked while the file is being written or read.
+	 * @param file the file being processed
+	 * @param percent how much of the file has been processed
+	 */
+	void progress(File file, int percent);
+
+	/**
+	 * Invoked when the file has been written or read.
+	 * @param file the file that was processed
+	 */
+	void done(File file);
+
+	/**
+	 * Invoked when the file could not be written or read.
+	 * @param file the file that failed
+	 * @param e the error
+	 */
+	void failed(File file, IOException e);
+}
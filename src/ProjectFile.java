@@ -0,0 +1,533 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * This class represents a drawing saved in the native project format, which keeps every layer
+ * with the raw pixels of its tiles and the operations of its history, so nothing is encoded or
+ * decoded on the way in or out.
+ * <p>
+ * The file starts with a header pointing at a directory that lists, for every layer, where each
+ * of its tiles is, followed by its operations, including the ones that were undone and can still
+ * be redone. Files of the first version, which left those out, can still be opened. Tiles are
+ * stored as little-endian ints, opaque layers as RGB and translucent ones as premultiplied ARGB.
+ * A save of the file a canvas was last saved to or opened from only appends the tiles that
+ * changed since and a new directory, and then points the header at it, so an interrupted save
+ * leaves the previous one readable. Once more than half of the file is tiles that are no longer
+ * used, it is written anew to a temporary file that is renamed over it.
+ * An opened project maps the file into memory and its tiles are read when they are first used,
+ * so opening costs about the same whatever the size of the drawing.
+ */
+public class ProjectFile implements TiledSurface.Pages {
+	public static final String EXTENSION = "strk";
+	private static final int MAGIC = 0x53545250;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	private static final int TILE_BYTES = TiledSurface.TILE_SIZE * TiledSurface.TILE_SIZE * 4;
+	private static final long SEGMENT_SIZE = 1L << 30;
+	private static final PixelFormat OPAQUE = PixelFormat.negotiate(null);
+	private static final PixelFormat TRANSLUCENT = PixelFormat.translucent();
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "project-io");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * This class represents a copy of a tile waiting to be written.
+	 */
+	private static class Chunk {
+		private final long offset;
+		private final int[] pixels;
+
+		private Chunk(long offset, int[] pixels) {
+			this.offset = offset;
+			this.pixels = pixels;
+		}
+	}
+
+	private final File file;
+	private final int width, height;
+	private final ByteBuffer[] segments;
+	private long length, live;
+	private volatile boolean failed;
+	private List<Layer> layers = Collections.emptyList();
+	private int activeIndex;
+
+	/**
+	 * This constructor is used to create a project for a file.
+	 * @param file the absolute path of the file
+	 * @param width the width of the canvas
+	 * @param height the height of the canvas
+	 * @param segments the file mapped into memory in overlapping parts, empty if it was not opened
+	 * @param length where the next save appends
+	 */
+	private ProjectFile(File file, int width, int height, ByteBuffer[] segments, long length) {
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.segments = segments;
+		this.length = length;
+	}
+
+	/**
+	 * This method is used to get the file of the project.
+	 * @return the absolute path of the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * This method is used to get the width of the canvas of the project.
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * This method is used to get the height of the canvas of the project.
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * This method is used to get the layers read from the file.
+	 * @return the layers from the bottom one up, or an empty list if the project was not opened
+	 */
+	public List<Layer> getLayers() {
+		return layers;
+	}
+
+	/**
+	 * This method is used to get the position of the layer that was drawn on when the project was saved.
+	 * @return the position of the active layer, 0 being the bottom
+	 */
+	public int getActiveIndex() {
+		return activeIndex;
+	}
+
+	/**
+	 * This method is used to read the pixels of a tile from the mapped file.
+	 * @param offset where the tile is in the file
+	 * @param pixels the array of the tile to fill
+	 */
+	@Override
+	public void read(long offset, int[] pixels) {
+		ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+		segment.slice((int) (offset % SEGMENT_SIZE), pixels.length * 4).order(ByteOrder.LITTLE_ENDIAN)
+				.asIntBuffer().get(pixels);
+	}
+
+	/**
+	 * This method is used to save every layer of a canvas as a project.
+	 * The changed tiles are copied right away, so it must be called by the thread that draws;
+	 * the file is written in the background.
+	 * @param previous the project the canvas was last saved to or opened from, or null
+	 * @param file the file to save to
+	 * @param stack the layers of the canvas
+	 * @param listener the listener to report progress to
+	 * @return the project of the file, to be given to the next save
+	 */
+	public static ProjectFile save(ProjectFile previous, File file, LayerStack stack, ProgressListener listener) {
+		return save(previous, file, stack, listener, true);
+	}
+
+	/**
+	 * This method is used to write a full copy of every layer of a canvas as a project, without
+	 * it counting as the file the canvas was saved to, so later saves are not affected.
+	 * It must be called by the thread that draws; the file is written in the background.
+	 * @param file the file to write
+	 * @param stack the layers of the canvas
+	 * @param listener the listener to report progress to
+	 */
+	public static void snapshot(File file, LayerStack stack, ProgressListener listener) {
+		save(null, file, stack, listener, false);
+	}
+
+	/**
+	 * This method is used to copy the layers of a canvas and queue them to be written.
+	 * @param previous the project the canvas was last saved to or opened from, or null
+	 * @param file the file to save to
+	 * @param stack the layers of the canvas
+	 * @param listener the listener to report progress to
+	 * @param track true to remember where each tile was saved, so the next save can skip it
+	 * @return the project of the file
+	 */
+	private static ProjectFile save(ProjectFile previous, File file, LayerStack stack, ProgressListener listener,
+			boolean track) {
+		List<Layer> layers;
+		int active;
+		synchronized (stack) {
+			layers = stack.getAll();
+			active = layers.indexOf(stack.getActive());
+		}
+		TiledSurface first = layers.get(0).getSurface();
+		File target = file.getAbsoluteFile();
+		boolean append = track && previous != null && previous.file.equals(target) && !previous.failed
+				&& previous.width == first.getWidth() && previous.height == first.getHeight()
+				&& previous.length - previous.live <= previous.live;
+		ProjectFile project = append ? previous
+				: new ProjectFile(target, first.getWidth(), first.getHeight(), new ByteBuffer[0], HEADER_SIZE);
+		List<Chunk> chunks = new ArrayList<>();
+		long position = (project.length + 7) & ~7L;
+		long live = HEADER_SIZE;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(project.width);
+			out.writeInt(project.height);
+			out.writeInt(layers.size());
+			out.writeInt(active);
+			for (Layer layer : layers) {
+				TiledSurface surface = layer.getSurface();
+				PixelFormat stored = surface.getFormat().isOpaque() ? OPAQUE : TRANSLUCENT;
+				out.writeUTF(layer.getName());
+				out.writeBoolean(layer.isVisible());
+				out.writeFloat(layer.getOpacity());
+				out.writeBoolean(stored == TRANSLUCENT);
+				out.writeInt(surface.getBackground().getRGB());
+				ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+				DataOutputStream index = new DataOutputStream(tiles);
+				int count = 0;
+				for (int key = 0; key < surface.getTileCount(); key++) {
+					if (!surface.hasTile(key)) {
+						continue;
+					}
+					long offset = append ? surface.getStored(key) : -1;
+					if (offset < 0) {
+						int[] pixels = copy(surface.getTile(key), surface.getFormat(), stored);
+						offset = position;
+						position += pixels.length * 4L;
+						chunks.add(new Chunk(offset, pixels));
+						if (track) {
+							surface.setStored(key, offset);
+						}
+					}
+					index.writeInt(key);
+					index.writeLong(offset);
+					live += project.tileBytes(key);
+					count++;
+				}
+				out.writeInt(count);
+				tiles.writeTo(out);
+				Document document = layer.getDocument();
+				ByteArrayOutputStream ops = new ByteArrayOutputStream();
+				new OpScript(project.width, project.height, document.getOps(true)).write(ops);
+				out.writeInt(document.size());
+				out.writeInt(document.getRedoable());
+				out.writeInt(ops.size());
+				ops.writeTo(out);
+			}
+		} catch (IOException e) {
+			project.failed = true;
+			SwingUtilities.invokeLater(() -> listener.failed(file, e));
+			return project;
+		}
+		byte[] directory = bytes.toByteArray();
+		long directoryOffset = position;
+		project.length = directoryOffset + directory.length;
+		project.live = live + directory.length;
+		executor.execute(() -> {
+			try {
+				if (append) {
+					try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+						project.write(channel, chunks, directory, directoryOffset, listener);
+					}
+				} else {
+					project.rewrite(chunks, directory, directoryOffset, listener);
+				}
+				SwingUtilities.invokeLater(() -> listener.done(file));
+			} catch (IOException e) {
+				project.failed = true;
+				SwingUtilities.invokeLater(() -> listener.failed(file, e));
+			}
+		});
+		return project;
+	}
+
+	/**
+	 * This method is used to open a project in the background.
+	 * Only the directory of the file is read; the tiles are mapped and read when first used.
+	 * @param file the file to open
+	 * @param width the width of the canvas, which the project must have
+	 * @param height the height of the canvas, which the project must have
+	 * @param history the store the layers of the canvas keep their undo history in
+	 * @param listener the listener to report completion to
+	 * @param opened the code given the project on the event dispatch thread, before the listener is told
+	 */
+	public static void open(File file, int width, int height, HistoryStore history, ProgressListener listener,
+			Consumer<ProjectFile> opened) {
+		executor.execute(() -> {
+			try {
+				ProjectFile project = read(file.getAbsoluteFile(), width, height, history);
+				SwingUtilities.invokeLater(() -> {
+					opened.accept(project);
+					listener.done(file);
+				});
+			} catch (IOException e) {
+				SwingUtilities.invokeLater(() -> listener.failed(file, e));
+			}
+		});
+	}
+
+	/**
+	 * This method is used to check whether a file is named as a project.
+	 * @param file the file
+	 * @return true if the file has the extension of projects
+	 */
+	public static boolean isProject(File file) {
+		return file.getName().toLowerCase(Locale.ROOT).endsWith("." + EXTENSION);
+	}
+
+	/**
+	 * This method is used to open a project of any size right away.
+	 * @param file the file to open
+	 * @param history the history store of the stack the layers will be put in
+	 * @return the project with its layers
+	 * @throws IOException if the file is not a valid project
+	 */
+	public static ProjectFile read(File file, HistoryStore history) throws IOException {
+		return read(file.getAbsoluteFile(), -1, -1, history);
+	}
+
+	/**
+	 * This method is used to read the directory of a project and map its tiles.
+	 * @param file the file to read
+	 * @param width the width the project must have, or -1 for any
+	 * @param height the height the project must have, or -1 for any
+	 * @param history the store the layers keep their undo history in
+	 * @return the project with its layers
+	 * @throws IOException if the file is not a valid project of that size
+	 */
+	private static ProjectFile read(File file, int width, int height, HistoryStore history) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC) {
+				throw new IOException("Not a project file");
+			}
+			int version = header.getInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported project version " + version);
+			}
+			long directoryOffset = header.getLong();
+			int directoryLength = header.getInt(), crc = header.getInt();
+			if (directoryOffset < HEADER_SIZE || directoryLength < 16 || directoryOffset + directoryLength > size) {
+				throw new IOException("Invalid project directory");
+			}
+			ByteBuffer directory = ByteBuffer.allocate(directoryLength);
+			readFully(channel, directory, directoryOffset);
+			CRC32 check = new CRC32();
+			check.update(directory.array());
+			if ((int) check.getValue() != crc) {
+				throw new IOException("Damaged project directory");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(directory.array()));
+			int projectWidth = in.readInt(), projectHeight = in.readInt(), count = in.readInt();
+			if (projectWidth <= 0 || projectHeight <= 0) {
+				throw new IOException("Invalid canvas size " + projectWidth + "x" + projectHeight);
+			}
+			if (width >= 0 && (projectWidth != width || projectHeight != height)) {
+				throw new IOException("The project is " + projectWidth + "x" + projectHeight + " but the canvas is "
+						+ width + "x" + height);
+			}
+			if (count <= 0) {
+				throw new IOException("The project has no layers");
+			}
+			ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(size - start, SEGMENT_SIZE + TILE_BYTES));
+			}
+			ProjectFile project = new ProjectFile(file, projectWidth, projectHeight, segments, size);
+			project.activeIndex = in.readInt();
+			long live = HEADER_SIZE + directoryLength;
+			List<Layer> layers = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				boolean visible = in.readBoolean();
+				float opacity = in.readFloat();
+				boolean translucent = in.readBoolean();
+				Color background = new Color(in.readInt(), true);
+				TiledSurface surface = new TiledSurface(projectWidth, projectHeight, translucent ? TRANSLUCENT : OPAQUE,
+						background);
+				int tiles = in.readInt();
+				for (int t = 0; t < tiles; t++) {
+					int key = in.readInt();
+					long offset = in.readLong();
+					if (key < 0 || key >= surface.getTileCount() || offset < HEADER_SIZE
+							|| offset + project.tileBytes(key) > size) {
+						throw new IOException("Invalid tile " + key + " in layer " + name);
+					}
+					surface.page(key, project, offset);
+					live += project.tileBytes(key);
+				}
+				int undoable = in.readInt();
+				int redoable = version > 1 ? in.readInt() : 0;
+				byte[] ops = new byte[in.readInt()];
+				in.readFully(ops);
+				OpScript script = OpScript.readBinary(new DataInputStream(new ByteArrayInputStream(ops)));
+				Layer layer = new Layer(name, surface, new Document(history, script.getOps(), undoable, redoable, surface));
+				layer.setVisible(visible);
+				layer.setOpacity(opacity);
+				layers.add(layer);
+			}
+			project.live = live;
+			project.layers = layers;
+			return project;
+		}
+	}
+
+	/**
+	 * This method is used to write a whole project to a temporary file and move it over the target.
+	 * @param chunks every tile of the project
+	 * @param directory the directory
+	 * @param directoryOffset where the directory goes
+	 * @param listener the listener to report progress to
+	 * @throws IOException if the project could not be written
+	 */
+	private void rewrite(List<Chunk> chunks, byte[] directory, long directoryOffset, ProgressListener listener)
+			throws IOException {
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+				write(channel, chunks, directory, directoryOffset, listener);
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	/**
+	 * This method is used to write tiles and a directory, and only once they are on the disk,
+	 * the header pointing at the directory.
+	 * @param channel the file to write to
+	 * @param chunks the tiles to write
+	 * @param directory the directory
+	 * @param directoryOffset where the directory goes
+	 * @param listener the listener to report progress to
+	 * @throws IOException if the project could not be written
+	 */
+	private void write(FileChannel channel, List<Chunk> chunks, byte[] directory, long directoryOffset,
+			ProgressListener listener) throws IOException {
+		if (failed) {
+			throw new IOException("An earlier save of the project failed");
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(TILE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		int reported = -1;
+		for (int i = 0; i < chunks.size(); i++) {
+			Chunk chunk = chunks.get(i);
+			buffer.clear();
+			buffer.asIntBuffer().put(chunk.pixels);
+			buffer.limit(chunk.pixels.length * 4);
+			writeFully(channel, buffer, chunk.offset);
+			int percent = (int) ((i + 1) * 100L / chunks.size());
+			if (percent != reported) {
+				reported = percent;
+				SwingUtilities.invokeLater(() -> listener.progress(file, percent));
+			}
+		}
+		writeFully(channel, ByteBuffer.wrap(directory), directoryOffset);
+		channel.force(false);
+		CRC32 crc = new CRC32();
+		crc.update(directory);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(directoryOffset).putInt(directory.length)
+				.putInt((int) crc.getValue()).flip();
+		writeFully(channel, header, 0);
+		channel.force(false);
+	}
+
+	/**
+	 * This method is used to get the size of a tile in the file.
+	 * @param key the index of the tile
+	 * @return the size in bytes, smaller for the tiles on the right and bottom edges
+	 */
+	private long tileBytes(int key) {
+		int size = TiledSurface.TILE_SIZE, columns = (width + size - 1) / size;
+		return 4L * Math.min(size, width - key % columns * size) * Math.min(size, height - key / columns * size);
+	}
+
+	/**
+	 * This method is used to copy the pixels of a tile in the format they are stored in.
+	 * @param tile the tile
+	 * @param format the format of the tile
+	 * @param stored the format of the file
+	 * @return the copied pixels
+	 */
+	private static int[] copy(BufferedImage tile, PixelFormat format, PixelFormat stored) {
+		int[] pixels = (int[]) tile.getRaster().getDataElements(0, 0, tile.getWidth(), tile.getHeight(), null);
+		if (!format.equals(stored)) {
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = stored.encode(new Color(format.decode(pixels[i]), true));
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * This method is used to write all of a buffer at a position of a file.
+	 * @param channel the file
+	 * @param buffer the bytes to write
+	 * @param position where they go
+	 * @throws IOException if they could not be written
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * This method is used to fill a buffer from a position of a file.
+	 * @param channel the file
+	 * @param buffer the buffer to fill
+	 * @param position where to read from
+	 * @throws IOException if the file ends first
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of project file");
+			}
+			position += read;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * This class represents a region quadtree of items keyed by their bounds.
+ * Each item is kept in the smallest node whose area holds its bounds entirely, and a node is
+ * split into four once it holds more than a few items, so finding the items at a point only
+ * looks at the nodes on the path down to that point. Items also carry an order, so that the
+ * topmost of several overlapping items can be picked.
+ * Items are told apart by identity. The tree is thread safe.
+ * @param <T> the type of the items
+ */
+public class QuadTree<T> {
+	private static final int CAPACITY = 8;
+	private static final int MAX_DEPTH = 12;
+
+	/**
+	 * This class represents an item stored in the tree.
+	 */
+	private static class Entry<T> {
+		private final T item;
+		private final Rectangle bounds;
+		private final int order;
+		private Node<T> node;
+
+		private Entry(T item, Rectangle bounds, int order) {
+			this.item = item;
+			this.bounds = bounds;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * This class represents a node of the tree, covering one quarter of its parent.
+	 */
+	private static class Node<T> {
+		private final Rectangle area;
+		private final int depth;
+		private final List<Entry<T>> entries = new ArrayList<>();
+		private List<Node<T>> children;
+
+		private Node(Rectangle area, int depth) {
+			this.area = area;
+			this.depth = depth;
+		}
+
+		/**
+		 * This method is used to get the child that holds a region entirely.
+		 * @param r the region
+		 * @return the child, or null if the node is a leaf or no child holds the region
+		 */
+		private Node<T> childFor(Rectangle r) {
+			if (children != null) {
+				for (Node<T> child : children) {
+					if (child.area.contains(r)) {
+						return child;
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Rectangle area;
+	private final Map<T, Entry<T>> entries = new HashMap<>();
+	private Node<T> root;
+
+	/**
+	 * This constructor is used to create an empty tree.
+	 * Items outside the area may be stored as well, they are just not sorted into nodes.
+	 * @param area the area the items are expected in
+	 */
+	public QuadTree(Rectangle area) {
+		this.area = new Rectangle(area);
+		this.root = new Node<>(this.area, 0);
+	}
+
+	/**
+	 * This method is used to add an item, or to move it if it is already in the tree.
+	 * @param item the item
+	 * @param bounds the bounds of the item
+	 * @param order the order of the item, higher is on top
+	 */
+	public synchronized void insert(T item, Rectangle bounds, int order) {
+		remove(item);
+		Entry<T> entry = new Entry<>(item, new Rectangle(bounds), order);
+		entries.put(item, entry);
+		Node<T> node = root;
+		for (Node<T> child = node.childFor(entry.bounds); child != null; child = node.childFor(entry.bounds)) {
+			node = child;
+		}
+		add(node, entry);
+	}
+
+	/**
+	 * This method is used to remove an item.
+	 * @param item the item
+	 * @return true if the item was in the tree
+	 */
+	public synchronized boolean remove(T item) {
+		Entry<T> entry = entries.remove(item);
+		if (entry == null) {
+			return false;
+		}
+		entry.node.entries.remove(entry);
+		return true;
+	}
+
+	/**
+	 * This method is used to remove every item.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		root = new Node<>(area, 0);
+	}
+
+	/**
+	 * This method is used to get the number of items.
+	 * @return the number of items
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * This method is used to get the order an item was stored with.
+	 * @param item the item
+	 * @return the order, or -1 if the item is not in the tree
+	 */
+	public synchronized int orderOf(T item) {
+		Entry<T> entry = entries.get(item);
+		return entry == null ? -1 : entry.order;
+	}
+
+	/**
+	 * This method is used to find the topmost item at a point.
+	 * Only the items whose bounds hold the point are tested.
+	 * @param x the x coordinate of the point
+	 * @param y the y coordinate of the point
+	 * @param test the precise test of whether an item is at the point
+	 * @return the item with the highest order that passes the test, or null
+	 */
+	public synchronized T top(int x, int y, Predicate<? super T> test) {
+		Entry<T> top = null;
+		Rectangle point = new Rectangle(x, y, 1, 1);
+		for (Node<T> node = root; node != null; node = node.childFor(point)) {
+			for (Entry<T> entry : node.entries) {
+				if ((top == null || entry.order > top.order) && entry.bounds.contains(x, y)
+						&& test.test(entry.item)) {
+					top = entry;
+				}
+			}
+		}
+		return top == null ? null : top.item;
+	}
+
+	/**
+	 * This method is used to find the items whose bounds intersect a region, within a range of orders.
+	 * Only the nodes that overlap the region are looked at.
+	 * @param r the region
+	 * @param from the lowest order to find
+	 * @param to the order after the highest one to find
+	 * @return the items, lowest order first
+	 */
+	public synchronized List<T> find(Rectangle r, int from, int to) {
+		List<Entry<T>> found = new ArrayList<>();
+		find(root, r, from, to, found);
+		found.sort(Comparator.comparingInt(entry -> entry.order));
+		List<T> items = new ArrayList<>(found.size());
+		for (Entry<T> entry : found) {
+			items.add(entry.item);
+		}
+		return items;
+	}
+
+	/**
+	 * This method is used to collect the entries of a node and of its children that intersect a region.
+	 * @param node the node
+	 * @param r the region
+	 * @param from the lowest order to collect
+	 * @param to the order after the highest one to collect
+	 * @param found the list the entries are added to
+	 */
+	private void find(Node<T> node, Rectangle r, int from, int to, List<Entry<T>> found) {
+		for (Entry<T> entry : node.entries) {
+			if (entry.order >= from && entry.order < to && entry.bounds.intersects(r)) {
+				found.add(entry);
+			}
+		}
+		if (node.children != null) {
+			for (Node<T> child : node.children) {
+				if (child.area.intersects(r)) {
+					find(child, r, from, to, found);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is used to store an entry in a node, splitting the node when it gets full.
+	 * @param node the node
+	 * @param entry the entry
+	 */
+	private void add(Node<T> node, Entry<T> entry) {
+		entry.node = node;
+		node.entries.add(entry);
+		if (node.children != null || node.entries.size() <= CAPACITY || node.depth == MAX_DEPTH
+				|| node.area.width < 2 || node.area.height < 2) {
+			return;
+		}
+		Rectangle a = node.area;
+		int halfWidth = a.width / 2, halfHeight = a.height / 2;
+		node.children = new ArrayList<>(4);
+		node.children.add(new Node<>(new Rectangle(a.x, a.y, halfWidth, halfHeight), node.depth + 1));
+		node.children.add(new Node<>(new Rectangle(a.x + halfWidth, a.y, a.width - halfWidth, halfHeight),
+				node.depth + 1));
+		node.children.add(new Node<>(new Rectangle(a.x, a.y + halfHeight, halfWidth, a.height - halfHeight),
+				node.depth + 1));
+		node.children.add(new Node<>(new Rectangle(a.x + halfWidth, a.y + halfHeight, a.width - halfWidth,
+				a.height - halfHeight), node.depth + 1));
+		List<Entry<T>> stored = new ArrayList<>(node.entries);
+		node.entries.clear();
+		for (Entry<T> e : stored) {
+			Node<T> child = node.childFor(e.bounds);
+			if (child == null) {
+				e.node = node;
+				node.entries.add(e);
+			} else {
+				add(child, e);
+			}
+		}
+	}
+}
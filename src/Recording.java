@@ -0,0 +1,352 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class represents a recording of everything drawn on a canvas, with the time each change
+ * was made, which a {@link TimeLapse} replays.
+ * Changes are written by a background writer as they are made, so a long session takes no
+ * memory and drawing never waits for the disk. Each record is the length of its body, the time
+ * since the recording started in nanoseconds and the body a {@link ChangeLog} writes; a
+ * recording cut short by a crash replays up to its last complete record.
+ * A canvas that was not blank when the recording started is first written next to the
+ * recording as a project with the same name and the project extension added, which a replay
+ * starts from.
+ */
+public class Recording extends ChangeLog {
+	public static final String EXTENSION = "strec";
+	private static final int MAGIC = 0x53545252;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * This class represents a record waiting to be written, with its time.
+	 */
+	private static class Entry {
+		private final long time;
+		private final Record record;
+
+		/**
+		 * This constructor is used to create an entry.
+		 * @param time the time since the recording started in nanoseconds
+		 * @param record the record
+		 */
+		Entry(long time, Record record) {
+			this.time = time;
+			this.record = record;
+		}
+	}
+
+	private final File file;
+	private final DataOutputStream out;
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private long start;
+	private volatile boolean closed;
+
+	/**
+	 * This constructor is used to create a recording whose header was written.
+	 * @param file the file of the recording
+	 * @param layers the layers of the canvas
+	 * @param out the open file
+	 */
+	private Recording(File file, LayerStack layers, DataOutputStream out) {
+		super(layers);
+		this.file = file;
+		this.out = out;
+		writer = new Thread(this::write, "recording-writer");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * This method is used to create a recording of the layers of a canvas and start its writer.
+	 * Nothing is recorded before {@link #start()}.
+	 * @param file the file to record to, which is replaced
+	 * @param layers the layers of the canvas
+	 * @return the recording
+	 * @throws IOException if the file could not be created
+	 */
+	public static Recording create(File file, LayerStack layers) throws IOException {
+		TiledSurface surface = layers.get(0).getSurface();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(surface.getWidth());
+			out.writeInt(surface.getHeight());
+			out.flush();
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		base(file).delete();
+		Recording recording = new Recording(file, layers, out);
+		recording.writer.start();
+		return recording;
+	}
+
+	/**
+	 * This method is used to get the file of the recording.
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * This method is used to start recording the changes to the layers, and to write the layers
+	 * as a project first if they are not blank. It must be called by the thread that draws,
+	 * which must pass every change to the recording from then on.
+	 */
+	public void start() {
+		synchronized (layers) {
+			start = System.nanoTime();
+			layers.addLog(this);
+			if (layers.size() > 1 || !layers.get(0).getDocument().isBlank()) {
+				ProjectFile.snapshot(base(file), layers, new ProgressListener() {
+					public void progress(File file, int percent) {
+					}
+
+					public void done(File file) {
+					}
+
+					public void failed(File file, IOException e) {
+						System.err.println("Error writing the start of recording: " + file.getPath());
+						System.err.println("Exception message: " + e.getMessage());
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * This method is used to stop recording and wait until every record was written.
+	 * The layers should no longer pass changes to the recording.
+	 */
+	public void close() {
+		layers.removeLog(this);
+		closed = true;
+		queue.add(this);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * This method is used to queue a record for the writer, with the time it was made.
+	 * @param record the record
+	 */
+	@Override
+	void append(Record record) {
+		if (!closed) {
+			queue.add(new Entry(System.nanoTime() - start, record));
+		}
+	}
+
+	/**
+	 * This method is used to run the writer: it writes every waiting record at once and hands
+	 * them to the operating system, until the recording is closed.
+	 */
+	private void write() {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+		DataOutputStream data = new DataOutputStream(body);
+		List<Object> items = new ArrayList<>();
+		boolean done = false;
+		try {
+			while (!done) {
+				items.clear();
+				items.add(queue.take());
+				queue.drainTo(items);
+				for (Object item : items) {
+					if (item == this) {
+						done = true;
+						break;
+					}
+					Entry entry = (Entry) item;
+					body.reset();
+					entry.record.write(data);
+					data.flush();
+					out.writeInt(body.size());
+					out.writeLong(entry.time);
+					body.writeTo(out);
+				}
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			// the recording is abandoned
+		} catch (IOException e) {
+			closed = true;
+			System.err.println("Error writing recording: " + file.getPath());
+			System.err.println("Exception message: " + e.getMessage());
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// nothing more can be done
+			}
+		}
+	}
+
+	/**
+	 * This method is used to get the project a recording starts from.
+	 * @param file the file of the recording
+	 * @return the file of the project, which only exists if the canvas was not blank
+	 */
+	static File base(File file) {
+		return new File(file.getPath() + "." + ProjectFile.EXTENSION);
+	}
+
+	/**
+	 * This class represents a recording being played back on layers of its own, one record
+	 * at a time.
+	 */
+	public static class Player implements Closeable {
+		private final DataInputStream in;
+		private final LayerStack layers;
+		private final int width, height;
+		private final long length;
+		private long position = HEADER_SIZE;
+		private long time;
+		private byte[] body;
+		private boolean ended;
+
+		/**
+		 * This constructor is used to open a recording and put the layers in the state it starts from.
+		 * @param file the file of the recording
+		 * @throws IOException if the file is not a recording or its start could not be read
+		 */
+		public Player(File file) throws IOException {
+			length = file.length();
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("Not a recording: " + file);
+				}
+				width = in.readInt();
+				height = in.readInt();
+				if (width <= 0 || height <= 0) {
+					throw new IOException("Invalid size " + width + "x" + height);
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			layers = new LayerStack(width, height, PixelFormat.negotiate(null));
+			File base = base(file);
+			try {
+				if (base.isFile()) {
+					ProjectFile project = ProjectFile.read(base, layers.getHistory());
+					if (project.getWidth() != width || project.getHeight() != height) {
+						throw new IOException("The start of the recording has another size");
+					}
+					layers.replace(project.getLayers(), project.getActiveIndex());
+				}
+			} catch (IOException e) {
+				in.close();
+				layers.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * This method is used to get the width of the canvas.
+		 * @return the width
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * This method is used to get the height of the canvas.
+		 * @return the height
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * This method is used to get the layers the recording is played on.
+		 * @return the layers
+		 */
+		public LayerStack getLayers() {
+			return layers;
+		}
+
+		/**
+		 * This method is used to get the time of the next record, reading it if needed.
+		 * @return the time since the recording started in nanoseconds, or -1 if there are no more
+		 *         complete records
+		 * @throws IOException if the file could not be read
+		 */
+		public long peek() throws IOException {
+			if (body == null && !ended) {
+				try {
+					int size = in.readInt();
+					time = in.readLong();
+					if (size <= 0 || size > 1 << 30) {
+						ended = true;
+					} else {
+						body = new byte[size];
+						in.readFully(body);
+						position += 12 + size;
+					}
+				} catch (EOFException e) {
+					body = null;
+					ended = true;
+				}
+			}
+			return ended ? -1 : time;
+		}
+
+		/**
+		 * This method is used to apply the next record to the layers.
+		 * @return the layer whose pixels changed, or null if the record changed the stack or there
+		 *         are no more records
+		 * @throws IOException if the file could not be read or holds an invalid record
+		 */
+		public Layer next() throws IOException {
+			if (peek() < 0) {
+				return null;
+			}
+			byte[] record = body;
+			body = null;
+			try {
+				return apply(new DataInputStream(new ByteArrayInputStream(record)), layers);
+			} catch (RuntimeException e) {
+				throw new IOException("Invalid recording record: " + e, e);
+			}
+		}
+
+		/**
+		 * This method is used to get how much of the recording was played.
+		 * @return the percentage of the file that was read
+		 */
+		public int getProgress() {
+			return length <= HEADER_SIZE ? 100 : (int) (100 * position / length);
+		}
+
+		/**
+		 * This method is used to close the file of the recording and throw the history of its layers away.
+		 * @throws IOException if the file could not be closed
+		 */
+		public void close() throws IOException {
+			layers.close();
+			in.close();
+		}
+	}
+}
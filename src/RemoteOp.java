@@ -0,0 +1,475 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents a message of a shared drawing session: the start, some points or the
+ * end of a pencil stroke, a whole operation such as a shape, a fill, a clear or a loaded image,
+ * an undo or a redo, or the move or delete of a shape.
+ * Pencil strokes are sent while they are drawn so the others see them grow. Their points are
+ * written as differences from the point before, in as few bytes as they need, which is one or
+ * two bytes per coordinate for a stroke drawn by hand. Operations are written the way a
+ * {@link Document} saves them.
+ * Messages are sent in batches, each a length, a number of messages and the messages, so a
+ * message that cannot be read never throws the stream out of step.
+ * Every message carries the number of the client that sent it, which the server fills in.
+ * Strokes and operations also carry a number their sender gave them, so a shape can be moved
+ * or deleted by any client later, and every message that changes a layer carries the position
+ * of that layer in the stack. The points and the end of a stroke go to the layer its start named.
+ */
+final class RemoteOp {
+	static final int BEGIN = 1, POINTS = 2, END = 3, DRAW = 4, UNDO = 5, REDO = 6, REPLACE = 7;
+	static final int MAX_BATCH = 16 << 20;
+	static final int MAX_LAYER = 1 << 16;
+
+	private final int sender, kind, stroke, layer;
+	private final int color;
+	private final float width;
+	private final DrawOp op;
+	private long target;
+	private int[] points;
+	private int count;
+
+	/**
+	 * This constructor is used to create a message.
+	 * @param sender the number of the client that sent it
+	 * @param kind the kind of message
+	 * @param stroke the number the sender gave the stroke or the operation, or 0
+	 * @param layer the position of the layer the message changes, or 0
+	 * @param color the color of a stroke that starts
+	 * @param width the line width of a stroke that starts
+	 * @param op the operation that was drawn or the shape that was placed, or null
+	 */
+	private RemoteOp(int sender, int kind, int stroke, int layer, int color, float width, DrawOp op) {
+		this.sender = sender;
+		this.kind = kind;
+		this.stroke = stroke;
+		this.layer = layer;
+		this.color = color;
+		this.width = width;
+		this.op = op;
+	}
+
+	/**
+	 * This method is used to create the message that a pencil stroke starts.
+	 * @param stroke the number the sender gives the stroke
+	 * @param layer the position of the layer the stroke is drawn on
+	 * @param color the color of the stroke
+	 * @param width the line width of the stroke
+	 * @return the message
+	 */
+	static RemoteOp begin(int stroke, int layer, Color color, float width) {
+		return new RemoteOp(0, BEGIN, stroke, layer, color.getRGB(), width, null);
+	}
+
+	/**
+	 * This method is used to create the message of a point added to a pencil stroke.
+	 * @param stroke the number the sender gave the stroke
+	 * @param x the x coordinate of the point
+	 * @param y the y coordinate of the point
+	 * @return the message, to which later points of the stroke may be appended
+	 */
+	static RemoteOp point(int stroke, int x, int y) {
+		RemoteOp message = new RemoteOp(0, POINTS, stroke, 0, 0, 0, null);
+		message.points = new int[] { x, y };
+		message.count = 1;
+		return message;
+	}
+
+	/**
+	 * This method is used to create the message that a pencil stroke ended.
+	 * @param stroke the number the sender gave the stroke
+	 * @return the message
+	 */
+	static RemoteOp end(int stroke) {
+		return new RemoteOp(0, END, stroke, 0, 0, 0, null);
+	}
+
+	/**
+	 * This method is used to create the message of an operation that was drawn.
+	 * @param number the number the sender gives the operation
+	 * @param layer the position of the layer the operation is drawn on
+	 * @param op a shape, fill, clear or load operation, which must not change any more
+	 * @return the message
+	 */
+	static RemoteOp draw(int number, int layer, DrawOp op) {
+		return new RemoteOp(0, DRAW, number, layer, 0, 0, op);
+	}
+
+	/**
+	 * This method is used to create the message that the last change of a layer is undone or redone.
+	 * @param redo true to redo, false to undo
+	 * @param layer the position of the layer
+	 * @return the message
+	 */
+	static RemoteOp history(boolean redo, int layer) {
+		return new RemoteOp(0, redo ? REDO : UNDO, 0, layer, 0, 0, null);
+	}
+
+	/**
+	 * This method is used to create the message that a shape was moved or deleted.
+	 * @param number the number the sender gives the placed shape
+	 * @param layer the position of the layer of the shape
+	 * @param target the key of the message that drew the shape, as returned by {@link #getKey()}
+	 * @param placed the shape in its new place, or null if it was deleted
+	 * @return the message
+	 */
+	static RemoteOp replace(int number, int layer, long target, ShapeOp placed) {
+		RemoteOp message = new RemoteOp(0, REPLACE, number, layer, 0, 0, placed);
+		message.target = target;
+		return message;
+	}
+
+	/**
+	 * This method is used to get the number of the client that sent the message.
+	 * @return the number, or 0 if it was not sent through a server yet
+	 */
+	int getSender() {
+		return sender;
+	}
+
+	/**
+	 * This method is used to get the kind of the message.
+	 * @return {@link #BEGIN}, {@link #POINTS}, {@link #END}, {@link #DRAW}, {@link #UNDO},
+	 * {@link #REDO} or {@link #REPLACE}
+	 */
+	int getKind() {
+		return kind;
+	}
+
+	/**
+	 * This method is used to get a key for the stroke or the operation of the message that no
+	 * other client's stroke or operation has.
+	 * @return the number of the sender and of the stroke or operation together
+	 */
+	long getKey() {
+		return key(sender, stroke);
+	}
+
+	/**
+	 * This method is used to get the key of a stroke or an operation.
+	 * @param sender the number of the client that sent it
+	 * @param number the number the client gave it
+	 * @return the number of the sender and of the stroke or operation together
+	 */
+	static long key(int sender, int number) {
+		return (long) sender << 32 | number & 0xffffffffL;
+	}
+
+	/**
+	 * This method is used to get the position of the layer the message changes.
+	 * It is only sent with the start of a stroke, operations, undos, redos and replaced shapes.
+	 * @return the position, 0 being the bottom layer
+	 */
+	int getLayer() {
+		return layer;
+	}
+
+	/**
+	 * This method is used to get the key of the message that drew the shape a message moves or deletes.
+	 * @return the key, as returned by {@link #getKey()}
+	 */
+	long getTarget() {
+		return target;
+	}
+
+	/**
+	 * This method is used to get the operation that was drawn, or the shape that was placed.
+	 * @return the operation, or null if the message is part of a pencil stroke, an undo, a redo
+	 * or the delete of a shape
+	 */
+	DrawOp getOp() {
+		return op;
+	}
+
+	/**
+	 * This method is used to create the pencil stroke that a message starts, drawn the way the pencil draws.
+	 * @return an empty stroke
+	 */
+	StrokeOp createStroke() {
+		return new StrokeOp(new Color(color, true), new BasicStroke(width, BasicStroke.CAP_ROUND,
+				BasicStroke.JOIN_ROUND));
+	}
+
+	/**
+	 * This method is used to add the points of the message to a pencil stroke, without drawing them.
+	 * @param target the stroke
+	 */
+	void addTo(StrokeOp target) {
+		for (int i = 0; i < count; i++) {
+			target.add(points[2 * i], points[2 * i + 1]);
+		}
+	}
+
+	/**
+	 * This method is used to append the points of a later message of the same stroke to this one,
+	 * so both are sent as one.
+	 * @param next the later message
+	 * @return false if the messages cannot be joined
+	 */
+	boolean append(RemoteOp next) {
+		if (kind != POINTS || next.kind != POINTS || getKey() != next.getKey()) {
+			return false;
+		}
+		if (2 * (count + next.count) > points.length) {
+			points = Arrays.copyOf(points, Math.max(points.length * 2, 2 * (count + next.count)));
+		}
+		System.arraycopy(next.points, 0, points, 2 * count, 2 * next.count);
+		count += next.count;
+		return true;
+	}
+
+	/**
+	 * This method is used to join the messages that add points to the same stroke.
+	 * Points are only joined while the sender sent nothing else in between, so the order in
+	 * which each client drew is kept.
+	 * @param batch the messages in the order they were drawn
+	 * @return the messages to send
+	 */
+	static List<RemoteOp> coalesce(List<RemoteOp> batch) {
+		List<RemoteOp> joined = new ArrayList<>(batch.size());
+		Map<Integer, RemoteOp> last = new HashMap<>();
+		for (RemoteOp message : batch) {
+			RemoteOp before = last.get(message.getSender());
+			if (before != null && before.append(message)) {
+				continue;
+			}
+			joined.add(message);
+			last.put(message.getSender(), message);
+		}
+		return joined;
+	}
+
+	/**
+	 * This method is used to write the message.
+	 * @param out the output to write to
+	 * @throws IOException if the message could not be written
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeByte(kind);
+		writeNumber(out, sender);
+		switch (kind) {
+			case BEGIN:
+				writeNumber(out, stroke);
+				writeNumber(out, layer);
+				out.writeInt(color);
+				out.writeFloat(width);
+				break;
+			case POINTS:
+				writeNumber(out, stroke);
+				writeNumber(out, count);
+				for (int i = 0, x = 0, y = 0; i < count; i++) {
+					writeNumber(out, points[2 * i] - x);
+					writeNumber(out, points[2 * i + 1] - y);
+					x = points[2 * i];
+					y = points[2 * i + 1];
+				}
+				break;
+			case END:
+				writeNumber(out, stroke);
+				break;
+			case UNDO:
+			case REDO:
+				writeNumber(out, layer);
+				break;
+			case REPLACE:
+				writeNumber(out, stroke);
+				writeNumber(out, layer);
+				writeNumber(out, (int) (target >>> 32));
+				writeNumber(out, (int) target);
+				out.writeBoolean(op != null);
+				if (op != null) {
+					op.write(out);
+				}
+				break;
+			default:
+				writeNumber(out, stroke);
+				writeNumber(out, layer);
+				op.write(out);
+		}
+	}
+
+	/**
+	 * This method is used to read a message written by {@link #write(DataOutput)}.
+	 * Only operations that are safe to take from another client are accepted: shapes, fills,
+	 * clears and loaded images.
+	 * @param in the input to read from
+	 * @param sender the number of the client it came from, or -1 to keep the one that was written
+	 * @return the message
+	 * @throws IOException if the input does not hold a valid message
+	 */
+	static RemoteOp read(DataInput in, int sender) throws IOException {
+		int kind = in.readUnsignedByte();
+		int written = readNumber(in);
+		int from = sender < 0 ? written : sender;
+		switch (kind) {
+			case BEGIN: {
+				int stroke = readNumber(in), layer = readLayer(in), color = in.readInt();
+				float width = in.readFloat();
+				if (!(width >= 0 && width <= 1000)) {
+					throw new IOException("Invalid line width " + width);
+				}
+				return new RemoteOp(from, BEGIN, stroke, layer, color, width, null);
+			}
+			case POINTS: {
+				int stroke = readNumber(in), count = readNumber(in);
+				if (count <= 0 || count > MAX_BATCH / 2) {
+					throw new IOException("Invalid number of points " + count);
+				}
+				RemoteOp message = new RemoteOp(from, POINTS, stroke, 0, 0, 0, null);
+				message.points = new int[2 * count];
+				message.count = count;
+				for (int i = 0, x = 0, y = 0; i < count; i++) {
+					message.points[2 * i] = x += readNumber(in);
+					message.points[2 * i + 1] = y += readNumber(in);
+				}
+				return message;
+			}
+			case END:
+				return new RemoteOp(from, END, readNumber(in), 0, 0, 0, null);
+			case DRAW: {
+				int number = readNumber(in), layer = readLayer(in);
+				DrawOp op = DrawOp.read(in);
+				if (!(op instanceof ShapeOp || op instanceof FillOp || op instanceof ClearOp || op instanceof LoadOp)) {
+					throw new IOException("Operation not allowed: " + op.getClass().getSimpleName());
+				}
+				return new RemoteOp(from, DRAW, number, layer, 0, 0, op);
+			}
+			case UNDO:
+			case REDO:
+				return new RemoteOp(from, kind, 0, readLayer(in), 0, 0, null);
+			case REPLACE: {
+				int number = readNumber(in), layer = readLayer(in);
+				long target = key(readNumber(in), readNumber(in));
+				DrawOp placed = in.readBoolean() ? DrawOp.read(in) : null;
+				if (placed != null && !(placed instanceof ShapeOp)) {
+					throw new IOException("Operation not allowed: " + placed.getClass().getSimpleName());
+				}
+				RemoteOp message = new RemoteOp(from, REPLACE, number, layer, 0, 0, placed);
+				message.target = target;
+				return message;
+			}
+			default:
+				throw new IOException("Unknown message type " + kind);
+		}
+	}
+
+	/**
+	 * This method is used to write a message on its own, so a server can send it to many clients.
+	 * @return the bytes of the message
+	 */
+	byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			write(out);
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Error writing message", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * This method is used to write a batch of messages that were already written on their own.
+	 * @param out the output to write to, which is not flushed
+	 * @param messages the bytes of each message
+	 * @throws IOException if the batch could not be written
+	 */
+	static void writeBatch(DataOutput out, List<byte[]> messages) throws IOException {
+		int length = 4;
+		for (byte[] message : messages) {
+			length += message.length;
+		}
+		out.writeInt(length);
+		out.writeInt(messages.size());
+		for (byte[] message : messages) {
+			out.write(message);
+		}
+	}
+
+	/**
+	 * This method is used to read a batch of messages.
+	 * @param in the input to read from
+	 * @param sender the number of the client it came from, or -1 to keep the ones that were written
+	 * @return the messages
+	 * @throws IOException if the input ended or does not hold a valid batch
+	 */
+	static List<RemoteOp> readBatch(DataInput in, int sender) throws IOException {
+		int length = in.readInt();
+		if (length < 4 || length > MAX_BATCH) {
+			throw new IOException("Invalid batch length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		DataInputStream batch = new DataInputStream(new ByteArrayInputStream(bytes));
+		int count = batch.readInt();
+		if (count < 0 || count > length) {
+			throw new IOException("Invalid batch size " + count);
+		}
+		List<RemoteOp> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			messages.add(read(batch, sender));
+		}
+		return messages;
+	}
+
+	/**
+	 * This method is used to read the position of a layer.
+	 * @param in the input to read from
+	 * @return the position
+	 * @throws IOException if the input does not hold a valid position
+	 */
+	private static int readLayer(DataInput in) throws IOException {
+		int layer = readNumber(in);
+		if (layer < 0 || layer >= MAX_LAYER) {
+			throw new IOException("Invalid layer " + layer);
+		}
+		return layer;
+	}
+
+	/**
+	 * This method is used to write a number in as few bytes as it needs, seven bits per byte,
+	 * with small negative numbers as short as small positive ones.
+	 * @param out the output to write to
+	 * @param value the number
+	 * @throws IOException if the number could not be written
+	 */
+	private static void writeNumber(DataOutput out, int value) throws IOException {
+		int bits = value << 1 ^ value >> 31;
+		while ((bits & ~0x7f) != 0) {
+			out.writeByte(bits & 0x7f | 0x80);
+			bits >>>= 7;
+		}
+		out.writeByte(bits);
+	}
+
+	/**
+	 * This method is used to read a number written by {@link #writeNumber(DataOutput, int)}.
+	 * @param in the input to read from
+	 * @return the number
+	 * @throws IOException if the input does not hold a valid number
+	 */
+	private static int readNumber(DataInput in) throws IOException {
+		int bits = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			bits |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return bits >>> 1 ^ -(bits & 1);
+			}
+		}
+		throw new IOException("Invalid number");
+	}
+}
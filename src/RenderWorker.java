@@ -0,0 +1,76 @@
+import java.awt.Rectangle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * This class runs the drawing of a canvas on a dedicated render thread.
+ * Drawing tasks are executed one at a time against the back surface. After each task the
+ * region it changed is copied into the front surface, which is all the event dispatch thread
+ * ever reads when painting.
+ */
+public class RenderWorker {
+	private final Consumer<Rectangle> published;
+	private final TiledSurface back, front;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "render-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * This constructor is used to create a render worker for a canvas.
+	 * @param back the surface the tasks draw on
+	 * @param published the callback told about every region copied to the front surface
+	 */
+	public RenderWorker(TiledSurface back, Consumer<Rectangle> published) {
+		this.back = back;
+		this.published = published;
+		this.front = new TiledSurface(back.getWidth(), back.getHeight(), back.getFormat());
+		front.copyFrom(back, back.getBounds());
+	}
+
+	/**
+	 * This method is used to queue a drawing task.
+	 * @param task the task to run on the render thread, returning the region it changed or null
+	 */
+	public void submit(Supplier<Rectangle> task) {
+		executor.execute(() -> {
+			Rectangle dirty;
+			try {
+				dirty = task.get();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (dirty != null) {
+				publish(dirty);
+			}
+		});
+	}
+
+	/**
+	 * This method is used to get the last published frame.
+	 * Callers must synchronize on the returned surface while reading it.
+	 * @return the front surface
+	 */
+	public TiledSurface getFrame() {
+		return front;
+	}
+
+	/**
+	 * This method is used to copy a changed region to the front surface and repaint it.
+	 * @param dirty the region that was changed
+	 */
+	private void publish(Rectangle dirty) {
+		Rectangle r = dirty.intersection(back.getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		synchronized (front) {
+			front.copyFrom(back, r);
+		}
+		published.accept(r);
+	}
+}
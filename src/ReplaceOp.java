@@ -0,0 +1,313 @@
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Concrete implementation of {@link DrawOp} for moving or deleting a shape that was drawn
+ * before. The pixels under the old place of the shape, as they would be had the shape never
+ * been drawn, are worked out once by the {@link Document} and kept, so replaying the operation
+ * only copies them back and draws the shape at its new place, on top of everything else.
+ * In binary form only the operation that drew the shape and the new shape are written,
+ * the pixels are worked out again when the operation is replayed. A shape whose operation the
+ * document has forgotten is written with the pixels instead, and with the pixels under its old
+ * place at the start of the document, which the document needs to move other shapes there.
+ */
+class ReplaceOp extends DrawOp {
+	private ShapeOp target;
+	private final ShapeOp placed;
+	private int source = -1;
+	private Rectangle region;
+	private BufferedImage erased;
+	private BufferedImage under;
+
+	/**
+	 * Creates an operation that replaces a shape.
+	 *
+	 * @param target The operation of the shape to replace.
+	 * @param placed The shape to draw instead, or null to delete the shape.
+	 */
+	public ReplaceOp(ShapeOp target, ShapeOp placed) {
+		this.target = target;
+		this.placed = placed;
+	}
+
+	/**
+	 * Gets the operation of the shape that is replaced.
+	 *
+	 * @return The replaced shape.
+	 */
+	public ShapeOp getTarget() {
+		return target;
+	}
+
+	/**
+	 * Gets the shape drawn instead.
+	 *
+	 * @return The new shape, or null if the shape is deleted.
+	 */
+	public ShapeOp getPlaced() {
+		return placed;
+	}
+
+	/**
+	 * Gets the position in the document of the operation that drew the replaced shape.
+	 *
+	 * @return The position, or -1 if the pixels were not worked out yet.
+	 */
+	public int getSource() {
+		return source;
+	}
+
+	/**
+	 * Checks whether the pixels under the old place of the shape were worked out.
+	 *
+	 * @return True if the operation can be drawn.
+	 */
+	public boolean isPrepared() {
+		return erased != null;
+	}
+
+	/**
+	 * Keeps the pixels under the old place of the shape.
+	 *
+	 * @param source The position in the document of the operation that drew the shape.
+	 * @param region The region of the old place of the shape.
+	 * @param erased The pixels of that region without the shape.
+	 */
+	void prepare(int source, Rectangle region, BufferedImage erased) {
+		this.source = source;
+		this.region = new Rectangle(region);
+		this.erased = erased;
+	}
+
+	/**
+	 * Gets the region of the old place of the shape.
+	 *
+	 * @return The region, or null if the pixels were not worked out yet.
+	 */
+	public Rectangle getRegion() {
+		return region;
+	}
+
+	/**
+	 * Gets the pixels under the old place of the shape at the start of a document that forgot
+	 * the operation of the shape.
+	 *
+	 * @return The pixels of the region without the shape, or null if the operation of the shape
+	 *         is still in the document.
+	 */
+	BufferedImage getUnder() {
+		return under;
+	}
+
+	/**
+	 * Keeps the pixels under the old place of the shape at the start of a document that forgot
+	 * the operation of the shape.
+	 *
+	 * @param under The pixels of the region without the shape, or null.
+	 */
+	void setUnder(BufferedImage under) {
+		this.under = under;
+	}
+
+	/**
+	 * Creates a copy of the operation for a list of operations that starts elsewhere in the document.
+	 * If the shape was drawn before the operations kept in the list, the copy keeps only its pixels.
+	 *
+	 * @param start The position in the document of the first operation kept in the list.
+	 * @param index The index of that operation in the list.
+	 * @return The copy, whose source is counted from the start of the list.
+	 */
+	ReplaceOp rebase(int start, int index) {
+		boolean forgotten = source < start;
+		ReplaceOp op = new ReplaceOp(forgotten ? null : target, placed);
+		op.source = forgotten ? -1 : source - start + index;
+		op.region = region;
+		op.erased = erased;
+		op.under = under;
+		return op;
+	}
+
+	/**
+	 * Finds the replaced shape after the operation was read, among the operations before it.
+	 *
+	 * @param ops The operations of the document, from the first one.
+	 * @throws IOException If the source does not point at a shape.
+	 */
+	void resolve(java.util.List<DrawOp> ops) throws IOException {
+		if (source < 0 && erased != null) {
+			return;
+		}
+		DrawOp op = source >= 0 && source < ops.size() ? ops.get(source) : null;
+		if (op instanceof ReplaceOp) {
+			op = ((ReplaceOp) op).placed;
+		}
+		if (!(op instanceof ShapeOp)) {
+			throw new IOException("Replaced operation " + source + " is not a shape");
+		}
+		target = (ShapeOp) op;
+	}
+
+	/**
+	 * Puts back the pixels under the old place of the shape and draws the new shape.
+	 * The pixels replace what is there, so transparent ones of a layer stay transparent.
+	 *
+	 * @param g The graphics context to use for drawing.
+	 */
+	@Override
+	public void render(Graphics2D g) {
+		if (erased != null) {
+			Composite composite = g.getComposite();
+			g.setComposite(AlphaComposite.Src);
+			g.drawImage(erased, region.x, region.y, null);
+			g.setComposite(composite);
+		}
+		if (placed != null) {
+			placed.render(g);
+		}
+	}
+
+	/**
+	 * Puts back the pixels under the old place of the shape and draws the new shape, only on
+	 * the tiles the new shape covers.
+	 *
+	 * @param surface The surface on which the operation will be drawn.
+	 * @param clip    The region to draw in.
+	 */
+	@Override
+	public void render(TiledSurface surface, Rectangle clip) {
+		if (erased != null) {
+			surface.draw(region.intersection(clip), g -> {
+				g.setComposite(AlphaComposite.Src);
+				g.drawImage(erased, region.x, region.y, null);
+			});
+		}
+		if (placed != null) {
+			placed.render(surface, clip);
+		}
+	}
+
+	/**
+	 * Puts back the pixels under the old place of the shape and draws the new shape.
+	 *
+	 * @param surface The surface on which the operation will be drawn.
+	 */
+	@Override
+	public void render(TiledSurface surface) {
+		render(surface, surface.getBounds());
+	}
+
+	/**
+	 * Gets the old and the new place of the shape.
+	 *
+	 * @return The region in canvas coordinates.
+	 */
+	@Override
+	public Rectangle getBounds() {
+		Rectangle bounds = region != null ? new Rectangle(region) : target.getBounds();
+		if (placed != null) {
+			bounds.add(placed.getBounds());
+		}
+		return bounds;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		if (source < 0 && erased == null) {
+			throw new IOException("Replaced shape has no position");
+		}
+		out.writeByte(REPLACE);
+		out.writeInt(source);
+		if (source < 0) {
+			out.writeInt(region.x);
+			out.writeInt(region.y);
+			writeImage(out, erased);
+			out.writeBoolean(under != null);
+			if (under != null) {
+				writeImage(out, under);
+			}
+		}
+		out.writeBoolean(placed != null);
+		if (placed != null) {
+			placed.write(out);
+		}
+	}
+
+	/**
+	 * Reads the rest of a replace operation after its type.
+	 * The replaced shape is found later with {@link #resolve(java.util.List)}.
+	 *
+	 * @param in The input to read from.
+	 * @return The replace operation.
+	 * @throws IOException If the input does not hold a valid operation.
+	 */
+	static ReplaceOp readReplace(DataInput in) throws IOException {
+		int source = in.readInt();
+		Rectangle region = null;
+		BufferedImage erased = null, under = null;
+		if (source < 0) {
+			int x = in.readInt(), y = in.readInt();
+			erased = readImage(in);
+			under = in.readBoolean() ? readImage(in) : null;
+			region = new Rectangle(x, y, erased.getWidth(), erased.getHeight());
+		}
+		ShapeOp placed = null;
+		if (in.readBoolean()) {
+			DrawOp op = read(in);
+			if (!(op instanceof ShapeOp)) {
+				throw new IOException("Replacement is not a shape");
+			}
+			placed = (ShapeOp) op;
+		}
+		ReplaceOp op = new ReplaceOp(null, placed);
+		op.source = source;
+		op.region = region;
+		op.erased = erased;
+		op.under = under;
+		return op;
+	}
+
+	/**
+	 * Writes pixels encoded as a PNG, after their length.
+	 *
+	 * @param out   The output to write to.
+	 * @param image The pixels.
+	 * @throws IOException If the pixels could not be encoded.
+	 */
+	private static void writeImage(DataOutput out, BufferedImage image) throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", png);
+		out.writeInt(png.size());
+		out.write(png.toByteArray());
+	}
+
+	/**
+	 * Reads pixels written by {@link #writeImage(DataOutput, BufferedImage)}.
+	 *
+	 * @param in The input to read from.
+	 * @return The pixels.
+	 * @throws IOException If the input does not hold a PNG image.
+	 */
+	private static BufferedImage readImage(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length <= 0) {
+			throw new IOException("Invalid image length " + length);
+		}
+		byte[] png = new byte[length];
+		in.readFully(png);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+		if (image == null) {
+			throw new IOException("Invalid image");
+		}
+		return image;
+	}
+}
@@ -0,0 +1,200 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class represents a stack with a maximum size and an optional maximum weight.
+ * Elements are kept in a ring buffer, so pushing, popping and evicting the oldest element
+ * all take constant time. When the stack grows past its limits the oldest elements are
+ * evicted and handed to the removal listener.
+ * The class is not synchronized.
+ * @param <T> The type of the stack.
+ */
+public class RingStack<T> implements Iterable<T> {
+
+	private final Object[] elements;
+	private final long[] weights;
+	private final long maxWeight;
+	private final ToLongFunction<? super T> weigher;
+	private final Consumer<? super T> removalListener;
+	private int bottom, size;
+	private long weight;
+
+	/**
+	 * This constructor is used to create a new stack limited by element count only.
+	 * @param maxSize The maximum size of the stack.
+	 */
+	public RingStack(int maxSize) {
+		this(maxSize, Long.MAX_VALUE, element -> 0, element -> {
+		});
+	}
+
+	/**
+	 * This constructor is used to create a new stack limited by element count and total weight.
+	 * @param maxSize The maximum size of the stack.
+	 * @param maxWeight The maximum total weight of the stack.
+	 * @param weigher The function giving the weight of an element when it is pushed.
+	 * @param removalListener The listener called with every element that is evicted or cleared.
+	 */
+	public RingStack(int maxSize, long maxWeight, ToLongFunction<? super T> weigher,
+			Consumer<? super T> removalListener) {
+		this.elements = new Object[maxSize];
+		this.weights = new long[maxSize];
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.removalListener = removalListener;
+	}
+
+	/**
+	 * This method is used to push an element to the stack.
+	 * The oldest elements are evicted until the stack fits its limits again,
+	 * but the pushed element itself is always kept.
+	 * @param element The element to push.
+	 */
+	public void push(T element) {
+		if (size == elements.length) {
+			evict();
+		}
+		int index = slot(size);
+		long elementWeight = weigher.applyAsLong(element);
+		elements[index] = element;
+		weights[index] = elementWeight;
+		weight += elementWeight;
+		size++;
+		while (weight > maxWeight && size > 1) {
+			evict();
+		}
+	}
+
+	/**
+	 * This method is used to remove the newest element from the stack.
+	 * @return The newest element.
+	 */
+	public T pop() {
+		if (size == 0) {
+			throw new NoSuchElementException();
+		}
+		int index = slot(size - 1);
+		T element = get(index);
+		elements[index] = null;
+		weight -= weights[index];
+		size--;
+		return element;
+	}
+
+	/**
+	 * This method is used to get the newest element without removing it.
+	 * @return The newest element, or null if the stack is empty.
+	 */
+	public T peek() {
+		return size == 0 ? null : get(slot(size - 1));
+	}
+
+	/**
+	 * This method is used to get the oldest element without removing it.
+	 * @return The oldest element, or null if the stack is empty.
+	 */
+	public T peekBottom() {
+		return size == 0 ? null : get(bottom);
+	}
+
+	/**
+	 * This method is used to remove the oldest element and hand it to the removal listener.
+	 */
+	public void evict() {
+		if (size == 0) {
+			throw new NoSuchElementException();
+		}
+		T element = get(bottom);
+		elements[bottom] = null;
+		weight -= weights[bottom];
+		bottom = slot(1);
+		size--;
+		removalListener.accept(element);
+	}
+
+	/**
+	 * This method is used to remove every element and hand each of them to the removal listener.
+	 */
+	public void clear() {
+		while (size > 0) {
+			evict();
+		}
+		bottom = 0;
+	}
+
+	/**
+	 * This method is used to weigh every element again, after elements changed in a way that
+	 * changes their weight. It may be called by the removal listener while elements are evicted.
+	 */
+	public void reweigh() {
+		weight = 0;
+		for (int i = 0; i < size; i++) {
+			int index = slot(i);
+			weights[index] = weigher.applyAsLong(get(index));
+			weight += weights[index];
+		}
+	}
+
+	/**
+	 * This method is used to check whether the stack is empty.
+	 * @return true if the stack has no elements
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * This method is used to get the number of elements in the stack.
+	 * @return the number of elements
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * This method is used to get the total weight of the elements in the stack.
+	 * @return the weight the elements had when they were pushed
+	 */
+	public long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * This method is used to iterate over the elements from the oldest to the newest.
+	 * @return an iterator over the elements
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			private int next;
+
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			public T next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				return get(slot(next++));
+			}
+		};
+	}
+
+	/**
+	 * This method is used to get the array index of an element counted from the bottom.
+	 * @param offset the position of the element above the bottom
+	 * @return the index of the element in the ring buffer
+	 */
+	private int slot(int offset) {
+		int index = bottom + offset;
+		return index >= elements.length ? index - elements.length : index;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T get(int index) {
+		return (T) elements[index];
+	}
+}
@@ -1,12 +1,19 @@
 import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
 
 /**
  * Abstract base class for all drawable shapes. Each shape has a start point and
  * an end point
  * that define its position and size on the canvas.
+ * The outline of the shape is traced into a geometry object that is kept until one of the
+ * points changes and then reused, so drawing or dragging a shape allocates nothing.
  */
 abstract class Shape implements Cloneable {
-    protected Point start, end;
+    protected Point start = new Point(), end = new Point();
+    private java.awt.Shape outline;
+    private boolean traced;
 
     /**
      * Default constructor for shape. Initializes a shape object.
@@ -14,72 +21,199 @@ abstract class Shape implements Cloneable {
     public Shape() {
     }
 
+    /**
+     * Creates an empty shape from its name.
+     *
+     * @param name The name of the shape, as returned by {@link #getName()}.
+     * @return A new shape without points, or null if the name is unknown.
+     */
+    public static Shape create(String name) {
+        switch (name) {
+            case "rect":
+                return new Rectangle();
+            case "circle":
+                return new Oval();
+            case "rightTriangle":
+                return new RightTriangle();
+            case "triangle":
+                return new Triangle();
+            case "line":
+                return new Line();
+            case "diamond":
+                return new Diamond();
+            case "pentagon":
+                return new Pentagon();
+            case "arrow":
+                return new Arrow();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the name of the kind of shape, the same name the tool buttons use.
+     *
+     * @return The name of the shape.
+     */
+    public abstract String getName();
+
     /**
      * Sets the starting point of the shape.
-     * 
-     * @param start The starting point of the shape as a {@link Point}.
+     *
+     * @param start The starting point of the shape as a {@link Point}, which is copied.
      */
     public void setPosition(Point start) {
-        this.start = start;
+        this.start.setLocation(start);
+        traced = false;
     }
 
     /**
-     * Abstract method to draw the shape on a given graphics context.
-     * 
+     * Draws the outline of the shape on a given graphics context.
+     *
      * @param g The {@link Graphics} context on which the shape will be drawn.
      */
-    public abstract void draw(Graphics g);
+    public void draw(Graphics g) {
+        ((Graphics2D) g).draw(getOutline());
+    }
 
     /**
      * Sets the ending point of the shape, effectively resizing it based on the
      * start and end points.
-     * 
-     * @param end The ending point of the shape as a {@link Point}.
+     *
+     * @param end The ending point of the shape as a {@link Point}, which is copied.
      */
     public void resize(Point end) {
-        this.end = end;
+        resize(end.x, end.y);
     }
 
     /**
-     * Clones the current shape.
-     * 
-     * @return A clone of the current shape.
-     * @throws CloneNotSupportedException If the object's class does not support the
-     *                                    {@link Cloneable} interface.
+     * Sets the ending point of the shape without creating a {@link Point}.
+     *
+     * @param x The x coordinate of the ending point.
+     * @param y The y coordinate of the ending point.
      */
-    @Override
-    public Object clone() throws CloneNotSupportedException {
-        return super.clone();
+    public void resize(int x, int y) {
+        end.setLocation(x, y);
+        traced = false;
     }
 
     /**
-     * Helper method to calculate and return essential geometric values required for
-     * mirroring or constructing complex shapes.
-     * This method computes horizontal and vertical dimensions based on the start
-     * and end points.
-     * 
-     * @return An array of four integers: [maximum X, width, maximum Y, height].
+     * Gets the outline of the shape. The geometry belongs to the shape and is reused, so it
+     * must not be changed and is only valid until the next call to {@link #setPosition(Point)}
+     * or {@link #resize(Point)}.
+     *
+     * @return The outline of the shape.
      */
-    protected int[] calculateValues() {
-        int zeroX, x, zeroY, y;
-
-        if (start.x < end.x) {
-            zeroX = end.x;
-            x = start.x - end.x;
-        } else {
-            zeroX = start.x;
-            x = end.x - start.x;
+    public java.awt.Shape getOutline() {
+        if (!traced) {
+            outline = trace(outline);
+            traced = true;
         }
+        return outline;
+    }
 
-        if (start.y < end.y) {
-            zeroY = end.y;
-            y = start.y - end.y;
-        } else {
-            zeroY = start.y;
-            y = end.y - start.y;
+    /**
+     * Traces the outline of the shape from its start and end points. Rectangles, ovals and
+     * lines keep the matching Java2D geometry, since Java2D draws those differently from a
+     * general path.
+     *
+     * @param previous The geometry returned by the last call, to be reused, or null.
+     * @return The outline of the shape.
+     */
+    protected abstract java.awt.Shape trace(java.awt.Shape previous);
+
+    /**
+     * Helper method to get an empty path to trace a polygon into.
+     *
+     * @param previous The geometry returned by the last trace, or null.
+     * @return The reset path.
+     */
+    protected static Path2D.Float path(java.awt.Shape previous) {
+        if (previous == null) {
+            return new Path2D.Float();
         }
+        Path2D.Float path = (Path2D.Float) previous;
+        path.reset();
+        return path;
+    }
+
+    /**
+     * Gets the region the shape covers when drawn with the given stroke. Every shape is drawn
+     * inside the box spanned by its start and end points, so the region is that box grown by
+     * the reach of the stroke.
+     *
+     * @param stroke The stroke the shape is drawn with.
+     * @return The region that drawing the shape may change.
+     */
+    public java.awt.Rectangle getBounds(BasicStroke stroke) {
+        return getBounds(stroke, new java.awt.Rectangle());
+    }
+
+    /**
+     * Gets the region the shape covers when drawn with the given stroke, without allocating.
+     *
+     * @param stroke The stroke the shape is drawn with.
+     * @param bounds The rectangle to store the region in.
+     * @return The given rectangle.
+     */
+    public java.awt.Rectangle getBounds(BasicStroke stroke, java.awt.Rectangle bounds) {
+        return strokeBounds(start.x, start.y, end.x, end.y, stroke, bounds);
+    }
 
-        return new int[] { zeroX, x, zeroY, y };
+    /**
+     * Helper method to calculate the region covered by a box drawn with a stroke.
+     *
+     * @param x1     The x coordinate of the first corner.
+     * @param y1     The y coordinate of the first corner.
+     * @param x2     The x coordinate of the second corner.
+     * @param y2     The y coordinate of the second corner.
+     * @param stroke The stroke used for drawing.
+     * @return The region that drawing may change.
+     * @see #strokeBounds(int, int, int, int, BasicStroke, java.awt.Rectangle)
+     */
+    static java.awt.Rectangle strokeBounds(int x1, int y1, int x2, int y2, BasicStroke stroke) {
+        return strokeBounds(x1, y1, x2, y2, stroke, new java.awt.Rectangle());
+    }
+
+    /**
+     * Helper method to calculate the region covered by a box drawn with a stroke. The box is
+     * grown by half the stroke width, scaled by how far square caps and mitered joins can
+     * reach past it, plus a pixel of antialiasing on each side.
+     *
+     * @param x1     The x coordinate of the first corner.
+     * @param y1     The y coordinate of the first corner.
+     * @param x2     The x coordinate of the second corner.
+     * @param y2     The y coordinate of the second corner.
+     * @param stroke The stroke used for drawing.
+     * @param bounds The rectangle to store the region in.
+     * @return The given rectangle.
+     */
+    static java.awt.Rectangle strokeBounds(int x1, int y1, int x2, int y2, BasicStroke stroke,
+            java.awt.Rectangle bounds) {
+        float reach = stroke.getLineJoin() == BasicStroke.JOIN_MITER
+                ? Math.max(stroke.getMiterLimit(), 1.5f)
+                : 1.5f;
+        int pad = (int) Math.ceil(stroke.getLineWidth() / 2 * reach) + 2;
+        bounds.setBounds(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad,
+                Math.abs(x2 - x1) + 2 * pad, Math.abs(y2 - y1) + 2 * pad);
+        return bounds;
+    }
+
+    /**
+     * Clones the current shape. The clone gets its own points and outline.
+     *
+     * @return A clone of the current shape.
+     * @throws CloneNotSupportedException If the object's class does not support the
+     *                                    {@link Cloneable} interface.
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        Shape copy = (Shape) super.clone();
+        copy.start = new Point(start);
+        copy.end = new Point(end);
+        copy.outline = null;
+        copy.traced = false;
+        return copy;
     }
 }
 
@@ -90,17 +224,24 @@ class Rectangle extends Shape {
     public Rectangle() {
     }
 
+    @Override
+    public String getName() {
+        return "rect";
+    }
+
     /**
-     * Draws a rectangle using the start and end points to determine the top left
+     * Traces a rectangle using the start and end points to determine the top left
      * corner and dimensions.
-     * 
-     * @param g The graphics context to use for drawing.
+     *
+     * @param previous The rectangle of the last trace, or null.
+     * @return The rectangle.
      */
     @Override
-    public void draw(Graphics g) {
-        int startX = Math.min(start.x, end.x);
-        int startY = Math.min(start.y, end.y);
-        g.drawRect(startX, startY, Math.abs(end.x - start.x), Math.abs(end.y - start.y));
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        java.awt.Rectangle r = previous == null ? new java.awt.Rectangle() : (java.awt.Rectangle) previous;
+        r.setBounds(Math.min(start.x, end.x), Math.min(start.y, end.y),
+                Math.abs(end.x - start.x), Math.abs(end.y - start.y));
+        return r;
     }
 }
 
@@ -111,16 +252,23 @@ class Oval extends Shape {
     public Oval() {
     }
 
+    @Override
+    public String getName() {
+        return "circle";
+    }
+
     /**
-     * Draws an oval within the bounding box defined by the start and end points.
-     * 
-     * @param g The graphics context to use for drawing.
+     * Traces an oval within the bounding box defined by the start and end points.
+     *
+     * @param previous The ellipse of the last trace, or null.
+     * @return The ellipse.
      */
     @Override
-    public void draw(Graphics g) {
-        int startX = Math.min(start.x, end.x);
-        int startY = Math.min(start.y, end.y);
-        g.drawOval(startX, startY, Math.abs(end.x - start.x), Math.abs(end.y - start.y));
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        Ellipse2D.Float e = previous == null ? new Ellipse2D.Float() : (Ellipse2D.Float) previous;
+        e.setFrame(Math.min(start.x, end.x), Math.min(start.y, end.y),
+                Math.abs(end.x - start.x), Math.abs(end.y - start.y));
+        return e;
     }
 }
 
@@ -131,16 +279,25 @@ class RightTriangle extends Shape {
     public RightTriangle() {
     }
 
+    @Override
+    public String getName() {
+        return "rightTriangle";
+    }
+
     /**
-     * Draws a right triangle with a right angle at the end point.
-     * 
-     * @param g The graphics context to use for drawing.
+     * Traces a right triangle with a right angle at the end point.
+     *
+     * @param previous The path of the last trace, or null.
+     * @return The closed path.
      */
     @Override
-    public void draw(Graphics g) {
-        int[] xPoints = { start.x, start.x, end.x };
-        int[] yPoints = { start.y, end.y, end.y };
-        g.drawPolygon(xPoints, yPoints, 3);
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        Path2D.Float path = path(previous);
+        path.moveTo(start.x, start.y);
+        path.lineTo(start.x, end.y);
+        path.lineTo(end.x, end.y);
+        path.closePath();
+        return path;
     }
 }
 
@@ -151,16 +308,25 @@ class Triangle extends Shape {
     public Triangle() {
     }
 
+    @Override
+    public String getName() {
+        return "triangle";
+    }
+
     /**
-     * Draws an equilateral triangle based on the start and end points.
-     * 
-     * @param g The graphics context to use for drawing.
+     * Traces an equilateral triangle based on the start and end points.
+     *
+     * @param previous The path of the last trace, or null.
+     * @return The closed path.
      */
     @Override
-    public void draw(Graphics g) {
-        int[] xPoints = { start.x, end.x, start.x + (end.x - start.x) / 2 };
-        int[] yPoints = { start.y, end.y, start.y };
-        g.drawPolygon(xPoints, yPoints, 3);
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        Path2D.Float path = path(previous);
+        path.moveTo(start.x, start.y);
+        path.lineTo(end.x, end.y);
+        path.lineTo(start.x + (end.x - start.x) / 2, start.y);
+        path.closePath();
+        return path;
     }
 }
 
@@ -171,14 +337,22 @@ class Line extends Shape {
     public Line() {
     }
 
+    @Override
+    public String getName() {
+        return "line";
+    }
+
     /**
-     * Draws a line from the start point to the end point.
-     * 
-     * @param g The graphics context to use for drawing.
+     * Traces a line from the start point to the end point.
+     *
+     * @param previous The line of the last trace, or null.
+     * @return The line.
      */
     @Override
-    public void draw(Graphics g) {
-        g.drawLine(start.x, start.y, end.x, end.y);
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        Line2D.Float line = previous == null ? new Line2D.Float() : (Line2D.Float) previous;
+        line.setLine(start.x, start.y, end.x, end.y);
+        return line;
     }
 }
 
@@ -189,17 +363,29 @@ class Diamond extends Shape {
     public Diamond() {
     }
 
+    @Override
+    public String getName() {
+        return "diamond";
+    }
+
     /**
-     * Draws a diamond shape centered at the midpoint between the start and end
+     * Traces a diamond shape centered at the midpoint between the start and end
      * points.
-     * 
-     * @param g The graphics context to use for drawing.
+     *
+     * @param previous The path of the last trace, or null.
+     * @return The closed path.
      */
     @Override
-    public void draw(Graphics g) {
-        int[] xPoints = { start.x, start.x + (end.x - start.x) / 2, end.x, start.x + (end.x - start.x) / 2 };
-        int[] yPoints = { start.y + (end.y - start.y) / 2, end.y, start.y + (end.y - start.y) / 2, start.y };
-        g.drawPolygon(xPoints, yPoints, 4);
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        Path2D.Float path = path(previous);
+        int midX = start.x + (end.x - start.x) / 2;
+        int midY = start.y + (end.y - start.y) / 2;
+        path.moveTo(start.x, midY);
+        path.lineTo(midX, end.y);
+        path.lineTo(end.x, midY);
+        path.lineTo(midX, start.y);
+        path.closePath();
+        return path;
     }
 }
 
@@ -210,24 +396,33 @@ class Pentagon extends Shape {
     public Pentagon() {
     }
 
+    @Override
+    public String getName() {
+        return "pentagon";
+    }
+
     /**
-     * Draws a pentagon using geometric calculations from {@link calculateValues()}
-     * to determine the points.
-     * 
-     * @param g The graphics context to use for drawing.
+     * Traces a pentagon using geometric calculations from the bottom right corner
+     * of the box spanned by the start and end points.
+     *
+     * @param previous The path of the last trace, or null.
+     * @return The closed path.
      */
     @Override
-    public void draw(Graphics g) {
-        int zeroX, x, zeroY, y;
-        int[] values = calculateValues();
-        zeroX = values[0];
-        x = values[1];
-        zeroY = values[2];
-        y = values[3];
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        Path2D.Float path = path(previous);
+        int zeroX = Math.max(start.x, end.x);
+        int x = Math.min(start.x, end.x) - zeroX;
+        int zeroY = Math.max(start.y, end.y);
+        int y = Math.min(start.y, end.y) - zeroY;
 
-        int[] xPoints = { zeroX + x / 6, zeroX + x * 5 / 6, zeroX + x, zeroX + x / 2, zeroX };
-        int[] yPoints = { zeroY, zeroY, zeroY + y * 13 / 22, zeroY + y, zeroY + y * 13 / 22 };
-        g.drawPolygon(xPoints, yPoints, 5);
+        path.moveTo(zeroX + x / 6, zeroY);
+        path.lineTo(zeroX + x * 5 / 6, zeroY);
+        path.lineTo(zeroX + x, zeroY + y * 13 / 22);
+        path.lineTo(zeroX + x / 2, zeroY + y);
+        path.lineTo(zeroX, zeroY + y * 13 / 22);
+        path.closePath();
+        return path;
     }
 }
 
@@ -238,24 +433,34 @@ class Arrow extends Shape {
     public Arrow() {
     }
 
+    @Override
+    public String getName() {
+        return "arrow";
+    }
+
     /**
-     * Draws an arrow pointing right, using geometric calculations to define the
+     * Traces an arrow pointing right, using geometric calculations to define the
      * shape based on the start and end points.
-     * 
-     * @param g The graphics context to use for drawing.
+     *
+     * @param previous The path of the last trace, or null.
+     * @return The closed path.
      */
     @Override
-    public void draw(Graphics g) {
-        int zeroX, x, zeroY, y;
-        int[] values = calculateValues();
-        zeroX = values[0];
-        x = values[1];
-        zeroY = values[2];
-        y = values[3];
-
-        int[] xPoints = { zeroX, zeroX, zeroX + x / 2, zeroX + x / 2, zeroX + x, zeroX + x / 2, zeroX + x / 2 };
-        int[] yPoints = { zeroY + y / 4, zeroY + y * 3 / 4, zeroY + y * 3 / 4, zeroY + y, zeroY + y / 2, zeroY,
-                zeroY + y / 4 };
-        g.drawPolygon(xPoints, yPoints, 7);
-    }
-}
\ No newline at end of file
+    protected java.awt.Shape trace(java.awt.Shape previous) {
+        Path2D.Float path = path(previous);
+        int zeroX = Math.max(start.x, end.x);
+        int x = Math.min(start.x, end.x) - zeroX;
+        int zeroY = Math.max(start.y, end.y);
+        int y = Math.min(start.y, end.y) - zeroY;
+
+        path.moveTo(zeroX, zeroY + y / 4);
+        path.lineTo(zeroX, zeroY + y * 3 / 4);
+        path.lineTo(zeroX + x / 2, zeroY + y * 3 / 4);
+        path.lineTo(zeroX + x / 2, zeroY + y);
+        path.lineTo(zeroX + x, zeroY + y / 2);
+        path.lineTo(zeroX + x / 2, zeroY);
+        path.lineTo(zeroX + x / 2, zeroY + y / 4);
+        path.closePath();
+        return path;
+    }
+}
@@ -0,0 +1,145 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Concrete implementation of {@link DrawOp} for shapes.
+ * Shapes stay selectable after they are drawn, so the operation can tell whether a point
+ * hits the shape and can create a moved copy of itself.
+ */
+class ShapeOp extends DrawOp {
+	private static final float HIT_WIDTH = 8;
+
+	private final Color color;
+	private final BasicStroke stroke;
+	private final Shape shape;
+
+	/**
+	 * Creates a shape operation from a copy of the given shape.
+	 *
+	 * @param shape  The shape to record, with its start and end points set.
+	 * @param color  The color of the shape.
+	 * @param stroke The stroke used to draw the shape.
+	 */
+	public ShapeOp(Shape shape, Color color, BasicStroke stroke) {
+		try {
+			this.shape = (Shape) shape.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+		this.color = color;
+		this.stroke = stroke;
+		this.shape.getOutline();
+	}
+
+	/**
+	 * Checks whether a point is on the outline of the shape, give or take a few pixels,
+	 * or inside a closed shape.
+	 *
+	 * @param x The x coordinate of the point.
+	 * @param y The y coordinate of the point.
+	 * @return True if the point hits the shape.
+	 */
+	public boolean hit(int x, int y) {
+		java.awt.Shape outline = shape.getOutline();
+		BasicStroke reach = new BasicStroke(Math.max(stroke.getLineWidth(), HIT_WIDTH), BasicStroke.CAP_ROUND,
+				BasicStroke.JOIN_ROUND);
+		return outline.contains(x, y) || reach.createStrokedShape(outline).contains(x, y);
+	}
+
+	/**
+	 * Creates a copy of the operation with the shape moved.
+	 *
+	 * @param dx The distance to move right.
+	 * @param dy The distance to move down.
+	 * @return The moved copy.
+	 */
+	public ShapeOp translate(int dx, int dy) {
+		ShapeOp moved = new ShapeOp(shape, color, stroke);
+		moved.shape.setPosition(new Point(shape.start.x + dx, shape.start.y + dy));
+		moved.shape.resize(shape.end.x + dx, shape.end.y + dy);
+		moved.shape.getOutline();
+		return moved;
+	}
+
+	/**
+	 * Draws the recorded shape.
+	 *
+	 * @param g The graphics context to use for drawing.
+	 */
+	@Override
+	public void render(Graphics2D g) {
+		g.setColor(color);
+		g.setStroke(stroke);
+		shape.draw(g);
+	}
+
+	/**
+	 * Strokes the outline of the shape once and fills it on the tiles it covers inside a clip.
+	 *
+	 * @param surface The surface on which the shape will be drawn.
+	 * @param clip    The region to draw in.
+	 */
+	@Override
+	public void render(TiledSurface surface, Rectangle clip) {
+		Rectangle bounds = getBounds().intersection(clip);
+		if (!bounds.isEmpty()) {
+			surface.fill(stroke.createStrokedShape(shape.getOutline()), color, bounds);
+		}
+	}
+
+	/**
+	 * Strokes the outline of the shape once and fills it on the tiles it covers.
+	 *
+	 * @param surface The surface on which the shape will be drawn.
+	 */
+	@Override
+	public void render(TiledSurface surface) {
+		surface.fill(stroke.createStrokedShape(shape.getOutline()), color, getBounds());
+	}
+
+	/**
+	 * Gets the box of the shape grown by the reach of its stroke.
+	 *
+	 * @return The region in canvas coordinates.
+	 */
+	@Override
+	public Rectangle getBounds() {
+		return shape.getBounds(stroke);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(SHAPE);
+		out.writeUTF(shape.getName());
+		out.writeInt(shape.start.x);
+		out.writeInt(shape.start.y);
+		out.writeInt(shape.end.x);
+		out.writeInt(shape.end.y);
+		out.writeInt(color.getRGB());
+		writeBasicStroke(out, stroke);
+	}
+
+	/**
+	 * Reads the rest of a shape operation after its type.
+	 *
+	 * @param in The input to read from.
+	 * @return The shape operation.
+	 * @throws IOException If the input does not hold a valid shape.
+	 */
+	static ShapeOp readShape(DataInput in) throws IOException {
+		String name = in.readUTF();
+		Shape shape = Shape.create(name);
+		if (shape == null) {
+			throw new IOException("Unknown shape " + name);
+		}
+		shape.setPosition(new Point(in.readInt(), in.readInt()));
+		shape.resize(new Point(in.readInt(), in.readInt()));
+		return new ShapeOp(shape, new Color(in.readInt(), true), readBasicStroke(in));
+	}
+}
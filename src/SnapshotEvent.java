@@ -0,0 +1,24 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The event for a checkpoint of the canvas taken for the undo history.
+ */
+@Name("strokes.Snapshot")
+@Label("History Snapshot")
+@Category("Strokes")
+@StackTrace(false)
+class SnapshotEvent extends Event {
+	@Label("Duration")
+	@Timespan
+	long elapsed;
+
+	@Label("Size")
+	@DataAmount
+	long size;
+}
@@ -0,0 +1,128 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class represents a memory-mapped scratch file that stores cold undo history.
+ * The file is split into fixed-size blocks, so storing and freeing a record never needs
+ * to move other records around.
+ */
+public class SpillFile {
+	public static final int BLOCK_SIZE = 16 * 1024;
+
+	private final int blockCount;
+	private final int[] freeBlocks;
+	private int freeCount;
+	private File file;
+	private MappedByteBuffer buffer;
+	private boolean failed;
+
+	/**
+	 * This constructor is used to create a spill file of the given capacity.
+	 * The file itself is only created when the first record is written.
+	 * @param capacity the maximum number of bytes the file may hold
+	 */
+	public SpillFile(long capacity) {
+		blockCount = (int) Math.min(capacity / BLOCK_SIZE, Integer.MAX_VALUE / BLOCK_SIZE);
+		freeBlocks = new int[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			freeBlocks[i] = blockCount - 1 - i;
+		}
+		freeCount = blockCount;
+	}
+
+	/**
+	 * This method is used to write a record to the file.
+	 * @param data the bytes to write
+	 * @param length the number of bytes to write
+	 * @return the blocks holding the record, or null if the file is full
+	 */
+	public synchronized int[] write(byte[] data, int length) {
+		int needed = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		if (needed > freeCount || !open()) {
+			return null;
+		}
+		int[] blocks = new int[needed];
+		for (int i = 0; i < needed; i++) {
+			blocks[i] = freeBlocks[--freeCount];
+			int offset = i * BLOCK_SIZE;
+			buffer.put(blocks[i] * BLOCK_SIZE, data, offset, Math.min(BLOCK_SIZE, length - offset));
+		}
+		return blocks;
+	}
+
+	/**
+	 * This method is used to read a record back from the file.
+	 * @param blocks the blocks holding the record
+	 * @param length the length of the record in bytes
+	 * @return the bytes of the record
+	 */
+	public synchronized byte[] read(int[] blocks, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < blocks.length; i++) {
+			int offset = i * BLOCK_SIZE;
+			buffer.get(blocks[i] * BLOCK_SIZE, data, offset, Math.min(BLOCK_SIZE, length - offset));
+		}
+		return data;
+	}
+
+	/**
+	 * This method is used to give the blocks of a record back to the file.
+	 * @param blocks the blocks holding the record
+	 */
+	public synchronized void free(int[] blocks) {
+		for (int block : blocks) {
+			freeBlocks[freeCount++] = block;
+		}
+	}
+
+	/**
+	 * This method is used to get the number of bytes currently stored in the file.
+	 * @return the used size in bytes
+	 */
+	public synchronized long getUsedSize() {
+		return (long) (blockCount - freeCount) * BLOCK_SIZE;
+	}
+
+	/**
+	 * This method is used to delete the scratch file once no record is read from it any more.
+	 * Nothing can be written to it afterwards.
+	 */
+	public synchronized void close() {
+		failed = true;
+		buffer = null;
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+
+	/**
+	 * This method is used to create and map the scratch file the first time it is needed.
+	 * @return true if the file is mapped
+	 */
+	private boolean open() {
+		if (buffer != null) {
+			return true;
+		}
+		if (failed || blockCount == 0) {
+			return false;
+		}
+		try {
+			file = File.createTempFile("strokes-history", ".tmp");
+			file.deleteOnExit();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						(long) blockCount * BLOCK_SIZE);
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.println("Error creating the undo history scratch file");
+			System.err.println("Exception message: " + e.getMessage());
+			failed = true;
+			return false;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Concrete implementation of {@link DrawOp} for pencil strokes.
+ * Points are buffered as they arrive and drawn in batches, each batch as one stroked path
+ * continuing from the last point of the previous batch. The batches are remembered so that
+ * replaying the stroke produces exactly the same pixels.
+ * Points may be added on one thread while batches are drawn on another.
+ */
+class StrokeOp extends DrawOp {
+	private final Color color;
+	private final BasicStroke stroke;
+	private final Path2D.Float path = new Path2D.Float();
+	private int[] xPoints = new int[16], yPoints = new int[16];
+	private int[] batchEnds = new int[4];
+	private int count, batches, flushed;
+
+	/**
+	 * Creates an empty pencil stroke.
+	 *
+	 * @param color  The color of the stroke.
+	 * @param stroke The stroke used to draw the path.
+	 */
+	public StrokeOp(Color color, BasicStroke stroke) {
+		this.color = color;
+		this.stroke = stroke;
+	}
+
+	/**
+	 * Adds a point to the end of the polyline without drawing it.
+	 *
+	 * @param x The x coordinate of the point.
+	 * @param y The y coordinate of the point.
+	 */
+	public synchronized void add(int x, int y) {
+		if (count == xPoints.length) {
+			xPoints = Arrays.copyOf(xPoints, count * 2);
+			yPoints = Arrays.copyOf(yPoints, count * 2);
+		}
+		xPoints[count] = x;
+		yPoints[count] = y;
+		count++;
+	}
+
+	/**
+	 * Gets the number of points in the polyline.
+	 *
+	 * @return The number of points.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Draws the points added since the last flush as a single path.
+	 *
+	 * @param surface The surface to draw on.
+	 * @return The region that was changed, or null if there was nothing to draw.
+	 */
+	public synchronized Rectangle flush(TiledSurface surface) {
+		int from = Math.max(flushed - 1, 0);
+		if (!endBatch()) {
+			return null;
+		}
+		return drawBatch(surface, from, count, null);
+	}
+
+	/**
+	 * Ends the current batch without drawing it, for strokes that are built up front and only
+	 * drawn by {@link #render(TiledSurface)}.
+	 *
+	 * @return True if the batch had at least one segment.
+	 */
+	public synchronized boolean endBatch() {
+		if (count - Math.max(flushed - 1, 0) < 2) {
+			return false;
+		}
+		if (batches == batchEnds.length) {
+			batchEnds = Arrays.copyOf(batchEnds, batches * 2);
+		}
+		batchEnds[batches++] = count;
+		flushed = count;
+		return true;
+	}
+
+	/**
+	 * Draws every batch of the polyline, the same way the pencil drew it.
+	 *
+	 * @param g The graphics context to use for drawing.
+	 */
+	@Override
+	public synchronized void render(Graphics2D g) {
+		g.setColor(color);
+		g.setStroke(stroke);
+		int from = 0;
+		for (int i = 0; i < batches; i++) {
+			tracePath(from, batchEnds[i]);
+			g.draw(path);
+			from = batchEnds[i] - 1;
+		}
+	}
+
+	/**
+	 * Draws every batch of the polyline on the tiles each batch covers.
+	 *
+	 * @param surface The surface to draw on.
+	 */
+	@Override
+	public synchronized void render(TiledSurface surface) {
+		render(surface, null);
+	}
+
+	/**
+	 * Draws every batch of the polyline on the tiles each batch covers inside a clip.
+	 *
+	 * @param surface The surface to draw on.
+	 * @param clip    The region to draw in, or null for the whole surface.
+	 */
+	@Override
+	public synchronized void render(TiledSurface surface, Rectangle clip) {
+		int from = 0;
+		for (int i = 0; i < batches; i++) {
+			drawBatch(surface, from, batchEnds[i], clip);
+			from = batchEnds[i] - 1;
+		}
+	}
+
+	/**
+	 * Gets the region covered by the batches drawn so far.
+	 *
+	 * @return The region in canvas coordinates.
+	 */
+	@Override
+	public synchronized Rectangle getBounds() {
+		return flushed == 0 ? new Rectangle() : bounds(0, flushed);
+	}
+
+	/**
+	 * Writes the batches drawn so far; points that were not flushed yet are left out.
+	 *
+	 * @param out The output to write to.
+	 * @throws IOException If the stroke could not be written.
+	 */
+	@Override
+	public synchronized void write(DataOutput out) throws IOException {
+		out.writeByte(STROKE);
+		out.writeInt(color.getRGB());
+		writeBasicStroke(out, stroke);
+		out.writeInt(flushed);
+		for (int i = 0; i < flushed; i++) {
+			out.writeInt(xPoints[i]);
+			out.writeInt(yPoints[i]);
+		}
+		out.writeInt(batches);
+		for (int i = 0; i < batches; i++) {
+			out.writeInt(batchEnds[i]);
+		}
+	}
+
+	/**
+	 * Reads the rest of a pencil stroke after its type.
+	 *
+	 * @param in The input to read from.
+	 * @return The stroke.
+	 * @throws IOException If the input does not hold a valid stroke.
+	 */
+	static StrokeOp readStroke(DataInput in) throws IOException {
+		StrokeOp op = new StrokeOp(new Color(in.readInt(), true), readBasicStroke(in));
+		int points = in.readInt();
+		if (points < 0) {
+			throw new IOException("Invalid stroke length " + points);
+		}
+		for (int i = 0; i < points; i++) {
+			op.add(in.readInt(), in.readInt());
+		}
+		int batches = in.readInt();
+		for (int i = 0, end = 0; i < batches; i++) {
+			int next = in.readInt();
+			if (next <= end || next > points) {
+				throw new IOException("Invalid stroke batch " + next);
+			}
+			op.count = end = next;
+			if (!op.endBatch()) {
+				throw new IOException("Invalid stroke batch " + next);
+			}
+		}
+		op.count = points;
+		return op;
+	}
+
+	/**
+	 * Helper method to draw a run of points as one path, stroked once and filled on the tiles it covers.
+	 *
+	 * @param surface The surface to draw on.
+	 * @param from    The index of the first point.
+	 * @param to      The index after the last point.
+	 * @param clip    The region to draw in, or null for the whole surface.
+	 * @return The region covered by the path.
+	 */
+	private Rectangle drawBatch(TiledSurface surface, int from, int to, Rectangle clip) {
+		Rectangle bounds = tracePath(from, to);
+		if (clip == null || clip.intersects(bounds)) {
+			surface.fill(stroke.createStrokedShape(path), color, clip == null ? bounds : bounds.intersection(clip));
+		}
+		return bounds;
+	}
+
+	/**
+	 * Helper method to turn a run of points into the path.
+	 *
+	 * @param from The index of the first point.
+	 * @param to   The index after the last point.
+	 * @return The region covered by the path when stroked.
+	 */
+	private Rectangle tracePath(int from, int to) {
+		path.reset();
+		path.moveTo(xPoints[from], yPoints[from]);
+		for (int i = from + 1; i < to; i++) {
+			path.lineTo(xPoints[i], yPoints[i]);
+		}
+		return bounds(from, to);
+	}
+
+	/**
+	 * Helper method to calculate the region covered by a run of points when stroked.
+	 *
+	 * @param from The index of the first point.
+	 * @param to   The index after the last point.
+	 * @return The region covered by the points.
+	 */
+	private Rectangle bounds(int from, int to) {
+		int minX = xPoints[from], minY = yPoints[from], maxX = minX, maxY = minY;
+		for (int i = from + 1; i < to; i++) {
+			minX = Math.min(minX, xPoints[i]);
+			minY = Math.min(minY, yPoints[i]);
+			maxX = Math.max(maxX, xPoints[i]);
+			maxY = Math.max(maxY, yPoints[i]);
+		}
+		return Shape.strokeBounds(minX, minY, maxX, maxY, stroke);
+	}
+}
@@ -0,0 +1,423 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class represents the pixels of a set of 64x64 tiles of the canvas.
+ * It is used for the raster checkpoints of a {@link Document}. A checkpoint only keeps the
+ * tiles of the {@link TiledSurface} that changed since the checkpoint it follows, with the
+ * changed tiles that went back to the background marked as such, so a checkpoint is restored
+ * from the chain of deltas leading back to one that holds every tile. Tiles that were never
+ * drawn on are not stored, so restoring a chain onto a cleared surface brings back exactly
+ * what was captured.
+ * The pixels are kept in one of three forms: raw tiles on the heap, deflated bytes on the heap,
+ * or deflated bytes in a {@link SpillFile}. The {@link HistoryStore} moves deltas between them.
+ * Each tile is deflated on its own, so restoring part of the canvas only inflates the tiles it needs.
+ */
+public class TileDelta {
+	public static final int TILE_SIZE = 64;
+
+	private final int width, height, columns;
+	private Map<Integer, int[]> tiles = new HashMap<>();
+	private final BitSet held = new BitSet();
+	private final BitSet blanks = new BitSet();
+	private int[] keys;
+	private int[] starts;
+	private long rawSize;
+	private byte[] packed;
+	private int packedLength;
+	private int[] blocks;
+	private SpillFile spill;
+	private boolean dropped;
+	private int pins;
+
+	/**
+	 * This constructor is used to create an empty delta for an image of the given size.
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public TileDelta(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	/**
+	 * This method is used to remember the current pixels of tiles of a surface.
+	 * @param surface the surface to copy the tiles from
+	 * @param changed the indexes of the tiles of the surface to capture, as returned by
+	 *        {@link TiledSurface#indexOf(int, int)}, whose background tiles are marked as such;
+	 *        or null to capture every tile that was drawn on
+	 */
+	public synchronized void capture(TiledSurface surface, BitSet changed) {
+		int surfaceColumns = (width + TiledSurface.TILE_SIZE - 1) / TiledSurface.TILE_SIZE;
+		for (int key = 0; key < surface.getTileCount(); key++) {
+			if (changed != null ? !changed.get(key) : !surface.hasTile(key)) {
+				continue;
+			}
+			int x = (key % surfaceColumns) * TiledSurface.TILE_SIZE, y = (key / surfaceColumns) * TiledSurface.TILE_SIZE;
+			BufferedImage source = surface.getTile(key);
+			int lastX = Math.min(x + TiledSurface.TILE_SIZE, width), lastY = Math.min(y + TiledSurface.TILE_SIZE, height);
+			for (int ty = y / TILE_SIZE; ty <= (lastY - 1) / TILE_SIZE; ty++) {
+				for (int tx = x / TILE_SIZE; tx <= (lastX - 1) / TILE_SIZE; tx++) {
+					int index = ty * columns + tx;
+					if (source == null) {
+						blanks.set(index);
+						continue;
+					}
+					Rectangle tile = tileBounds(index);
+					int[] pixels = new int[tile.width * tile.height];
+					source.getRaster().getDataElements(tile.x % TiledSurface.TILE_SIZE, tile.y % TiledSurface.TILE_SIZE,
+							tile.width, tile.height, pixels);
+					tiles.put(index, pixels);
+					held.set(index);
+					rawSize += pixels.length * 4L;
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method is used to copy the tiles of a chain of deltas back onto the surface, in place,
+	 * the newest copy of each tile winning. Tiles of the surface that hold none of the stored
+	 * tiles are reset to the background. Compressed or spilled pixels are inflated as they are
+	 * copied, and a delta whose tiles newer ones all hold is not read at all.
+	 * @param chain the deltas, from the newest to the one holding every tile, all pinned
+	 * @param surface the surface to restore the tiles on
+	 */
+	public static void restore(List<TileDelta> chain, TiledSurface surface) {
+		BitSet seen = new BitSet(), kept = new BitSet();
+		for (TileDelta delta : chain) {
+			delta.copyTo(surface, null, seen, kept);
+		}
+		surface.retain(kept);
+	}
+
+	/**
+	 * This method is used to copy the tiles of a chain of deltas that intersect a region onto a
+	 * surface, the newest copy of each tile winning, leaving every other tile of the surface as
+	 * it is. Compressed or spilled pixels are inflated as they are copied.
+	 * @param chain the deltas, from the newest to the one holding every tile, all pinned
+	 * @param surface the surface to copy the tiles to
+	 * @param region the region to copy
+	 */
+	public static void paste(List<TileDelta> chain, TiledSurface surface, Rectangle region) {
+		BitSet seen = new BitSet();
+		for (TileDelta delta : chain) {
+			delta.copyTo(surface, region, seen, null);
+		}
+	}
+
+	/**
+	 * This method is used to copy the tiles a newer delta of the chain did not copy yet.
+	 * @param surface the surface to copy the tiles to
+	 * @param region the region to copy, or null to copy every tile
+	 * @param seen the tiles copied by newer deltas, which this delta's are added to
+	 * @param kept the tiles of the surface that got pixels, or null to reset the tiles marked as
+	 *        background instead
+	 */
+	private synchronized void copyTo(TiledSurface surface, Rectangle region, BitSet seen, BitSet kept) {
+		BitSet wanted = (BitSet) held.clone();
+		wanted.andNot(seen);
+		for (int key = wanted.nextSetBit(0); key >= 0 && region != null; key = wanted.nextSetBit(key + 1)) {
+			if (!tileBounds(key).intersects(region)) {
+				wanted.clear(key);
+			}
+		}
+		seen.or(wanted);
+		for (Map.Entry<Integer, int[]> entry : read(wanted).entrySet()) {
+			Rectangle tile = tileBounds(entry.getKey());
+			BufferedImage target = surface.allocate(tile.x, tile.y);
+			target.getRaster().setDataElements(tile.x % TiledSurface.TILE_SIZE, tile.y % TiledSurface.TILE_SIZE,
+					tile.width, tile.height, entry.getValue());
+			if (kept != null) {
+				kept.set(surface.indexOf(tile.x, tile.y));
+			}
+		}
+		for (int key = blanks.nextSetBit(0); key >= 0; key = blanks.nextSetBit(key + 1)) {
+			Rectangle tile = tileBounds(key);
+			if (seen.get(key) || region != null && !tile.intersects(region)) {
+				continue;
+			}
+			seen.set(key);
+			if (kept == null) {
+				surface.clear(tile);
+			}
+		}
+	}
+
+	/**
+	 * This method is used to take in the tiles of the delta this one follows, so this one holds
+	 * every tile and the older one can be thrown away. Both deltas must be pinned.
+	 * @param older the delta this one follows, holding every tile
+	 */
+	public synchronized void inherit(TileDelta older) {
+		synchronized (older) {
+			BitSet missing = (BitSet) older.held.clone();
+			missing.andNot(held);
+			missing.andNot(blanks);
+			if (missing.isEmpty()) {
+				return;
+			}
+			unpack();
+			for (Map.Entry<Integer, int[]> entry : older.read(missing).entrySet()) {
+				tiles.put(entry.getKey(), entry.getValue());
+				rawSize += entry.getValue().length * 4L;
+			}
+			held.or(missing);
+		}
+	}
+
+	/**
+	 * This method is used to deflate the raw tiles so they take less space on the heap.
+	 * Each tile is flushed, so it can be inflated on its own without the ones before it.
+	 * @param deflater the deflater to compress with, without a zlib header
+	 * @param scratch a buffer of at least one tile worth of bytes
+	 */
+	public synchronized void compress(Deflater deflater, byte[] scratch) {
+		if (tiles == null || dropped) {
+			return;
+		}
+		keys = new int[tiles.size()];
+		starts = new int[tiles.size()];
+		byte[] out = new byte[4096];
+		int length = 0, i = 0;
+		IntBuffer ints = ByteBuffer.wrap(scratch).asIntBuffer();
+		deflater.reset();
+		for (Map.Entry<Integer, int[]> entry : tiles.entrySet()) {
+			starts[i] = length;
+			keys[i++] = entry.getKey();
+			int[] pixels = entry.getValue();
+			ints.clear();
+			ints.put(pixels);
+			deflater.setInput(scratch, 0, pixels.length * 4);
+			do {
+				if (length == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				length += deflater.deflate(out, length, out.length - length, Deflater.FULL_FLUSH);
+			} while (length == out.length);
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			if (length == out.length) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		packed = Arrays.copyOf(out, length);
+		packedLength = length;
+		tiles = null;
+	}
+
+	/**
+	 * This method is used to move compressed pixels from the heap to the spill file.
+	 * @param file the spill file to move the pixels to
+	 * @return true if the pixels were moved, false if the file is full
+	 */
+	public synchronized boolean spill(SpillFile file) {
+		if (packed == null) {
+			return true;
+		}
+		int[] written = file.write(packed, packedLength);
+		if (written == null) {
+			return false;
+		}
+		blocks = written;
+		spill = file;
+		packed = null;
+		return true;
+	}
+
+	/**
+	 * This method is used to throw the stored pixels away when the history runs out of space.
+	 * A dropped delta can no longer be restored.
+	 */
+	public synchronized void drop() {
+		release();
+		tiles = null;
+		packed = null;
+		dropped = true;
+	}
+
+	/**
+	 * This method is used to throw the stored pixels away unless the delta is being restored.
+	 * @return true if the delta was dropped, false if it is pinned
+	 */
+	public synchronized boolean tryDrop() {
+		if (pins > 0) {
+			return false;
+		}
+		drop();
+		return true;
+	}
+
+	/**
+	 * This method is used to keep the delta from being dropped by the history store while it
+	 * is restored. Every successful call must be followed by {@link #unpin()}.
+	 * @return true if the delta is pinned, false if it was already dropped
+	 */
+	public synchronized boolean pin() {
+		if (dropped) {
+			return false;
+		}
+		pins++;
+		return true;
+	}
+
+	/**
+	 * This method is used to let the history store drop the delta again.
+	 */
+	public synchronized void unpin() {
+		pins--;
+	}
+
+	/**
+	 * This method is used to give the blocks used by this delta back to the spill file.
+	 */
+	public synchronized void release() {
+		if (blocks != null) {
+			spill.free(blocks);
+			blocks = null;
+			spill = null;
+		}
+	}
+
+	/**
+	 * This method is used to check whether the pixels are kept as raw tiles.
+	 * @return true if the pixels are not compressed
+	 */
+	public synchronized boolean isHot() {
+		return tiles != null;
+	}
+
+	/**
+	 * This method is used to check whether the pixels are kept compressed on the heap.
+	 * @return true if the pixels are compressed but not spilled
+	 */
+	public synchronized boolean isPacked() {
+		return packed != null;
+	}
+
+	/**
+	 * This method is used to check whether the pixels were thrown away.
+	 * @return true if the delta can no longer be restored
+	 */
+	public synchronized boolean isDropped() {
+		return dropped;
+	}
+
+	/**
+	 * This method is used to get the memory taken by the stored pixels on the heap.
+	 * @return the size of the stored pixels in bytes
+	 */
+	public synchronized long getHeapSize() {
+		if (tiles != null) {
+			long size = 0;
+			for (int[] pixels : tiles.values()) {
+				size += pixels.length * 4L;
+			}
+			return size;
+		}
+		return packed != null ? packedLength : 0;
+	}
+
+	/**
+	 * This method is used to get the size the stored pixels have as raw tiles, whether they
+	 * are raw, compressed or spilled.
+	 * @return the size of the captured pixels in bytes
+	 */
+	public synchronized long getRawSize() {
+		return rawSize;
+	}
+
+	/**
+	 * This method is used to turn compressed or spilled pixels back into raw tiles.
+	 */
+	private void unpack() {
+		if (tiles != null) {
+			return;
+		}
+		tiles = read(null);
+		release();
+		packed = null;
+		keys = null;
+		starts = null;
+	}
+
+	/**
+	 * This method is used to get the pixels of some of the stored tiles, inflating them if they
+	 * are compressed or spilled without keeping the others.
+	 * @param wanted the tiles to get, or null for every one
+	 * @return the pixels of the tiles by index
+	 */
+	private Map<Integer, int[]> read(BitSet wanted) {
+		if (tiles != null && wanted == null) {
+			return tiles;
+		}
+		Map<Integer, int[]> read = new HashMap<>();
+		if (tiles != null) {
+			for (int key = wanted.nextSetBit(0); key >= 0; key = wanted.nextSetBit(key + 1)) {
+				read.put(key, tiles.get(key));
+			}
+			return read;
+		}
+		int remaining = wanted == null ? keys.length : wanted.cardinality();
+		if (remaining == 0) {
+			return read;
+		}
+		byte[] data = packed != null ? packed : spill.read(blocks, packedLength);
+		byte[] bytes = new byte[TILE_SIZE * TILE_SIZE * 4];
+		Inflater inflater = new Inflater(true);
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				int key = keys[i];
+				if (wanted != null && !wanted.get(key)) {
+					continue;
+				}
+				inflater.reset();
+				inflater.setInput(data, starts[i], packedLength - starts[i]);
+				Rectangle tile = tileBounds(key);
+				int size = tile.width * tile.height * 4, length = 0;
+				while (length < size) {
+					int n = inflater.inflate(bytes, length, size - length);
+					if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+						throw new DataFormatException("Truncated tile data");
+					}
+					length += n;
+				}
+				int[] pixels = new int[tile.width * tile.height];
+				ByteBuffer.wrap(bytes, 0, size).asIntBuffer().get(pixels);
+				read.put(key, pixels);
+				if (--remaining == 0) {
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupted undo history", e);
+		} finally {
+			inflater.end();
+		}
+		return read;
+	}
+
+	/**
+	 * This method is used to get the bounds of a tile, clipped to the image.
+	 * @param key the index of the tile
+	 * @return the bounds of the tile
+	 */
+	private Rectangle tileBounds(int key) {
+		int x = (key % columns) * TILE_SIZE;
+		int y = (key / columns) * TILE_SIZE;
+		return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+	}
+}
@@ -0,0 +1,747 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * This class represents the pixels of a canvas as a grid of tiles.
+ * A tile is only allocated when something is first drawn on it; every other tile stands for
+ * the plain background, so the memory used follows what was drawn rather than the size of the
+ * canvas. Clearing drops the tiles instead of painting over them.
+ * The background is white unless another color is given, such as a transparent one for the
+ * layers drawn over others.
+ * Copies and fills between tiles read and write whole runs of pixels through the rasters of
+ * the tiles, never taking their pixel arrays, so Java2D can keep caching them; they are split
+ * into bands of tile rows that run in parallel when the region is large.
+ * Tiles can also be paged in from a saved project: they are only read when first used, and
+ * each tile remembers where its saved copy is until it is changed, so a save can skip it.
+ * The surface also remembers which tiles changed since it was last asked, so a checkpoint of
+ * the undo history only copies those.
+ * The surface is not thread safe, callers that share it must synchronize on it.
+ */
+public class TiledSurface {
+	public static final int TILE_SIZE = 256;
+	public static final Color BACKGROUND = Color.white;
+	private static final long PARALLEL_PIXELS = 1L << 22;
+
+	private final int width, height, columns, rows;
+	private final PixelFormat format;
+	private final Color backgroundColor;
+	private final int background;
+	private final BufferedImage[] tiles;
+	private final long[] stored;
+	private final boolean[] changed;
+	private Pages pages;
+
+	/**
+	 * This interface represents where the pixels of tiles that were not read yet are kept.
+	 */
+	public interface Pages {
+		/**
+		 * This method is used to read the pixels of a tile.
+		 * It may be called by several threads at once, for different tiles.
+		 * @param offset where the tile is kept
+		 * @param pixels the array of the tile to fill, row after row
+		 */
+		void read(long offset, int[] pixels);
+	}
+
+	/**
+	 * This constructor is used to create a blank surface.
+	 * @param width the width of the surface
+	 * @param height the height of the surface
+	 * @param format the pixel format of the tiles, as returned by {@link PixelFormat#negotiate}
+	 */
+	public TiledSurface(int width, int height, PixelFormat format) {
+		this(width, height, format, BACKGROUND);
+	}
+
+	/**
+	 * This constructor is used to create a surface filled with a background color.
+	 * @param width the width of the surface
+	 * @param height the height of the surface
+	 * @param format the pixel format of the tiles
+	 * @param background the color of the tiles that were never drawn on
+	 */
+	public TiledSurface(int width, int height, PixelFormat format, Color background) {
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.backgroundColor = background;
+		this.background = format.encode(background);
+		this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		this.tiles = new BufferedImage[columns * rows];
+		this.stored = new long[tiles.length];
+		this.changed = new boolean[tiles.length];
+		Arrays.fill(stored, -1);
+	}
+
+	/**
+	 * This method is used to get the width of the surface.
+	 * @return the width in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * This method is used to get the height of the surface.
+	 * @return the height in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * This method is used to get the pixel format of the tiles.
+	 * @return the pixel format
+	 */
+	public PixelFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * This method is used to get the color of the tiles that were never drawn on.
+	 * @return the background color
+	 */
+	public Color getBackground() {
+		return backgroundColor;
+	}
+
+	/**
+	 * This method is used to get the bounds of the whole surface.
+	 * @return the bounds
+	 */
+	public Rectangle getBounds() {
+		return new Rectangle(0, 0, width, height);
+	}
+
+	/**
+	 * This method is used to draw on every tile that intersects a region.
+	 * The painter is called once per tile with an antialiased graphics context in canvas
+	 * coordinates, clipped to the tile, so it must draw the same thing every time.
+	 * @param bounds the region the painter may change
+	 * @param painter the code that draws
+	 */
+	public void draw(Rectangle bounds, Consumer<Graphics2D> painter) {
+		Rectangle r = bounds.intersection(getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		for (int ty = r.y / TILE_SIZE; ty <= (r.y + r.height - 1) / TILE_SIZE; ty++) {
+			for (int tx = r.x / TILE_SIZE; tx <= (r.x + r.width - 1) / TILE_SIZE; tx++) {
+				Graphics2D g = allocate(tx * TILE_SIZE, ty * TILE_SIZE).createGraphics();
+				g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+						RenderingHints.VALUE_ANTIALIAS_ON);
+				g.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+				painter.accept(g);
+				g.dispose();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to fill an area, such as an outline that was stroked once up front, on
+	 * the tiles it reaches. Blocks of tiles inside the bounds that the area misses are skipped
+	 * before any tile in them is allocated, so a long diagonal line only takes the tiles along it.
+	 * Each tile the area reaches fills it with an antialiased graphics context clipped to the tile.
+	 * @param area the area to fill, in canvas coordinates
+	 * @param color the color to fill with
+	 * @param bounds the region the area may change
+	 */
+	public void fill(java.awt.Shape area, Color color, Rectangle bounds) {
+		Rectangle r = bounds.intersection(getBounds());
+		if (!r.isEmpty()) {
+			fill(area, color, r, r.x / TILE_SIZE, r.y / TILE_SIZE, (r.x + r.width - 1) / TILE_SIZE,
+					(r.y + r.height - 1) / TILE_SIZE);
+		}
+	}
+
+	/**
+	 * This method is used to fill an area on a block of tiles, halving the block until it is
+	 * one tile or the area misses it. The part of a block inside the region is grown by a pixel
+	 * on each side for the antialiasing of edges that run along it.
+	 * @param area the area to fill
+	 * @param color the color to fill with
+	 * @param r the region the area may change, inside the surface
+	 * @param tx1 the first column of tiles of the block
+	 * @param ty1 the first row of tiles of the block
+	 * @param tx2 the last column of tiles of the block
+	 * @param ty2 the last row of tiles of the block
+	 */
+	private void fill(java.awt.Shape area, Color color, Rectangle r, int tx1, int ty1, int tx2, int ty2) {
+		Rectangle block = new Rectangle(tx1 * TILE_SIZE, ty1 * TILE_SIZE, (tx2 - tx1 + 1) * TILE_SIZE,
+				(ty2 - ty1 + 1) * TILE_SIZE).intersection(r);
+		block.grow(1, 1);
+		if (!area.intersects(block)) {
+			return;
+		}
+		if (tx1 < tx2 || ty1 < ty2) {
+			if (tx2 - tx1 >= ty2 - ty1) {
+				int middle = (tx1 + tx2) / 2;
+				fill(area, color, r, tx1, ty1, middle, ty2);
+				fill(area, color, r, middle + 1, ty1, tx2, ty2);
+			} else {
+				int middle = (ty1 + ty2) / 2;
+				fill(area, color, r, tx1, ty1, tx2, middle);
+				fill(area, color, r, tx1, middle + 1, tx2, ty2);
+			}
+			return;
+		}
+		Graphics2D g = allocate(tx1 * TILE_SIZE, ty1 * TILE_SIZE).createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.translate(-tx1 * TILE_SIZE, -ty1 * TILE_SIZE);
+		g.setColor(color);
+		g.fill(area);
+		g.dispose();
+	}
+
+	/**
+	 * This method is used to reset the whole surface to the background by dropping every tile.
+	 */
+	public void clear() {
+		for (int key = 0; key < tiles.length; key++) {
+			changed[key] |= hasTile(key);
+		}
+		Arrays.fill(tiles, null);
+		Arrays.fill(stored, -1);
+	}
+
+	/**
+	 * This method is used to reset a region of the surface to the background.
+	 * Tiles inside the region are dropped, tiles it only crosses are filled.
+	 * @param region the region to clear
+	 */
+	public void clear(Rectangle region) {
+		Rectangle r = region.intersection(getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		forEachTileRow(r, ty -> {
+			for (int tx = r.x / TILE_SIZE; tx <= (r.x + r.width - 1) / TILE_SIZE; tx++) {
+				copyTile(null, ty * columns + tx, r.intersection(new Rectangle(tx * TILE_SIZE,
+						ty * TILE_SIZE, TILE_SIZE, TILE_SIZE)));
+			}
+		});
+	}
+
+	/**
+	 * This method is used to drop every tile that is not in a set, resetting it to the background.
+	 * @param kept the indexes of the tiles to keep, as returned by {@link #indexOf(int, int)}
+	 */
+	public void retain(BitSet kept) {
+		for (int key = 0; key < tiles.length; key++) {
+			if (!kept.get(key)) {
+				changed[key] |= hasTile(key);
+				tiles[key] = null;
+				stored[key] = -1;
+			}
+		}
+	}
+
+	/**
+	 * This method is used to get the index of the tile that holds a pixel.
+	 * @param x the x coordinate of the pixel
+	 * @param y the y coordinate of the pixel
+	 * @return the index of the tile
+	 */
+	public int indexOf(int x, int y) {
+		return (y / TILE_SIZE) * columns + x / TILE_SIZE;
+	}
+
+	/**
+	 * This method is used to get the tile that holds a pixel.
+	 * @param x the x coordinate of the pixel
+	 * @param y the y coordinate of the pixel
+	 * @return the tile, or null if nothing was drawn on it
+	 */
+	public BufferedImage getTile(int x, int y) {
+		return tile(indexOf(x, y));
+	}
+
+	/**
+	 * This method is used to get the number of tiles the surface is split into.
+	 * @return the number of tiles, including the ones never drawn on
+	 */
+	public int getTileCount() {
+		return tiles.length;
+	}
+
+	/**
+	 * This method is used to get a tile by its index, reading it first if it is paged.
+	 * @param key the index of the tile
+	 * @return the tile, or null if nothing was drawn on it
+	 */
+	public BufferedImage getTile(int key) {
+		return tile(key);
+	}
+
+	/**
+	 * This method is used to check whether anything was drawn on a tile, without reading it.
+	 * @param key the index of the tile
+	 * @return true if the tile is allocated or paged
+	 */
+	public boolean hasTile(int key) {
+		return tiles[key] != null || stored[key] >= 0;
+	}
+
+	/**
+	 * This method is used to collect the tiles that were drawn on, cleared or replaced since the
+	 * last call, and to start over.
+	 * @param into the set the indexes of the changed tiles are added to
+	 */
+	public void takeChanged(BitSet into) {
+		for (int key = 0; key < changed.length; key++) {
+			if (changed[key]) {
+				into.set(key);
+				changed[key] = false;
+			}
+		}
+	}
+
+	/**
+	 * This method is used to get where the saved copy of a tile is.
+	 * @param key the index of the tile
+	 * @return the offset of the copy, or -1 if the tile was changed since it was saved
+	 */
+	public long getStored(int key) {
+		return stored[key];
+	}
+
+	/**
+	 * This method is used to remember where a copy of an allocated tile was saved.
+	 * @param key the index of the tile
+	 * @param offset the offset of the copy
+	 */
+	public void setStored(int key, long offset) {
+		if (tiles[key] != null) {
+			stored[key] = offset;
+		}
+	}
+
+	/**
+	 * This method is used to replace a tile with one that is only read when it is first used.
+	 * @param key the index of the tile
+	 * @param pages where the tile is kept, the same for every paged tile of the surface
+	 * @param offset where the tile is kept in the pages
+	 */
+	public void page(int key, Pages pages, long offset) {
+		this.pages = pages;
+		changed[key] = true;
+		tiles[key] = null;
+		stored[key] = offset;
+	}
+
+	/**
+	 * This method is used to get the tile that holds a pixel, creating it if needed.
+	 * A new tile is filled with the background through its raster rather than its pixel array,
+	 * so Java2D can still cache the tiles that are only ever drawn with a graphics context.
+	 * @param x the x coordinate of the pixel
+	 * @param y the y coordinate of the pixel
+	 * @return the tile
+	 */
+	public BufferedImage allocate(int x, int y) {
+		int key = indexOf(x, y);
+		if (tile(key) == null) {
+			BufferedImage tile = createTile(key);
+			if (background != 0) {
+				fill(tile.getRaster(), 0, 0, tile.getWidth(), tile.getHeight(), background);
+			}
+			tiles[key] = tile;
+		}
+		stored[key] = -1;
+		changed[key] = true;
+		return tiles[key];
+	}
+
+	/**
+	 * This method is used to get a tile, reading it from its pages if it was not read yet.
+	 * @param key the index of the tile
+	 * @return the tile, or null if nothing was drawn on it
+	 */
+	private BufferedImage tile(int key) {
+		if (tiles[key] == null && stored[key] >= 0) {
+			BufferedImage tile = createTile(key);
+			int[] pixels = new int[tile.getWidth() * tile.getHeight()];
+			pages.read(stored[key], pixels);
+			tile.getRaster().setDataElements(0, 0, tile.getWidth(), tile.getHeight(), pixels);
+			tiles[key] = tile;
+		}
+		return tiles[key];
+	}
+
+	/**
+	 * This method is used to paint the part of the surface inside the clip of a graphics context.
+	 * Tiles that were never drawn on are filled with the background, unless it is transparent.
+	 * @param g the graphics context to paint on
+	 */
+	public void paint(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		Rectangle r = clip == null ? getBounds() : clip.intersection(getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		Color color = g.getColor();
+		g.setColor(backgroundColor);
+		for (int ty = r.y / TILE_SIZE; ty <= (r.y + r.height - 1) / TILE_SIZE; ty++) {
+			for (int tx = r.x / TILE_SIZE; tx <= (r.x + r.width - 1) / TILE_SIZE; tx++) {
+				BufferedImage tile = tile(ty * columns + tx);
+				if (tile == null) {
+					if (backgroundColor.getAlpha() == 0) {
+						continue;
+					}
+					g.fillRect(tx * TILE_SIZE, ty * TILE_SIZE, Math.min(TILE_SIZE, width - tx * TILE_SIZE),
+							Math.min(TILE_SIZE, height - ty * TILE_SIZE));
+				} else {
+					g.drawImage(tile, tx * TILE_SIZE, ty * TILE_SIZE, null);
+				}
+			}
+		}
+		g.setColor(color);
+	}
+
+	/**
+	 * This method is used to copy a region of another surface of the same size into this one.
+	 * @param source the surface to copy from
+	 * @param region the region to copy
+	 */
+	public void copyFrom(TiledSurface source, Rectangle region) {
+		Rectangle r = region.intersection(getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		forEachTileRow(r, ty -> {
+			for (int tx = r.x / TILE_SIZE; tx <= (r.x + r.width - 1) / TILE_SIZE; tx++) {
+				copyTile(source.tile(ty * columns + tx), ty * columns + tx, r.intersection(new Rectangle(tx * TILE_SIZE,
+						ty * TILE_SIZE, TILE_SIZE, TILE_SIZE)));
+			}
+		});
+	}
+
+	/**
+	 * This method is used to draw a region of another surface of the same size over this one,
+	 * blending it in with an opacity. Tiles of the source that were never drawn on are skipped
+	 * when its background is transparent.
+	 * @param source the surface to draw, in any pixel format
+	 * @param region the region to draw
+	 * @param opacity the opacity of the source, from 0 to 1
+	 */
+	public void blend(TiledSurface source, Rectangle region, float opacity) {
+		Rectangle r = region.intersection(getBounds());
+		if (r.isEmpty() || opacity <= 0) {
+			return;
+		}
+		AlphaComposite composite = AlphaComposite.SrcOver.derive(Math.min(opacity, 1f));
+		forEachTileRow(r, ty -> {
+			for (int tx = r.x / TILE_SIZE; tx <= (r.x + r.width - 1) / TILE_SIZE; tx++) {
+				BufferedImage from = source.tile(ty * columns + tx);
+				if (from == null && source.backgroundColor.getAlpha() == 0) {
+					continue;
+				}
+				Rectangle part = r.intersection(new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+				Graphics2D g = allocate(part.x, part.y).createGraphics();
+				g.translate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+				g.clipRect(part.x, part.y, part.width, part.height);
+				g.setComposite(composite);
+				if (from == null) {
+					g.setColor(source.backgroundColor);
+					g.fillRect(part.x, part.y, part.width, part.height);
+				} else {
+					g.drawImage(from, tx * TILE_SIZE, ty * TILE_SIZE, null);
+				}
+				g.dispose();
+			}
+		});
+	}
+
+	/**
+	 * This method is used to set a region of the surface to a copy of a surface twice as large,
+	 * each pixel being the average of the two by two pixels it covers. Where the source has no
+	 * tiles the pixels are the background, so a blank part of the source stays without tiles.
+	 * @param source the surface to copy from, in the same pixel format and with the same background,
+	 * whose size halved and rounded up is the size of this surface
+	 * @param region the region to set, in the coordinates of this surface
+	 */
+	public void downsample(TiledSurface source, Rectangle region) {
+		Rectangle r = region.intersection(getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		int half = TILE_SIZE / 2;
+		forEachTileRow(r, ty -> {
+			int[] row = new int[TILE_SIZE], src1 = new int[TILE_SIZE], src2 = new int[TILE_SIZE];
+			for (int tx = r.x / TILE_SIZE; tx <= (r.x + r.width - 1) / TILE_SIZE; tx++) {
+				Rectangle part = r.intersection(new Rectangle(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+				boolean blank = true;
+				for (int sy = 2 * ty; sy < Math.min(2 * ty + 2, source.rows); sy++) {
+					for (int sx = 2 * tx; sx < Math.min(2 * tx + 2, source.columns); sx++) {
+						blank &= !source.hasTile(sy * source.columns + sx);
+					}
+				}
+				if (blank) {
+					copyTile(null, ty * columns + tx, part);
+					continue;
+				}
+				WritableRaster dst = allocate(part.x, part.y).getRaster();
+				for (int y = part.y; y < part.y + part.height; y++) {
+					int sy1 = 2 * y, sy2 = Math.min(sy1 + 1, source.height - 1), sty = sy1 / TILE_SIZE;
+					for (int x1 = part.x, x2 = part.x + part.width; x1 < x2;) {
+						int stx = x1 / half, end = Math.min(x2, (stx + 1) * half);
+						BufferedImage from = source.tile(sty * source.columns + stx);
+						if (from == null) {
+							Arrays.fill(row, x1 - part.x, end - part.x, background);
+						} else {
+							int left = 2 * x1, count = Math.min(2 * end, source.width) - left;
+							from.getRaster().getDataElements(left - stx * TILE_SIZE, sy1 - sty * TILE_SIZE, count, 1, src1);
+							from.getRaster().getDataElements(left - stx * TILE_SIZE, sy2 - sty * TILE_SIZE, count, 1, src2);
+							for (int x = x1; x < end; x++) {
+								int sx1 = 2 * x - left, sx2 = Math.min(sx1 + 1, count - 1);
+								row[x - part.x] = average(src1[sx1], src1[sx2], src2[sx1], src2[sx2]);
+							}
+						}
+						x1 = end;
+					}
+					dst.setDataElements(part.x - tx * TILE_SIZE, y - ty * TILE_SIZE, part.width, 1, row);
+				}
+			}
+		});
+	}
+
+	/**
+	 * This method is used to average four packed pixels, each of the four channels on its own.
+	 * The red and blue channels are summed in one int and the green and alpha ones in another,
+	 * as each sum fits in the sixteen bits it is given.
+	 * @param a the first pixel
+	 * @param b the second pixel
+	 * @param c the third pixel
+	 * @param d the fourth pixel
+	 * @return the rounded average
+	 */
+	private static int average(int a, int b, int c, int d) {
+		int low = (a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff) + (d & 0xff00ff);
+		int high = (a >>> 8 & 0xff00ff) + (b >>> 8 & 0xff00ff) + (c >>> 8 & 0xff00ff) + (d >>> 8 & 0xff00ff);
+		return (low + 0x20002 >>> 2 & 0xff00ff) | (high + 0x20002 >>> 2 & 0xff00ff) << 8;
+	}
+
+	/**
+	 * This method is used to set runs of pixels along rows to one value, such as the region of a
+	 * bucket fill. The runs are sorted by row of tiles first, so each row of tiles is filled on
+	 * its own, and in parallel with the others when the runs cover a large region. The runs must
+	 * not overlap; a blank tile they cover completely is filled in one go.
+	 * @param spans three ints per run: the row, the first column and the column after the last
+	 * @param count the number of runs
+	 * @param pixel the value to set, in the format of the surface
+	 * @param region the region to fill in, the runs are cut to it
+	 */
+	public void fill(int[] spans, int count, int pixel, Rectangle region) {
+		Rectangle r = region.intersection(getBounds());
+		if (r.isEmpty()) {
+			return;
+		}
+		int first = r.y / TILE_SIZE;
+		int[] starts = new int[(r.y + r.height - 1) / TILE_SIZE - first + 2];
+		for (int i = 0; i < count; i++) {
+			int y = spans[i * 3];
+			if (y >= r.y && y < r.y + r.height) {
+				starts[y / TILE_SIZE - first + 1]++;
+			}
+		}
+		for (int i = 1; i < starts.length; i++) {
+			starts[i] += starts[i - 1];
+		}
+		int[] order = new int[starts[starts.length - 1]];
+		int[] next = Arrays.copyOf(starts, starts.length - 1);
+		for (int i = 0; i < count; i++) {
+			int y = spans[i * 3];
+			if (y >= r.y && y < r.y + r.height) {
+				order[next[y / TILE_SIZE - first]++] = i;
+			}
+		}
+		forEachTileRow(r, ty -> {
+			int[] covered = new int[columns], run = new int[TILE_SIZE];
+			Arrays.fill(run, pixel);
+			for (int k = starts[ty - first]; k < starts[ty - first + 1]; k++) {
+				int i = order[k] * 3;
+				for (int x1 = Math.max(spans[i + 1], r.x), x2 = Math.min(spans[i + 2], r.x + r.width); x1 < x2;) {
+					int end = Math.min(x2, (x1 / TILE_SIZE + 1) * TILE_SIZE);
+					covered[x1 / TILE_SIZE] += end - x1;
+					x1 = end;
+				}
+			}
+			for (int tx = 0; tx < columns; tx++) {
+				int key = ty * columns + tx;
+				if (covered[tx] > 0 && !hasTile(key)) {
+					BufferedImage tile = createTile(key);
+					if (covered[tx] == tile.getWidth() * tile.getHeight()) {
+						fill(tile.getRaster(), 0, 0, tile.getWidth(), tile.getHeight(), pixel);
+						tiles[key] = tile;
+						changed[key] = true;
+						covered[tx] = -1;
+					}
+				}
+			}
+			for (int k = starts[ty - first]; k < starts[ty - first + 1]; k++) {
+				int i = order[k] * 3, y = spans[i];
+				int x1 = Math.max(spans[i + 1], r.x), x2 = Math.min(spans[i + 2], r.x + r.width);
+				while (x1 < x2) {
+					int tileX = x1 / TILE_SIZE * TILE_SIZE, end = Math.min(x2, tileX + TILE_SIZE);
+					if (covered[x1 / TILE_SIZE] < 0) {
+						x1 = end;
+						continue;
+					}
+					allocate(x1, y).getRaster().setDataElements(x1 - tileX, y % TILE_SIZE, end - x1, 1, run);
+					x1 = end;
+				}
+			}
+		});
+	}
+
+	/**
+	 * This method is used to copy part of one tile into this surface, or to reset it to the background.
+	 * @param from the tile to copy from, or null for the background
+	 * @param key the index of the tile
+	 * @param part the part of the tile to copy, in canvas coordinates
+	 */
+	private void copyTile(BufferedImage from, int key, Rectangle part) {
+		boolean whole = part.width == Math.min(TILE_SIZE, width - (key % columns) * TILE_SIZE)
+				&& part.height == Math.min(TILE_SIZE, height - (key / columns) * TILE_SIZE);
+		BufferedImage to = whole ? tiles[key] : tile(key);
+		stored[key] = -1;
+		changed[key] = true;
+		if (from == null && (to == null || whole)) {
+			tiles[key] = null;
+			return;
+		}
+		if (to == null) {
+			to = createTile(key);
+			if (!whole) {
+				fill(to.getRaster(), 0, 0, to.getWidth(), to.getHeight(), background);
+			}
+			tiles[key] = to;
+		}
+		int x = part.x % TILE_SIZE, y = part.y % TILE_SIZE;
+		if (from == null) {
+			fill(to.getRaster(), x, y, part.width, part.height, background);
+		} else {
+			to.getRaster().setDataElements(x, y, from.getRaster().createChild(x, y, part.width, part.height, 0, 0, null));
+		}
+	}
+
+	/**
+	 * This method is used to set a rectangle of a tile to one value, a row at a time.
+	 * @param raster the raster of the tile
+	 * @param x the x coordinate of the rectangle in the tile
+	 * @param y the y coordinate of the rectangle in the tile
+	 * @param width the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @param pixel the value to set, in the format of the surface
+	 */
+	private static void fill(WritableRaster raster, int x, int y, int width, int height, int pixel) {
+		int[] row = new int[width];
+		Arrays.fill(row, pixel);
+		for (int line = y; line < y + height; line++) {
+			raster.setDataElements(x, line, width, 1, row);
+		}
+	}
+
+	/**
+	 * This method is used to put the whole surface into one image, for example to save it.
+	 * @return a new image of the size of the surface
+	 */
+	public BufferedImage toImage() {
+		return toImage(getBounds());
+	}
+
+	/**
+	 * This method is used to put a region of the surface into one image.
+	 * @param region the region, inside the surface
+	 * @return a new image of the size of the region
+	 */
+	public BufferedImage toImage(Rectangle region) {
+		Rectangle r = region.intersection(getBounds());
+		BufferedImage image = format.createImage(r.width, r.height);
+		copyTo(r, image);
+		return image;
+	}
+
+	/**
+	 * This method is used to put a region of the surface into an image that already exists,
+	 * so the same image can be filled again and again.
+	 * @param region the region, inside the surface
+	 * @param image an image of the pixel format of the surface, at least as large as the region,
+	 *        which gets the region in its top left corner
+	 */
+	public void copyTo(Rectangle region, BufferedImage image) {
+		Rectangle r = region.intersection(getBounds());
+		int[] dst = PixelFormat.pixels(image);
+		int scan = image.getWidth();
+		forEachTileRow(r, ty -> {
+			int[] src = new int[TILE_SIZE * TILE_SIZE];
+			int y1 = Math.max(r.y, ty * TILE_SIZE), y2 = Math.min(r.y + r.height, (ty + 1) * TILE_SIZE);
+			for (int tx = r.x / TILE_SIZE; tx <= (r.x + r.width - 1) / TILE_SIZE; tx++) {
+				BufferedImage tile = tile(ty * columns + tx);
+				int x1 = Math.max(r.x, tx * TILE_SIZE), x2 = Math.min(r.x + r.width, (tx + 1) * TILE_SIZE);
+				if (tile != null) {
+					tile.getRaster().getDataElements(x1 - tx * TILE_SIZE, y1 - ty * TILE_SIZE, x2 - x1, y2 - y1, src);
+				}
+				int offset = (y1 - r.y) * scan + x1 - r.x;
+				for (int y = y1; y < y2; y++, offset += scan) {
+					if (tile == null) {
+						Arrays.fill(dst, offset, offset + x2 - x1, background);
+					} else {
+						System.arraycopy(src, (y - y1) * (x2 - x1), dst, offset, x2 - x1);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * This method is used to run a task for every row of tiles intersecting a region,
+	 * in parallel when the region is large enough to be worth it.
+	 * @param r the region, inside the surface
+	 * @param task the task, called with the index of each row of tiles
+	 */
+	private static void forEachTileRow(Rectangle r, IntConsumer task) {
+		IntStream rows = IntStream.rangeClosed(r.y / TILE_SIZE, (r.y + r.height - 1) / TILE_SIZE);
+		if ((long) r.width * r.height >= PARALLEL_PIXELS) {
+			rows = rows.parallel();
+		}
+		rows.forEach(task);
+	}
+
+	/**
+	 * This method is used to create the image for a tile without filling it.
+	 * @param key the index of the tile
+	 * @return the image, sized to the part of the tile inside the surface
+	 */
+	private BufferedImage createTile(int key) {
+		int tileX = (key % columns) * TILE_SIZE, tileY = (key / columns) * TILE_SIZE;
+		return format.createImage(Math.min(TILE_SIZE, width - tileX), Math.min(TILE_SIZE, height - tileY));
+	}
+
+	/**
+	 * This method is used to get the memory taken by the allocated tiles. Paged tiles that
+	 * were not read yet take none.
+	 * @return the size of the tiles in bytes
+	 */
+	public long getHeapSize() {
+		long size = 0;
+		for (BufferedImage tile : tiles) {
+			if (tile != null) {
+				size += tile.getWidth() * tile.getHeight() * 4L;
+			}
+		}
+		return size;
+	}
+}
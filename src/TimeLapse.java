@@ -0,0 +1,548 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.SwingUtilities;
+
+/**
+ * This class replays a {@link Recording} without a display into a time-lapse: an animated GIF,
+ * or numbered PNG files in a directory.
+ * The export is a pipeline of three threads joined by bounded queues. The first replays the
+ * recording and puts the layers together into a frame each time the clock of the time-lapse
+ * passes one; the second compares each frame with the one before and finds the region that
+ * changed; the third encodes. Frames are drawn into a fixed set of images that goes round the
+ * pipeline, so a long session takes as much memory as a short one and every stage works on
+ * another frame at the same time. Frames in which nothing changed are not drawn at all: a GIF
+ * shows the frame before for longer, with only the changed region of each frame stored, and the
+ * PNG of the frame before is copied. Pauses longer than a second are cut to a second.
+ * <p>
+ * Usage: {@code TimeLapse [-fps N] [-speed X] RECORDING TARGET}, where a TARGET ending in .gif
+ * is an animated GIF and any other is a directory for the PNG files.
+ */
+public class TimeLapse {
+	public static final int DEFAULT_FPS = 10;
+	public static final double DEFAULT_SPEED = 4;
+	private static final PixelFormat FORMAT = PixelFormat.negotiate(null);
+	private static final long MAX_PAUSE = TimeUnit.SECONDS.toNanos(1);
+	private static final int HOLD_SECONDS = 2;
+	private static final int QUEUE_SIZE = 2;
+	private static final int FRAMES = 2 * QUEUE_SIZE + 4;
+
+	/**
+	 * This class represents a frame going through the pipeline.
+	 */
+	private static class Frame {
+		private final BufferedImage image;
+		private int tick;
+		private Rectangle changed;
+
+		/**
+		 * This constructor is used to create a frame.
+		 * @param image the image the frame is drawn into, or null for the end of the time-lapse
+		 */
+		Frame(BufferedImage image) {
+			this.image = image;
+		}
+	}
+
+	/**
+	 * This interface represents the last stage of the pipeline, which writes the frames.
+	 * It is closed once the export ends, whether the frames were all written or not.
+	 */
+	private interface Encoder extends Closeable {
+		/**
+		 * This method is used to write a frame, once it is known how long it is shown.
+		 * @param frame the frame, holding the region that changed since the frame before
+		 * @param next the tick of the frame after it, or of the end of the time-lapse
+		 * @throws IOException if the frame could not be written
+		 */
+		void write(Frame frame, int next) throws IOException;
+
+		/**
+		 * This method is used to finish the output once every frame was written.
+		 * @throws IOException if the output could not be finished
+		 */
+		void finish() throws IOException;
+	}
+
+	private final int fps;
+	private final double speed;
+
+	/**
+	 * This constructor is used to create an exporter.
+	 * @param fps the number of frames of the time-lapse per second
+	 * @param speed how many times faster than it was drawn the session is shown
+	 */
+	public TimeLapse(int fps, double speed) {
+		if (fps < 1 || fps > 100 || !(speed > 0)) {
+			throw new IllegalArgumentException("Invalid fps " + fps + " or speed " + speed);
+		}
+		this.fps = fps;
+		this.speed = speed;
+	}
+
+	/**
+	 * The main method of the exporter.
+	 * The exit status is 1 if the export failed and 2 for invalid arguments.
+	 * @param args the options, the recording and the target
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int fps = DEFAULT_FPS;
+		double speed = DEFAULT_SPEED;
+		File recording = null, target = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-fps")) {
+					fps = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-speed")) {
+					speed = Double.parseDouble(args[++i]);
+				} else if (recording == null) {
+					recording = new File(args[i]);
+				} else if (target == null) {
+					target = new File(args[i]);
+				} else {
+					target = null;
+					break;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			target = null;
+		}
+		if (target == null || fps < 1 || fps > 100 || !(speed > 0)) {
+			System.err.println("Usage: TimeLapse [-fps N] [-speed X] RECORDING TARGET.gif|DIR");
+			System.exit(2);
+		}
+		try {
+			new TimeLapse(fps, speed).export(recording, target, null);
+			System.out.println(target.getPath());
+		} catch (IOException e) {
+			System.err.println("Error exporting recording: " + recording.getPath());
+			System.err.println("Exception message: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * This method is used to export a recording in the background.
+	 * @param recording the file of the recording
+	 * @param target the GIF file, or the directory for the PNG files
+	 * @param listener the listener to report progress to
+	 */
+	public void exportLater(File recording, File target, ProgressListener listener) {
+		Thread thread = new Thread(() -> {
+			try {
+				export(recording, target, percent -> SwingUtilities.invokeLater(
+						() -> listener.progress(target, percent)));
+				SwingUtilities.invokeLater(() -> listener.done(target));
+			} catch (IOException e) {
+				SwingUtilities.invokeLater(() -> listener.failed(target, e));
+			}
+		}, "time-lapse");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * This method is used to export a recording and wait until it is written.
+	 * @param recording the file of the recording
+	 * @param target the GIF file, or the directory for the PNG files
+	 * @param progress the code told the percentage of the recording replayed, or null
+	 * @throws IOException if the recording could not be read or the time-lapse not written
+	 */
+	public void export(File recording, File target, IntConsumer progress) throws IOException {
+		try (Recording.Player player = new Recording.Player(recording)) {
+			BlockingQueue<Frame> free = new ArrayBlockingQueue<>(FRAMES);
+			for (int i = 0; i < FRAMES; i++) {
+				free.add(new Frame(FORMAT.createImage(player.getWidth(), player.getHeight())));
+			}
+			BlockingQueue<Frame> drawn = new ArrayBlockingQueue<>(QUEUE_SIZE);
+			BlockingQueue<Frame> compared = new ArrayBlockingQueue<>(QUEUE_SIZE);
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			try (Encoder encoder = target.getName().toLowerCase(Locale.ROOT).endsWith(".gif") ? new GifEncoder(target)
+					: new PngFrames(target)) {
+				Thread[] stages = new Thread[3];
+				stages[0] = stage(() -> rasterize(player, free, drawn, progress), "time-lapse-raster", failure, stages);
+				stages[1] = stage(() -> compare(drawn, compared, free), "time-lapse-diff", failure, stages);
+				stages[2] = stage(() -> encode(encoder, compared, free), "time-lapse-encode", failure, stages);
+				for (Thread stage : stages) {
+					stage.start();
+				}
+				try {
+					for (Thread stage : stages) {
+						stage.join();
+					}
+				} catch (InterruptedException e) {
+					for (Thread stage : stages) {
+						stage.interrupt();
+					}
+					throw new IOException("The export was interrupted");
+				}
+			}
+			Throwable e = failure.get();
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			} else if (e != null) {
+				throw new IOException(e.toString(), e);
+			}
+		}
+	}
+
+	/**
+	 * This interface represents the work of a stage of the pipeline.
+	 */
+	private interface Stage {
+		/**
+		 * This method is used to run the stage until the end of the time-lapse went through it.
+		 * @throws Exception if the stage failed or was interrupted
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * This method is used to create the thread of a stage. The first stage to fail, with an
+	 * exception or an error, interrupts the others, which may be waiting for it on a queue.
+	 * @param stage the work of the stage
+	 * @param name the name of the thread
+	 * @param failure where the first failure is kept
+	 * @param stages the threads of every stage
+	 * @return the thread, not yet started
+	 */
+	private static Thread stage(Stage stage, String name, AtomicReference<Throwable> failure, Thread[] stages) {
+		Thread thread = new Thread(() -> {
+			try {
+				stage.run();
+			} catch (InterruptedException e) {
+				// another stage failed
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+				for (Thread other : stages) {
+					other.interrupt();
+				}
+			}
+		}, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * This method is used to run the first stage: it replays the recording on a clock that runs
+	 * {@link #speed} times faster than the session, and draws a frame at each tick when something
+	 * changed since the frame before.
+	 * @param player the recording
+	 * @param free the frames that can be drawn into
+	 * @param drawn the queue of drawn frames
+	 * @param progress the code told the percentage replayed, or null
+	 * @throws IOException if the recording could not be read
+	 * @throws InterruptedException if another stage failed
+	 */
+	private void rasterize(Recording.Player player, BlockingQueue<Frame> free, BlockingQueue<Frame> drawn,
+			IntConsumer progress) throws IOException, InterruptedException {
+		LayerStack layers = player.getLayers();
+		TiledSurface composed = new TiledSurface(player.getWidth(), player.getHeight(), FORMAT);
+		Set<Layer> touched = new LinkedHashSet<>();
+		double step = speed * TimeUnit.SECONDS.toNanos(1) / fps;
+		boolean changed = true;
+		long cut = 0, last = 0;
+		int tick = 0, shown = -1;
+		for (long time = player.peek(); time >= 0; time = player.peek()) {
+			time = Math.max(last, time - cut);
+			if (time - last > MAX_PAUSE) {
+				cut += time - last - MAX_PAUSE;
+				time = last + MAX_PAUSE;
+			}
+			for (; tick * step < time; tick++) {
+				if (changed) {
+					drawn.put(draw(layers, touched, composed, free.take(), tick));
+					changed = false;
+				}
+			}
+			Layer layer = player.next();
+			if (layer != null) {
+				touched.add(layer);
+			}
+			changed = true;
+			last = time;
+			if (progress != null && player.getProgress() != shown) {
+				shown = player.getProgress();
+				progress.accept(shown);
+			}
+		}
+		if (changed) {
+			drawn.put(draw(layers, touched, composed, free.take(), tick++));
+		}
+		Frame end = new Frame(null);
+		end.tick = tick + HOLD_SECONDS * fps;
+		drawn.put(end);
+	}
+
+	/**
+	 * This method is used to put the layers together into a frame.
+	 * @param layers the layers
+	 * @param touched the layers drawn on since the frame before, which is cleared
+	 * @param composed the surface the layers are put together on
+	 * @param frame the frame to draw into
+	 * @param tick the number of the frame in the time-lapse
+	 * @return the frame
+	 */
+	private static Frame draw(LayerStack layers, Set<Layer> touched, TiledSurface composed, Frame frame, int tick) {
+		Rectangle bounds = composed.getBounds();
+		if (touched.isEmpty()) {
+			layers.composite(null, bounds, composed);
+		}
+		for (Layer layer : touched) {
+			layers.composite(layer, bounds, composed);
+		}
+		touched.clear();
+		composed.copyTo(bounds, frame.image);
+		frame.tick = tick;
+		return frame;
+	}
+
+	/**
+	 * This method is used to run the second stage: it finds the region of each frame that differs
+	 * from the frame before, and drops frames that do not differ at all.
+	 * @param drawn the queue of drawn frames
+	 * @param compared the queue of frames whose changed region is known
+	 * @param free the frames that can be drawn into again
+	 * @throws InterruptedException if another stage failed
+	 */
+	private static void compare(BlockingQueue<Frame> drawn, BlockingQueue<Frame> compared, BlockingQueue<Frame> free)
+			throws InterruptedException {
+		int[] before = null;
+		Frame frame;
+		while ((frame = drawn.take()).image != null) {
+			int[] pixels = PixelFormat.pixels(frame.image);
+			int width = frame.image.getWidth(), height = frame.image.getHeight();
+			if (before == null) {
+				before = pixels.clone();
+				frame.changed = new Rectangle(width, height);
+				compared.put(frame);
+				continue;
+			}
+			int top = -1, bottom = -1, left = width, right = -1;
+			for (int y = 0, row = 0; y < height; y++, row += width) {
+				int first = Arrays.mismatch(pixels, row, row + width, before, row, row + width);
+				if (first < 0) {
+					continue;
+				}
+				int end = width - 1;
+				while (pixels[row + end] == before[row + end]) {
+					end--;
+				}
+				if (top < 0) {
+					top = y;
+				}
+				bottom = y;
+				left = Math.min(left, first);
+				right = Math.max(right, end);
+			}
+			if (top < 0) {
+				free.put(frame);
+				continue;
+			}
+			frame.changed = new Rectangle(left, top, right - left + 1, bottom - top + 1);
+			for (int y = top, row = top * width; y <= bottom; y++, row += width) {
+				System.arraycopy(pixels, row + left, before, row + left, right - left + 1);
+			}
+			compared.put(frame);
+		}
+		compared.put(frame);
+	}
+
+	/**
+	 * This method is used to run the last stage: it holds each frame until the next one arrives,
+	 * so it knows how long the frame is shown, and then writes it.
+	 * @param encoder the encoder
+	 * @param compared the queue of frames whose changed region is known
+	 * @param free the frames that can be drawn into again
+	 * @throws IOException if a frame could not be written
+	 * @throws InterruptedException if another stage failed
+	 */
+	private static void encode(Encoder encoder, BlockingQueue<Frame> compared, BlockingQueue<Frame> free)
+			throws IOException, InterruptedException {
+		Frame pending = null;
+		for (Frame frame = compared.take(); ; frame = compared.take()) {
+			if (pending != null) {
+				encoder.write(pending, frame.tick);
+				free.put(pending);
+			}
+			if (frame.image == null) {
+				break;
+			}
+			pending = frame;
+		}
+		encoder.finish();
+	}
+
+	/**
+	 * This method is used to get the time at which a frame is shown, in the hundredths of a
+	 * second GIF delays are given in, so the rounding of each delay does not add up.
+	 * @param tick the number of the frame
+	 * @return the time in hundredths of a second
+	 */
+	private int centiseconds(int tick) {
+		return (int) Math.round(tick * 100.0 / fps);
+	}
+
+	/**
+	 * This class writes the frames as an animated GIF that loops forever. Each frame only stores
+	 * the region that changed, drawn over the frames before it.
+	 */
+	private class GifEncoder implements Encoder {
+		private final ImageOutputStream out;
+		private final ImageWriter writer;
+		private boolean first = true;
+
+		/**
+		 * This constructor is used to create the GIF file and start the sequence of frames.
+		 * @param file the file to write
+		 * @throws IOException if the file could not be created
+		 */
+		GifEncoder(File file) throws IOException {
+			writer = ImageIO.getImageWritersByFormatName("gif").next();
+			out = ImageIO.createImageOutputStream(file);
+			if (out == null) {
+				throw new IOException("Cannot write " + file);
+			}
+			try {
+				writer.setOutput(out);
+				writer.prepareWriteSequence(null);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public void write(Frame frame, int next) throws IOException {
+			Rectangle r = frame.changed;
+			BufferedImage image = frame.image.getSubimage(r.x, r.y, r.width, r.height);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image),
+					param);
+			String format = metadata.getNativeMetadataFormatName();
+			IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+			IIOMetadataNode control = child(root, "GraphicControlExtension");
+			control.setAttribute("disposalMethod", "doNotDispose");
+			control.setAttribute("userInputFlag", "FALSE");
+			control.setAttribute("transparentColorFlag", "FALSE");
+			control.setAttribute("transparentColorIndex", "0");
+			control.setAttribute("delayTime", Integer.toString(centiseconds(next) - centiseconds(frame.tick)));
+			IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+			descriptor.setAttribute("imageLeftPosition", Integer.toString(r.x));
+			descriptor.setAttribute("imageTopPosition", Integer.toString(r.y));
+			descriptor.setAttribute("imageWidth", Integer.toString(r.width));
+			descriptor.setAttribute("imageHeight", Integer.toString(r.height));
+			descriptor.setAttribute("interlaceFlag", "FALSE");
+			if (first) {
+				IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+				loop.setAttribute("applicationID", "NETSCAPE");
+				loop.setAttribute("authenticationCode", "2.0");
+				loop.setUserObject(new byte[] { 1, 0, 0 });
+				child(root, "ApplicationExtensions").appendChild(loop);
+				first = false;
+			}
+			metadata.setFromTree(format, root);
+			writer.writeToSequence(new IIOImage(image, null, metadata), param);
+		}
+
+		public void finish() throws IOException {
+			writer.endWriteSequence();
+		}
+
+		public void close() throws IOException {
+			writer.dispose();
+			out.close();
+		}
+
+		/**
+		 * This method is used to get a child of a metadata node, adding it if there is none.
+		 * @param parent the node
+		 * @param name the name of the child
+		 * @return the child
+		 */
+		private IIOMetadataNode child(IIOMetadataNode parent, String name) {
+			for (int i = 0; i < parent.getLength(); i++) {
+				if (parent.item(i).getNodeName().equals(name)) {
+					return (IIOMetadataNode) parent.item(i);
+				}
+			}
+			IIOMetadataNode child = new IIOMetadataNode(name);
+			parent.appendChild(child);
+			return child;
+		}
+	}
+
+	/**
+	 * This class writes every frame of the time-lapse as a numbered PNG file, encoded on every
+	 * core. A frame shown for several ticks is encoded once and copied.
+	 */
+	private static class PngFrames implements Encoder {
+		private final File dir;
+		private final PngEncoder encoder = new PngEncoder(Deflater.DEFAULT_COMPRESSION, PngEncoder.Filter.ADAPTIVE,
+				Runtime.getRuntime().availableProcessors());
+
+		/**
+		 * This constructor is used to create the directory of the files.
+		 * @param dir the directory
+		 * @throws IOException if the directory could not be created
+		 */
+		PngFrames(File dir) throws IOException {
+			this.dir = dir;
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+		}
+
+		public void write(Frame frame, int next) throws IOException {
+			File file = file(frame.tick);
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+				encoder.write(frame.image, out, null);
+			}
+			for (int tick = frame.tick + 1; tick < next; tick++) {
+				Files.copy(file.toPath(), file(tick).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		public void finish() {
+		}
+
+		public void close() {
+			encoder.close();
+		}
+
+		/**
+		 * This method is used to get the file of a frame.
+		 * @param tick the number of the frame
+		 * @return the file
+		 */
+		private File file(int tick) {
+			return new File(dir, String.format("frame-%06d.png", tick));
+		}
+	}
+}
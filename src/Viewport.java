@@ -0,0 +1,99 @@
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+/**
+ * This class represents how a canvas is shown on screen: the zoom between canvas pixels and
+ * the pixels of the component. Panning is left to the scroll pane the component sits in, so
+ * the component is as large as the zoomed canvas and the transform is a plain scale.
+ * When zoomed out, the canvas is drawn from the level of a {@link MipPyramid} that is the
+ * smallest one still at least as detailed as the screen, so no more than four times the
+ * pixels on screen are ever read.
+ * The zoom may be read by any thread.
+ */
+public class Viewport {
+	public static final double MIN_ZOOM = 1 / 64.0, MAX_ZOOM = 32;
+	private static final double STEP = Math.sqrt(2);
+
+	private volatile double zoom = 1;
+
+	/**
+	 * This method is used to get the zoom.
+	 * @return the number of screen pixels per canvas pixel along each axis
+	 */
+	public double getZoom() {
+		return zoom;
+	}
+
+	/**
+	 * This method is used to set the zoom.
+	 * @param zoom the number of screen pixels per canvas pixel, clamped to the supported range
+	 * @return the zoom that was set
+	 */
+	public double setZoom(double zoom) {
+		double clamped = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+		this.zoom = Math.abs(clamped - 1) < 1e-9 ? 1 : clamped;
+		return this.zoom;
+	}
+
+	/**
+	 * This method is used to get the next larger zoom, a step being a factor of the square root of two.
+	 * Zooms close to a step are moved to the step after it, so stepping always lands on 1.
+	 * @param in true to zoom in, false to zoom out
+	 * @return the zoom one step away
+	 */
+	public double step(boolean in) {
+		double steps = Math.log(zoom) / Math.log(STEP);
+		double next = in ? Math.floor(steps + 1e-6) + 1 : Math.ceil(steps - 1e-6) - 1;
+		return Math.pow(STEP, next);
+	}
+
+	/**
+	 * This method is used to map a point of the component to the canvas pixel under it.
+	 * @param x the x coordinate in the component
+	 * @param y the y coordinate in the component
+	 * @return the point on the canvas
+	 */
+	public Point toCanvas(int x, int y) {
+		double z = zoom;
+		return new Point((int) Math.floor(x / z), (int) Math.floor(y / z));
+	}
+
+	/**
+	 * This method is used to map a region of the canvas to the region of the component that shows it.
+	 * @param r the region in canvas coordinates
+	 * @return the smallest region of the component covering it
+	 */
+	public Rectangle toView(Rectangle r) {
+		double z = zoom;
+		if (z == 1) {
+			return new Rectangle(r);
+		}
+		int x1 = (int) Math.floor(r.x * z), y1 = (int) Math.floor(r.y * z);
+		int x2 = (int) Math.ceil((r.x + r.width) * z), y2 = (int) Math.ceil((r.y + r.height) * z);
+		return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+	}
+
+	/**
+	 * This method is used to get the size of the component showing a canvas.
+	 * @param canvas the size of the canvas
+	 * @return the size of the zoomed canvas
+	 */
+	public Dimension toView(Dimension canvas) {
+		double z = zoom;
+		return new Dimension((int) Math.ceil(canvas.width * z), (int) Math.ceil(canvas.height * z));
+	}
+
+	/**
+	 * This method is used to get the level of the mip pyramid the canvas is drawn from.
+	 * @return 0 for the canvas itself, or the level whose scale is the smallest one not below the zoom
+	 */
+	public int getLevel() {
+		double z = zoom;
+		int level = 0;
+		while (z * (1 << (level + 1)) <= 1 + 1e-9) {
+			level++;
+		}
+		return level;
+	}
+}